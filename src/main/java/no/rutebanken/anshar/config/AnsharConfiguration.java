@@ -51,6 +51,24 @@ public class AnsharConfiguration {
     @Value("${anshar.incoming.concurrentConsumers.fm:1}")
     private long concurrentConsumersFm;
 
+    /*
+     * Bounds used when adaptive concurrency is enabled - configured number of consumers above is used as initial value
+     */
+    @Value("${anshar.incoming.concurrentConsumers.min:1}")
+    private int concurrentConsumersMin;
+
+    @Value("${anshar.incoming.concurrentConsumers.et.max:10}")
+    private int concurrentConsumersEtMax;
+
+    @Value("${anshar.incoming.concurrentConsumers.vm.max:10}")
+    private int concurrentConsumersVmMax;
+
+    @Value("${anshar.incoming.concurrentConsumers.sx.max:2}")
+    private int concurrentConsumersSxMax;
+
+    @Value("${anshar.incoming.concurrentConsumers.fm.max:2}")
+    private int concurrentConsumersFmMax;
+
     @Value("${anshar.incoming.logdirectory}")
     private String incomingLogDirectory = "/tmp";
 
@@ -181,6 +199,26 @@ public class AnsharConfiguration {
         return concurrentConsumersFm;
     }
 
+    public int getConcurrentConsumersMin() {
+        return concurrentConsumersMin;
+    }
+
+    public int getConcurrentConsumersEtMax() {
+        return concurrentConsumersEtMax;
+    }
+
+    public int getConcurrentConsumersVmMax() {
+        return concurrentConsumersVmMax;
+    }
+
+    public int getConcurrentConsumersSxMax() {
+        return concurrentConsumersSxMax;
+    }
+
+    public int getConcurrentConsumersFmMax() {
+        return concurrentConsumersFmMax;
+    }
+
     public String getEnvironment() {
         return environment;
     }
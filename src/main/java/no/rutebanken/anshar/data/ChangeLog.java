@@ -0,0 +1,202 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.map.IMap;
+import com.hazelcast.ringbuffer.OverflowPolicy;
+import com.hazelcast.ringbuffer.ReadResultSet;
+import com.hazelcast.ringbuffer.Ringbuffer;
+import com.hazelcast.ringbuffer.StaleSequenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Cluster-wide, sequenced log of changed ids for one data type.
+ *
+ * Every change is appended once, and each requestor only keeps a cursor pointing to the next sequence
+ * to read - one per filter - instead of every change being added to a separate set per requestor.
+ *
+ * When a requestor is unknown, or has fallen so far behind that its cursor has been overwritten, a full
+ * snapshot must be returned instead.
+ */
+class ChangeLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeLog.class);
+
+    /**
+     * Max number of items per batch-operation on a Ringbuffer
+     */
+    static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * Max number of attempts to move a cursor that is concurrently moved by other requests
+     */
+    private static final int MAX_CURSOR_ATTEMPTS = 3;
+
+    private final Ringbuffer<SiriObjectStorageKey> ringbuffer;
+
+    private final IMap<String, Long> cursors;
+
+    ChangeLog(Ringbuffer<SiriObjectStorageKey> ringbuffer, IMap<String, Long> cursors) {
+        this.ringbuffer = ringbuffer;
+        this.cursors = cursors;
+    }
+
+    /**
+     * Appends changes to the log - oldest changes are overwritten when capacity is reached
+     */
+    void append(Collection<SiriObjectStorageKey> changes) {
+        List<SiriObjectStorageKey> batch = new ArrayList<>(Math.min(changes.size(), MAX_BATCH_SIZE));
+        for (SiriObjectStorageKey key : changes) {
+            batch.add(key);
+            if (batch.size() == MAX_BATCH_SIZE) {
+                ringbuffer.addAllAsync(batch, OverflowPolicy.OVERWRITE).toCompletableFuture().join();
+                batch = new ArrayList<>(MAX_BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            ringbuffer.addAllAsync(batch, OverflowPolicy.OVERWRITE).toCompletableFuture().join();
+        }
+    }
+
+    /**
+     * Reads changes forward from the requestor's cursor, and moves the cursor past the changes that were read.
+     *
+     * Each combination of requestor and filter has its own cursor, since ids skipped by one filter may be requested
+     * with another. The cursor is only moved if it has not been moved by a concurrent request in the meantime - the
+     * changes are then read again from the updated cursor.
+     *
+     * @param requestorId Requestor
+     * @param filterId Identifies the filter - requests with the same requestor and filterId must use the same filter
+     * @param filter Only ids matching the filter are returned - other ids are skipped
+     * @param maxSize Max number of distinct ids to return
+     * @param trackingPeriod How long the cursor is kept after the last request
+     * @param timeUnit Unit for trackingPeriod
+     *
+     * @return Distinct ids in the order they were changed, or null if the requestor is unknown or has fallen behind
+     *          and a full snapshot should be returned.
+     */
+    Set<SiriObjectStorageKey> readChanges(String requestorId, String filterId, Predicate<SiriObjectStorageKey> filter,
+                                          int maxSize, long trackingPeriod, TimeUnit timeUnit) {
+        final String cursorKey = createCursorKey(requestorId, filterId);
+
+        for (int attempt = 0; attempt < MAX_CURSOR_ATTEMPTS; attempt++) {
+            final Long cursor = cursors.get(cursorKey);
+            final long tail = ringbuffer.tailSequence();
+
+            if (cursor == null) {
+                // Changes committed after this point will be read on next request
+                cursors.putIfAbsent(cursorKey, tail + 1, trackingPeriod, timeUnit);
+                return null;
+            }
+
+            if (cursor < ringbuffer.headSequence() || cursor > tail + 1) {
+                resetCursor(cursorKey, cursor, tail, trackingPeriod, timeUnit);
+                return null;
+            }
+
+            Set<SiriObjectStorageKey> changes = new LinkedHashSet<>();
+            long sequence;
+            try {
+                sequence = read(cursor, tail, filter, maxSize, changes);
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof StaleSequenceException) {
+                    // Overwritten while reading
+                    resetCursor(cursorKey, cursor, tail, trackingPeriod, timeUnit);
+                    return null;
+                }
+                throw e;
+            }
+
+            if (sequence == cursor) {
+                cursors.setTtl(cursorKey, trackingPeriod, timeUnit);
+                return changes;
+            }
+            if (cursors.replace(cursorKey, cursor, sequence)) {
+                cursors.setTtl(cursorKey, trackingPeriod, timeUnit);
+                return changes;
+            }
+            // Cursor was moved by a concurrent request - the changes read have already been returned
+        }
+
+        logger.info("Cursor for requestor {} was moved concurrently {} times, returning no changes", requestorId, MAX_CURSOR_ATTEMPTS);
+        return new LinkedHashSet<>();
+    }
+
+    /**
+     * Reads changes matching the filter into the given set
+     *
+     * @return Next sequence to read
+     */
+    private long read(long cursor, long tail, Predicate<SiriObjectStorageKey> filter, int maxSize,
+                      Set<SiriObjectStorageKey> changes) {
+        long sequence = cursor;
+        while (sequence <= tail && changes.size() < maxSize) {
+            int count = (int) Math.min(MAX_BATCH_SIZE, tail - sequence + 1);
+            ReadResultSet<SiriObjectStorageKey> result = ringbuffer.readManyAsync(sequence, 0, count, null)
+                    .toCompletableFuture().join();
+            if (result.readCount() == 0) {
+                break;
+            }
+            for (int i = 0; i < result.size(); i++) {
+                sequence = result.getSequence(i) + 1;
+                SiriObjectStorageKey key = result.get(i);
+                if (filter.test(key)) {
+                    changes.add(key);
+                    if (changes.size() >= maxSize) {
+                        break;
+                    }
+                }
+            }
+            if (changes.size() < maxSize) {
+                sequence = result.getNextSequenceToReadFrom();
+            }
+        }
+        return sequence;
+    }
+
+    private void resetCursor(String cursorKey, long cursor, long tail, long trackingPeriod, TimeUnit timeUnit) {
+        // A concurrent request has already reset or moved the cursor if this fails
+        if (cursors.replace(cursorKey, cursor, tail + 1)) {
+            cursors.setTtl(cursorKey, trackingPeriod, timeUnit);
+        }
+        logger.info("Requestor {} has fallen behind the change-log, returning snapshot", cursorKey);
+    }
+
+    private static String createCursorKey(String requestorId, String filterId) {
+        return filterId != null && !filterId.isEmpty() ? requestorId + "|" + filterId : requestorId;
+    }
+
+    /**
+     * Removes all cursors - all requestors will get a full snapshot on next request
+     */
+    void clearCursors() {
+        cursors.clear();
+    }
+
+    long size() {
+        return ringbuffer.size();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.map.IMap;
+import com.hazelcast.map.MapEvent;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryEvictedListener;
+import com.hazelcast.map.listener.EntryExpiredListener;
+import com.hazelcast.map.listener.EntryRemovedListener;
+import com.hazelcast.map.listener.MapClearedListener;
+import com.hazelcast.map.listener.MapEvictedListener;
+import com.hazelcast.query.Predicates;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Number of entries per codespace owned by this node, maintained incrementally from local entry-events.
+ *
+ * No state is kept per key, so writes must be notified as added only for new entries - setAll notifies all
+ * entries as added, also when they already exist, and must be replaced by putAll while counters are used.
+ *
+ * Entries moved between nodes by partition-migration are not notified, so counts are periodically reconciled
+ * against an exact count of the local keys. Reconciled counts are published to the cluster to allow reading
+ * cluster-wide counts without scanning the keys on all nodes.
+ */
+class DatasetCounter implements EntryAddedListener<SiriObjectStorageKey, Object>,
+        EntryRemovedListener<SiriObjectStorageKey, Object>,
+        EntryExpiredListener<SiriObjectStorageKey, Object>,
+        EntryEvictedListener<SiriObjectStorageKey, Object>,
+        MapClearedListener,
+        MapEvictedListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatasetCounter.class);
+
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    private final IMap<SiriObjectStorageKey, ?> map;
+
+    private final IMap<String, Map<String, Integer>> clusterCounts;
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final long publishTtlSeconds;
+
+    private volatile long lastDrift;
+
+    /**
+     * @param map Map to count entries in
+     * @param clusterCounts Reconciled counts per node
+     * @param publishTtlSeconds How long published counts are kept - should be longer than the reconciliation-interval
+     */
+    DatasetCounter(IMap<SiriObjectStorageKey, ?> map, IMap<String, Map<String, Integer>> clusterCounts, long publishTtlSeconds) {
+        this.map = map;
+        this.clusterCounts = clusterCounts;
+        this.publishTtlSeconds = publishTtlSeconds;
+    }
+
+    /**
+     * Registers listener for local entries, and initializes counts
+     */
+    @SuppressWarnings("unchecked")
+    void start() {
+        ((IMap<SiriObjectStorageKey, Object>) map).addLocalEntryListener(this, Predicates.alwaysTrue(), false);
+        reconcile();
+        // Initial count is not drift
+        lastDrift = 0;
+    }
+
+    @Override
+    public void entryAdded(EntryEvent<SiriObjectStorageKey, Object> event) {
+        SiriObjectStorageKey key = event.getKey();
+        if (isCounted(key)) {
+            getCounter(key.getCodespaceId()).incrementAndGet();
+        }
+    }
+
+    @Override
+    public void entryRemoved(EntryEvent<SiriObjectStorageKey, Object> event) {
+        remove(event.getKey());
+    }
+
+    @Override
+    public void entryExpired(EntryEvent<SiriObjectStorageKey, Object> event) {
+        remove(event.getKey());
+    }
+
+    @Override
+    public void entryEvicted(EntryEvent<SiriObjectStorageKey, Object> event) {
+        remove(event.getKey());
+    }
+
+    @Override
+    public void mapCleared(MapEvent event) {
+        // Individual entries are not notified
+        reconcile();
+    }
+
+    @Override
+    public void mapEvicted(MapEvent event) {
+        reconcile();
+    }
+
+    private void remove(SiriObjectStorageKey key) {
+        if (isCounted(key)) {
+            getCounter(key.getCodespaceId()).decrementAndGet();
+        }
+    }
+
+    private static boolean isCounted(SiriObjectStorageKey key) {
+        return key != null && key.getCodespaceId() != null;
+    }
+
+    private AtomicLong getCounter(String codespaceId) {
+        return counters.computeIfAbsent(codespaceId, codespace -> new AtomicLong());
+    }
+
+    /**
+     * @return Current count for codespace on this node
+     */
+    long getCount(String codespaceId) {
+        AtomicLong counter = counters.get(codespaceId);
+        return counter != null ? Math.max(counter.get(), 0) : 0;
+    }
+
+    /**
+     * @return Current counts per codespace on this node - codespaces without entries are not included
+     */
+    Map<String, Integer> getLocalCounts() {
+        Map<String, Integer> counts = new HashMap<>();
+        counters.forEach((codespace, counter) -> {
+            long count = counter.get();
+            if (count > 0) {
+                counts.put(codespace, Math.toIntExact(count));
+            }
+        });
+        return counts;
+    }
+
+    /**
+     * @return Counts per codespace for all nodes - using current counts for this node, and the last published
+     *          counts for other nodes
+     */
+    Map<String, Integer> getClusterCounts() {
+        Map<String, Integer> counts = new HashMap<>(getLocalCounts());
+        for (Map.Entry<String, Map<String, Integer>> node : clusterCounts.entrySet()) {
+            if (!nodeId.equals(node.getKey())) {
+                node.getValue().forEach((codespace, count) -> counts.merge(codespace, count, Integer::sum));
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Replaces counts with an exact count of local keys, and publishes the result to the cluster
+     *
+     * @return Total difference between incremental and exact counts
+     */
+    long reconcile() {
+        long t1 = System.currentTimeMillis();
+
+        Map<String, Integer> exact = new HashMap<>();
+        for (SiriObjectStorageKey key : map.localKeySet()) {
+            if (isCounted(key)) {
+                exact.merge(key.getCodespaceId(), 1, Integer::sum);
+            }
+        }
+
+        long drift = 0;
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            long actual = exact.getOrDefault(entry.getKey(), 0);
+            drift += Math.abs(entry.getValue().getAndSet(actual) - actual);
+        }
+        for (Map.Entry<String, Integer> entry : exact.entrySet()) {
+            if (!counters.containsKey(entry.getKey())) {
+                getCounter(entry.getKey()).set(entry.getValue());
+                drift += entry.getValue();
+            }
+        }
+        lastDrift = drift;
+
+        clusterCounts.set(nodeId, exact, publishTtlSeconds, TimeUnit.SECONDS);
+
+        logger.info("Reconciled dataset-counters in {} ms, drift: {}", (System.currentTimeMillis() - t1), drift);
+        return drift;
+    }
+
+    long getLastDrift() {
+        return lastDrift;
+    }
+}
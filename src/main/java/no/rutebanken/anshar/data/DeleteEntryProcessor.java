@@ -0,0 +1,40 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.impl.LazyMapEntry;
+
+import java.util.Map;
+
+/**
+ * Removes the entries it is executed on - used to delete a set of keys in one operation per partition.
+ *
+ * Entry.setValue returns the previous value, which deserializes it. The map-entry passed to an EntryProcessor on a
+ * member is removed directly when possible, so the removed value is never deserialized.
+ */
+public class DeleteEntryProcessor<V> implements EntryProcessor<SiriObjectStorageKey, V, Void> {
+
+    @Override
+    public Void process(Map.Entry<SiriObjectStorageKey, V> entry) {
+        if (entry instanceof LazyMapEntry<SiriObjectStorageKey, V> lazyMapEntry) {
+            lazyMapEntry.remove();
+        } else {
+            entry.setValue(null);
+        }
+        return null;
+    }
+}
@@ -16,8 +16,11 @@
 package no.rutebanken.anshar.data;
 
 import com.hazelcast.map.IMap;
+import com.hazelcast.ringbuffer.Ringbuffer;
+import com.hazelcast.partition.PartitionService;
 import com.hazelcast.query.Predicates;
 import no.rutebanken.anshar.config.AnsharConfiguration;
+import no.rutebanken.anshar.data.collections.ExtendedHazelcastService;
 import no.rutebanken.anshar.data.util.TimingTracer;
 import no.rutebanken.anshar.metrics.SiriContent;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
@@ -26,6 +29,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import uk.org.siri.siri21.EstimatedCall;
 import uk.org.siri.siri21.EstimatedVehicleJourney;
@@ -42,13 +46,16 @@ import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -85,6 +92,22 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
     @Qualifier("getEstimatedTimetableChangesMap")
     private IMap<String, Set<SiriObjectStorageKey>> changesMap;
 
+    @Autowired
+    @Qualifier("getEtExpiryIndexMap")
+    private IMap<SiriObjectStorageKey, Long> expiryIndexMap;
+
+    @Autowired
+    @Qualifier("getEtChangeLog")
+    private Ringbuffer<SiriObjectStorageKey> changeLog;
+
+    @Autowired
+    @Qualifier("getEtChangeLogCursorMap")
+    private IMap<String, Long> changeLogCursorMap;
+
+    @Autowired
+    @Qualifier("getEtDatasetCountMap")
+    private IMap<String, Map<String, Integer>> datasetCountMap;
+
     @Autowired
     @Qualifier("getLastEtUpdateRequest")
     private IMap<String, Instant> lastUpdateRequested;
@@ -95,6 +118,20 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
     @Autowired
     private SiriObjectFactory siriObjectFactory;
 
+    @Autowired
+    private ExtendedHazelcastService hazelcastService;
+
+    @Value("${anshar.feature.et.upsertUsingEntryProcessor:false}")
+    private boolean FEATURE_TOGGLE_UPSERT_USING_ENTRY_PROCESSOR;
+
+    @Value("${anshar.feature.et.localChecksumTable:false}")
+    private boolean FEATURE_TOGGLE_LOCAL_CHECKSUM_TABLE;
+
+    @Value("${anshar.et.localChecksumTable.size:524288}")
+    private int localChecksumTableSize;
+
+    private LocalChecksumTable localChecksumTable;
+
     private long hardLimitFutureUpdates = Integer.MAX_VALUE;
 
     protected EstimatedTimetables() {
@@ -106,11 +143,26 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
         if (configuration.hardLimitForFutureEtUpdates() != null) {
             hardLimitFutureUpdates = configuration.hardLimitForFutureEtUpdates().toMillis();
         }
+        if (FEATURE_TOGGLE_UPSERT_USING_ENTRY_PROCESSOR) {
+            logger.info("Using EntryProcessor to update ET");
+        }
+        if (FEATURE_TOGGLE_LOCAL_CHECKSUM_TABLE) {
+            logger.info("Using local checksum-table with {} entries for ET", localChecksumTableSize);
+            localChecksumTable = new LocalChecksumTable(localChecksumTableSize);
+            localChecksumTable.bindTo(checksumCache);
+        }
+    }
+
+    public LocalChecksumTable getLocalChecksumTable() {
+        return localChecksumTable;
     }
 
     @PostConstruct
     private void initializeUpdateCommitter() {
         super.initBufferCommitter(lastUpdateRequested, changesMap, configuration.getChangeBufferCommitFrequency());
+        initExpiryIndex(expiryIndexMap, -1);
+        initChangeLog(changeLog, changeLogCursorMap);
+        initDatasetCounter(datasetCountMap);
         enableCache(timetableDeliveries,
                 // Only cache monitored/cancelled/extra trips
                 value -> (Boolean.TRUE.equals(value.isMonitored()) |
@@ -151,6 +203,23 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
         return monitoredVehicleJourneys;
     }
 
+    /**
+     * @return Keys for all updates returned by getAllMonitored()
+     */
+    public Set<SiriObjectStorageKey> getAllMonitoredKeys() {
+        com.hazelcast.query.Predicate cancelledPredicate = Predicates.equal("cancellation", "true");
+        com.hazelcast.query.Predicate monitoredPredicate = Predicates.equal("monitored", "true");
+
+        return timetableDeliveries.keySet(Predicates.or(monitoredPredicate, cancelledPredicate));
+    }
+
+    /**
+     * @return ET-elements for the given keys - keys no longer present are not included
+     */
+    public Map<SiriObjectStorageKey, EstimatedVehicleJourney> getAllByKeys(Set<SiriObjectStorageKey> keys) {
+        return timetableDeliveries.getAll(keys);
+    }
+
     public int getSize() {
         return timetableDeliveries.keySet().size();
     }
@@ -160,6 +229,11 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
         return timetableDeliveries;
     }
 
+    @Override
+    List<IMap<SiriObjectStorageKey, ?>> getLinkedMaps() {
+        return List.of(checksumCache, idStartTimeMap, idForPatternChanges);
+    }
+
     @Override
     public void clearAllByDatasetId(String datasetId) {
 
@@ -167,12 +241,9 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
 
         logger.warn("Removing all data ({} ids) for {}", idsToRemove.size(), datasetId);
 
-        for (SiriObjectStorageKey id : idsToRemove) {
-            timetableDeliveries.delete(id);
-
-            checksumCache.remove(id);
-            idStartTimeMap.remove(id);
-            idForPatternChanges.remove(id);
+        deleteAll(timetableDeliveries, idsToRemove);
+        for (IMap<SiriObjectStorageKey, ?> linkedMap : getLinkedMaps()) {
+            deleteAll(linkedMap, idsToRemove);
         }
     }
 
@@ -182,9 +253,12 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
         checksumCache.clear();
         idStartTimeMap.clear();
         idForPatternChanges.clear();
-        changesMap.clear();
-        lastUpdateRequested.clear();
+        expiryIndexMap.clear();
+        clearChangeTracking();
         cache.clear();
+        if (localChecksumTable != null) {
+            localChecksumTable.clear();
+        }
     }
 
     public Siri createServiceDelivery(final String lineRef) {
@@ -227,11 +301,13 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
 
         // Get all relevant ids
         Set<SiriObjectStorageKey> allIds = new HashSet<>();
-        Set<SiriObjectStorageKey> idSet = changesMap.getOrDefault(requestorId, allIds);
+        Set<SiriObjectStorageKey> changes = getChangesForRequestor(requestorId, datasetId, excludedDatasetIds, maxSize, trackingPeriodMinutes);
+        Set<SiriObjectStorageKey> idSet = changes != null ? changes : allIds;
 
         if (idSet == allIds) {
-            idSet.addAll(timetableDeliveries
-                    .keySet(entry -> datasetId == null || ((SiriObjectStorageKey) entry.getKey()).getCodespaceId().equals(datasetId))
+            idSet.addAll(datasetId == null ?
+                    timetableDeliveries.keySet() :
+                    timetableDeliveries.keySet(createHzCodespacePredicate(datasetId))
             );
         }
 
@@ -421,9 +497,10 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
      * Returns true if EstimatedVehicleJourney has any cancellations or quay-changes
      *
      * @param estimatedVehicleJourney
+     * @param logChanges
      * @return
      */
-    private boolean hasPatternChanges(EstimatedVehicleJourney estimatedVehicleJourney) {
+    private boolean hasPatternChanges(EstimatedVehicleJourney estimatedVehicleJourney, boolean logChanges) {
         if (estimatedVehicleJourney != null) {
             String vehicleRef = null;
             if (estimatedVehicleJourney.getVehicleRef() != null && estimatedVehicleJourney.getVehicleRef().getValue() != null) {
@@ -431,7 +508,7 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
             }
             String dataSource = getMappedId(estimatedVehicleJourney.getDataSource());
             if (estimatedVehicleJourney.isCancellation() != null && estimatedVehicleJourney.isCancellation()) {
-                if (vehicleRef != null) {
+                if (logChanges && vehicleRef != null) {
                     logger.info("Cancellation:  Operator {}, vehicleRef {}, Cancelled journey", dataSource, vehicleRef);
                 }
                 return true;
@@ -467,12 +544,12 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
                     }
                 }
                 boolean hasCancelledStops = !cancelledStops.isEmpty();
-                if (hasCancelledStops && vehicleRef != null) {
+                if (logChanges && hasCancelledStops && vehicleRef != null) {
                     logger.info("Cancellation:  Operator {}, vehicleRef {}, stopPointRefs {}", dataSource, vehicleRef, cancelledStops);
                 }
 
                 boolean hasQuayChanges = !quayChanges.isEmpty();
-                if (hasQuayChanges) {
+                if (logChanges && hasQuayChanges) {
                     logger.info("Quay changed:  Operator {}, vehicleRef {}, stopPointRefs {}", dataSource, vehicleRef, quayChanges);
                 }
                 return hasCancelledStops || hasQuayChanges;
@@ -484,7 +561,7 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
     public Collection<EstimatedVehicleJourney> getAllUpdates(String requestorId, String datasetId) {
         if (requestorId != null) {
 
-            Set<SiriObjectStorageKey> idSet = changesMap.get(requestorId);
+            Set<SiriObjectStorageKey> idSet = getChangesForRequestor(requestorId, datasetId, null, Integer.MAX_VALUE, configuration.getTrackingPeriodMinutes());
             lastUpdateRequested.put(requestorId, Instant.now(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
 
             if (idSet != null) {
@@ -611,11 +688,55 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
     }
 
     public Collection<EstimatedVehicleJourney> addAll(String datasetId, List<EstimatedVehicleJourney> etList) {
+        if (FEATURE_TOGGLE_UPSERT_USING_ENTRY_PROCESSOR) {
+            return upsertAll(datasetId, etList);
+        }
+        PendingChanges pendingChanges = new PendingChanges();
+        Collection<EstimatedVehicleJourney> updated = collectChanges(datasetId, etList, pendingChanges);
+        writeChanges(pendingChanges);
+        return updated;
+    }
+
+    /**
+     * Adds ET-elements for multiple datasets - changes from all datasets are written to the shared maps with one bulk
+     * operation per map, and marked as updated once.
+     *
+     * @return Updated ET-elements per datasetId
+     */
+    @Override
+    public Map<String, Collection<EstimatedVehicleJourney>> addAll(Map<String, List<EstimatedVehicleJourney>> etByDatasetId) {
+        if (FEATURE_TOGGLE_UPSERT_USING_ENTRY_PROCESSOR) {
+            return super.addAll(etByDatasetId);
+        }
+        PendingChanges pendingChanges = new PendingChanges();
+        Map<String, Collection<EstimatedVehicleJourney>> updated = new LinkedHashMap<>();
+        for (Map.Entry<String, List<EstimatedVehicleJourney>> entry : etByDatasetId.entrySet()) {
+            updated.put(entry.getKey(), collectChanges(entry.getKey(), entry.getValue(), pendingChanges));
+        }
+        writeChanges(pendingChanges);
+        return updated;
+    }
+
+    /**
+     * Changes collected from one or more datasets, not yet written to the shared maps
+     */
+    private static class PendingChanges {
+        private final Map<SiriObjectStorageKey, EstimatedVehicleJourney> changes = new ConcurrentHashMap<>();
+        private final Map<SiriObjectStorageKey, String> checksums = new ConcurrentHashMap<>();
+        private final Map<SiriObjectStorageKey, ZonedDateTime> idStartTimes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Compares ET-elements with existing data, and adds the updated elements to pendingChanges
+     *
+     * @return ET-elements that are updated
+     */
+    private Collection<EstimatedVehicleJourney> collectChanges(String datasetId, List<EstimatedVehicleJourney> etList, PendingChanges pendingChanges) {
         prepareMetrics();
         Map<SiriObjectStorageKey, EstimatedVehicleJourney> changes = new ConcurrentHashMap<>();
 
-        Map<SiriObjectStorageKey, String> checksumCacheTmp = new ConcurrentHashMap<>();
-        Map<SiriObjectStorageKey, ZonedDateTime> idStartTimeMapTmp = new ConcurrentHashMap<>();
+        Map<SiriObjectStorageKey, String> checksumCacheTmp = pendingChanges.checksums;
+        Map<SiriObjectStorageKey, ZonedDateTime> idStartTimeMapTmp = pendingChanges.idStartTimes;
         Map<SiriObjectStorageKey, Long> expirationMap = new ConcurrentHashMap<>();
 
         AtomicInteger outdatedCounter = new AtomicInteger(0);
@@ -629,33 +750,39 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
 
             String currentChecksum = null;
 
-            // Using "now" as default recordedAtTime
-            ZonedDateTime recordedAtTime = et.getRecordedAtTime() != null ? et.getRecordedAtTime() : ZonedDateTime.now();
             try {
                 // Calculate checksum without "RecordedTime" - thus ignoring "fake" updates
-                et.setRecordedAtTime(null);
-                currentChecksum = getChecksum(et);
+                currentChecksum = getChecksum(et, "recordedAtTime");
                 timingTracer.mark("getChecksum");
             } catch (Exception e) {
                 //Ignore - data will be updated
-            } finally {
-                //Set original RecordedTime back
-                et.setRecordedAtTime(recordedAtTime);
             }
 
-            String existingChecksum = checksumCache.get(key);
-            timingTracer.mark("checksumCache.get");
+            // Using "now" as default recordedAtTime
+            if (et.getRecordedAtTime() == null) {
+                et.setRecordedAtTime(ZonedDateTime.now());
+            }
+
+            // Unchanged elements are resolved locally when possible - remote lookup only when unknown
+            LocalChecksumTable.Lookup localLookup = localChecksumTable != null ?
+                    localChecksumTable.lookup(key, currentChecksum) : LocalChecksumTable.Lookup.MISS;
+            timingTracer.mark("localChecksumTable.lookup");
+
+            boolean exists;
             boolean updated;
-//            if (existingChecksum != null && timetableDeliveries.containsKey(key)) {
-            if (existingChecksum != null) {
+            if (localLookup == LocalChecksumTable.Lookup.MISS) {
+                String existingChecksum = checksumCache.get(key);
+                timingTracer.mark("checksumCache.get");
+                exists = existingChecksum != null;
+//              if (existingChecksum != null && timetableDeliveries.containsKey(key)) {
                 //Exists - compare values
-                updated = !(currentChecksum.equals(existingChecksum));
-                if (updated && et.isMonitored() == null) {
-                    et.setMonitored(true);
-                }
+                updated = !exists || !(currentChecksum.equals(existingChecksum));
             } else {
-                //Does not exist
-                updated = true;
+                exists = true;
+                updated = localLookup == LocalChecksumTable.Lookup.MISMATCH;
+            }
+            if (exists && updated && et.isMonitored() == null) {
+                et.setMonitored(true);
             }
 
             timingTracer.mark("compareChecksum");
@@ -702,7 +829,7 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
                     resolveContentMetrics(et, expiration);
                     timingTracer.mark("resolveContentMetrics");
 
-                    boolean hasPatternChanges = hasPatternChanges(et);
+                    boolean hasPatternChanges = hasPatternChanges(et, true);
                     timingTracer.mark("hasPatternChanges");
                     if (hasPatternChanges) {
 
@@ -759,18 +886,195 @@ public class EstimatedTimetables extends SiriRepository<EstimatedVehicleJourney>
         }
 
         markDataReceived(SiriDataType.ESTIMATED_TIMETABLE, datasetId, etList.size(), changes.size(), outdatedCounter.get(), notUpdatedCounter.get() + tooFarAheadCounter.get());
+
+        pendingChanges.changes.putAll(changes);
+        return changes.values();
+    }
+
+    private void writeChanges(PendingChanges pendingChanges) {
+        Map<SiriObjectStorageKey, EstimatedVehicleJourney> changes = pendingChanges.changes;
         TimingTracer timingTracer = new TimingTracer("all-et [" + changes.size() + " changes]");
 
+        if (localChecksumTable != null) {
+            // Updated before the shared map - the events from this write are then always applied after it
+            pendingChanges.checksums.forEach(localChecksumTable::put);
+            timingTracer.mark("localChecksumTable.put");
+        }
+
         // TTL is set in EntryListener when objects are added to main map
-        checksumCache.setAll(checksumCacheTmp);
+        checksumCache.setAll(pendingChanges.checksums);
         timingTracer.mark("checksumCache.setAll");
 
-        idStartTimeMap.setAll(idStartTimeMapTmp);
+        idStartTimeMap.setAll(pendingChanges.idStartTimes);
         timingTracer.mark("idStartTimeMap.setAll");
 
-        timetableDeliveries.setAll(changes);
+        writeAll(timetableDeliveries, changes);
         timingTracer.mark("timetableDeliveries.setAll");
 
+        updateExpiryIndex(changes);
+        timingTracer.mark("updateExpiryIndex");
+
+        markIdsAsUpdated(changes.keySet());
+        timingTracer.mark("markIdsAsUpdated");
+        if (timingTracer.getTotalTime() > 3000) {
+            logger.info(timingTracer.toString());
+        }
+    }
+
+    /**
+     * Alternative to the default addAll-implementation - RecordedAtTime-check and write is done by an EntryProcessor
+     * on the partition owning each key, with one call per partition instead of multiple remote calls per ET-element.
+     *
+     * Checksums are compared and written by the EntryProcessor, as the checksum-map is partitioned like the main map.
+     * Elements known to be unchanged by the local checksum-table are not submitted. The startTime- and
+     * pattern-change-maps are written here afterwards.
+     *
+     * @return ET-elements that were actually updated
+     */
+    private Collection<EstimatedVehicleJourney> upsertAll(String datasetId, List<EstimatedVehicleJourney> etList) {
+        prepareMetrics();
+        TimingTracer timingTracer = new TimingTracer("upsert-et [" + etList.size() + " elements]");
+
+        PartitionService partitionService = hazelcastService.getHazelcastInstance().getPartitionService();
+
+        Map<SiriObjectStorageKey, EstimatedVehicleJourney> journeys = new ConcurrentHashMap<>();
+        Map<SiriObjectStorageKey, String> checksums = new ConcurrentHashMap<>();
+        Map<SiriObjectStorageKey, Long> expirations = new ConcurrentHashMap<>();
+        Set<SiriObjectStorageKey> patternChangeKeys = ConcurrentHashMap.newKeySet();
+        Set<SiriObjectStorageKey> submittedKeys = ConcurrentHashMap.newKeySet();
+
+        AtomicInteger tooFarAheadCounter = new AtomicInteger(0);
+        AtomicInteger notUpdatedCounter = new AtomicInteger(0);
+        etList.parallelStream().forEach(et -> {
+            SiriObjectStorageKey key = createKey(datasetId, et);
+
+            String currentChecksum = null;
+            try {
+                // Calculate checksum without "RecordedTime" - thus ignoring "fake" updates
+                currentChecksum = getChecksum(et, "recordedAtTime");
+            } catch (Exception e) {
+                //Ignore - data will be updated
+            }
+
+            // Using "now" as default recordedAtTime
+            if (et.getRecordedAtTime() == null) {
+                et.setRecordedAtTime(ZonedDateTime.now());
+            }
+
+            long expiration = getExpiration(et);
+            if (expiration > hardLimitFutureUpdates) {
+                metrics.registerSiriContent(SiriDataType.ESTIMATED_TIMETABLE, datasetId, null, SiriContent.TOO_FAR_AHEAD);
+                tooFarAheadCounter.incrementAndGet();
+                return;
+            }
+
+            journeys.put(key, et);
+            expirations.put(key, expiration);
+            if (expiration > 0 && hasPatternChanges(et, false)) {
+                patternChangeKeys.add(key);
+            }
+            if (currentChecksum != null) {
+                checksums.put(key, currentChecksum);
+            }
+
+            // Unchanged elements are resolved locally when possible - otherwise compared by the EntryProcessor
+            if (localChecksumTable != null && currentChecksum != null &&
+                    localChecksumTable.lookup(key, currentChecksum) == LocalChecksumTable.Lookup.MATCH) {
+                notUpdatedCounter.incrementAndGet();
+            } else {
+                submittedKeys.add(key);
+            }
+        });
+        timingTracer.mark("prepare");
+
+        Map<Integer, Map<SiriObjectStorageKey, UpsertEstimatedVehicleJourneyEntryProcessor.Upsert>> upsertsByPartition = new HashMap<>();
+        for (SiriObjectStorageKey key : submittedKeys) {
+            upsertsByPartition
+                    .computeIfAbsent(partitionService.getPartition(key).getPartitionId(), p -> new HashMap<>())
+                    .put(key, new UpsertEstimatedVehicleJourneyEntryProcessor.Upsert(journeys.get(key),
+                            checksums.get(key),
+                            expirations.get(key),
+                            patternChangeKeys.contains(key)
+                    ));
+        }
+
+        List<CompletableFuture<Map<SiriObjectStorageKey, UpsertEstimatedVehicleJourneyEntryProcessor.Result>>> futures = new ArrayList<>();
+        for (Map<SiriObjectStorageKey, UpsertEstimatedVehicleJourneyEntryProcessor.Upsert> upserts : upsertsByPartition.values()) {
+            futures.add(timetableDeliveries.submitToKeys(upserts.keySet(),
+                    new UpsertEstimatedVehicleJourneyEntryProcessor(checksumCache.getName(), upserts)
+            ).toCompletableFuture());
+        }
+
+        Map<SiriObjectStorageKey, UpsertEstimatedVehicleJourneyEntryProcessor.Result> results = new HashMap<>();
+        for (CompletableFuture<Map<SiriObjectStorageKey, UpsertEstimatedVehicleJourneyEntryProcessor.Result>> future : futures) {
+            results.putAll(future.join());
+        }
+        timingTracer.mark("submitToKeys");
+
+        Map<SiriObjectStorageKey, EstimatedVehicleJourney> changes = new HashMap<>();
+        Map<SiriObjectStorageKey, ZonedDateTime> updatedStartTimes = new HashMap<>();
+        int outdatedCounter = 0;
+        for (Map.Entry<SiriObjectStorageKey, UpsertEstimatedVehicleJourneyEntryProcessor.Result> resultEntry : results.entrySet()) {
+            SiriObjectStorageKey key = resultEntry.getKey();
+            UpsertEstimatedVehicleJourneyEntryProcessor.Result result = resultEntry.getValue();
+            EstimatedVehicleJourney et = journeys.get(key);
+
+            switch (result.getStatus()) {
+                case UPDATED -> {
+                    UpsertEstimatedVehicleJourneyEntryProcessor.Upsert upsert = upsertsByPartition
+                            .get(partitionService.getPartition(key).getPartitionId())
+                            .get(key);
+
+                    resolveContentMetrics(et, upsert.getExpiration());
+                    if (upsert.hasPatternChanges()) {
+                        // Pattern-changes are only logged for updated elements
+                        hasPatternChanges(et, true);
+
+                        // Keep track of all valid ET with pattern-changes
+                        idForPatternChanges.setAsync(key, key.getKey(), upsert.getExpiration(), TimeUnit.MILLISECONDS);
+                    }
+                    if (result.isOverrideMonitoredFalse()) {
+                        metrics.registerDataMapping(SiriDataType.ESTIMATED_TIMETABLE, datasetId, OVERRIDE_MONITORED_FALSE, 1);
+                    }
+                    if (result.isOverrideMonitoredNoLongerTrue()) {
+                        metrics.registerDataMapping(SiriDataType.ESTIMATED_TIMETABLE, datasetId, OVERRIDE_MONITORED_NO_LONGER_TRUE, 1);
+                    }
+                    // Keep returned object in sync with the stored version
+                    et.setMonitored(result.getMonitored());
+                    changes.put(key, et);
+
+                    ZonedDateTime startTime = getFirstAimedTime(et);
+                    if (startTime != null) {
+                        updatedStartTimes.put(key, startTime);
+                    }
+                }
+                case NOT_UPDATED, UNCHANGED -> notUpdatedCounter.incrementAndGet();
+                case OUTDATED -> logger.info("Newer data has already been processed - ignoring ET-element");
+                case EXPIRED -> {
+                    metrics.registerSiriContent(SiriDataType.ESTIMATED_TIMETABLE, datasetId, null, SiriContent.TOO_LATE);
+                    outdatedCounter++;
+                }
+            }
+        }
+        timingTracer.mark("handleResults");
+
+        // Local checksum-table is updated by the events from the checksums written by the EntryProcessor
+
+        idStartTimeMap.setAll(updatedStartTimes);
+        timingTracer.mark("idStartTimeMap.setAll");
+
+        if (changes.size() == etList.size()) {
+            // ignore details if everything is updated
+            logger.info("Updated {} (of {})", changes.size(), etList.size());
+        } else {
+            logger.info("Updated {} (of {}), {} outdated, {} without changes, {} too far ahead.", changes.size(), etList.size(), outdatedCounter, notUpdatedCounter.get(), tooFarAheadCounter.get());
+        }
+
+        markDataReceived(SiriDataType.ESTIMATED_TIMETABLE, datasetId, etList.size(), changes.size(), outdatedCounter, notUpdatedCounter.get() + tooFarAheadCounter.get());
+
+        updateExpiryIndex(changes);
+        timingTracer.mark("updateExpiryIndex");
+
         markIdsAsUpdated(changes.keySet());
         timingTracer.mark("markIdsAsUpdated");
         if (timingTracer.getTotalTime() > 3000) {
@@ -16,6 +16,7 @@
 package no.rutebanken.anshar.data;
 
 import com.hazelcast.map.IMap;
+import com.hazelcast.ringbuffer.Ringbuffer;
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.data.util.TimingTracer;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
@@ -61,6 +62,22 @@ public class Facilities extends SiriRepository<FacilityConditionStructure> {
     @Qualifier("getFacilitiesChangesMap")
     private IMap<String, Set<SiriObjectStorageKey>> changesMap;
 
+    @Autowired
+    @Qualifier("getFmExpiryIndexMap")
+    private IMap<SiriObjectStorageKey, Long> expiryIndexMap;
+
+    @Autowired
+    @Qualifier("getFmChangeLog")
+    private Ringbuffer<SiriObjectStorageKey> changeLog;
+
+    @Autowired
+    @Qualifier("getFmChangeLogCursorMap")
+    private IMap<String, Long> changeLogCursorMap;
+
+    @Autowired
+    @Qualifier("getFmDatasetCountMap")
+    private IMap<String, Map<String, Integer>> datasetCountMap;
+
     @Autowired
     @Qualifier("getLastFmUpdateRequest")
     private IMap<String, Instant> lastUpdateRequested;
@@ -78,6 +95,9 @@ public class Facilities extends SiriRepository<FacilityConditionStructure> {
     @PostConstruct
     private void initializeUpdateCommitter() {
         super.initBufferCommitter(lastUpdateRequested, changesMap, configuration.getChangeBufferCommitFrequency());
+        initExpiryIndex(expiryIndexMap, -1);
+        initChangeLog(changeLog, changeLogCursorMap);
+        initDatasetCounter(datasetCountMap);
 
         enableCache(facilityConditions);
 
@@ -123,6 +143,7 @@ public class Facilities extends SiriRepository<FacilityConditionStructure> {
     public void clearAll() {
         logger.error("Deleting all data - should only be used in test!!!");
         facilityConditions.clear();
+        expiryIndexMap.clear();
         checksumCache.clear();
         cache.clear();
     }
@@ -142,7 +163,8 @@ public class Facilities extends SiriRepository<FacilityConditionStructure> {
 
         // Get all relevant ids
         Set<SiriObjectStorageKey> allIds = new HashSet<>();
-        Set<SiriObjectStorageKey> idSet = changesMap.getOrDefault(requestorId, allIds);
+        Set<SiriObjectStorageKey> changes = getChangesForRequestor(requestorId, datasetId, null, maxSize, trackingPeriodMinutes);
+        Set<SiriObjectStorageKey> idSet = changes != null ? changes : allIds;
 
         if (idSet == allIds) {
             idSet.addAll(facilityConditions.keySet());
@@ -202,7 +224,7 @@ public class Facilities extends SiriRepository<FacilityConditionStructure> {
     public Collection<FacilityConditionStructure> getAllUpdates(String requestorId, String datasetId) {
         if (requestorId != null) {
 
-            Set<SiriObjectStorageKey> idSet = changesMap.get(requestorId);
+            Set<SiriObjectStorageKey> idSet = getChangesForRequestor(requestorId, datasetId, null, Integer.MAX_VALUE, configuration.getTrackingPeriodMinutes());
             lastUpdateRequested.set(requestorId, Instant.now(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
             if (idSet != null) {
                 Set<SiriObjectStorageKey> datasetFilteredIdSet = new HashSet<>();
@@ -325,8 +347,10 @@ public class Facilities extends SiriRepository<FacilityConditionStructure> {
 
         checksumCache.setAll(checksumTmp);
         timingTracer.mark("checksumCache.setAll");
-        facilityConditions.setAll(changes);
+        writeAll(facilityConditions, changes);
         timingTracer.mark("monitoredVehicles.setAll");
+        updateExpiryIndex(changes);
+        timingTracer.mark("updateExpiryIndex");
 
         markDataReceived(SiriDataType.FACILITY_MONITORING, datasetId, fmList.size(), changes.size(), alreadyExpiredCounter.get(), ignoredCounter.get());
         timingTracer.mark("markDataReceived");
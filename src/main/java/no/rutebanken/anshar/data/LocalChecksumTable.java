@@ -0,0 +1,184 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.hazelcast.map.IMap;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryEvictedListener;
+import com.hazelcast.map.listener.EntryExpiredListener;
+import com.hazelcast.map.listener.EntryRemovedListener;
+import com.hazelcast.map.listener.EntryUpdatedListener;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node-local copy of a checksum-map, used to detect unchanged elements without a remote lookup.
+ *
+ * Only 64-bit hashes of key and checksum are kept, in a fixed-size table where each key has one slot - entries are
+ * overwritten when keys collide, so memory is bounded by the table size. The table is updated by local writes, and by
+ * events from the checksum-map, so changes made by other nodes are visible after the event has been received.
+ */
+public class LocalChecksumTable {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    public enum Lookup {
+        /**
+         * Same checksum as the stored element - element is unchanged
+         */
+        MATCH,
+        /**
+         * Different checksum than the stored element - element is updated
+         */
+        MISMATCH,
+        /**
+         * Unknown - must be checked remotely
+         */
+        MISS
+    }
+
+    private record Entry(long key, long checksum) {}
+
+    private final AtomicReferenceArray<Entry> table;
+    private final int mask;
+
+    private final LongAdder matches = new LongAdder();
+    private final LongAdder mismatches = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param size Max number of entries - rounded up to nearest power of 2
+     */
+    public LocalChecksumTable(int size) {
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        table = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Keeps the table in sync with the provided map
+     */
+    public void bindTo(IMap<SiriObjectStorageKey, String> checksumMap) {
+        checksumMap.addEntryListener((EntryAddedListener<SiriObjectStorageKey, String>) entryEvent ->
+                put(entryEvent.getKey(), entryEvent.getValue()), true);
+        checksumMap.addEntryListener((EntryUpdatedListener<SiriObjectStorageKey, String>) entryEvent ->
+                put(entryEvent.getKey(), entryEvent.getValue()), true);
+        checksumMap.addEntryListener((EntryRemovedListener<SiriObjectStorageKey, String>) entryEvent ->
+                remove(entryEvent.getKey()), false);
+        checksumMap.addEntryListener((EntryExpiredListener<SiriObjectStorageKey, String>) entryEvent ->
+                remove(entryEvent.getKey()), false);
+        checksumMap.addEntryListener((EntryEvictedListener<SiriObjectStorageKey, String>) entryEvent ->
+                remove(entryEvent.getKey()), false);
+    }
+
+    public Lookup lookup(SiriObjectStorageKey key, String checksum) {
+        long keyHash = hashKey(key);
+        Entry entry = table.get(index(keyHash));
+
+        if (entry == null || entry.key() != keyHash || checksum == null) {
+            misses.increment();
+            return Lookup.MISS;
+        }
+        if (entry.checksum() == hashChecksum(checksum)) {
+            matches.increment();
+            return Lookup.MATCH;
+        }
+        mismatches.increment();
+        return Lookup.MISMATCH;
+    }
+
+    /**
+     * Local writes must be added before the shared map is updated - the table then converges to the last value
+     * written to the map, as events for the same key are received in order.
+     */
+    public void put(SiriObjectStorageKey key, String checksum) {
+        long keyHash = hashKey(key);
+        if (checksum == null) {
+            remove(keyHash);
+            return;
+        }
+        table.set(index(keyHash), new Entry(keyHash, hashChecksum(checksum)));
+    }
+
+    public void remove(SiriObjectStorageKey key) {
+        remove(hashKey(key));
+    }
+
+    private void remove(long keyHash) {
+        int index = index(keyHash);
+        Entry entry = table.get(index);
+        if (entry != null && entry.key() == keyHash) {
+            table.compareAndSet(index, entry, null);
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, null);
+        }
+    }
+
+    public long getMatchCount() {
+        return matches.sum();
+    }
+
+    public long getMismatchCount() {
+        return mismatches.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Share of lookups resolved locally
+     */
+    public double getHitRate() {
+        long hits = matches.sum() + mismatches.sum();
+        long total = hits + misses.sum();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    private int index(long keyHash) {
+        return (int) (keyHash ^ (keyHash >>> 32)) & mask;
+    }
+
+    private static long hashKey(SiriObjectStorageKey key) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        putNullable(hasher, key.getCodespaceId());
+        putNullable(hasher, key.getLineRef());
+        putNullable(hasher, key.getKey());
+        return hasher.hash().asLong();
+    }
+
+    private static void putNullable(Hasher hasher, String value) {
+        if (value == null) {
+            hasher.putByte((byte) 0);
+        } else {
+            hasher.putByte((byte) 1);
+            hasher.putInt(value.length());
+            hasher.putString(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static long hashChecksum(String checksum) {
+        return HASH_FUNCTION.hashString(checksum, StandardCharsets.UTF_8).asLong();
+    }
+}
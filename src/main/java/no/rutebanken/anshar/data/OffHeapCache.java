@@ -0,0 +1,365 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import no.rutebanken.anshar.data.collections.KryoSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Local cache that keeps values serialized in direct memory instead of as object-graphs on the heap.
+ *
+ * Values are only deserialized when read - iterating keys, or entries without reading the value, does not
+ * deserialize anything. Memory is allocated from a fixed number of reusable slabs (see {@link SlabAllocator}), and
+ * freed explicitly when an entry is replaced or removed. When no slab has room for a new value, the least recently
+ * written entries are evicted - after that the cache no longer holds all data, which is reported by
+ * {@link #isTruncated()}.
+ *
+ * NB: To avoid deserializing the existing value, put and remove always return null.
+ */
+public class OffHeapCache<V> extends AbstractMap<SiriObjectStorageKey, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapCache.class);
+
+    private final KryoSerializer serializer = new KryoSerializer();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Serialized values in write-order - oldest first
+     */
+    private final LinkedHashMap<SiriObjectStorageKey, SlabAllocator.Chunk> entries = new LinkedHashMap<>();
+
+    private final Map<String, Set<SiriObjectStorageKey>> codespaceIndex = new HashMap<>();
+
+    private final SlabAllocator allocator;
+
+    private final long maxBytes;
+
+    private long usedBytes;
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private volatile boolean truncated;
+
+    private final AtomicLong deserializationCount = new AtomicLong();
+
+    public OffHeapCache(long maxBytes) {
+        this(maxBytes, SlabAllocator.DEFAULT_SLAB_SIZE);
+    }
+
+    OffHeapCache(long maxBytes, int slabSize) {
+        this.maxBytes = maxBytes;
+        this.allocator = new SlabAllocator(maxBytes, slabSize);
+    }
+
+    @Override
+    public V get(Object key) {
+        final byte[] bytes;
+        lock.readLock().lock();
+        try {
+            // Copied while locked, as the chunk is reused as soon as the entry is replaced or removed
+            SlabAllocator.Chunk chunk = entries.get(key);
+            if (chunk == null) {
+                return null;
+            }
+            bytes = chunk.read();
+        } finally {
+            lock.readLock().unlock();
+        }
+        return deserialize(bytes);
+    }
+
+    @Override
+    public V put(SiriObjectStorageKey key, V value) {
+        if (value == null) {
+            remove(key);
+            return null;
+        }
+        byte[] bytes = serializer.write(value);
+        if (SlabAllocator.chunkSize(bytes.length) > allocator.getSlabSize()) {
+            logger.warn("Value for {} is larger than slab size ({} bytes) - ignoring", key, bytes.length);
+            remove(key);
+            markEvicted();
+            return null;
+        }
+
+        lock.writeLock().lock();
+        try {
+            // Removed first to move updated entry to the end of write-order, and to reuse its chunk
+            removeEntry(key);
+
+            SlabAllocator.Chunk chunk = allocator.allocate(bytes.length);
+            Iterator<Map.Entry<SiriObjectStorageKey, SlabAllocator.Chunk>> eldest = entries.entrySet().iterator();
+            while (chunk == null && eldest.hasNext()) {
+                // Frees a whole slab sooner or later - chunks of other sizes are only reused when their slab is empty
+                Map.Entry<SiriObjectStorageKey, SlabAllocator.Chunk> evicted = eldest.next();
+                eldest.remove();
+                free(evicted.getKey(), evicted.getValue());
+                markEvicted();
+                chunk = allocator.allocate(bytes.length);
+            }
+            if (chunk == null) {
+                return null;
+            }
+
+            chunk.write(bytes);
+            entries.put(key, chunk);
+            usedBytes += chunk.getLength();
+            codespaceIndex.computeIfAbsent(key.getCodespaceId(), c -> new HashSet<>()).add(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return null;
+    }
+
+    private void markEvicted() {
+        evictionCount.incrementAndGet();
+        if (!truncated) {
+            truncated = true;
+            logger.warn("Off-heap cache is full ({} bytes) - evicting oldest entries, cache no longer holds all data", maxBytes);
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        lock.writeLock().lock();
+        try {
+            removeEntry((SiriObjectStorageKey) key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return null;
+    }
+
+    private void removeEntry(SiriObjectStorageKey key) {
+        SlabAllocator.Chunk existing = entries.remove(key);
+        if (existing != null) {
+            free(key, existing);
+        }
+    }
+
+    private void free(SiriObjectStorageKey key, SlabAllocator.Chunk chunk) {
+        usedBytes -= chunk.getLength();
+        allocator.free(chunk);
+        removeFromIndex(key);
+    }
+
+    private void removeFromIndex(SiriObjectStorageKey key) {
+        Set<SiriObjectStorageKey> codespaceKeys = codespaceIndex.get(key.getCodespaceId());
+        if (codespaceKeys != null) {
+            codespaceKeys.remove(key);
+            if (codespaceKeys.isEmpty()) {
+                codespaceIndex.remove(key.getCodespaceId());
+            }
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        lock.readLock().lock();
+        try {
+            return entries.containsKey(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            entries.clear();
+            codespaceIndex.clear();
+            allocator.clear();
+            usedBytes = 0;
+            truncated = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Snapshot of all keys
+     */
+    @Override
+    public Set<SiriObjectStorageKey> keySet() {
+        lock.readLock().lock();
+        try {
+            return Collections.unmodifiableSet(new LinkedHashSet<>(entries.keySet()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Snapshot of all keys for the given codespace
+     */
+    public Set<SiriObjectStorageKey> keySet(String codespaceId) {
+        lock.readLock().lock();
+        try {
+            Set<SiriObjectStorageKey> codespaceKeys = codespaceIndex.get(codespaceId);
+            return codespaceKeys != null ? Set.copyOf(codespaceKeys) : Set.of();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of entries per codespace
+     */
+    public Map<String, Integer> getSizePerCodespace() {
+        lock.readLock().lock();
+        try {
+            Map<String, Integer> sizeMap = new HashMap<>();
+            codespaceIndex.forEach((codespaceId, keys) -> sizeMap.put(codespaceId, keys.size()));
+            return sizeMap;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Snapshot of all keys - values are read and deserialized when requested, and are null if the
+     * entry has been removed since the snapshot was taken
+     */
+    @Override
+    public Set<Map.Entry<SiriObjectStorageKey, V>> entrySet() {
+        final List<Map.Entry<SiriObjectStorageKey, V>> snapshot;
+        lock.readLock().lock();
+        try {
+            snapshot = new ArrayList<>(entries.size());
+            entries.keySet().forEach(key -> snapshot.add(new LazyEntry(key)));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<SiriObjectStorageKey, V>> iterator() {
+                return Collections.unmodifiableList(snapshot).iterator();
+            }
+
+            @Override
+            public int size() {
+                return snapshot.size();
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private V deserialize(byte[] bytes) {
+        deserializationCount.incrementAndGet();
+        return (V) serializer.read(bytes);
+    }
+
+    public long getUsedBytes() {
+        lock.readLock().lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Bytes of direct memory reserved by the cache - never more than max bytes rounded up to whole slabs
+     */
+    public long getAllocatedBytes() {
+        lock.readLock().lock();
+        try {
+            return allocator.getAllocatedBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return true if entries have been evicted since the cache was cleared - i.e. the cache may be missing data
+     * that still exists in the main map
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return Number of entries removed to stay within the size-budget
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getDeserializationCount() {
+        return deserializationCount.get();
+    }
+
+    private class LazyEntry implements Map.Entry<SiriObjectStorageKey, V> {
+
+        private final SiriObjectStorageKey key;
+        private V value;
+
+        private LazyEntry(SiriObjectStorageKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public SiriObjectStorageKey getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            if (value == null) {
+                value = get(key);
+            }
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -17,10 +17,22 @@ package no.rutebanken.anshar.data;
 import com.google.common.base.Objects;
 
 import java.io.Serializable;
+import java.util.Locale;
 import java.util.StringJoiner;
 
 public class SiriObjectStorageKey implements Serializable {
 
+    /**
+     * Fixed to the previously generated value - keeps keys compatible with running nodes during rolling upgrades
+     */
+    private static final long serialVersionUID = 7263673660286298925L;
+
+    /**
+     * Attribute-names used when querying/indexing keys in Hazelcast
+     */
+    public static final String CODESPACE_ATTRIBUTE = "__key.codespaceId";
+    public static final String LINE_REF_ATTRIBUTE = "__key.normalizedLineRef";
+
     private final String codespaceId;
     private final String lineRef;
 
@@ -44,6 +56,19 @@ public class SiriObjectStorageKey implements Serializable {
         return key;
     }
 
+    /**
+     * Used by the lineRef-index - must be public to be resolved as a query-attribute by Hazelcast
+     *
+     * @return lineRef in lower case
+     */
+    public String getNormalizedLineRef() {
+        return normalizeLineRef(lineRef);
+    }
+
+    static String normalizeLineRef(String lineRef) {
+        return lineRef != null ? lineRef.toLowerCase(Locale.ROOT) : null;
+    }
+
     @Override
     public String toString() {
         return new StringJoiner(", ", SiriObjectStorageKey.class.getSimpleName() + "[", "]")
@@ -16,6 +16,7 @@
 package no.rutebanken.anshar.data;
 
 import com.google.common.collect.Maps;
+import com.hazelcast.config.IndexType;
 import com.hazelcast.core.EntryEvent;
 import com.hazelcast.map.IMap;
 import com.hazelcast.map.listener.EntryAddedListener;
@@ -24,7 +25,9 @@ import com.hazelcast.map.listener.EntryExpiredListener;
 import com.hazelcast.map.listener.EntryRemovedListener;
 import com.hazelcast.map.listener.EntryUpdatedListener;
 import com.hazelcast.query.Predicate;
-import jakarta.xml.bind.DatatypeConverter;
+import com.hazelcast.query.Predicates;
+import com.hazelcast.ringbuffer.Ringbuffer;
+import no.rutebanken.anshar.data.checksum.ChecksumAlgorithm;
 import no.rutebanken.anshar.metrics.PrometheusMetricsService;
 import no.rutebanken.anshar.routes.siri.transformer.ApplicationContextHolder;
 import no.rutebanken.anshar.subscription.SiriDataType;
@@ -32,7 +35,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.util.SerializationUtils;
+import org.springframework.beans.factory.annotation.Value;
 import uk.org.siri.siri21.OccupancyEnumeration;
 import uk.org.siri.siri21.VehicleActivityStructure;
 
@@ -40,8 +43,6 @@ import javax.annotation.PreDestroy;
 import java.io.Serializable;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
@@ -50,14 +51,17 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 abstract class SiriRepository<T> {
@@ -85,12 +89,32 @@ abstract class SiriRepository<T> {
 
     abstract Collection<T> addAll(String datasetId, List<T> ptList);
 
+    /**
+     * Adds elements for multiple datasets - default implementation adds each dataset separately
+     *
+     * @return Updated elements per datasetId
+     */
+    Map<String, Collection<T>> addAll(Map<String, List<T>> elementsByDatasetId) {
+        Map<String, Collection<T>> updated = new LinkedHashMap<>();
+        for (Map.Entry<String, List<T>> entry : elementsByDatasetId.entrySet()) {
+            updated.put(entry.getKey(), addAll(entry.getKey(), entry.getValue()));
+        }
+        return updated;
+    }
+
     abstract T add(String datasetId, T timetableDelivery);
 
     abstract long getExpiration(T s);
 
     abstract IMap<SiriObjectStorageKey, T> getMainMap();
 
+    /**
+     * @return Maps with additional data per key in the main map - expired keys are removed from these as well
+     */
+    List<IMap<SiriObjectStorageKey, ?>> getLinkedMaps() {
+        return List.of();
+    }
+
     private final Logger logger = LoggerFactory.getLogger(SiriRepository.class);
 
     protected PrometheusMetricsService metrics;
@@ -112,17 +136,76 @@ abstract class SiriRepository<T> {
     @Autowired
     protected RequestorRefRepository requestorRefRepository;
 
+    @Value("${anshar.feature.cleanup.useExpiryIndex:false}")
+    private boolean FEATURE_TOGGLE_USE_EXPIRY_INDEX;
+
+    /**
+     * Expiration-timestamp is stored as value - queried using a sorted index
+     */
+    private static final String EXPIRY_INDEX_ATTRIBUTE = "this";
+
+    private IMap<SiriObjectStorageKey, Long> expiryIndex;
+
+    private long expiryIndexMaxValidityMillis = -1;
+
+    private volatile boolean initialCleanupCompleted;
+
+    @Value("${anshar.feature.changelog.enabled:false}")
+    private boolean FEATURE_TOGGLE_USE_CHANGE_LOG;
+
+    private ChangeLog changeLog;
+
+    @Value("${anshar.feature.datasetCounter.enabled:false}")
+    private boolean FEATURE_TOGGLE_USE_DATASET_COUNTER;
+
+    @Value("${anshar.dataset.counter.reconcile.interval.seconds:300}")
+    private long datasetCounterReconcileIntervalSeconds = 300;
+
+    private DatasetCounter datasetCounter;
+
+    @Value("${anshar.checksum.algorithm:MD5}")
+    private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.MD5;
+
+    @Value("${anshar.feature.cache.offHeap:false}")
+    private boolean FEATURE_TOGGLE_OFF_HEAP_CACHE;
+
+    @Value("${anshar.cache.offHeap.maxBytes:268435456}")
+    private long offHeapCacheMaxBytes;
+
     Map<SiriObjectStorageKey, T> cache = Maps.newConcurrentMap();
 
+    private java.util.function.Predicate<T> includeInCachePredicate;
+
     protected SiriRepository (SiriDataType siriDataType) {
         this.SIRI_DATA_TYPE = siriDataType;
     }
 
+    /**
+     * Registers a listener that is notified with the key of every entry that is updated, removed, expired or evicted
+     * in the main map - i.e. every time a previously read value becomes outdated.
+     *
+     * Listeners are notified asynchronously on every node in the cluster.
+     */
+    public void addInvalidationListener(Consumer<SiriObjectStorageKey> listener) {
+        IMap<SiriObjectStorageKey, T> map = getMainMap();
+
+        map.addEntryListener((EntryUpdatedListener<SiriObjectStorageKey, T>) entryEvent -> listener.accept(entryEvent.getKey()), false);
+        map.addEntryListener((EntryRemovedListener<SiriObjectStorageKey, T>) entryEvent -> listener.accept(entryEvent.getKey()), false);
+        map.addEntryListener((EntryExpiredListener<SiriObjectStorageKey, T>) entryEvent -> listener.accept(entryEvent.getKey()), false);
+        map.addEntryListener((EntryEvictedListener<SiriObjectStorageKey, T>) entryEvent -> listener.accept(entryEvent.getKey()), false);
+    }
+
     protected void enableCache(IMap<SiriObjectStorageKey, T> map) {
         enableCache(map, null);
     }
 
     protected void enableCache(IMap<SiriObjectStorageKey, T> map, java.util.function.Predicate<T> includeInCachePredicate) {
+        this.includeInCachePredicate = includeInCachePredicate;
+
+        if (FEATURE_TOGGLE_OFF_HEAP_CACHE) {
+            logger.info("Using off-heap cache with max {} bytes for {}", offHeapCacheMaxBytes, SIRI_DATA_TYPE);
+            cache = new OffHeapCache<>(offHeapCacheMaxBytes);
+        }
 
         // Entry added - new data
         map.addEntryListener((EntryAddedListener<SiriObjectStorageKey, T>) entryEvent -> {
@@ -213,55 +296,79 @@ abstract class SiriRepository<T> {
         }
     }
 
+    /**
+     * Enables the expiry-index when configured - expiration-timestamps are registered when data is updated, so that
+     * cleanup only needs to process the entries that are due instead of all entries in the map.
+     *
+     * @param expiryIndex Map of expiration-timestamp (epoch millis) per key
+     * @param maxValidityMillis Max time since RecordedAtTime before VM is removed, -1 to ignore
+     */
+    void initExpiryIndex(IMap<SiriObjectStorageKey, Long> expiryIndex, long maxValidityMillis) {
+        if (FEATURE_TOGGLE_USE_EXPIRY_INDEX) {
+            logger.info("Using expiry-index for cleanup of {}", SIRI_DATA_TYPE);
+            expiryIndex.addIndex(IndexType.SORTED, EXPIRY_INDEX_ATTRIBUTE);
+            this.expiryIndex = expiryIndex;
+            this.expiryIndexMaxValidityMillis = maxValidityMillis;
+        }
+    }
+
+    /**
+     * Registers expiration-timestamps for updated data - no-op when the expiry-index is not enabled
+     */
+    void updateExpiryIndex(Map<SiriObjectStorageKey, T> changes) {
+        if (expiryIndex != null && !changes.isEmpty()) {
+            long now = System.currentTimeMillis();
+            Map<SiriObjectStorageKey, Long> expirationTimestamps = new HashMap<>();
+            for (Map.Entry<SiriObjectStorageKey, T> entry : changes.entrySet()) {
+                expirationTimestamps.put(entry.getKey(), getExpirationTimestamp(entry.getValue(), now, expiryIndexMaxValidityMillis));
+            }
+            expiryIndex.setAll(expirationTimestamps);
+        }
+    }
+
     void createCleanupJob(IMap<SiriObjectStorageKey, T> map, IMap<String, Set<SiriObjectStorageKey>> linkedChangeMap, long cleanupInterval, long maxValidityMillis) {
 
         logger.info("Initializing scheduled cleanup job with interval {} seconds", cleanupInterval);
         Executors.newSingleThreadScheduledExecutor()
-                .scheduleWithFixedDelay(() -> removeExpired(map, linkedChangeMap, maxValidityMillis), cleanupInterval, cleanupInterval, TimeUnit.SECONDS);
+                .scheduleWithFixedDelay(() -> {
+                    // Full cleanup on first run to include data that has been added before the expiry-index was enabled
+                    if (expiryIndex != null && initialCleanupCompleted) {
+                        removeExpiredUsingIndex(map, linkedChangeMap, maxValidityMillis);
+                    } else {
+                        removeExpired(map, linkedChangeMap, maxValidityMillis);
+                        initialCleanupCompleted = true;
+                    }
+                }, cleanupInterval, cleanupInterval, TimeUnit.SECONDS);
     }
 
-    private void removeExpired(IMap<SiriObjectStorageKey, T> map, IMap<String, Set<SiriObjectStorageKey>> linkedChangeMap, long maxValidityMillis) {
+    /**
+     * Removes expired data by checking all entries in the map
+     */
+    void removeExpired(IMap<SiriObjectStorageKey, T> map, IMap<String, Set<SiriObjectStorageKey>> linkedChangeMap, long maxValidityMillis) {
         try {
             logger.debug("Cleaning up expired objects");
             long t1 = System.currentTimeMillis();
-            Set<SiriObjectStorageKey> expired = map.entrySet().stream()
-                    .filter(entry -> {
-                        // Check if entry is expired
-                        if (getExpiration(entry.getValue()) < 0) {
-                            return true;
-                        }
-                        // Check if entry is older than maxValidityMillis
-                        if (maxValidityMillis > 0) {
-                            if (entry.getValue() instanceof VehicleActivityStructure) {
-                                ZonedDateTime recordedAtTime = ((VehicleActivityStructure) entry.getValue()).getRecordedAtTime();
-                                long timeSinceUpdate = Math.abs(ZonedDateTime.now().until(recordedAtTime, ChronoUnit.MILLIS));
-                                return timeSinceUpdate > maxValidityMillis;
-                            }
-                        }
-                        return false;
-                    })
-                    .map(Map.Entry::getKey)
-                    .collect(Collectors.toSet());
+            Set<SiriObjectStorageKey> expired = new HashSet<>();
+            Map<SiriObjectStorageKey, Long> expirationTimestamps = new HashMap<>();
+            for (Map.Entry<SiriObjectStorageKey, T> entry : map.entrySet()) {
+                if (isExpired(entry.getValue(), maxValidityMillis)) {
+                    expired.add(entry.getKey());
+                } else if (expiryIndex != null) {
+                    expirationTimestamps.put(entry.getKey(), getExpirationTimestamp(entry.getValue(), t1, maxValidityMillis));
+                }
+            }
 
             long t2 = System.currentTimeMillis();
-            if (!expired.isEmpty()) {
-                for (SiriObjectStorageKey key : expired) {
-                    map.delete(key);
-                }
+            deleteAll(map, expired);
+            deleteFromLinkedMaps(expired);
+            if (expiryIndex != null) {
+                deleteAll(expiryIndex, expired);
+                expiryIndex.setAll(expirationTimestamps);
             }
 
             long t3 = System.currentTimeMillis();
-            if (!expired.isEmpty()) {
-                for (String requestorId : linkedChangeMap.keySet()) {
-                    Set<SiriObjectStorageKey> keys = linkedChangeMap.get(requestorId);
-                    if (keys != null) {
-                        keys.removeAll(expired);
-                        if (keys.isEmpty()) {
-                            linkedChangeMap.remove(requestorId);
-                        }
-                    }
-                }
-            }
+            pruneChanges(linkedChangeMap, expired);
+
             long totalCleanupTime = System.currentTimeMillis() - t1;
             if (totalCleanupTime > 1000) {
                 logger.info("Cleaning {} expired objects took {} ms, finding {} ms, removing {}, changes {} ms, now have {} objects of type {}",
@@ -273,6 +380,101 @@ abstract class SiriRepository<T> {
         }
     }
 
+    /**
+     * Removes expired data by only checking the entries that are due according to the expiry-index
+     */
+    void removeExpiredUsingIndex(IMap<SiriObjectStorageKey, T> map, IMap<String, Set<SiriObjectStorageKey>> linkedChangeMap, long maxValidityMillis) {
+        try {
+            long t1 = System.currentTimeMillis();
+            Set<SiriObjectStorageKey> dueKeys = expiryIndex.keySet(Predicates.lessThan(EXPIRY_INDEX_ATTRIBUTE, t1));
+            if (dueKeys.isEmpty()) {
+                return;
+            }
+
+            // Values are verified before removal as they may have been updated after the index was read
+            Map<SiriObjectStorageKey, T> dueValues = map.getAll(dueKeys);
+
+            Set<SiriObjectStorageKey> expired = new HashSet<>();
+            Map<SiriObjectStorageKey, Long> postponed = new HashMap<>();
+            for (SiriObjectStorageKey key : dueKeys) {
+                T value = dueValues.get(key);
+                if (value == null || isExpired(value, maxValidityMillis)) {
+                    expired.add(key);
+                } else {
+                    postponed.put(key, getExpirationTimestamp(value, t1, maxValidityMillis));
+                }
+            }
+
+            long t2 = System.currentTimeMillis();
+            deleteAll(map, expired);
+            deleteFromLinkedMaps(expired);
+            deleteAll(expiryIndex, expired);
+            if (!postponed.isEmpty()) {
+                expiryIndex.setAll(postponed);
+            }
+
+            long t3 = System.currentTimeMillis();
+            pruneChanges(linkedChangeMap, expired);
+
+            long totalCleanupTime = System.currentTimeMillis() - t1;
+            if (totalCleanupTime > 1000) {
+                logger.info("Cleaning {} expired objects ({} postponed) took {} ms, finding {} ms, removing {}, changes {} ms, type {}",
+                        expired.size(), postponed.size(), totalCleanupTime, (t2 - t1), (t3 - t2), (System.currentTimeMillis() - t3), SIRI_DATA_TYPE);
+            }
+        } catch (Throwable t) {
+            //Catch everything to avoid executor being killed
+            logger.info("Exception caught when cleaning up expired data using index", t);
+        }
+    }
+
+    private boolean isExpired(T value, long maxValidityMillis) {
+        // Check if entry is expired
+        if (getExpiration(value) < 0) {
+            return true;
+        }
+        // Check if entry is older than maxValidityMillis
+        if (maxValidityMillis > 0) {
+            if (value instanceof VehicleActivityStructure vehicleActivity && vehicleActivity.getRecordedAtTime() != null) {
+                ZonedDateTime recordedAtTime = vehicleActivity.getRecordedAtTime();
+                long timeSinceUpdate = Math.abs(ZonedDateTime.now().until(recordedAtTime, ChronoUnit.MILLIS));
+                return timeSinceUpdate > maxValidityMillis;
+            }
+        }
+        return false;
+    }
+
+    private long getExpirationTimestamp(T value, long now, long maxValidityMillis) {
+        long expirationTimestamp = now + getExpiration(value);
+        if (maxValidityMillis > 0) {
+            if (value instanceof VehicleActivityStructure vehicleActivity && vehicleActivity.getRecordedAtTime() != null) {
+                long recordedAtTime = vehicleActivity.getRecordedAtTime().toInstant().toEpochMilli();
+                expirationTimestamp = Math.min(expirationTimestamp, recordedAtTime + maxValidityMillis);
+            }
+        }
+        return expirationTimestamp;
+    }
+
+    /**
+     * Deletes all keys with one operation per partition, without reading the existing values
+     */
+    static <V> void deleteAll(IMap<SiriObjectStorageKey, V> map, Set<SiriObjectStorageKey> keys) {
+        if (!keys.isEmpty()) {
+            map.executeOnKeys(keys, new DeleteEntryProcessor<>());
+        }
+    }
+
+    private void deleteFromLinkedMaps(Set<SiriObjectStorageKey> keys) {
+        for (IMap<SiriObjectStorageKey, ?> linkedMap : getLinkedMaps()) {
+            deleteAll(linkedMap, keys);
+        }
+    }
+
+    private static void pruneChanges(IMap<String, Set<SiriObjectStorageKey>> linkedChangeMap, Set<SiriObjectStorageKey> expired) {
+        if (!expired.isEmpty() && !linkedChangeMap.isEmpty()) {
+            linkedChangeMap.executeOnEntries(new RemoveChangesFromSetEntryProcessor(expired));
+        }
+    }
+
     private void removeFromLinked(IMap<String, Set<SiriObjectStorageKey>> linkedChangeMap, EntryEvent<SiriObjectStorageKey, T> entryEvent, Map<SiriObjectStorageKey, ?>[] linkedMaps) {
         for (Map<SiriObjectStorageKey, ?> linkedMap : linkedMaps) {
             linkedMap.remove(entryEvent.getKey());
@@ -293,6 +495,7 @@ abstract class SiriRepository<T> {
         if (maxSize == null) {
             maxSize = Integer.MAX_VALUE;
         }
+        final String decodedLineRef = lineRef != null ? decodeLineRef(lineRef) : null;
 
         if (requestorId != null) {
             try {
@@ -302,23 +505,16 @@ abstract class SiriRepository<T> {
                     SIRI_DATA_TYPE
                 );
 
-                if (changesMap.containsKey(requestorId)) {
-                    Set<SiriObjectStorageKey> changes = changesMap.get(requestorId);
+                Set<SiriObjectStorageKey> changes = getChangesForRequestor(requestorId, datasetId, null, Integer.MAX_VALUE, 2);
+                if (changes != null) {
 
                     changes = changes.stream()
                         .filter((k) -> datasetId == null || codespaceMatches(datasetId, k))
-                        .filter((k) -> lineRef == null || lineRefMatches(lineRef, k))
+                        .filter((k) -> decodedLineRef == null || lineRefMatches(decodedLineRef, k))
                         .limit(maxSize)
                         .collect(Collectors.toSet());
 
-                    List<T> updates = new ArrayList<>();
-                    for (SiriObjectStorageKey key : changes) {
-                        final T element = cache.get(key);
-                        if (element != null) {
-                            updates.add(element);
-                        }
-                    }
-                    return updates;
+                    return readFromCache(changes);
                 }
             } finally {
                 updateChangeTrackers(lastUpdateRequested,
@@ -331,15 +527,70 @@ abstract class SiriRepository<T> {
             }
         }
 
-        return cache
-            .entrySet()
+        // Keys are filtered before values are read, as values may need to be deserialized
+        final List<SiriObjectStorageKey> keys = getCachedKeys(datasetId)
             .stream()
-            .filter((entry) -> entry.getValue() != null)
-            .filter((entry) -> datasetId == null || codespaceMatches(datasetId, entry.getKey()))
-            .filter((entry) -> lineRef == null || lineRefMatches(lineRef, entry.getKey()))
+            .filter((key) -> decodedLineRef == null || lineRefMatches(decodedLineRef, key))
             .limit(maxSize)
-            .map(Map.Entry::getValue)
             .collect(Collectors.toList());
+
+        return readFromCache(keys);
+    }
+
+    /**
+     * Reads values from the cache. When the off-heap cache has evicted entries to stay within its size-budget,
+     * values that are missing in the cache are read from the main map.
+     */
+    private List<T> readFromCache(Collection<SiriObjectStorageKey> keys) {
+        List<T> values = new ArrayList<>(keys.size());
+        Set<SiriObjectStorageKey> missingKeys = new HashSet<>();
+        for (SiriObjectStorageKey key : keys) {
+            final T element = cache.get(key);
+            if (element != null) {
+                values.add(element);
+            } else {
+                missingKeys.add(key);
+            }
+        }
+
+        if (!missingKeys.isEmpty() && isCacheTruncated()) {
+            logger.info("Reading {} elements evicted from off-heap cache from main map", missingKeys.size());
+            getMainMap().getAll(missingKeys)
+                .values()
+                .stream()
+                .filter(Objects::nonNull)
+                .filter(element -> includeInCachePredicate == null || includeInCachePredicate.test(element))
+                .forEach(values::add);
+        }
+        return values;
+    }
+
+    private boolean isCacheTruncated() {
+        return cache instanceof OffHeapCache<T> offHeapCache && offHeapCache.isTruncated();
+    }
+
+    private Set<SiriObjectStorageKey> getCachedKeys(String datasetId) {
+        if (isCacheTruncated()) {
+            // Evicted entries are not listed by the cache - codespace is resolved by the index on the main map
+            return datasetId == null ? getMainMap().keySet() : getMainMap().keySet(createHzCodespacePredicate(datasetId));
+        }
+        if (datasetId == null) {
+            return cache.keySet();
+        }
+        if (cache instanceof OffHeapCache<T> offHeapCache) {
+            return offHeapCache.keySet(datasetId);
+        }
+        return cache.keySet()
+            .stream()
+            .filter((key) -> codespaceMatches(datasetId, key))
+            .collect(Collectors.toSet());
+    }
+
+    /**
+     * @return The local cache when off-heap cache is enabled, otherwise null
+     */
+    public OffHeapCache<T> getOffHeapCache() {
+        return cache instanceof OffHeapCache<T> offHeapCache ? offHeapCache : null;
     }
 
     void initBufferCommitter(IMap<String, Instant> lastUpdateRequested, IMap<String, Set<SiriObjectStorageKey>> changesMap, int commitFrequency) {
@@ -354,6 +605,84 @@ abstract class SiriRepository<T> {
         }
     }
 
+    /**
+     * Enables the shared change-log when configured - changes are then appended once to the log, and each requestor
+     * only keeps a cursor (and any ids not returned in the previous response) instead of a set of all changes.
+     *
+     * @param ringbuffer Sequenced log of changed ids
+     * @param cursorMap Next sequence to read per requestor
+     */
+    void initChangeLog(Ringbuffer<SiriObjectStorageKey> ringbuffer, IMap<String, Long> cursorMap) {
+        if (FEATURE_TOGGLE_USE_CHANGE_LOG) {
+            logger.info("Using change-log with capacity {} for {}", ringbuffer.capacity(), SIRI_DATA_TYPE);
+            this.changeLog = new ChangeLog(ringbuffer, cursorMap);
+        }
+    }
+
+    /**
+     * Enables incrementally maintained dataset-counters when configured - counts are then updated from entry-events,
+     * and reconciled periodically against an exact count instead of counting all keys on every request.
+     *
+     * @param clusterCountMap Reconciled counts per node
+     */
+    void initDatasetCounter(IMap<String, Map<String, Integer>> clusterCountMap) {
+        if (FEATURE_TOGGLE_USE_DATASET_COUNTER) {
+            logger.info("Using dataset-counters for {}, reconciled every {} seconds", SIRI_DATA_TYPE, datasetCounterReconcileIntervalSeconds);
+            datasetCounter = new DatasetCounter(getMainMap(), clusterCountMap, 3 * datasetCounterReconcileIntervalSeconds);
+            datasetCounter.start();
+
+            Executors.newSingleThreadScheduledExecutor()
+                    .scheduleWithFixedDelay(() -> {
+                        try {
+                            datasetCounter.reconcile();
+                        } catch (Exception e) {
+                            logger.warn("Reconciling dataset-counters failed", e);
+                        }
+                    }, datasetCounterReconcileIntervalSeconds, datasetCounterReconcileIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Writes changes to the main map. While dataset-counters are used, putAll is used instead of setAll - setAll
+     * notifies existing entries as added, while putAll notifies them as updated.
+     */
+    <V> void writeAll(IMap<SiriObjectStorageKey, V> map, Map<SiriObjectStorageKey, V> changes) {
+        if (datasetCounter != null) {
+            map.putAll(changes);
+        } else {
+            map.setAll(changes);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #writeAll(IMap, Map)}
+     */
+    <V> void writeAllAsync(IMap<SiriObjectStorageKey, V> map, Map<SiriObjectStorageKey, V> changes) {
+        if (datasetCounter != null) {
+            map.putAllAsync(changes);
+        } else {
+            map.setAllAsync(changes);
+        }
+    }
+
+    public boolean isDatasetCounterEnabled() {
+        return datasetCounter != null;
+    }
+
+    /**
+     * @return Number of entries for codespace on this node - only available when dataset-counters are enabled
+     */
+    public long getLocalDatasetCount(String datasetId) {
+        return datasetCounter != null ? datasetCounter.getCount(datasetId) : 0;
+    }
+
+    /**
+     * @return Difference between incremental and exact counts at last reconciliation
+     */
+    public long getDatasetCounterDrift() {
+        return datasetCounter != null ? datasetCounter.getLastDrift() : 0;
+    }
+
     @PreDestroy
     void flushOnShutdown() {
         if (singleThreadScheduledExecutor != null) {
@@ -379,16 +708,23 @@ abstract class SiriRepository<T> {
                 final Set<SiriObjectStorageKey> bufferedChanges = new HashSet<>(dirtyChanges);
                 dirtyChanges.clear();
 
-                changesMap.keySet().forEach(key -> {
-                    if (!lastUpdateRequested.containsKey(key)) {
-                        changesMap.delete(key);
-                    }
-                });
+                if (changeLog != null) {
+                    // Changes are appended once - requestors read forward from their own cursor
+                    changeLog.append(bufferedChanges);
+                    logger.info("Appended {} changes to change-log ({}), update took {} ms",
+                            bufferedChanges.size(), this.getClass().getSimpleName(), (System.currentTimeMillis() - t1));
+                } else {
+                    changesMap.keySet().forEach(key -> {
+                        if (!lastUpdateRequested.containsKey(key)) {
+                            changesMap.delete(key);
+                        }
+                    });
 
-                if (!changesMap.isEmpty()) {
-                    changesMap.executeOnEntries(new AppendChangesToSetEntryProcessor(bufferedChanges));
-                    logger.info("Updating changes for {} requestors ({}), committed {} changes, update took {} ms",
-                            changesMap.size(), this.getClass().getSimpleName(), bufferedChanges.size(), (System.currentTimeMillis() - t1));
+                    if (!changesMap.isEmpty()) {
+                        changesMap.executeOnEntries(new AppendChangesToSetEntryProcessor(bufferedChanges));
+                        logger.info("Updating changes for {} requestors ({}), committed {} changes, update took {} ms",
+                                changesMap.size(), this.getClass().getSimpleName(), bufferedChanges.size(), (System.currentTimeMillis() - t1));
+                    }
                 }
             } else {
                 logger.debug("No changes - ignoring commit ({})", this.getClass().getSimpleName());
@@ -432,8 +768,13 @@ abstract class SiriRepository<T> {
 
                 long t1 = System.currentTimeMillis();
 
-                changesMap.executeOnKey(key, new ReplaceSetEntryProcessor(changes));
-                changesMap.setTtl(key, trackingPeriodMinutes, timeUnit);
+                if (changeLog != null && changes.isEmpty()) {
+                    // Requestor is tracked by the change-log cursor
+                    changesMap.delete(key);
+                } else {
+                    changesMap.executeOnKey(key, new ReplaceSetEntryProcessor(changes));
+                    changesMap.setTtl(key, trackingPeriodMinutes, timeUnit);
+                }
 
                 lastUpdateRequested.set(key, Instant.now(), trackingPeriodMinutes, timeUnit);
 
@@ -476,31 +817,72 @@ abstract class SiriRepository<T> {
         return collection.getAll(codespaceKeys).values();
     }
 
-    Set<SiriObjectStorageKey> filterIdsByDataset(final Set<SiriObjectStorageKey> idSet, List<String> excludedDatasetIds, String datasetId) {
-
-        Set<SiriObjectStorageKey> requestedIds = new HashSet<>();
-        if (excludedDatasetIds != null && !excludedDatasetIds.isEmpty()) {
-
-            // Return all IDs except 'excludedIds'
+    /**
+     * Returns the ids that have changed since the previous request from the requestor, or null if the requestor is
+     * unknown and all data should be returned.
+     *
+     * With the change-log enabled, the log is read forward from the requestor's cursor and combined with the ids that
+     * were left over from the previous request. One more id than maxSize is read, so that the caller can detect that
+     * there is more data.
+     */
+    Set<SiriObjectStorageKey> getChangesForRequestor(String requestorId, String datasetId, List<String> excludedDatasetIds,
+                                                     int maxSize, int trackingPeriodMinutes) {
+        final Set<SiriObjectStorageKey> pendingChanges = changesMap.get(requestorId);
+        if (changeLog == null) {
+            return pendingChanges;
+        }
 
-            requestedIds.addAll(idSet.stream()
-                                .filter(id -> !excludedDatasetIds.contains(id.getCodespaceId()))
-                                .collect(Collectors.toSet()));
+        final int limit = maxSize < Integer.MAX_VALUE ? maxSize + 1 : maxSize;
+        Set<SiriObjectStorageKey> changes = changeLog.readChanges(requestorId,
+                createDatasetFilterId(datasetId, excludedDatasetIds),
+                id -> isRequestedDataset(id, excludedDatasetIds, datasetId),
+                limit, trackingPeriodMinutes, TimeUnit.MINUTES);
 
-        } else if (datasetId != null && !datasetId.isEmpty()){
+        if (changes != null && pendingChanges != null) {
+            changes.addAll(pendingChanges);
+        }
+        return changes;
+    }
 
+    /**
+     * Removes all change-tracking - all requestors will get all data on next request
+     */
+    void clearChangeTracking() {
+        changesMap.clear();
+        lastUpdateRequested.clear();
+        if (changeLog != null) {
+            changeLog.clearCursors();
+        }
+    }
 
-            // Return all IDs that matched datasetId
+    Set<SiriObjectStorageKey> filterIdsByDataset(final Set<SiriObjectStorageKey> idSet, List<String> excludedDatasetIds, String datasetId) {
 
-            requestedIds.addAll(idSet.stream()
-                    .filter(id -> datasetId.equals(id.getCodespaceId()))
-                    .collect(Collectors.toSet()));
+        return idSet.stream()
+                .filter(id -> isRequestedDataset(id, excludedDatasetIds, datasetId))
+                .collect(Collectors.toSet());
+    }
 
-        } else {
-            requestedIds.addAll(idSet);
+    /**
+     * @return Id that is equal for requests that are filtered by {@link #isRequestedDataset} in the same way
+     */
+    private static String createDatasetFilterId(String datasetId, List<String> excludedDatasetIds) {
+        if (excludedDatasetIds != null && !excludedDatasetIds.isEmpty()) {
+            return "excluded:" + excludedDatasetIds.stream().sorted().collect(Collectors.joining(","));
+        } else if (datasetId != null && !datasetId.isEmpty()) {
+            return "dataset:" + datasetId;
         }
+        return null;
+    }
 
-        return requestedIds;
+    private static boolean isRequestedDataset(SiriObjectStorageKey id, List<String> excludedDatasetIds, String datasetId) {
+        if (excludedDatasetIds != null && !excludedDatasetIds.isEmpty()) {
+            // Return all IDs except 'excludedIds'
+            return !excludedDatasetIds.contains(id.getCodespaceId());
+        } else if (datasetId != null && !datasetId.isEmpty()) {
+            // Return all IDs that matched datasetId
+            return datasetId.equals(id.getCodespaceId());
+        }
+        return true;
     }
 
     abstract void clearAllByDatasetId(String datasetId);
@@ -509,6 +891,9 @@ abstract class SiriRepository<T> {
      * @return Map of dataset sizes
      */
     public Map<String, Integer> getDatasetSize() {
+        if (datasetCounter != null) {
+            return datasetCounter.getClusterCounts();
+        }
         Map<String, Integer> sizeMap = new HashMap<>();
         long t1 = System.currentTimeMillis();
         getMainMap().keySet().forEach(key -> {
@@ -522,9 +907,15 @@ abstract class SiriRepository<T> {
     }
 
     /**
-     * @return Map of dataset sizes using the local cache (avoids distributed keySet scan)
+     * @return Map of dataset sizes using the local cache (avoids distributed keySet scan), or dataset-counters when enabled
      */
     public Map<String, Integer> getCachedDatasetSize() {
+        if (datasetCounter != null) {
+            return datasetCounter.getClusterCounts();
+        }
+        if (cache instanceof OffHeapCache<T> offHeapCache) {
+            return offHeapCache.getSizePerCodespace();
+        }
         Map<String, Integer> sizeMap = new HashMap<>();
         cache.keySet().forEach(key -> sizeMap.merge(key.getCodespaceId(), 1, Integer::sum));
         return sizeMap;
@@ -534,6 +925,9 @@ abstract class SiriRepository<T> {
      * @return Map of local dataset sizes
      */
     public Map<String, Integer> getLocalDatasetSize() {
+        if (datasetCounter != null) {
+            return datasetCounter.getLocalCounts();
+        }
         Map<String, Integer> sizeMap = new HashMap<>();
         long t1 = System.currentTimeMillis();
         getMainMap().localKeySet().forEach(key -> {
@@ -551,21 +945,31 @@ abstract class SiriRepository<T> {
      * @return Size of dataset
      */
     public Integer getDatasetSize(String datasetId) {
+        if (datasetCounter != null) {
+            return datasetCounter.getClusterCounts().getOrDefault(datasetId, 0);
+        }
         return Math.toIntExact(getMainMap().keySet().stream()
                 .filter(key -> datasetId.equals(key.getCodespaceId()))
                 .count());
     }
 
+    /**
+     * @return Predicate resolved by the codespace-index on the map
+     */
     Predicate<SiriObjectStorageKey, T> createHzCodespacePredicate(String datasetId) {
-        return entry -> {
-            return codespaceMatches(datasetId, entry.getKey());
-        };
+        return Predicates.equal(SiriObjectStorageKey.CODESPACE_ATTRIBUTE, datasetId);
     }
 
+    /**
+     * @param lineRef URL-encoded, case-insensitive lineRef
+     * @return Predicate resolved by the lineRef-index on the map
+     */
     Predicate<SiriObjectStorageKey, T> createHzLineRefPredicate(String lineRef) {
-        return entry -> {
-            return lineRefMatches(lineRef, entry.getKey());
-        };
+        return Predicates.equal(SiriObjectStorageKey.LINE_REF_ATTRIBUTE, SiriObjectStorageKey.normalizeLineRef(decodeLineRef(lineRef)));
+    }
+
+    private static String decodeLineRef(String lineRef) {
+        return URLDecoder.decode(lineRef, StandardCharsets.UTF_8);
     }
 
     private static boolean codespaceMatches(String datasetId, SiriObjectStorageKey entry) {
@@ -576,23 +980,22 @@ abstract class SiriRepository<T> {
         return false;
     }
 
-    private static boolean lineRefMatches(String lineRef, SiriObjectStorageKey entry) {
-        String decodedLine = URLDecoder.decode(lineRef, StandardCharsets.UTF_8);
+    private static boolean lineRefMatches(String decodedLineRef, SiriObjectStorageKey entry) {
         if (entry.getLineRef() != null) {
             final String ref = entry.getLineRef();
 
-            return ref.equalsIgnoreCase(decodedLine);
+            return ref.equalsIgnoreCase(decodedLineRef);
         }
         return false;
     }
 
     /**
-     * Compares object-equality by calculating and comparing MD5-checksum
+     * Compares object-equality by calculating and comparing checksums
      * @param existing
      * @param updated
      * @return
      */
-    static boolean isEqual(Serializable existing, Serializable updated) {
+    boolean isEqual(Serializable existing, Serializable updated) {
         try {
             String checksumExisting = getChecksum(existing);
             String checksumUpdated = getChecksum(updated);
@@ -605,10 +1008,13 @@ abstract class SiriRepository<T> {
         return false;
     }
 
-    static String getChecksum(Serializable object) throws NoSuchAlgorithmException {
-        byte[] bytes = SerializationUtils.serialize(object);
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        return DatatypeConverter.printHexBinary(md.digest(bytes));
-
+    /**
+     * Calculates checksum using the configured ChecksumEngine
+     * @param object
+     * @param ignoredFields Names of fields on the provided object that should not be included
+     * @return
+     */
+    String getChecksum(Serializable object, String... ignoredFields) {
+        return checksumAlgorithm.getEngine().getChecksum(object, ignoredFields);
     }
 }
@@ -16,6 +16,7 @@
 package no.rutebanken.anshar.data;
 
 import com.hazelcast.map.IMap;
+import com.hazelcast.ringbuffer.Ringbuffer;
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.data.util.TimingTracer;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
@@ -39,6 +40,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -62,6 +64,22 @@ public class Situations extends SiriRepository<PtSituationElement> {
     @Qualifier("getSituationChangesMap")
     private IMap<String, Set<SiriObjectStorageKey>> changesMap;
 
+    @Autowired
+    @Qualifier("getSxExpiryIndexMap")
+    private IMap<SiriObjectStorageKey, Long> expiryIndexMap;
+
+    @Autowired
+    @Qualifier("getSxChangeLog")
+    private Ringbuffer<SiriObjectStorageKey> changeLog;
+
+    @Autowired
+    @Qualifier("getSxChangeLogCursorMap")
+    private IMap<String, Long> changeLogCursorMap;
+
+    @Autowired
+    @Qualifier("getSxDatasetCountMap")
+    private IMap<String, Map<String, Integer>> datasetCountMap;
+
 
     @Autowired
     @Qualifier("getLastSxUpdateRequest")
@@ -80,6 +98,9 @@ public class Situations extends SiriRepository<PtSituationElement> {
     @PostConstruct
     private void initializeUpdateCommitter() {
         super.initBufferCommitter(lastUpdateRequested, changesMap, configuration.getChangeBufferCommitFrequency());
+        initExpiryIndex(expiryIndexMap, -1);
+        initChangeLog(changeLog, changeLogCursorMap);
+        initDatasetCounter(datasetCountMap);
 
         enableCache(situationElements);
 
@@ -125,6 +146,7 @@ public class Situations extends SiriRepository<PtSituationElement> {
     public void clearAll() {
         logger.error("Deleting all data - should only be used in test!!!");
         situationElements.clear();
+        expiryIndexMap.clear();
         checksumCache.clear();
         cache.clear();
     }
@@ -144,7 +166,8 @@ public class Situations extends SiriRepository<PtSituationElement> {
 
         // Get all relevant ids
         Set<SiriObjectStorageKey> allIds = new HashSet<>();
-        Set<SiriObjectStorageKey> idSet = changesMap.getOrDefault(requestorId, allIds);
+        Set<SiriObjectStorageKey> changes = getChangesForRequestor(requestorId, datasetId, null, maxSize, trackingPeriodMinutes);
+        Set<SiriObjectStorageKey> idSet = changes != null ? changes : allIds;
 
         if (idSet == allIds) {
             idSet.addAll(situationElements.keySet());
@@ -204,7 +227,7 @@ public class Situations extends SiriRepository<PtSituationElement> {
     public Collection<PtSituationElement> getAllUpdates(String requestorId, String datasetId) {
         if (requestorId != null) {
 
-            Set<SiriObjectStorageKey> idSet = changesMap.get(requestorId);
+            Set<SiriObjectStorageKey> idSet = getChangesForRequestor(requestorId, datasetId, null, Integer.MAX_VALUE, configuration.getTrackingPeriodMinutes());
             lastUpdateRequested.set(requestorId, Instant.now(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
             if (idSet != null) {
                 Set<SiriObjectStorageKey> datasetFilteredIdSet = new HashSet<>();
@@ -265,8 +288,45 @@ public class Situations extends SiriRepository<PtSituationElement> {
     }
 
     public Collection<PtSituationElement> addAll(String datasetId, List<PtSituationElement> sxList) {
+        PendingChanges pendingChanges = new PendingChanges();
+        Collection<PtSituationElement> updated = collectChanges(datasetId, sxList, pendingChanges);
+        writeChanges(pendingChanges);
+        return updated;
+    }
+
+    /**
+     * Adds SX-elements for multiple datasets - changes from all datasets are written with one bulk operation per map,
+     * and marked as updated once.
+     *
+     * @return Updated SX-elements per datasetId
+     */
+    @Override
+    public Map<String, Collection<PtSituationElement>> addAll(Map<String, List<PtSituationElement>> sxByDatasetId) {
+        PendingChanges pendingChanges = new PendingChanges();
+        Map<String, Collection<PtSituationElement>> updated = new LinkedHashMap<>();
+        for (Map.Entry<String, List<PtSituationElement>> entry : sxByDatasetId.entrySet()) {
+            updated.put(entry.getKey(), collectChanges(entry.getKey(), entry.getValue(), pendingChanges));
+        }
+        writeChanges(pendingChanges);
+        return updated;
+    }
+
+    /**
+     * Changes collected from one or more datasets, not yet written to the shared maps
+     */
+    private static class PendingChanges {
+        private final Map<SiriObjectStorageKey, PtSituationElement> changes = new HashMap<>();
+        private final Map<SiriObjectStorageKey, String> checksums = new HashMap<>();
+    }
+
+    /**
+     * Compares SX-elements with existing data, and adds the updated elements to pendingChanges
+     *
+     * @return SX-elements that are updated
+     */
+    private Collection<PtSituationElement> collectChanges(String datasetId, List<PtSituationElement> sxList, PendingChanges pendingChanges) {
         Map<SiriObjectStorageKey, PtSituationElement> changes = new HashMap<>();
-        Map<SiriObjectStorageKey, String> checksumTmp = new HashMap<>();
+        Map<SiriObjectStorageKey, String> checksumTmp = pendingChanges.checksums;
 
         AtomicInteger alreadyExpiredCounter = new AtomicInteger(0);
         AtomicInteger ignoredCounter = new AtomicInteger(0);
@@ -364,8 +424,6 @@ public class Situations extends SiriRepository<PtSituationElement> {
                 logger.info("Adding SX-object with key {} took {} ms: {}", key, elapsed, timingTracer);
             }
         });
-        TimingTracer timingTracer = new TimingTracer("all-sx [" + changes.size() + " changes]");
-
         if (changes.size() == sxList.size()) {
             // ignore details if everything is updated
             logger.info("Updated {} (of {})", changes.size(), sxList.size());
@@ -373,13 +431,22 @@ public class Situations extends SiriRepository<PtSituationElement> {
             logger.info("Updated {} (of {}) :: Already expired: {}, Unchanged: {}", changes.size(), sxList.size(), alreadyExpiredCounter.get(), ignoredCounter.get());
         }
 
-        checksumCache.setAll(checksumTmp);
+        markDataReceived(SiriDataType.SITUATION_EXCHANGE, datasetId, sxList.size(), changes.size(), alreadyExpiredCounter.get(), ignoredCounter.get());
+
+        pendingChanges.changes.putAll(changes);
+        return changes.values();
+    }
+
+    private void writeChanges(PendingChanges pendingChanges) {
+        Map<SiriObjectStorageKey, PtSituationElement> changes = pendingChanges.changes;
+        TimingTracer timingTracer = new TimingTracer("all-sx [" + changes.size() + " changes]");
+
+        checksumCache.setAll(pendingChanges.checksums);
         timingTracer.mark("checksumCache.setAll");
-        situationElements.setAll(changes);
+        writeAll(situationElements, changes);
         timingTracer.mark("monitoredVehicles.setAll");
-
-        markDataReceived(SiriDataType.SITUATION_EXCHANGE, datasetId, sxList.size(), changes.size(), alreadyExpiredCounter.get(), ignoredCounter.get());
-        timingTracer.mark("markDataReceived");
+        updateExpiryIndex(changes);
+        timingTracer.mark("updateExpiryIndex");
 
         markIdsAsUpdated(changes.keySet());
         timingTracer.mark("markIdsAsUpdated");
@@ -387,8 +454,6 @@ public class Situations extends SiriRepository<PtSituationElement> {
         if (timingTracer.getTotalTime() > 1000) {
             logger.info(timingTracer.toString());
         }
-
-        return changes.values();
     }
 
     private boolean keepByProgressStatus(PtSituationElement situation) {
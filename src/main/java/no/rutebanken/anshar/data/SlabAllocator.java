@@ -0,0 +1,220 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Allocates chunks of direct memory from a bounded number of fixed-size slabs.
+ *
+ * Each slab is allocated once, and is then reused for as long as the allocator lives - chunks are returned with
+ * {@link #free(Chunk)}, and are not left to the garbage collector. A slab is split into chunks of one size class,
+ * and is handed back to the pool of empty slabs - available for any size class - when its last chunk is freed.
+ *
+ * Size classes grow in steps of a quarter of the nearest power of two, so a chunk wastes at most 25%.
+ *
+ * Not thread-safe - callers must synchronize.
+ */
+class SlabAllocator {
+
+    static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    private final int slabSize;
+
+    private final long maxSlabs;
+
+    private final List<Slab> allocatedSlabs = new ArrayList<>();
+
+    private final Deque<Slab> emptySlabs = new ArrayDeque<>();
+
+    /**
+     * Slabs with at least one free chunk, per chunk size
+     */
+    private final Map<Integer, Deque<Slab>> partialSlabs = new HashMap<>();
+
+    /**
+     * @param maxBytes Upper limit of direct memory to allocate - rounded down to whole slabs, but at least one slab
+     * @param slabSize Size of each slab, and thereby the largest chunk that can be allocated
+     */
+    SlabAllocator(long maxBytes, int slabSize) {
+        this.slabSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(slabSize, maxBytes));
+        this.maxSlabs = Math.max(1, maxBytes / this.slabSize);
+    }
+
+    /**
+     * @return Chunk with room for the given number of bytes, or null if no slab has room for it
+     */
+    Chunk allocate(int length) {
+        final int chunkSize = chunkSize(length);
+        if (chunkSize > slabSize) {
+            return null;
+        }
+
+        Deque<Slab> slabs = partialSlabs.computeIfAbsent(chunkSize, s -> new ArrayDeque<>());
+        Slab slab = slabs.peekFirst();
+        if (slab == null) {
+            slab = takeEmptySlab(chunkSize);
+            if (slab == null) {
+                return null;
+            }
+            slabs.addFirst(slab);
+        }
+
+        Chunk chunk = slab.allocate(length);
+        if (!slab.hasFreeChunks()) {
+            slabs.removeFirst();
+        }
+        return chunk;
+    }
+
+    /**
+     * Returns the chunk to its slab - the chunk must not be read after it has been freed
+     */
+    void free(Chunk chunk) {
+        Slab slab = chunk.slab;
+        boolean wasFull = !slab.hasFreeChunks();
+        slab.free(chunk);
+
+        Deque<Slab> slabs = partialSlabs.get(slab.chunkSize);
+        if (slab.isEmpty()) {
+            if (!wasFull) {
+                slabs.remove(slab);
+            }
+            emptySlabs.push(slab);
+        } else if (wasFull) {
+            slabs.addLast(slab);
+        }
+    }
+
+    /**
+     * Frees all chunks - allocated slabs are kept for reuse
+     */
+    void clear() {
+        partialSlabs.clear();
+        emptySlabs.clear();
+        emptySlabs.addAll(allocatedSlabs);
+    }
+
+    private Slab takeEmptySlab(int chunkSize) {
+        Slab slab = emptySlabs.poll();
+        if (slab == null) {
+            if (allocatedSlabs.size() >= maxSlabs) {
+                return null;
+            }
+            slab = new Slab(ByteBuffer.allocateDirect(slabSize));
+            allocatedSlabs.add(slab);
+        }
+        slab.init(chunkSize);
+        return slab;
+    }
+
+    static int chunkSize(int length) {
+        if (length <= MIN_CHUNK_SIZE) {
+            return MIN_CHUNK_SIZE;
+        }
+        int step = Integer.highestOneBit(length - 1) / 4;
+        return ((length + step - 1) / step) * step;
+    }
+
+    /**
+     * @return Bytes of direct memory allocated for slabs
+     */
+    long getAllocatedBytes() {
+        return (long) allocatedSlabs.size() * slabSize;
+    }
+
+    int getSlabSize() {
+        return slabSize;
+    }
+
+    static class Chunk {
+        private final Slab slab;
+        private final int offset;
+        private final int length;
+
+        private Chunk(Slab slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        void write(byte[] bytes) {
+            slab.memory.put(offset, bytes, 0, length);
+        }
+
+        byte[] read() {
+            byte[] bytes = new byte[length];
+            slab.memory.get(offset, bytes, 0, length);
+            return bytes;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        int getChunkSize() {
+            return slab.chunkSize;
+        }
+    }
+
+    private static class Slab {
+        private final ByteBuffer memory;
+        private int chunkSize;
+        private int[] freeOffsets = new int[0];
+        private int freeCount;
+
+        private Slab(ByteBuffer memory) {
+            this.memory = memory;
+        }
+
+        private void init(int chunkSize) {
+            this.chunkSize = chunkSize;
+            final int chunkCount = memory.capacity() / chunkSize;
+            if (freeOffsets.length != chunkCount) {
+                freeOffsets = new int[chunkCount];
+            }
+            // Lowest offset on top of the stack
+            for (int i = 0; i < chunkCount; i++) {
+                freeOffsets[i] = (chunkCount - 1 - i) * chunkSize;
+            }
+            freeCount = chunkCount;
+        }
+
+        private Chunk allocate(int length) {
+            return new Chunk(this, freeOffsets[--freeCount], length);
+        }
+
+        private void free(Chunk chunk) {
+            freeOffsets[freeCount++] = chunk.offset;
+        }
+
+        private boolean hasFreeChunks() {
+            return freeCount > 0;
+        }
+
+        private boolean isEmpty() {
+            return freeCount == freeOffsets.length;
+        }
+    }
+}
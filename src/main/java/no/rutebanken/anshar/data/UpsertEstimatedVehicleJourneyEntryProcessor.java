@@ -0,0 +1,299 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.IMap;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes changed ET-elements on the member owning the partition, so that RecordedAtTime-ordering, the
+ * monitored-overrides and the write is done in one call per partition instead of one remote call per journey.
+ *
+ * The checksum is compared and written here as well - the checksum-map uses the same keys, and thus the same
+ * partitions, as the ET-map, so it is accessed on the same member without remote calls. The checksum is compared
+ * before the existing value is read, so unchanged elements are never deserialized. The startTime- and
+ * pattern-change-maps are written by the caller based on the returned result.
+ *
+ * NB: Only the journeys for a single partition should be submitted per instance, as the values
+ * that are actually written are also sent to the backup-replicas.
+ */
+public class UpsertEstimatedVehicleJourneyEntryProcessor implements
+        EntryProcessor<SiriObjectStorageKey, EstimatedVehicleJourney, UpsertEstimatedVehicleJourneyEntryProcessor.Result>,
+        DataSerializable, HazelcastInstanceAware {
+
+    private String checksumMapName;
+
+    private Map<SiriObjectStorageKey, Upsert> upserts;
+
+    private transient HazelcastInstance hazelcastInstance;
+
+    /**
+     * Values written by this processor - will be applied to backup-replicas
+     */
+    private transient Map<SiriObjectStorageKey, EstimatedVehicleJourney> updatedValues = new ConcurrentHashMap<>();
+
+    public UpsertEstimatedVehicleJourneyEntryProcessor() {
+        // Used by Hazelcast
+    }
+
+    public UpsertEstimatedVehicleJourneyEntryProcessor(String checksumMapName, Map<SiriObjectStorageKey, Upsert> upserts) {
+        this.checksumMapName = checksumMapName;
+        this.upserts = upserts;
+    }
+
+    @Override
+    public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+        this.hazelcastInstance = hazelcastInstance;
+    }
+
+    @Override
+    public Result process(Map.Entry<SiriObjectStorageKey, EstimatedVehicleJourney> entry) {
+        final SiriObjectStorageKey key = entry.getKey();
+        final Upsert upsert = upserts.get(key);
+        if (upsert == null) {
+            return Result.NOT_UPDATED;
+        }
+        final EstimatedVehicleJourney et = upsert.estimatedVehicleJourney;
+
+        // Checksum-map is partitioned like the ET-map - only accessed on this member
+        final IMap<SiriObjectStorageKey, String> checksums = hazelcastInstance.getMap(checksumMapName);
+        if (upsert.checksum != null && upsert.checksum.equals(checksums.get(key))) {
+            return Result.UNCHANGED;
+        }
+
+        EstimatedVehicleJourney existing = entry.getValue();
+        if (existing != null && et.isMonitored() == null) {
+            // Exists, and has been changed
+            et.setMonitored(true);
+        }
+
+        if (existing != null && existing.getRecordedAtTime() != null && et.getRecordedAtTime() != null &&
+                et.getRecordedAtTime().isBefore(existing.getRecordedAtTime())) {
+            return Result.OUTDATED;
+        }
+
+        if (upsert.expiration <= 0) {
+            return Result.EXPIRED;
+        }
+
+        boolean overrideMonitoredFalse = false;
+        boolean overrideMonitoredNoLongerTrue = false;
+
+        if (upsert.hasPatternChanges) {
+            if (!Boolean.TRUE.equals(et.isCancellation())) {
+                overrideMonitoredFalse = Boolean.FALSE.equals(et.isMonitored());
+                et.setMonitored(true);
+            }
+        }
+
+        if (existing != null && Boolean.FALSE.equals(et.isMonitored()) &&
+                (Boolean.TRUE.equals(existing.isMonitored()) || Boolean.TRUE.equals(existing.isCancellation()))) {
+            //Previously had monitored=true OR cancellation=true - set monitored=true so it is kept/updated
+            overrideMonitoredNoLongerTrue = true;
+            et.setMonitored(true);
+        }
+
+        entry.setValue(et);
+        updatedValues.put(key, et);
+
+        // TTL is set in EntryListener when objects are added to main map
+        if (upsert.checksum != null) {
+            checksums.set(key, upsert.checksum);
+        } else {
+            checksums.delete(key);
+        }
+
+        return new Result(Status.UPDATED, et.isMonitored(), overrideMonitoredFalse, overrideMonitoredNoLongerTrue);
+    }
+
+    @Override
+    public EntryProcessor<SiriObjectStorageKey, EstimatedVehicleJourney, Result> getBackupProcessor() {
+        if (updatedValues.isEmpty()) {
+            return null;
+        }
+        return new BackupProcessor(new HashMap<>(updatedValues));
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeString(checksumMapName);
+        out.writeInt(upserts.size());
+        for (Map.Entry<SiriObjectStorageKey, Upsert> entry : upserts.entrySet()) {
+            Upsert upsert = entry.getValue();
+            out.writeObject(entry.getKey());
+            out.writeObject(upsert.estimatedVehicleJourney);
+            out.writeString(upsert.checksum);
+            out.writeLong(upsert.expiration);
+            out.writeBoolean(upsert.hasPatternChanges);
+        }
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        checksumMapName = in.readString();
+        int size = in.readInt();
+        upserts = new HashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            SiriObjectStorageKey key = in.readObject();
+            EstimatedVehicleJourney et = in.readObject();
+            String checksum = in.readString();
+            upserts.put(key, new Upsert(et, checksum, in.readLong(), in.readBoolean()));
+        }
+        updatedValues = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Pre-calculated values for a single, changed ET-element
+     */
+    public static class Upsert {
+        private final EstimatedVehicleJourney estimatedVehicleJourney;
+        private final String checksum;
+        private final long expiration;
+        private final boolean hasPatternChanges;
+
+        /**
+         * @param checksum Checksum of the element - null if it could not be calculated, the element is then always
+         *                 written
+         */
+        public Upsert(EstimatedVehicleJourney estimatedVehicleJourney, String checksum, long expiration, boolean hasPatternChanges) {
+            this.estimatedVehicleJourney = estimatedVehicleJourney;
+            this.checksum = checksum;
+            this.expiration = expiration;
+            this.hasPatternChanges = hasPatternChanges;
+        }
+
+        public long getExpiration() {
+            return expiration;
+        }
+
+        public boolean hasPatternChanges() {
+            return hasPatternChanges;
+        }
+    }
+
+    public enum Status {
+        /** Written to the map */
+        UPDATED,
+        /** Not submitted for update */
+        NOT_UPDATED,
+        /** Same checksum as the stored element */
+        UNCHANGED,
+        /** Newer data has already been processed */
+        OUTDATED,
+        /** Changed, but already expired */
+        EXPIRED
+    }
+
+    public static class Result implements Serializable {
+
+        static final Result NOT_UPDATED = new Result(Status.NOT_UPDATED, null, false, false);
+        static final Result UNCHANGED = new Result(Status.UNCHANGED, null, false, false);
+        static final Result OUTDATED = new Result(Status.OUTDATED, null, false, false);
+        static final Result EXPIRED = new Result(Status.EXPIRED, null, false, false);
+
+        private final Status status;
+        private final Boolean monitored;
+        private final boolean overrideMonitoredFalse;
+        private final boolean overrideMonitoredNoLongerTrue;
+
+        Result(Status status, Boolean monitored, boolean overrideMonitoredFalse, boolean overrideMonitoredNoLongerTrue) {
+            this.status = status;
+            this.monitored = monitored;
+            this.overrideMonitoredFalse = overrideMonitoredFalse;
+            this.overrideMonitoredNoLongerTrue = overrideMonitoredNoLongerTrue;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return Monitored-flag as written to the map
+         */
+        public Boolean getMonitored() {
+            return monitored;
+        }
+
+        public boolean isOverrideMonitoredFalse() {
+            return overrideMonitoredFalse;
+        }
+
+        public boolean isOverrideMonitoredNoLongerTrue() {
+            return overrideMonitoredNoLongerTrue;
+        }
+    }
+
+    /**
+     * Applies the values written on the primary replica
+     */
+    public static class BackupProcessor implements EntryProcessor<SiriObjectStorageKey, EstimatedVehicleJourney, Result>, DataSerializable {
+
+        private Map<SiriObjectStorageKey, EstimatedVehicleJourney> updatedValues;
+
+        public BackupProcessor() {
+            // Used by Hazelcast
+        }
+
+        BackupProcessor(Map<SiriObjectStorageKey, EstimatedVehicleJourney> updatedValues) {
+            this.updatedValues = updatedValues;
+        }
+
+        @Override
+        public Result process(Map.Entry<SiriObjectStorageKey, EstimatedVehicleJourney> entry) {
+            EstimatedVehicleJourney value = updatedValues.get(entry.getKey());
+            if (value != null) {
+                entry.setValue(value);
+            }
+            return null;
+        }
+
+        @Override
+        public EntryProcessor<SiriObjectStorageKey, EstimatedVehicleJourney, Result> getBackupProcessor() {
+            return null;
+        }
+
+        @Override
+        public void writeData(ObjectDataOutput out) throws IOException {
+            out.writeInt(updatedValues.size());
+            for (Map.Entry<SiriObjectStorageKey, EstimatedVehicleJourney> entry : updatedValues.entrySet()) {
+                out.writeObject(entry.getKey());
+                out.writeObject(entry.getValue());
+            }
+        }
+
+        @Override
+        public void readData(ObjectDataInput in) throws IOException {
+            int size = in.readInt();
+            updatedValues = new HashMap<>(size);
+            for (int i = 0; i < size; i++) {
+                SiriObjectStorageKey key = in.readObject();
+                EstimatedVehicleJourney value = in.readObject();
+                updatedValues.put(key, value);
+            }
+        }
+    }
+}
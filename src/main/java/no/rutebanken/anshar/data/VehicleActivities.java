@@ -16,6 +16,7 @@
 package no.rutebanken.anshar.data;
 
 import com.hazelcast.map.IMap;
+import com.hazelcast.ringbuffer.Ringbuffer;
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.data.util.TimingTracer;
 import no.rutebanken.anshar.metrics.SiriContent;
@@ -44,6 +45,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -66,6 +68,22 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
     @Qualifier("getVehicleChangesMap")
     private IMap<String, Set<SiriObjectStorageKey>> changesMap;
 
+    @Autowired
+    @Qualifier("getVmExpiryIndexMap")
+    private IMap<SiriObjectStorageKey, Long> expiryIndexMap;
+
+    @Autowired
+    @Qualifier("getVmChangeLog")
+    private Ringbuffer<SiriObjectStorageKey> changeLog;
+
+    @Autowired
+    @Qualifier("getVmChangeLogCursorMap")
+    private IMap<String, Long> changeLogCursorMap;
+
+    @Autowired
+    @Qualifier("getVmDatasetCountMap")
+    private IMap<String, Map<String, Integer>> datasetCountMap;
+
     @Autowired
     @Qualifier("getVmChecksumMap")
     private IMap<SiriObjectStorageKey,String> checksumCache;
@@ -105,6 +123,9 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
     @PostConstruct
     private void initializeUpdateCommitter() {
         super.initBufferCommitter(lastUpdateRequested, changesMap, configuration.getChangeBufferCommitFrequency());
+        initExpiryIndex(expiryIndexMap, maxValidityMillis);
+        initChangeLog(changeLog, changeLogCursorMap);
+        initDatasetCounter(datasetCountMap);
 
         enableCache(monitoredVehicles);
 
@@ -148,6 +169,7 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
     public void clearAll() {
         logger.error("Deleting all data - should only be used in test!!!");
         monitoredVehicles.clear();
+        expiryIndexMap.clear();
         cache.clear();
     }
 
@@ -168,7 +190,7 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
     public Collection<VehicleActivityStructure> getAllUpdates(String requestorId, String datasetId) {
         if (requestorId != null) {
 
-            Set<SiriObjectStorageKey> idSet = changesMap.get(requestorId);
+            Set<SiriObjectStorageKey> idSet = getChangesForRequestor(requestorId, datasetId, null, Integer.MAX_VALUE, configuration.getTrackingPeriodMinutes());
             lastUpdateRequested.set(requestorId, Instant.now(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
             if (idSet != null) {
                 Set<SiriObjectStorageKey> datasetFilteredIdSet = new HashSet<>();
@@ -231,7 +253,8 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
 
         // Get all relevant ids
         Set<SiriObjectStorageKey> allIds = new HashSet<>();
-        Set<SiriObjectStorageKey> idSet = changesMap.getOrDefault(requestorId, allIds);
+        Set<SiriObjectStorageKey> changes = getChangesForRequestor(requestorId, datasetId, excludedDatasetIds, maxSize, trackingPeriodMinutes);
+        Set<SiriObjectStorageKey> idSet = changes != null ? changes : allIds;
 
         if (idSet == allIds) {
             idSet.addAll(monitoredVehicles.keySet());
@@ -301,6 +324,35 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
     }
 
     public Collection<VehicleActivityStructure> addAll(String datasetId, List<VehicleActivityStructure> vmList) {
+        Map<SiriObjectStorageKey, VehicleActivityStructure> pendingChanges = new ConcurrentHashMap<>();
+        Collection<VehicleActivityStructure> updated = collectChanges(datasetId, vmList, pendingChanges);
+        writeChanges(pendingChanges);
+        return updated;
+    }
+
+    /**
+     * Adds VM-elements for multiple datasets - changes from all datasets are written with one bulk operation, and
+     * marked as updated once.
+     *
+     * @return Updated VM-elements per datasetId
+     */
+    @Override
+    public Map<String, Collection<VehicleActivityStructure>> addAll(Map<String, List<VehicleActivityStructure>> vmByDatasetId) {
+        Map<SiriObjectStorageKey, VehicleActivityStructure> pendingChanges = new ConcurrentHashMap<>();
+        Map<String, Collection<VehicleActivityStructure>> updated = new LinkedHashMap<>();
+        for (Map.Entry<String, List<VehicleActivityStructure>> entry : vmByDatasetId.entrySet()) {
+            updated.put(entry.getKey(), collectChanges(entry.getKey(), entry.getValue(), pendingChanges));
+        }
+        writeChanges(pendingChanges);
+        return updated;
+    }
+
+    /**
+     * Compares VM-elements with existing data, and adds the updated elements to pendingChanges
+     *
+     * @return VM-elements that are updated
+     */
+    private Collection<VehicleActivityStructure> collectChanges(String datasetId, List<VehicleActivityStructure> vmList, Map<SiriObjectStorageKey, VehicleActivityStructure> pendingChanges) {
 
         Map<SiriObjectStorageKey, VehicleActivityStructure> changes = new ConcurrentHashMap<>();
 
@@ -386,17 +438,6 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
                     }
 
                 });
-        TimingTracer timingTracer = new TimingTracer("all-vm [" + changes.size() + " changes]");
-
-//        checksumCache.putAll(checksumCacheTmp);
-//        timingTracer.mark("checksumCache.putAll");
-        if (FEATURE_TOGGLE_USE_ASYNC_SET) {
-            monitoredVehicles.setAllAsync(changes);
-            timingTracer.mark("monitoredVehicles.setAllAsync");
-        } else {
-            monitoredVehicles.setAll(changes);
-            timingTracer.mark("monitoredVehicles.setAll");
-        }
 
         if (changes.size() == vmList.size()) {
             // ignore details if everything is updated
@@ -407,15 +448,31 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
 
         markDataReceived(SiriDataType.VEHICLE_MONITORING, datasetId, vmList.size(), changes.size(), outdatedCounter.get(), (invalidLocationCounter.get() + notMeaningfulCounter.get() + notUpdatedCounter.get()));
 
-        timingTracer.mark("markDataReceived");
+        pendingChanges.putAll(changes);
+        return changes.values();
+    }
+
+    private void writeChanges(Map<SiriObjectStorageKey, VehicleActivityStructure> changes) {
+        TimingTracer timingTracer = new TimingTracer("all-vm [" + changes.size() + " changes]");
+
+//        checksumCache.putAll(checksumCacheTmp);
+//        timingTracer.mark("checksumCache.putAll");
+        if (FEATURE_TOGGLE_USE_ASYNC_SET) {
+            writeAllAsync(monitoredVehicles, changes);
+            timingTracer.mark("monitoredVehicles.setAllAsync");
+        } else {
+            writeAll(monitoredVehicles, changes);
+            timingTracer.mark("monitoredVehicles.setAll");
+        }
+        updateExpiryIndex(changes);
+        timingTracer.mark("updateExpiryIndex");
+
         markIdsAsUpdated(changes.keySet());
         timingTracer.mark("markIdsAsUpdated");
 
         if (timingTracer.getTotalTime() > 1000) {
             logger.info(timingTracer.toString());
         }
-
-        return changes.values();
     }
 
     private void resolveContentMetrics(VehicleActivityStructure activity, long expiration) {
@@ -448,19 +505,14 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
         return currentChecksum == null || !currentChecksum.equals(existingChecksum);
     }
 
-    private static String calculateChecksum(VehicleActivityStructure vehicleActivityStructure) {
+    private String calculateChecksum(VehicleActivityStructure vehicleActivityStructure) {
         String existingChecksum = null;
         if (vehicleActivityStructure != null) {
-            ZonedDateTime validUntilTime = vehicleActivityStructure.getValidUntilTime();
             try {
                 // Calculate checksum without "ValidUntilTime" - thus ignoring "fake" updates where only validity is updated
-                vehicleActivityStructure.setValidUntilTime(null);
-                existingChecksum = getChecksum(vehicleActivityStructure);
+                existingChecksum = getChecksum(vehicleActivityStructure, "validUntilTime");
             } catch (Exception e) {
                 //Ignore - data will be updated
-            } finally {
-                //Set original ValidUntilTime back
-                vehicleActivityStructure.setValidUntilTime(validUntilTime);
             }
         }
         return existingChecksum;
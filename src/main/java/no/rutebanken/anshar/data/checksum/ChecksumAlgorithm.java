@@ -0,0 +1,36 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data.checksum;
+
+/**
+ * Available checksum-engines, configured with 'anshar.checksum.algorithm'
+ *
+ * NB: Checksums from different algorithms are not comparable - switching algorithm
+ * will cause all objects to be treated as updated once.
+ */
+public enum ChecksumAlgorithm {
+    MD5(new Md5ChecksumEngine()),
+    FIELD_HASH(new FieldHashChecksumEngine());
+
+    private final ChecksumEngine engine;
+
+    ChecksumAlgorithm(ChecksumEngine engine) {
+        this.engine = engine;
+    }
+
+    public ChecksumEngine getEngine() {
+        return engine;
+    }
+}
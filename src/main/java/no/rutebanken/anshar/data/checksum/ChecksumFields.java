@@ -0,0 +1,81 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data.checksum;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Thread-safe cache of the serializable instance-fields for a class.
+ *
+ * Fields are ordered superclass first, and by name within each class, so that
+ * the order is identical on all nodes in the cluster.
+ */
+final class ChecksumFields {
+
+    private static final ClassValue<Field[]> FIELDS = new ClassValue<>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            List<Class<?>> hierarchy = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                hierarchy.add(0, c);
+            }
+
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> c : hierarchy) {
+                Field[] declaredFields = c.getDeclaredFields();
+                Arrays.sort(declaredFields, Comparator.comparing(Field::getName));
+                for (Field field : declaredFields) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+            return fields.toArray(new Field[0]);
+        }
+    };
+
+    private ChecksumFields() {
+    }
+
+    static Field[] get(Class<?> type) {
+        return FIELDS.get(type);
+    }
+
+    static Field find(Class<?> type, String name) {
+        for (Field field : FIELDS.get(type)) {
+            if (field.getName().equals(name)) {
+                return field;
+            }
+        }
+        throw new IllegalArgumentException("No field named " + name + " in " + type.getName());
+    }
+
+    static boolean isIgnored(Field field, String[] ignoredFields) {
+        for (String ignoredField : ignoredFields) {
+            if (ignoredField.equals(field.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
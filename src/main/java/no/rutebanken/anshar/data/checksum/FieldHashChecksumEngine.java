@@ -0,0 +1,267 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data.checksum;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.namespace.QName;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calculates a 128-bit murmur3-checksum by walking the declared fields of the object graph.
+ *
+ * Values are streamed directly into the hash, so no serialized copy of the object is created,
+ * and ignored fields are skipped instead of being modified on the object.
+ */
+public class FieldHashChecksumEngine implements ChecksumEngine {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    /**
+     * SIRI-objects are trees - depth is limited to fail fast on unexpected cycles
+     */
+    private static final int MAX_DEPTH = 64;
+
+    private static final byte NULL_VALUE = 0;
+    private static final byte NON_NULL_VALUE = 1;
+
+    @Override
+    public String getChecksum(Serializable object, String... ignoredFields) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        if (object == null) {
+            hasher.putByte(NULL_VALUE);
+        } else {
+            hasher.putByte(NON_NULL_VALUE);
+            putObject(hasher, object, ignoredFields, 0);
+        }
+        return hasher.hash().toString();
+    }
+
+    private void putValue(Hasher hasher, Object value, int depth) {
+        if (value == null) {
+            hasher.putByte(NULL_VALUE);
+            return;
+        }
+        if (depth > MAX_DEPTH) {
+            throw new IllegalStateException("Object graph exceeds max depth " + MAX_DEPTH);
+        }
+        hasher.putByte(NON_NULL_VALUE);
+
+        if (value instanceof String s) {
+            hasher.putInt(s.length()).putUnencodedChars(s);
+        } else if (value instanceof Boolean b) {
+            hasher.putBoolean(b);
+        } else if (value instanceof Enum<?> e) {
+            putString(hasher, e.name());
+        } else if (value instanceof Integer i) {
+            hasher.putInt(i);
+        } else if (value instanceof Long l) {
+            hasher.putLong(l);
+        } else if (value instanceof BigInteger bi) {
+            if (bi.bitLength() < 64) {
+                hasher.putLong(bi.longValue());
+            } else {
+                hasher.putBytes(bi.toByteArray());
+            }
+        } else if (value instanceof BigDecimal bd) {
+            hasher.putInt(bd.scale());
+            putValue(hasher, bd.unscaledValue(), depth + 1);
+        } else if (value instanceof ZonedDateTime zdt) {
+            hasher.putLong(zdt.toEpochSecond())
+                    .putInt(zdt.getNano())
+                    .putInt(zdt.getOffset().getTotalSeconds());
+            putString(hasher, zdt.getZone().getId());
+        } else if (value instanceof OffsetDateTime odt) {
+            hasher.putLong(odt.toEpochSecond())
+                    .putInt(odt.getNano())
+                    .putInt(odt.getOffset().getTotalSeconds());
+        } else if (value instanceof Instant instant) {
+            hasher.putLong(instant.getEpochSecond()).putInt(instant.getNano());
+        } else if (value instanceof LocalDateTime ldt) {
+            hasher.putLong(ldt.toLocalDate().toEpochDay()).putLong(ldt.toLocalTime().toNanoOfDay());
+        } else if (value instanceof LocalDate ld) {
+            hasher.putLong(ld.toEpochDay());
+        } else if (value instanceof LocalTime lt) {
+            hasher.putLong(lt.toNanoOfDay());
+        } else if (value instanceof Duration d) {
+            hasher.putLong(d.getSeconds()).putInt(d.getNano());
+        } else if (value instanceof Number n) {
+            putString(hasher, n.getClass().getName());
+            putString(hasher, n.toString());
+        } else if (value instanceof Character c) {
+            hasher.putChar(c);
+        } else if (value instanceof QName qName) {
+            putString(hasher, qName.getNamespaceURI());
+            putString(hasher, qName.getLocalPart());
+            putString(hasher, qName.getPrefix());
+        } else if (value instanceof Class<?> c) {
+            putString(hasher, c.getName());
+        } else if (value instanceof List<?> list) {
+            hasher.putInt(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                putValue(hasher, list.get(i), depth + 1);
+            }
+        } else if (value instanceof Collection<?> collection) {
+            hasher.putInt(collection.size());
+            putUnordered(hasher, collection, depth);
+        } else if (value instanceof Map<?, ?> map) {
+            hasher.putInt(map.size());
+            if (!map.isEmpty()) {
+                putUnordered(hasher, map.entrySet(), depth);
+            }
+        } else if (value instanceof Map.Entry<?, ?> entry) {
+            putValue(hasher, entry.getKey(), depth + 1);
+            putValue(hasher, entry.getValue(), depth + 1);
+        } else if (value instanceof byte[] bytes) {
+            hasher.putInt(bytes.length).putBytes(bytes);
+        } else if (value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            hasher.putInt(length);
+            for (int i = 0; i < length; i++) {
+                putValue(hasher, Array.get(value, i), depth + 1);
+            }
+        } else if (value instanceof Node node) {
+            putNode(hasher, node, depth);
+        } else if (isPlatformClass(value.getClass())) {
+            // Fields of JDK-classes are not accessible - rely on their string-representation
+            putString(hasher, value.getClass().getName());
+            putString(hasher, value.toString());
+        } else {
+            putObject(hasher, value, null, depth);
+        }
+    }
+
+    private void putObject(Hasher hasher, Object value, String[] ignoredFields, int depth) {
+        Class<?> type = value.getClass();
+        hasher.putInt(type.getName().hashCode());
+        try {
+            for (Field field : ChecksumFields.get(type)) {
+                if (ignoredFields != null && ChecksumFields.isIgnored(field, ignoredFields)) {
+                    continue;
+                }
+                Class<?> fieldType = field.getType();
+                if (fieldType.isPrimitive()) {
+                    putPrimitive(hasher, field, value, fieldType);
+                } else {
+                    putValue(hasher, field.get(value), depth + 1);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to read fields of " + type.getName(), e);
+        }
+    }
+
+    private static void putPrimitive(Hasher hasher, Field field, Object value, Class<?> fieldType) throws IllegalAccessException {
+        if (fieldType == boolean.class) {
+            hasher.putBoolean(field.getBoolean(value));
+        } else if (fieldType == int.class) {
+            hasher.putInt(field.getInt(value));
+        } else if (fieldType == long.class) {
+            hasher.putLong(field.getLong(value));
+        } else if (fieldType == double.class) {
+            hasher.putDouble(field.getDouble(value));
+        } else if (fieldType == float.class) {
+            hasher.putFloat(field.getFloat(value));
+        } else if (fieldType == short.class) {
+            hasher.putShort(field.getShort(value));
+        } else if (fieldType == byte.class) {
+            hasher.putByte(field.getByte(value));
+        } else if (fieldType == char.class) {
+            hasher.putChar(field.getChar(value));
+        }
+    }
+
+    /**
+     * Order-independent hash of unordered collections - each element is hashed separately and summed
+     */
+    private void putUnordered(Hasher hasher, Collection<?> values, int depth) {
+        long sumLow = 0;
+        long sumHigh = 0;
+        for (Object element : values) {
+            Hasher elementHasher = HASH_FUNCTION.newHasher();
+            putValue(elementHasher, element, depth + 1);
+            byte[] bytes = elementHasher.hash().asBytes();
+            sumLow += toLong(bytes, 0);
+            sumHigh += toLong(bytes, 8);
+        }
+        hasher.putLong(sumLow).putLong(sumHigh);
+    }
+
+    private void putNode(Hasher hasher, Node node, int depth) {
+        hasher.putShort(node.getNodeType());
+        putNullableString(hasher, node.getNamespaceURI());
+        putNullableString(hasher, node.getLocalName() != null ? node.getLocalName() : node.getNodeName());
+        putNullableString(hasher, node.getNodeValue());
+
+        NamedNodeMap attributes = node.getAttributes();
+        if (attributes != null) {
+            hasher.putInt(attributes.getLength());
+            for (int i = 0; i < attributes.getLength(); i++) {
+                putValue(hasher, attributes.item(i), depth + 1);
+            }
+        }
+
+        NodeList children = node.getChildNodes();
+        hasher.putInt(children.getLength());
+        for (int i = 0; i < children.getLength(); i++) {
+            putValue(hasher, children.item(i), depth + 1);
+        }
+    }
+
+    private static void putString(Hasher hasher, String value) {
+        hasher.putInt(value.length()).putUnencodedChars(value);
+    }
+
+    private static void putNullableString(Hasher hasher, String value) {
+        if (value == null) {
+            hasher.putByte(NULL_VALUE);
+        } else {
+            hasher.putByte(NON_NULL_VALUE);
+            putString(hasher, value);
+        }
+    }
+
+    private static boolean isPlatformClass(Class<?> type) {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jdk.") || name.startsWith("sun.") || name.startsWith("com.sun.");
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = offset + 7; i >= offset; i--) {
+            result = (result << 8) | (bytes[i] & 0xFF);
+        }
+        return result;
+    }
+}
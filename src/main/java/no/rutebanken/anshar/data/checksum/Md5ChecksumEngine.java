@@ -0,0 +1,65 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data.checksum;
+
+import jakarta.xml.bind.DatatypeConverter;
+import org.springframework.util.SerializationUtils;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Original checksum-implementation - MD5 of the java-serialized object.
+ *
+ * Ignored fields are temporarily set to null while serializing, and restored afterwards.
+ */
+public class Md5ChecksumEngine implements ChecksumEngine {
+
+    @Override
+    public String getChecksum(Serializable object, String... ignoredFields) {
+        Field[] fields = new Field[ignoredFields.length];
+        Object[] originalValues = new Object[ignoredFields.length];
+        try {
+            for (int i = 0; i < ignoredFields.length; i++) {
+                fields[i] = ChecksumFields.find(object.getClass(), ignoredFields[i]);
+                originalValues[i] = fields[i].get(object);
+                fields[i].set(object, null);
+            }
+
+            byte[] bytes = SerializationUtils.serialize(object);
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            return DatatypeConverter.printHexBinary(md.digest(bytes));
+
+        } catch (IllegalAccessException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Unable to calculate checksum", e);
+        } finally {
+            restore(object, fields, originalValues);
+        }
+    }
+
+    private static void restore(Object object, Field[] fields, Object[] originalValues) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] != null) {
+                try {
+                    fields[i].set(object, originalValues[i]);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("Unable to restore field " + fields[i].getName(), e);
+                }
+            }
+        }
+    }
+}
@@ -23,15 +23,18 @@ import com.hazelcast.collection.ISet;
 import com.hazelcast.config.EvictionConfig;
 import com.hazelcast.config.EvictionPolicy;
 import com.hazelcast.config.InMemoryFormat;
+import com.hazelcast.config.IndexType;
 import com.hazelcast.config.MapConfig;
 import com.hazelcast.config.MaxSizePolicy;
 import com.hazelcast.config.NearCacheConfig;
+import com.hazelcast.config.RingbufferConfig;
 import com.hazelcast.config.SerializerConfig;
 import com.hazelcast.core.DistributedObject;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.LifecycleEvent;
 import com.hazelcast.map.IMap;
 import com.hazelcast.replicatedmap.ReplicatedMap;
+import com.hazelcast.ringbuffer.Ringbuffer;
 import no.rutebanken.anshar.data.RequestorRefStats;
 import no.rutebanken.anshar.data.SiriObjectStorageKey;
 import no.rutebanken.anshar.routes.outbound.OutboundSubscriptionSetup;
@@ -69,6 +72,15 @@ public class ExtendedHazelcastService extends HazelCastService {
 
     private final Logger logger = LoggerFactory.getLogger(ExtendedHazelcastService.class);
 
+    @Value("${anshar.changelog.capacity:100000}")
+    private int changeLogCapacity;
+
+    /**
+     * When enabled, reference-values in stored elements are deduplicated when deserialized
+     */
+    @Value("${anshar.feature.referenceInterning:false}")
+    private boolean FEATURE_TOGGLE_REFERENCE_INTERNING;
+
     public ExtendedHazelcastService(@Autowired KubernetesService kubernetesService,
                                     @Value("${entur.hazelcast.backup.count.sync:2}") int backupCountSync) {
         super(kubernetesService);
@@ -106,13 +118,13 @@ public class ExtendedHazelcastService extends HazelCastService {
         return Arrays.asList(
                 new SerializerConfig()
                     .setTypeClass(EstimatedVehicleJourney.class)
-                    .setImplementation(new KryoSerializer()),
+                    .setImplementation(new KryoSerializer(FEATURE_TOGGLE_REFERENCE_INTERNING)),
                 new SerializerConfig()
                     .setTypeClass(PtSituationElement.class)
-                    .setImplementation(new KryoSerializer()),
+                    .setImplementation(new KryoSerializer(FEATURE_TOGGLE_REFERENCE_INTERNING)),
                 new SerializerConfig()
                     .setTypeClass(VehicleActivityStructure.class)
-                    .setImplementation(new KryoSerializer()),
+                    .setImplementation(new KryoSerializer(FEATURE_TOGGLE_REFERENCE_INTERNING)),
                 new SerializerConfig()
                     .setTypeClass(JSONObject.class)
                     .setImplementation(new KryoSerializer())
@@ -137,7 +149,7 @@ public class ExtendedHazelcastService extends HazelCastService {
 
     @Bean
     public IMap<SiriObjectStorageKey, PtSituationElement> getSituationsMap(){
-        return hazelcast.getMap("anshar.sx");
+        return withKeyIndexes(hazelcast.getMap("anshar.sx"));
     }
 
     @Bean
@@ -147,7 +159,7 @@ public class ExtendedHazelcastService extends HazelCastService {
 
     @Bean
     public IMap<SiriObjectStorageKey, FacilityConditionStructure> getFacilitiesMap(){
-        return hazelcast.getMap("anshar.fm");
+        return withKeyIndexes(hazelcast.getMap("anshar.fm"));
     }
 
     @Bean
@@ -162,7 +174,7 @@ public class ExtendedHazelcastService extends HazelCastService {
 
     @Bean
     public IMap<SiriObjectStorageKey, EstimatedVehicleJourney> getEstimatedTimetablesMap(){
-        return hazelcast.getMap("anshar.et");
+        return withKeyIndexes(hazelcast.getMap("anshar.et"));
     }
 
     @Bean
@@ -197,7 +209,7 @@ public class ExtendedHazelcastService extends HazelCastService {
 
     @Bean
     public IMap<SiriObjectStorageKey, VehicleActivityStructure> getVehiclesMap(){
-        return hazelcast.getMap("anshar.vm");
+        return withKeyIndexes(hazelcast.getMap("anshar.vm"));
     }
 
     @Bean
@@ -205,6 +217,103 @@ public class ExtendedHazelcastService extends HazelCastService {
         return hazelcast.getMap("anshar.vm.changes");
     }
 
+    @Bean
+    public IMap<SiriObjectStorageKey, Long> getEtExpiryIndexMap() {
+        return hazelcast.getMap("anshar.et.index.expiry");
+    }
+
+    @Bean
+    public IMap<SiriObjectStorageKey, Long> getVmExpiryIndexMap() {
+        return hazelcast.getMap("anshar.vm.index.expiry");
+    }
+
+    @Bean
+    public IMap<SiriObjectStorageKey, Long> getSxExpiryIndexMap() {
+        return hazelcast.getMap("anshar.sx.index.expiry");
+    }
+
+    @Bean
+    public IMap<SiriObjectStorageKey, Long> getFmExpiryIndexMap() {
+        return hazelcast.getMap("anshar.fm.index.expiry");
+    }
+
+    @Bean
+    public Ringbuffer<SiriObjectStorageKey> getEtChangeLog() {
+        return getChangeLog("anshar.et.changelog");
+    }
+
+    @Bean
+    public Ringbuffer<SiriObjectStorageKey> getVmChangeLog() {
+        return getChangeLog("anshar.vm.changelog");
+    }
+
+    @Bean
+    public Ringbuffer<SiriObjectStorageKey> getSxChangeLog() {
+        return getChangeLog("anshar.sx.changelog");
+    }
+
+    @Bean
+    public Ringbuffer<SiriObjectStorageKey> getFmChangeLog() {
+        return getChangeLog("anshar.fm.changelog");
+    }
+
+    @Bean
+    public IMap<String, Long> getEtChangeLogCursorMap() {
+        return hazelcast.getMap("anshar.et.changelog.cursor");
+    }
+
+    @Bean
+    public IMap<String, Long> getVmChangeLogCursorMap() {
+        return hazelcast.getMap("anshar.vm.changelog.cursor");
+    }
+
+    @Bean
+    public IMap<String, Long> getSxChangeLogCursorMap() {
+        return hazelcast.getMap("anshar.sx.changelog.cursor");
+    }
+
+    @Bean
+    public IMap<String, Long> getFmChangeLogCursorMap() {
+        return hazelcast.getMap("anshar.fm.changelog.cursor");
+    }
+
+    @Bean
+    public IMap<String, Map<String, Integer>> getEtDatasetCountMap() {
+        return hazelcast.getMap("anshar.et.dataset.count");
+    }
+
+    @Bean
+    public IMap<String, Map<String, Integer>> getVmDatasetCountMap() {
+        return hazelcast.getMap("anshar.vm.dataset.count");
+    }
+
+    @Bean
+    public IMap<String, Map<String, Integer>> getSxDatasetCountMap() {
+        return hazelcast.getMap("anshar.sx.dataset.count");
+    }
+
+    @Bean
+    public IMap<String, Map<String, Integer>> getFmDatasetCountMap() {
+        return hazelcast.getMap("anshar.fm.dataset.count");
+    }
+
+    /**
+     * Capacity is added as dynamic config, as the default Ringbuffer-capacity is too small to hold changes between requests
+     */
+    private Ringbuffer<SiriObjectStorageKey> getChangeLog(String name) {
+        hazelcast.getConfig().addRingBufferConfig(new RingbufferConfig(name).setCapacity(changeLogCapacity));
+        return hazelcast.getRingbuffer(name);
+    }
+
+    /**
+     * Adds indexes for codespace and lineRef to avoid full scans when querying by dataset or line
+     */
+    private static <V> IMap<SiriObjectStorageKey, V> withKeyIndexes(IMap<SiriObjectStorageKey, V> map) {
+        map.addIndex(IndexType.HASH, SiriObjectStorageKey.CODESPACE_ATTRIBUTE);
+        map.addIndex(IndexType.HASH, SiriObjectStorageKey.LINE_REF_ATTRIBUTE);
+        return map;
+    }
+
     @Bean
     public ReplicatedMap<String,SubscriptionSetup> getSubscriptionsMap() {
         return hazelcast.getReplicatedMap("anshar.subscriptions.active");
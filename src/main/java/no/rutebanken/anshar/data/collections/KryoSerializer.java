@@ -20,7 +20,9 @@ import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.pool.KryoFactory;
 import com.esotericsoftware.kryo.pool.KryoPool;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
 import com.hazelcast.nio.serialization.ByteArraySerializer;
+import no.rutebanken.anshar.routes.siri.helpers.ReferenceInterner;
 import org.objenesis.strategy.StdInstantiatorStrategy;
 
 import javax.xml.namespace.QName;
@@ -31,17 +33,54 @@ import java.util.zip.InflaterInputStream;
 
 public class KryoSerializer implements ByteArraySerializer {
 
-    private static final KryoPool kryoPool;
+    private static final KryoPool defaultKryoPool = createKryoPool(false);
 
-    static {
+    private static final KryoPool interningKryoPool = createKryoPool(true);
+
+    private final KryoPool kryoPool;
+
+    public KryoSerializer() {
+        this(false);
+    }
+
+    /**
+     * @param internReferences Reference-values are deduplicated when deserialized - the serialized format is the same
+     */
+    public KryoSerializer(boolean internReferences) {
+        this.kryoPool = internReferences ? interningKryoPool : defaultKryoPool;
+    }
+
+    private static KryoPool createKryoPool(boolean internReferences) {
         KryoFactory factory = () -> {
             Kryo kryo = new Kryo();
             kryo.setInstantiatorStrategy(new Kryo.DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
             kryo.register(QName.class, new QNameSerializer());
+            if (internReferences) {
+                for (Class<?> referenceClass : ReferenceInterner.REFERENCE_CLASSES) {
+                    kryo.addDefaultSerializer(referenceClass, InterningFieldSerializer.class);
+                }
+            }
             return kryo;
         };
 
-        kryoPool = new KryoPool.Builder(factory).softReferences().build();
+        return new KryoPool.Builder(factory).softReferences().build();
+    }
+
+    /**
+     * Same as the default FieldSerializer - reference-values are interned after the object is read
+     */
+    public static class InterningFieldSerializer<T> extends FieldSerializer<T> {
+
+        public InterningFieldSerializer(Kryo kryo, Class type) {
+            super(kryo, type);
+        }
+
+        @Override
+        public T read(Kryo kryo, Input input, Class<T> type) {
+            T object = super.read(kryo, input, type);
+            ReferenceInterner.getInstance().internReferences(object);
+            return object;
+        }
     }
 
     @Override
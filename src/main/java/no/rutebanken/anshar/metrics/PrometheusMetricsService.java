@@ -22,8 +22,15 @@ import io.micrometer.core.instrument.Tag;
 import io.micrometer.prometheusmetrics.PrometheusConfig;
 import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
 import no.rutebanken.anshar.data.EstimatedTimetables;
+import no.rutebanken.anshar.data.Facilities;
+import no.rutebanken.anshar.data.LocalChecksumTable;
+import no.rutebanken.anshar.data.OffHeapCache;
 import no.rutebanken.anshar.data.Situations;
 import no.rutebanken.anshar.data.VehicleActivities;
+import no.rutebanken.anshar.routes.messaging.AdaptiveConcurrencyController;
+import no.rutebanken.anshar.routes.messaging.DuplicateDeliveryFilter;
+import no.rutebanken.anshar.routes.outbound.OutboundPushClient;
+import no.rutebanken.anshar.routes.siri.helpers.ReferenceInterner;
 import no.rutebanken.anshar.routes.siri.transformer.ApplicationContextHolder;
 import no.rutebanken.anshar.routes.siri.transformer.MappingNames;
 import no.rutebanken.anshar.routes.validation.ValidationType;
@@ -40,12 +47,15 @@ import uk.org.siri.siri21.SituationExchangeDeliveryStructure;
 import uk.org.siri.siri21.VehicleMonitoringDeliveryStructure;
 
 import javax.annotation.PreDestroy;
+import java.net.http.HttpClient;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
 
 import static no.rutebanken.anshar.subscription.SubscriptionSetup.SubscriptionMode.AVRO_PUBSUB;
 
@@ -83,6 +93,32 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
     private static final String SUBSCRIPTION_OUTBOUND_COUNTER_NAME = METRICS_PREFIX + "subscription.outbound";
     private static final String SUBSCRIPTION_OUTBOUND_CONCURRENT_REQUESTS = METRICS_PREFIX + "concurrent.outbound.requests";
     private static final String SUBSCRIPTION_OUTBOUND_QUEUE = METRICS_PREFIX + "concurrent.outbound.queue";
+    private static final String SUBSCRIPTION_OUTBOUND_INFLIGHT = METRICS_PREFIX + "concurrent.outbound.inflight";
+
+    private static final String OUTBOUND_PUSH_LATENCY_NAME = METRICS_PREFIX + "outbound.push.latency";
+    private static final String OUTBOUND_PUSH_INFLIGHT_NAME = METRICS_PREFIX + "outbound.push.inflight";
+    private static final String OUTBOUND_PUSH_REJECTED_NAME = METRICS_PREFIX + "outbound.push.rejected";
+
+    private static final String OFF_HEAP_CACHE_BYTES_NAME = METRICS_PREFIX + "cache.offheap.bytes";
+    private static final String OFF_HEAP_CACHE_ALLOCATED_BYTES_NAME = METRICS_PREFIX + "cache.offheap.allocated.bytes";
+    private static final String OFF_HEAP_CACHE_TRUNCATED_NAME = METRICS_PREFIX + "cache.offheap.truncated";
+    private static final String OFF_HEAP_CACHE_ENTRIES_NAME = METRICS_PREFIX + "cache.offheap.entries";
+    private static final String OFF_HEAP_CACHE_EVICTIONS_NAME = METRICS_PREFIX + "cache.offheap.evictions";
+
+    private static final String LOCAL_CHECKSUM_LOOKUP_COUNTER_NAME = METRICS_PREFIX + "checksum.local.lookup";
+    private static final String LOCAL_CHECKSUM_HIT_RATE_NAME = METRICS_PREFIX + "checksum.local.hitrate";
+
+    private static final String INCOMING_CONCURRENCY_LIMIT_NAME = METRICS_PREFIX + "incoming.concurrency.limit";
+    private static final String INCOMING_CONCURRENCY_INFLIGHT_NAME = METRICS_PREFIX + "incoming.concurrency.inflight";
+    private static final String INCOMING_CONCURRENCY_LATENCY_NAME = METRICS_PREFIX + "incoming.concurrency.latency.millis";
+    private static final String INCOMING_CONCURRENCY_DECISION_COUNTER_NAME = METRICS_PREFIX + "incoming.concurrency.decision";
+
+    private static final String DATA_COUNTER_DRIFT_NAME = METRICS_PREFIX + "data.counter.drift";
+
+    private static final String REFERENCE_INTERNING_RATIO_NAME = METRICS_PREFIX + "reference.interning.ratio";
+    private static final String REFERENCE_INTERNING_LOOKUP_COUNTER_NAME = METRICS_PREFIX + "reference.interning.lookup";
+
+    private static final String DATA_DELIVERY_FINGERPRINT_COUNTER_NAME = METRICS_PREFIX + "data.delivery.fingerprint";
 
     private static final String DATA_MAPPING_COUNTER_NAME = METRICS_PREFIX + "data.mapping";
 
@@ -96,6 +132,7 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
     @Value("${anshar.metrics.include.failing.subscriptions:false}")
     private boolean includeSubscriptionFailingMetrics;
     private Map<String, ExecutorService> outboundThreadFactoryMap;
+    private OutboundPushClient outboundPushClient;
 
     public PrometheusMetricsService() {
         super(PrometheusConfig.DEFAULT);
@@ -118,6 +155,31 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
         counter(DATA_IGNORED_COUNTER_NAME, counterTags).increment(ignored);
     }
 
+    public void registerDeliveryFingerprint(String subscriptionId, DuplicateDeliveryFilter.Result result) {
+        List<Tag> counterTags = new ArrayList<>();
+        counterTags.add(new ImmutableTag("subscriptionId", subscriptionId));
+        counterTags.add(new ImmutableTag("result", result.name()));
+
+        counter(DATA_DELIVERY_FINGERPRINT_COUNTER_NAME, counterTags).increment();
+    }
+
+    public void registerConcurrencyDecision(SiriDataType dataType, AdaptiveConcurrencyController.Decision decision) {
+        List<Tag> counterTags = new ArrayList<>();
+        counterTags.add(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()));
+        counterTags.add(new ImmutableTag("decision", decision.name()));
+
+        counter(INCOMING_CONCURRENCY_DECISION_COUNTER_NAME, counterTags).increment();
+    }
+
+    public void gaugeConcurrencyController(SiriDataType dataType, AdaptiveConcurrencyController controller) {
+        List<Tag> counterTags = new ArrayList<>();
+        counterTags.add(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()));
+
+        gauge(INCOMING_CONCURRENCY_LIMIT_NAME, counterTags, controller, AdaptiveConcurrencyController::getLimit);
+        gauge(INCOMING_CONCURRENCY_INFLIGHT_NAME, counterTags, controller, AdaptiveConcurrencyController::getInFlight);
+        gauge(INCOMING_CONCURRENCY_LATENCY_NAME, counterTags, controller, AdaptiveConcurrencyController::getLastLatencyMillis);
+    }
+
     public void registerDataMapping(SiriDataType dataType, String agencyId, MappingNames mappingName, int mappedCount) {
 
         List<Tag> counterTags = new ArrayList<>();
@@ -161,6 +223,13 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
     }
 
     public void countOutgoingData(Siri siri, SubscriptionSetup.SubscriptionMode mode) {
+        countOutgoingData(siri, mode, 1);
+    }
+
+    /**
+     * Counts the data once for each recipient of the same payload
+     */
+    public void countOutgoingData(Siri siri, SubscriptionSetup.SubscriptionMode mode, int recipientCount) {
         SiriDataType dataType = null;
         int count = 0;
         if (siri != null && siri.getServiceDelivery() != null) {
@@ -191,7 +260,7 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
                     count = deliveryStructure.getSituations().getPtSituationElements().size();
                 }
             }
-            countOutgoingData(dataType, mode, count);
+            countOutgoingData(dataType, mode, (long) count * recipientCount);
         }
 
     }
@@ -220,7 +289,7 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
         counter(DATA_VALIDATION_RESULT_COUNTER, counterTags).increment();
     }
 
-    private void countOutgoingData(SiriDataType dataType, SubscriptionSetup.SubscriptionMode mode, long objectCount) {
+    public void countOutgoingData(SiriDataType dataType, SubscriptionSetup.SubscriptionMode mode, long objectCount) {
         if (dataType != null && objectCount > 0) {
             List<Tag> counterTags = new ArrayList<>();
             counterTags.add(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()));
@@ -241,6 +310,29 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
         counter(SUBSCRIPTION_OUTBOUND_COUNTER_NAME, counterTags).increment(1);
     }
 
+    /**
+     * @param version Negotiated protocol, or null if the request failed
+     * @param statusCode
+     * @param elapsedMillis
+     */
+    public void markPushLatency(SiriDataType dataType, HttpClient.Version version, int statusCode, long elapsedMillis) {
+        String result;
+        if (version == null) {
+            result = "error";
+        } else if (statusCode >= 200 && statusCode < 300) {
+            result = "ok";
+        } else {
+            result = "failed";
+        }
+
+        List<Tag> counterTags = new ArrayList<>();
+        counterTags.add(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()));
+        counterTags.add(new ImmutableTag("protocol", version != null ? version.name() : "none"));
+        counterTags.add(new ImmutableTag("result", result));
+
+        timer(OUTBOUND_PUSH_LATENCY_NAME, counterTags).record(elapsedMillis, TimeUnit.MILLISECONDS);
+    }
+
     final Map<String, Integer> gaugeValues = new HashMap<>();
 
     public void gaugeDataset(SiriDataType subscriptionType, String agencyId, Integer count) {
@@ -255,6 +347,64 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
         gauge(DATA_COUNTER_NAME, counterTags, key, value -> gaugeValues.get(key));
     }
 
+    private void gaugeOffHeapCache(SiriDataType dataType, OffHeapCache<?> cache) {
+        if (cache == null) {
+            return;
+        }
+        List<Tag> counterTags = new ArrayList<>();
+        counterTags.add(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()));
+
+        gauge(OFF_HEAP_CACHE_BYTES_NAME, counterTags, cache, OffHeapCache::getUsedBytes);
+        gauge(OFF_HEAP_CACHE_ALLOCATED_BYTES_NAME, counterTags, cache, OffHeapCache::getAllocatedBytes);
+        gauge(OFF_HEAP_CACHE_ENTRIES_NAME, counterTags, cache, OffHeapCache::size);
+        gauge(OFF_HEAP_CACHE_TRUNCATED_NAME, counterTags, cache, c -> c.isTruncated() ? 1 : 0);
+        more().counter(OFF_HEAP_CACHE_EVICTIONS_NAME, counterTags, cache, OffHeapCache::getEvictionCount);
+    }
+
+    private void gaugeLocalChecksumTable(SiriDataType dataType, LocalChecksumTable table) {
+        if (table == null) {
+            return;
+        }
+        List<Tag> counterTags = new ArrayList<>();
+        counterTags.add(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()));
+
+        gauge(LOCAL_CHECKSUM_HIT_RATE_NAME, counterTags, table, LocalChecksumTable::getHitRate);
+        more().counter(LOCAL_CHECKSUM_LOOKUP_COUNTER_NAME, withResult(counterTags, "match"), table, LocalChecksumTable::getMatchCount);
+        more().counter(LOCAL_CHECKSUM_LOOKUP_COUNTER_NAME, withResult(counterTags, "mismatch"), table, LocalChecksumTable::getMismatchCount);
+        more().counter(LOCAL_CHECKSUM_LOOKUP_COUNTER_NAME, withResult(counterTags, "miss"), table, LocalChecksumTable::getMissCount);
+    }
+
+    private void gaugeReferenceInterner(ReferenceInterner interner) {
+        List<Tag> counterTags = new ArrayList<>();
+
+        gauge(REFERENCE_INTERNING_RATIO_NAME, counterTags, interner, ReferenceInterner::getDeduplicationRatio);
+        more().counter(REFERENCE_INTERNING_LOOKUP_COUNTER_NAME, withResult(counterTags, "deduplicated"), interner, ReferenceInterner::getDeduplicatedCount);
+        more().counter(REFERENCE_INTERNING_LOOKUP_COUNTER_NAME, withResult(counterTags, "total"), interner, ReferenceInterner::getLookupCount);
+    }
+
+    private void gaugeOutboundPushClient(OutboundPushClient client) {
+        if (client == null) {
+            return;
+        }
+        List<Tag> counterTags = new ArrayList<>();
+
+        gauge(OUTBOUND_PUSH_INFLIGHT_NAME, counterTags, client, OutboundPushClient::getInFlight);
+        more().counter(OUTBOUND_PUSH_REJECTED_NAME, counterTags, client, OutboundPushClient::getRejectedCount);
+    }
+
+    private static List<Tag> withResult(List<Tag> tags, String result) {
+        List<Tag> counterTags = new ArrayList<>(tags);
+        counterTags.add(new ImmutableTag("result", result));
+        return counterTags;
+    }
+
+    private <R> void gaugeDatasetCounterDrift(SiriDataType dataType, R repository, ToDoubleFunction<R> drift) {
+        List<Tag> counterTags = new ArrayList<>();
+        counterTags.add(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()));
+
+        gauge(DATA_COUNTER_DRIFT_NAME, counterTags, repository, drift);
+    }
+
     @Override
     public String scrape() {
         update();
@@ -273,6 +423,9 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
             if (SUBSCRIPTION_OUTBOUND_QUEUE.equals(meter.getId().getName())) {
                 this.remove(meter);
             }
+            if (SUBSCRIPTION_OUTBOUND_INFLIGHT.equals(meter.getId().getName())) {
+                this.remove(meter);
+            }
         }
 
         EstimatedTimetables estimatedTimetables = ApplicationContextHolder.getContext().getBean(EstimatedTimetables.class);
@@ -293,12 +446,40 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
             gaugeDataset(SiriDataType.VEHICLE_MONITORING, entry.getKey(), entry.getValue());
         }
 
+        Facilities facilities = ApplicationContextHolder.getContext().getBean(Facilities.class);
+        if (estimatedTimetables.isDatasetCounterEnabled()) {
+            gaugeDatasetCounterDrift(SiriDataType.ESTIMATED_TIMETABLE, estimatedTimetables, EstimatedTimetables::getDatasetCounterDrift);
+        }
+        if (situations.isDatasetCounterEnabled()) {
+            gaugeDatasetCounterDrift(SiriDataType.SITUATION_EXCHANGE, situations, Situations::getDatasetCounterDrift);
+        }
+        if (vehicleActivities.isDatasetCounterEnabled()) {
+            gaugeDatasetCounterDrift(SiriDataType.VEHICLE_MONITORING, vehicleActivities, VehicleActivities::getDatasetCounterDrift);
+        }
+        if (facilities.isDatasetCounterEnabled()) {
+            gaugeDatasetCounterDrift(SiriDataType.FACILITY_MONITORING, facilities, Facilities::getDatasetCounterDrift);
+        }
+
+        gaugeOffHeapCache(SiriDataType.ESTIMATED_TIMETABLE, estimatedTimetables.getOffHeapCache());
+        gaugeOffHeapCache(SiriDataType.SITUATION_EXCHANGE, situations.getOffHeapCache());
+        gaugeOffHeapCache(SiriDataType.VEHICLE_MONITORING, vehicleActivities.getOffHeapCache());
+        gaugeOffHeapCache(SiriDataType.FACILITY_MONITORING, facilities.getOffHeapCache());
+
+        gaugeLocalChecksumTable(SiriDataType.ESTIMATED_TIMETABLE, estimatedTimetables.getLocalChecksumTable());
+
+        gaugeReferenceInterner(ReferenceInterner.getInstance());
+
+        gaugeOutboundPushClient(outboundPushClient);
+
         for (Map.Entry<String, ExecutorService> entry : outboundThreadFactoryMap.entrySet()) {
             List<Tag> counterTags = new ArrayList<>();
             counterTags.add(new ImmutableTag("subscriptionId", entry.getKey()));
             ThreadPoolExecutor executor = (ThreadPoolExecutor) entry.getValue();
             gauge(SUBSCRIPTION_OUTBOUND_CONCURRENT_REQUESTS, counterTags, executor.getActiveCount());
             gauge(SUBSCRIPTION_OUTBOUND_QUEUE, counterTags, executor.getQueue().size());
+            if (outboundPushClient != null) {
+                gauge(SUBSCRIPTION_OUTBOUND_INFLIGHT, counterTags, outboundPushClient.getInFlight(entry.getKey()));
+            }
         }
 
         if (includeSubscriptionFailingMetrics) {
@@ -355,4 +536,8 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
     public void registerOutboundThreadFactoryMap(Map<String, ExecutorService> threadFactoryMap) {
         this.outboundThreadFactoryMap = threadFactoryMap;
     }
+
+    public void registerOutboundPushClient(OutboundPushClient pushClient) {
+        this.outboundPushClient = pushClient;
+    }
 }
@@ -22,6 +22,9 @@ import jakarta.xml.bind.JAXBException;
 import jakarta.xml.bind.UnmarshalException;
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import no.rutebanken.anshar.routes.siri.transformer.OutboundIdPolicyWriter;
+import no.rutebanken.anshar.routes.siri.transformer.SiriValueTransformer;
+import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
 import org.apache.camel.Exchange;
 import org.apache.camel.InvalidPayloadException;
 import org.apache.camel.LoggingLevel;
@@ -51,6 +54,7 @@ import javax.xml.stream.XMLStreamException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.util.HashMap;
 import java.util.List;
@@ -78,6 +82,9 @@ public class RestRouteBuilder extends RouteBuilder {
     @Value("${anshar.data.handler.baseurl.fm:}")
     protected String fmHandlerBaseUrl;
 
+    @Value("${anshar.feature.outbound.idPolicyWriter:false}")
+    private boolean FEATURE_TOGGLE_ID_POLICY_WRITER;
+
     @Autowired
     private AnsharConfiguration configuration;
 
@@ -468,24 +475,31 @@ public class RestRouteBuilder extends RouteBuilder {
 
         return values;
     }
+    /**
+     * Streams the response with the outbound adapters applied - SIRI 2.1 XML is written with the id-policy applied
+     * while writing when possible, otherwise the response is transformed before it is written.
+     */
+    protected void streamOutput(Exchange p, Siri response, List<ValueAdapter> outboundAdapters, boolean deepCopyBeforeTransform,
+                                boolean detailedLogging, HttpServletResponse out) throws IOException, JAXBException, XMLStreamException {
+        if (FEATURE_TOGGLE_ID_POLICY_WRITER && response != null &&
+                isSiri21Requested(p) && isXmlRequested(p) &&
+                OutboundIdPolicyWriter.isSupported(response, outboundAdapters)) {
+            p.getMessage().setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_XML);
+            OutboundIdPolicyWriter.writeXml(response, outboundAdapters, out.getOutputStream());
+            return;
+        }
+        streamOutput(p, SiriValueTransformer.transform(response, outboundAdapters, deepCopyBeforeTransform, detailedLogging), out);
+    }
+
     protected void streamOutput(Exchange p, Siri response, HttpServletResponse out) throws IOException, JAXBException, XMLStreamException {
 
-        boolean siri21Version = "2.1".equals(p.getIn().getHeader(SIRI_VERSION_HEADER_NAME));
+        boolean siri21Version = isSiri21Requested(p);
 
-        if (MediaType.APPLICATION_JSON.equals(p.getIn().getHeader(HttpHeaders.CONTENT_TYPE)) |
-            MediaType.APPLICATION_JSON.equals(p.getIn().getHeader(HttpHeaders.ACCEPT))) {
+        if (isJsonRequested(p)) {
             p.getMessage().setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
-            if (siri21Version) {
-                SiriJson.toJson(response, out.getOutputStream());
-            } else {
-                org.rutebanken.siri20.util.SiriJson.toJson(
-                        downgradeSiriVersion(response),
-                        out.getOutputStream()
-                );
-            }
+            writeSiri(response, siri21Version, true, out.getOutputStream());
         }
-        else if ("application/avro".equals(p.getIn().getHeader(HttpHeaders.CONTENT_TYPE)) |
-                "application/avro".equals(p.getIn().getHeader(HttpHeaders.ACCEPT))) {
+        else if (isAvroRequested(p)) {
             try {
                 final SiriRecord siriRecord = Jaxb2AvroConverter.convert(response);
 
@@ -498,8 +512,7 @@ public class RestRouteBuilder extends RouteBuilder {
                 SiriXml.toXml(response, null, new FileOutputStream(file));
             }
         }
-        else if ("application/avro+json".equals(p.getIn().getHeader(HttpHeaders.CONTENT_TYPE)) |
-                "application/avro+json".equals(p.getIn().getHeader(HttpHeaders.ACCEPT))) {
+        else if (isAvroJsonRequested(p)) {
             try {
                 final SiriRecord siriRecord = Jaxb2AvroConverter.convert(response);
 
@@ -515,13 +528,54 @@ public class RestRouteBuilder extends RouteBuilder {
         }
         else {
             p.getMessage().setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_XML);
+            writeSiri(response, siri21Version, false, out.getOutputStream());
+        }
+    }
+
+    protected static boolean isSiri21Requested(Exchange p) {
+        return "2.1".equals(p.getIn().getHeader(SIRI_VERSION_HEADER_NAME));
+    }
+
+    protected static boolean isJsonRequested(Exchange p) {
+        return MediaType.APPLICATION_JSON.equals(p.getIn().getHeader(HttpHeaders.CONTENT_TYPE)) |
+            MediaType.APPLICATION_JSON.equals(p.getIn().getHeader(HttpHeaders.ACCEPT));
+    }
+
+    protected static boolean isAvroRequested(Exchange p) {
+        return "application/avro".equals(p.getIn().getHeader(HttpHeaders.CONTENT_TYPE)) |
+                "application/avro".equals(p.getIn().getHeader(HttpHeaders.ACCEPT));
+    }
+
+    protected static boolean isAvroJsonRequested(Exchange p) {
+        return "application/avro+json".equals(p.getIn().getHeader(HttpHeaders.CONTENT_TYPE)) |
+                "application/avro+json".equals(p.getIn().getHeader(HttpHeaders.ACCEPT));
+    }
+
+    protected static boolean isXmlRequested(Exchange p) {
+        return !isJsonRequested(p) && !isAvroRequested(p) && !isAvroJsonRequested(p);
+    }
+
+    /**
+     * Writes response as XML or JSON in the requested SIRI-version - SIRI 2.0 is downgraded before it is written
+     */
+    public static void writeSiri(Siri response, boolean siri21Version, boolean json, OutputStream out) throws JAXBException, XMLStreamException, IOException {
+        if (json) {
+            if (siri21Version) {
+                SiriJson.toJson(response, out);
+            } else {
+                org.rutebanken.siri20.util.SiriJson.toJson(
+                        downgradeSiriVersion(response),
+                        out
+                );
+            }
+        } else {
             if (siri21Version) {
-                SiriXml.toXml(response, null, out.getOutputStream());
+                SiriXml.toXml(response, null, out);
             } else {
                 org.rutebanken.siri20.util.SiriXml.toXml(
                         downgradeSiriVersion(response),
                         null,
-                        out.getOutputStream()
+                        out
                 );
             }
         }
@@ -24,6 +24,7 @@ import no.rutebanken.anshar.subscription.SiriDataType;
 import no.rutebanken.anshar.subscription.SubscriptionManager;
 import no.rutebanken.anshar.subscription.SubscriptionSetup;
 import org.apache.camel.CamelContext;
+import org.apache.camel.Route;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -208,18 +209,33 @@ public class AdminRouteHelper implements ApplicationListener<ContextClosedEvent>
     }
 
     public void stopConsumerRoutes() {
-        for (String routeId : PUBSUB_CONSUMER_ROUTE_IDS) {
+        for (Route route : camelContext.getRoutes()) {
+            String routeId = route.getRouteId();
+            if (!isConsumerRoute(routeId)) {
+                continue;
+            }
             try {
-                if (camelContext.getRoute(routeId) != null) {
-                    camelContext.getRouteController().stopRoute(routeId, 10, TimeUnit.SECONDS);
-                    logger.info("Stopped Pub/Sub consumer route: {}", routeId);
-                }
+                camelContext.getRouteController().stopRoute(routeId, 10, TimeUnit.SECONDS);
+                logger.info("Stopped Pub/Sub consumer route: {}", routeId);
             } catch (Exception e) {
                 logger.warn("Failed to stop route {}: {}", routeId, e.getMessage());
             }
         }
     }
 
+    /**
+     * @return true for Pub/Sub consumer routes - including the additional consumers started by adaptive concurrency,
+     * with ids suffixed with a number
+     */
+    private static boolean isConsumerRoute(String routeId) {
+        for (String consumerRouteId : PUBSUB_CONSUMER_ROUTE_IDS) {
+            if (routeId.equals(consumerRouteId) || routeId.startsWith(consumerRouteId + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public Map<String, String> getAllLocks() {
         final String lockMap = "ansharRouteLockMap";
         return hazelcastService.getHazelcastInstance().getMap(lockMap);
@@ -15,6 +15,7 @@
 package no.rutebanken.anshar.routes.kafka;
 
 import no.rutebanken.anshar.config.AnsharConfiguration;
+import no.rutebanken.anshar.routes.messaging.SiriXmlSplitter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
@@ -54,8 +55,7 @@ public class KafkaEnrichmentRoute extends KafkaConfig {
                     .to("log:kafka-producer:" + getClass().getSimpleName() + "?showAll=true&multiline=true")
                     .setHeader("topic", simple(kafkaEnrichEtTopic))
                     .removeHeader(INTERNAL_PUBLISH_TO_KAFKA_FOR_APC_ENRICHMENT)
-                    .to("xslt-saxon:xsl/split.xsl")
-                    .split().tokenizeXML("Siri").streaming()
+                    .split(method(SiriXmlSplitter.ALL, "splitBody")).streaming()
                     .to(kafkaProducerConfig)
                     .routeId("anshar.enrich.siri.et.kafka.producer")
             ;
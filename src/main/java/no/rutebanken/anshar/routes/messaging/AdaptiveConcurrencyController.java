@@ -0,0 +1,190 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.messaging;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the number of messages processed concurrently from a queue, and adjusts the limit between the configured
+ * bounds based on backlog and processing latency:
+ * <ul>
+ *     <li>Latency above target - processing is saturated, limit is reduced</li>
+ *     <li>Backlog and latency below target - limit is increased by one</li>
+ *     <li>No backlog and idle workers - limit is reduced by one</li>
+ * </ul>
+ *
+ * The limit is not enforced by the controller - the number of running consumers is adjusted to the limit, and each
+ * message is registered with {@link #begin()} without waiting, so messages are never held while waiting for a permit.
+ * Backlog is read from the queue-depth supplier.
+ */
+public class AdaptiveConcurrencyController {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyController.class);
+
+    public enum Decision {INCREASE, DECREASE, HOLD}
+
+    private final String name;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final long targetLatencyNanos;
+
+    /**
+     * Number of messages waiting to be processed
+     */
+    private final LongSupplier queueDepth;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private int limit;
+    private int inFlight;
+
+    // Statistics since last adjustment
+    private long completed;
+    private long totalLatencyNanos;
+    private long maxQueueDepth;
+    private int maxInFlight;
+
+    private volatile double lastLatencyMillis;
+    private volatile Decision lastDecision = Decision.HOLD;
+
+    public AdaptiveConcurrencyController(String name, int minConcurrency, int initialConcurrency, int maxConcurrency,
+                                         long targetLatencyMillis, LongSupplier queueDepth) {
+        if (minConcurrency < 1 || maxConcurrency < minConcurrency) {
+            throw new IllegalArgumentException("Invalid bounds [" + minConcurrency + ", " + maxConcurrency + "]");
+        }
+        this.name = name;
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.queueDepth = Objects.requireNonNull(queueDepth, "queueDepth");
+        this.limit = Math.max(minConcurrency, Math.min(maxConcurrency, initialConcurrency));
+    }
+
+    /**
+     * Registers a message that is processed - consumers are started and stopped to follow the limit
+     *
+     * @return Start time that must be passed to {@link #release(long)}
+     */
+    public long begin() {
+        lock.lock();
+        try {
+            inFlight++;
+            maxInFlight = Math.max(maxInFlight, inFlight);
+            maxQueueDepth = Math.max(maxQueueDepth, queueDepth.getAsLong());
+        } finally {
+            lock.unlock();
+        }
+        return System.nanoTime();
+    }
+
+    public void release(long startNanos) {
+        long latency = System.nanoTime() - startNanos;
+        lock.lock();
+        try {
+            inFlight--;
+            completed++;
+            totalLatencyNanos += latency;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Evaluates statistics since previous call, and adjusts the limit - called periodically
+     */
+    public Decision adjust() {
+        lock.lock();
+        try {
+            long backlog = Math.max(maxQueueDepth, queueDepth.getAsLong());
+            double avgLatencyNanos = completed > 0 ? (double) totalLatencyNanos / completed : 0;
+
+            int previousLimit = limit;
+            Decision decision = Decision.HOLD;
+            if (completed > 0 && avgLatencyNanos > targetLatencyNanos) {
+                if (limit > minConcurrency) {
+                    // Multiplicative decrease - more workers only adds to the latency
+                    limit = Math.max(minConcurrency, Math.min(limit - 1, (limit * 3) / 4));
+                    decision = Decision.DECREASE;
+                }
+            } else if (backlog > 0) {
+                if (limit < maxConcurrency) {
+                    limit++;
+                    decision = Decision.INCREASE;
+                }
+            } else if (maxInFlight < limit && limit > minConcurrency) {
+                // Idle workers
+                limit--;
+                decision = Decision.DECREASE;
+            }
+
+            if (decision != Decision.HOLD) {
+                logger.info("Concurrency for {}: {} -> {} (backlog {}, avg latency {} ms)", name, previousLimit, limit,
+                        backlog, String.format("%.1f", avgLatencyNanos / 1_000_000));
+            }
+
+            lastLatencyMillis = avgLatencyNanos / 1_000_000;
+            lastDecision = decision;
+
+            completed = 0;
+            totalLatencyNanos = 0;
+            maxQueueDepth = 0;
+            maxInFlight = inFlight;
+
+            return decision;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public double getLastLatencyMillis() {
+        return lastLatencyMillis;
+    }
+
+    public Decision getLastDecision() {
+        return lastDecision;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.messaging;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Detects ServiceDeliveries that are identical to the previous delivery accepted for the same subscription - typically
+ * from polled RequestResponse-subscriptions where the producer has no new data.
+ *
+ * The fingerprint is calculated from the XML-content, ignoring header-fields that change for every response. SOAP-wrapped
+ * deliveries are fingerprinted from the SOAP Body, as they are received before SOAP is transformed to raw SIRI.
+ */
+@Service
+public class DuplicateDeliveryFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DuplicateDeliveryFilter.class);
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private static final String SIRI_NS = "http://www.siri.org.uk/siri";
+
+    private static final Set<String> SOAP_ENVELOPE_NS = Set.of("http://schemas.xmlsoap.org/soap/envelope/",
+            "http://www.w3.org/2003/05/soap-envelope");
+
+    /**
+     * SOAP-operations that are transformed to a ServiceDelivery - see siri_soap_raw.xsl
+     */
+    private static final Set<String> SOAP_DELIVERY_OPERATIONS = Set.of("NotifyEstimatedTimetable",
+            "NotifyVehicleMonitoring", "NotifySituationExchange", "GetEstimatedTimetableResponse",
+            "GetVehicleMonitoringResponse", "GetSituationExchangeResponse", "GetStopMonitoringResponse",
+            "SituationExchangeAnswer", "VehicleMonitoringAnswer", "DataSupplyResponse");
+
+    /**
+     * Header-fields in ServiceDelivery, *Delivery and SOAP ServiceDeliveryInfo that are ignored
+     */
+    private static final Set<String> VOLATILE_DELIVERY_FIELDS = Set.of("ResponseTimestamp", "ResponseMessageIdentifier",
+            "RequestMessageRef", "ValidUntil", "ShortestPossibleCycle");
+
+    /**
+     * Header-fields in version-frames that are ignored
+     */
+    private static final Set<String> VOLATILE_FRAME_FIELDS = Set.of("RecordedAtTime");
+
+    private static final XMLInputFactory xmlInputFactory = createInputFactory();
+
+    private final Map<String, AcceptedDelivery> lastAccepted = new ConcurrentHashMap<>();
+
+    @Autowired
+    private PrometheusMetricsService metrics;
+
+    /**
+     * Duplicates are processed anyway when the previous delivery was accepted longer ago than this
+     */
+    @Value("${anshar.ingest.duplicate.max.age.seconds:300}")
+    private long maxAgeSeconds;
+
+    public enum Result {NEW, DUPLICATE, EXPIRED}
+
+    private record AcceptedDelivery(HashCode fingerprint, Instant accepted) {}
+
+    /**
+     * Result of comparing a delivery with the previous delivery accepted for the subscription
+     */
+    public record CheckedDelivery(String subscriptionId, HashCode fingerprint, Result result) {
+        public boolean isDuplicate() {
+            return result == Result.DUPLICATE;
+        }
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        // Text is hashed per event - must not depend on buffering
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * Compares the delivery with the previous delivery accepted for the subscription - the delivery is not registered
+     * as accepted until {@link #markAccepted(CheckedDelivery)} is called.
+     */
+    public CheckedDelivery check(String subscriptionId, String xml) {
+        return check(subscriptionId, xml, Instant.now());
+    }
+
+    CheckedDelivery check(String subscriptionId, String xml, Instant now) {
+        if (subscriptionId == null || xml == null) {
+            return new CheckedDelivery(subscriptionId, null, Result.NEW);
+        }
+
+        HashCode fingerprint = fingerprint(xml);
+        if (fingerprint == null) {
+            // Not a ServiceDelivery, or not parseable - always processed
+            return new CheckedDelivery(subscriptionId, null, Result.NEW);
+        }
+
+        Result result;
+        AcceptedDelivery previous = lastAccepted.get(subscriptionId);
+        if (previous == null || !previous.fingerprint().equals(fingerprint)) {
+            result = Result.NEW;
+        } else if (previous.accepted().plusSeconds(maxAgeSeconds).isBefore(now)) {
+            result = Result.EXPIRED;
+        } else {
+            result = Result.DUPLICATE;
+        }
+
+        if (metrics != null) {
+            metrics.registerDeliveryFingerprint(subscriptionId, result);
+        }
+        return new CheckedDelivery(subscriptionId, fingerprint, result);
+    }
+
+    /**
+     * Registers the delivery as accepted - must only be called when the delivery has been processed successfully, so
+     * that a failed delivery is processed again when it is received again
+     */
+    public void markAccepted(CheckedDelivery delivery) {
+        markAccepted(delivery, Instant.now());
+    }
+
+    void markAccepted(CheckedDelivery delivery, Instant now) {
+        if (delivery == null || delivery.subscriptionId() == null || delivery.fingerprint() == null ||
+                delivery.isDuplicate()) {
+            return;
+        }
+        lastAccepted.put(delivery.subscriptionId(), new AcceptedDelivery(delivery.fingerprint(), now));
+    }
+
+    /**
+     * Calculates fingerprint of a ServiceDelivery
+     *
+     * @return null if the message is not a ServiceDelivery, or a SOAP-operation containing one
+     */
+    static HashCode fingerprint(String xml) {
+        try {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(new StringReader(xml));
+            try {
+                Hasher hasher = HASH_FUNCTION.newHasher();
+                Deque<String> path = new ArrayDeque<>();
+                int skipDepth = -1;
+                boolean serviceDelivery = false;
+                boolean soap = false;
+
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    switch (event) {
+                        case XMLStreamConstants.START_ELEMENT -> {
+                            String name = reader.getLocalName();
+                            String namespace = reader.getNamespaceURI();
+                            int depth = path.size();
+                            if (depth == 0) {
+                                soap = "Envelope".equals(name) && SOAP_ENVELOPE_NS.contains(namespace);
+                            } else if (soap && depth == 1) {
+                                if (!"Body".equals(name)) {
+                                    // SOAP Header
+                                    skipDepth = depth;
+                                }
+                            } else if (skipDepth < 0 && depth == (soap ? 2 : 1)) {
+                                boolean delivery = soap ? SOAP_DELIVERY_OPERATIONS.contains(name) :
+                                        SIRI_NS.equals(namespace) && "ServiceDelivery".equals(name);
+                                if (!delivery) {
+                                    return null;
+                                }
+                                serviceDelivery = true;
+                            }
+                            if (skipDepth < 0 && isVolatile(path.peek(), name)) {
+                                skipDepth = depth;
+                            }
+                            path.push(name);
+                            if (skipDepth < 0) {
+                                hasher.putByte((byte) event);
+                                putString(hasher, name);
+                                for (int i = 0; i < reader.getAttributeCount(); i++) {
+                                    putString(hasher, reader.getAttributeLocalName(i));
+                                    putString(hasher, reader.getAttributeValue(i));
+                                }
+                            }
+                        }
+                        case XMLStreamConstants.END_ELEMENT -> {
+                            path.pop();
+                            if (skipDepth < 0) {
+                                hasher.putByte((byte) event);
+                            } else if (path.size() == skipDepth) {
+                                skipDepth = -1;
+                            }
+                        }
+                        case XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA -> {
+                            if (skipDepth < 0 && !reader.isWhiteSpace()) {
+                                hasher.putByte((byte) XMLStreamConstants.CHARACTERS);
+                                putString(hasher, reader.getText());
+                            }
+                        }
+                        default -> {
+                            // Comments, processing instructions etc. are ignored
+                        }
+                    }
+                }
+                return serviceDelivery ? hasher.hash() : null;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            logger.debug("Unable to calculate fingerprint: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Strings are prefixed with their length, so that adjacent values can not be shifted into each other
+     */
+    private static void putString(Hasher hasher, String value) {
+        hasher.putInt(value.length());
+        hasher.putString(value, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isVolatile(String parent, String name) {
+        if (parent == null) {
+            return false;
+        }
+        if (parent.endsWith("Delivery") || "ServiceDeliveryInfo".equals(parent)) {
+            return VOLATILE_DELIVERY_FIELDS.contains(name);
+        }
+        if (parent.endsWith("VersionFrame")) {
+            return VOLATILE_FRAME_FIELDS.contains(name);
+        }
+        return false;
+    }
+}
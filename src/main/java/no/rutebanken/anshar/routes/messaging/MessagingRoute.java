@@ -20,6 +20,7 @@ import no.rutebanken.anshar.routes.CamelRouteNames;
 import no.rutebanken.anshar.routes.RestRouteBuilder;
 import no.rutebanken.anshar.routes.admin.AdminRouteHelper;
 import no.rutebanken.anshar.routes.siri.handlers.SiriHandler;
+import no.rutebanken.anshar.routes.siri.transformer.ParallelSiriTransformer;
 import no.rutebanken.anshar.routes.siri.transformer.SiriValueTransformer;
 import no.rutebanken.anshar.routes.validation.SiriXmlValidator;
 import no.rutebanken.anshar.subscription.SiriDataType;
@@ -29,15 +30,29 @@ import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.Predicate;
 import org.apache.camel.Processor;
+import org.apache.camel.ServiceStatus;
+import org.apache.camel.builder.PredicateBuilder;
 import org.apache.camel.component.google.pubsub.GooglePubsubConstants;
+import org.apache.camel.spi.RouteController;
 import org.apache.camel.util.CaseInsensitiveMap;
 import org.entur.siri21.util.SiriXml;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import uk.org.siri.siri21.Siri;
 
+import javax.annotation.PreDestroy;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static no.rutebanken.anshar.routes.HttpParameter.INTERNAL_PUBLISH_TO_KAFKA_FOR_APC_ENRICHMENT;
 import static no.rutebanken.anshar.routes.HttpParameter.INTERNAL_SIRI_DATA_TYPE;
@@ -67,6 +82,66 @@ public class MessagingRoute extends RestRouteBuilder {
     @Autowired
     private AdminRouteHelper adminRouteHelper;
 
+    /**
+     * When enabled, incoming XML is parsed once, and the parsed Siri-objects are split and put on the queue
+     * in binary form - instead of being serialized back to XML, and parsed again by the consumer.
+     *
+     * Consumers handle both formats, so all instances must be upgraded before this is enabled.
+     */
+    @Value("${anshar.feature.messaging.objectPipeline:false}")
+    private boolean FEATURE_TOGGLE_OBJECT_PIPELINE;
+
+    @Autowired
+    private DuplicateDeliveryFilter duplicateDeliveryFilter;
+
+    /**
+     * When enabled, ServiceDeliveries identical to the previous delivery for the same subscription are ignored
+     */
+    @Value("${anshar.feature.ingest.duplicate.filter:false}")
+    private boolean FEATURE_TOGGLE_DUPLICATE_DELIVERY_FILTER;
+
+    /**
+     * When enabled, the number of running consumers is adjusted between the configured bounds based on backlog and
+     * processing latency
+     */
+    @Value("${anshar.feature.incoming.adaptiveConcurrency:false}")
+    private boolean FEATURE_TOGGLE_ADAPTIVE_CONCURRENCY;
+
+    @Value("${anshar.incoming.adaptive.targetLatencyMillis:2000}")
+    private long adaptiveTargetLatencyMillis;
+
+    @Value("${anshar.incoming.adaptive.intervalSeconds:10}")
+    private int adaptiveIntervalSeconds;
+
+    @Autowired
+    private ParallelSiriTransformer parallelSiriTransformer;
+
+    /**
+     * When enabled, large ET-deliveries are split in chunks that are transformed in parallel
+     */
+    @Value("${anshar.feature.incoming.parallelTransform:false}")
+    private boolean FEATURE_TOGGLE_PARALLEL_TRANSFORM;
+
+    private static final String CONCURRENCY_PERMIT_PROPERTY = "anshar.concurrency.permit";
+
+    private static final String CHECKED_DELIVERY_PROPERTY = "anshar.checked.delivery";
+
+    /**
+     * Concurrency limit, and consumer routes started and stopped to follow it
+     */
+    private record AdaptiveConsumers(AdaptiveConcurrencyController controller, List<String> routeIds) {}
+
+    private final Map<SiriDataType, AdaptiveConsumers> adaptiveConsumers = new EnumMap<>(SiriDataType.class);
+
+    private ScheduledExecutorService concurrencyAdjustmentExecutor;
+
+    /**
+     * Consumers are stopped gracefully on separate threads, so the adjustment is not held while messages complete
+     */
+    private ExecutorService consumerStopExecutor;
+
+    private final Set<String> stoppingConsumers = ConcurrentHashMap.newKeySet();
+
     @Override
     public void configure() throws Exception {
 
@@ -80,11 +155,6 @@ public class MessagingRoute extends RestRouteBuilder {
 
         final boolean isPubsub = !messageQueueCamelRoutePrefix.startsWith("direct");
 
-        final String queueConsumerParametersEt = isPubsub ? "?concurrentConsumers=" + configuration.getConcurrentConsumersEt() : "";
-        final String queueConsumerParametersVm = isPubsub ? "?concurrentConsumers=" + configuration.getConcurrentConsumersVm() : "";
-        final String queueConsumerParametersSx = isPubsub ? "?concurrentConsumers=" + configuration.getConcurrentConsumersSx() : "";
-        final String queueConsumerParametersFm = isPubsub ? "?concurrentConsumers=" + configuration.getConcurrentConsumersFm() : "";
-
         // Processors that handles conversion between Camel headers and Google Pubsub Attributes
         Processor convertAttributesToHeaders = exchange ->  {
             exchange.getMessage().setHeaders(
@@ -101,6 +171,20 @@ public class MessagingRoute extends RestRouteBuilder {
             exchange.getMessage().setHeader(GooglePubsubConstants.ATTRIBUTES, pubsubAttributeMap);
         };
 
+        // Enrichment expects XML - also when data is processed as objects
+        Processor convertSiriToXml = exchange -> {
+            if (exchange.getIn().getBody() instanceof Siri siri) {
+                exchange.getIn().setBody(SiriXml.toXml(siri));
+            }
+        };
+
+        Predicate isSiriObject = body().isInstanceOf(Siri.class);
+
+        Predicate isDataReadyNotification = PredicateBuilder.or(
+                PredicateBuilder.and(isSiriObject, exchange -> exchange.getIn().getBody(Siri.class).getDataReadyNotification() != null),
+                PredicateBuilder.and(PredicateBuilder.not(isSiriObject), xpath("/siri:Siri/siri:DataReadyNotification", ns))
+        );
+
 
         from("direct:process.message.synchronous")
                 .convertBodyTo(String.class)
@@ -108,8 +192,31 @@ public class MessagingRoute extends RestRouteBuilder {
                 .to("direct:" + CamelRouteNames.PROCESSOR_QUEUE_DEFAULT)
         ;
 
+        Predicate isDuplicateDelivery = exchange -> {
+            if (!FEATURE_TOGGLE_DUPLICATE_DELIVERY_FILTER) {
+                return false;
+            }
+            DuplicateDeliveryFilter.CheckedDelivery delivery = duplicateDeliveryFilter.check(
+                    exchange.getIn().getHeader("subscriptionId", String.class), exchange.getIn().getBody(String.class));
+            exchange.setProperty(CHECKED_DELIVERY_PROPERTY, delivery);
+            return delivery.isDuplicate();
+        };
+
+        // Delivery is only registered as accepted when it has been queued - failed deliveries are processed when received again
+        Processor markDeliveryAccepted = exchange -> {
+            DuplicateDeliveryFilter.CheckedDelivery delivery = exchange.getProperty(CHECKED_DELIVERY_PROPERTY, DuplicateDeliveryFilter.CheckedDelivery.class);
+            if (delivery != null) {
+                duplicateDeliveryFilter.markAccepted(delivery);
+            }
+        };
+
         from("direct:enqueue.message")
                 .convertBodyTo(String.class)
+                .filter(isDuplicateDelivery)
+                    .log(LoggingLevel.DEBUG, "Delivery identical to previous delivery - ignored")
+                    .bean(subscriptionManager, "touchSubscription(${header.subscriptionId})")
+                    .stop()
+                .end()
                 .to("direct:transform.siri")
                 .choice()
                     .when(header(INTERNAL_SIRI_DATA_TYPE).isEqualTo(SiriDataType.ESTIMATED_TIMETABLE.name()))
@@ -127,7 +234,7 @@ public class MessagingRoute extends RestRouteBuilder {
                     .otherwise()
                         .choice()
                             // DataReadyNotification is processed immediately
-                            .when().xpath("/siri:Siri/siri:DataReadyNotification", ns)
+                            .when(isDataReadyNotification)
                                 .setHeader("target_topic", simple("direct:"+CamelRouteNames.FETCHED_DELIVERY_QUEUE))
                             .endChoice()
                             .otherwise()
@@ -143,6 +250,7 @@ public class MessagingRoute extends RestRouteBuilder {
                 .bean(subscriptionManager, "markSubscriptionActive(${header.subscriptionId})")
                 .process(convertHeadersToAttributes)
                 .to("direct:send.to.queue")
+                .process(markDeliveryAccepted)
                 .end()
                 .routeId("add.to.queue")
         ;
@@ -155,12 +263,20 @@ public class MessagingRoute extends RestRouteBuilder {
                         .when(header(INTERNAL_PUBLISH_TO_KAFKA_FOR_APC_ENRICHMENT).isEqualTo(Boolean.TRUE))
                         .removeHeader(INTERNAL_PUBLISH_TO_KAFKA_FOR_APC_ENRICHMENT)
                         .log("Sending data to enrichment topic")
+                        .process(convertSiriToXml)
                         .to("direct:anshar.enrich.siri.et")
                     .endChoice()
+                    .when(isSiriObject)
+                        .log("Sending split objects to topic ${header.target_topic}")
+                        .process(p -> p.getMessage().setBody(SiriObjectSplitter.split(p.getIn().getBody(Siri.class))))
+                        .split(body())
+                            .to("direct:compress.siri")
+                            .toD("${header.target_topic}")
+                        .end()
+                    .endChoice()
                     .otherwise()
                         .log("Sending split data to topic ${header.target_topic}")
-                        .to("xslt-saxon:xsl/split.xsl")
-                        .split().tokenizeXML("Siri").streaming()
+                        .split(method(SiriXmlSplitter.ALL, "splitBody")).streaming()
                         .to("direct:compress.jaxb")
                         .toD("${header.target_topic}")
                     .end()
@@ -173,7 +289,12 @@ public class MessagingRoute extends RestRouteBuilder {
                     .when(header(INTERNAL_PUBLISH_TO_KAFKA_FOR_APC_ENRICHMENT).isEqualTo(Boolean.TRUE))
                         .removeHeader(INTERNAL_PUBLISH_TO_KAFKA_FOR_APC_ENRICHMENT)
                         .log("Sending data to enrichment topic")
+                        .process(convertSiriToXml)
                         .to("direct:anshar.enrich.siri.et")
+                    .when(isSiriObject)
+                        .log("Sending objects to topic ${header.target_topic}")
+                        .to("direct:compress.siri")
+                        .toD("${header.target_topic}")
                     .otherwise()
                         .log("Sending data to topic ${header.target_topic}")
                         .to("direct:compress.jaxb")
@@ -219,10 +340,19 @@ public class MessagingRoute extends RestRouteBuilder {
                     SubscriptionSetup subscriptionSetup = subscriptionManager.get(p.getIn().getHeader("subscriptionId", String.class));
                     Siri originalInput = siriXmlValidator.parseXml(subscriptionSetup, p.getIn().getBody(String.class));
 
-                    Siri incoming = SiriValueTransformer.transform(originalInput, subscriptionSetup.getMappingAdapters(), false, true);
+                    Siri incoming;
+                    if (FEATURE_TOGGLE_PARALLEL_TRANSFORM) {
+                        incoming = parallelSiriTransformer.transform(originalInput, subscriptionSetup.getMappingAdapters(), false, true);
+                    } else {
+                        incoming = SiriValueTransformer.transform(originalInput, subscriptionSetup.getMappingAdapters(), false, true);
+                    }
 
                     p.getMessage().setHeaders(p.getIn().getHeaders());
-                    p.getMessage().setBody(SiriXml.toXml(incoming));
+                    if (FEATURE_TOGGLE_OBJECT_PIPELINE) {
+                        p.getMessage().setBody(incoming);
+                    } else {
+                        p.getMessage().setBody(SiriXml.toXml(incoming));
+                    }
                 })
                 .to("direct:clear.mdc.subscriptionId")
         ;
@@ -236,73 +366,27 @@ public class MessagingRoute extends RestRouteBuilder {
         Predicate readFromPubsub = exchange -> adminRouteHelper.isNotShuttingDown();
 
         if (configuration.processSX()) {
-            from(pubsubQueueSX + queueConsumerParametersSx)
-                    .process(convertAttributesToHeaders)
-                    .to("direct:set.mdc.subscriptionId")
-                    .choice()
-                        .when(readFromPubsub)
-                            .log(LoggingLevel.DEBUG, "Processing data from " + pubsubQueueSX)
-                            .to("direct:decompress.jaxb")
-                            .to("direct:" + CamelRouteNames.PROCESSOR_QUEUE_DEFAULT)
-                        .otherwise()
-                            .throwException(RuntimeException.class, "Pod shutting down - NACKing message for redelivery to remaining pods")
-                    .endChoice()
-                    .to("direct:clear.mdc.subscriptionId")
-                    .routeId("incoming.transform.sx")
-            ;
+            createConsumerRoutes(SiriDataType.SITUATION_EXCHANGE, pubsubQueueSX, isPubsub, configuration.getConcurrentConsumersSx(),
+                    configuration.getConcurrentConsumersSxMax(), "incoming.transform.sx", readFromPubsub, convertAttributesToHeaders);
         }
 
         if (configuration.processVM()) {
-            from(pubsubQueueVM + queueConsumerParametersVm)
-                    .process(convertAttributesToHeaders)
-                    .to("direct:set.mdc.subscriptionId")
-                    .choice()
-                        .when(readFromPubsub)
-                            .log(LoggingLevel.DEBUG, "Processing data from " + pubsubQueueVM)
-                            .to("direct:decompress.jaxb")
-                            .to("direct:" + CamelRouteNames.PROCESSOR_QUEUE_DEFAULT)
-                        .otherwise()
-                            .throwException(RuntimeException.class, "Pod shutting down - NACKing message for redelivery to remaining pods")
-                    .endChoice()
-                    .to("direct:clear.mdc.subscriptionId")
-                    .routeId("incoming.transform.vm")
-            ;
+            createConsumerRoutes(SiriDataType.VEHICLE_MONITORING, pubsubQueueVM, isPubsub, configuration.getConcurrentConsumersVm(),
+                    configuration.getConcurrentConsumersVmMax(), "incoming.transform.vm", readFromPubsub, convertAttributesToHeaders);
         }
 
         if (configuration.processET()) {
-            from(pubsubQueueET + queueConsumerParametersEt)
-                    .process(convertAttributesToHeaders)
-                    .to("direct:set.mdc.subscriptionId")
-                    .choice()
-                        .when(readFromPubsub)
-                            .log(LoggingLevel.DEBUG, "Processing data from " + pubsubQueueET)
-                            .to("direct:decompress.jaxb")
-                            .to("direct:" + CamelRouteNames.PROCESSOR_QUEUE_DEFAULT)
-                        .otherwise()
-                            .throwException(RuntimeException.class, "Pod shutting down - NACKing message for redelivery to remaining pods")
-                    .endChoice()
-                    .to("direct:clear.mdc.subscriptionId")
-                    .routeId("incoming.transform.et")
-            ;
+            createConsumerRoutes(SiriDataType.ESTIMATED_TIMETABLE, pubsubQueueET, isPubsub, configuration.getConcurrentConsumersEt(),
+                    configuration.getConcurrentConsumersEtMax(), "incoming.transform.et", readFromPubsub, convertAttributesToHeaders);
         }
 
         if (configuration.processFM()) {
-            from(pubsubQueueFM + queueConsumerParametersFm)
-                    .process(convertAttributesToHeaders)
-                    .to("direct:set.mdc.subscriptionId")
-                    .choice()
-                        .when(readFromPubsub)
-                            .log(LoggingLevel.DEBUG, "Processing data from " + pubsubQueueFM)
-                            .to("direct:decompress.jaxb")
-                            .to("direct:" + CamelRouteNames.PROCESSOR_QUEUE_DEFAULT)
-                        .otherwise()
-                            .throwException(RuntimeException.class, "Pod shutting down - NACKing message for redelivery to remaining pods")
-                    .endChoice()
-                    .to("direct:clear.mdc.subscriptionId")
-                    .routeId("incoming.transform.fm")
-            ;
+            createConsumerRoutes(SiriDataType.FACILITY_MONITORING, pubsubQueueFM, isPubsub, configuration.getConcurrentConsumersFm(),
+                    configuration.getConcurrentConsumersFmMax(), "incoming.transform.fm", readFromPubsub, convertAttributesToHeaders);
         }
 
+        startConcurrencyAdjustment();
+
         from("direct:" + CamelRouteNames.PROCESSOR_QUEUE_DEFAULT)
                 .to("direct:set.mdc.subscriptionId")
                 .process(p -> {
@@ -310,10 +394,17 @@ public class MessagingRoute extends RestRouteBuilder {
                     String subscriptionId = p.getIn().getHeader("subscriptionId", String.class);
                     String datasetId = null;
 
-                    InputStream xml = p.getIn().getBody(InputStream.class);
                     String useOriginalId = p.getIn().getHeader(PARAM_USE_ORIGINAL_ID, String.class);
                     String clientTrackingName = p.getIn().getHeader(configuration.getTrackingHeaderName(), String.class);
 
+                    if (p.getIn().getBody() instanceof Siri siri) {
+                        // Already parsed
+                        handler.handleIncomingSiri(subscriptionId, siri, datasetId, SiriHandler.getIdMappingPolicy(useOriginalId), -1, clientTrackingName);
+                        return;
+                    }
+
+                    InputStream xml = p.getIn().getBody(InputStream.class);
+
                     handler.handleIncomingSiri(subscriptionId, xml, datasetId, SiriHandler.getIdMappingPolicy(useOriginalId), -1, clientTrackingName);
 
                 })
@@ -347,6 +438,159 @@ public class MessagingRoute extends RestRouteBuilder {
         ;
     }
 
+    /**
+     * Creates the route consuming data of the given type from the queue.
+     *
+     * With adaptive concurrency, one single-consumer route is created per worker up to the max, and consumers are
+     * started and stopped to follow the limit - messages are never held unacked while waiting for a permit. The first
+     * route keeps the original route id, as there is always at least one consumer running.
+     */
+    private void createConsumerRoutes(SiriDataType dataType, String queue, boolean isPubsub, long concurrentConsumers,
+                                      int maxConcurrentConsumers, String routeId, Predicate readFromPubsub,
+                                      Processor convertAttributesToHeaders) {
+        if (!FEATURE_TOGGLE_ADAPTIVE_CONCURRENCY || !isPubsub) {
+            String consumerParameters = isPubsub ? "?concurrentConsumers=" + concurrentConsumers : "";
+            createConsumerRoute(queue, consumerParameters, "direct:" + CamelRouteNames.PROCESSOR_QUEUE_DEFAULT,
+                    routeId, true, readFromPubsub, convertAttributesToHeaders);
+            return;
+        }
+
+        int maxConsumers = Math.max((int) concurrentConsumers, maxConcurrentConsumers);
+        List<String> consumerRouteIds = new ArrayList<>();
+        for (int i = 1; i <= maxConsumers; i++) {
+            consumerRouteIds.add(i == 1 ? routeId : routeId + "." + i);
+        }
+
+        String processorRouteId = "incoming.processor.adaptive." + dataType.name().toLowerCase();
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(dataType.name(),
+                configuration.getConcurrentConsumersMin(), (int) concurrentConsumers, maxConsumers,
+                adaptiveTargetLatencyMillis, () -> getSaturationBacklog(processorRouteId, consumerRouteIds));
+        metrics.gaugeConcurrencyController(dataType, controller);
+
+        String processor = "direct:" + processorRouteId;
+        from(processor)
+                .process(p -> p.setProperty(CONCURRENCY_PERMIT_PROPERTY, controller.begin()))
+                .doTry()
+                    .to("direct:" + CamelRouteNames.PROCESSOR_QUEUE_DEFAULT)
+                .doFinally()
+                    .process(p -> controller.release(p.getProperty(CONCURRENCY_PERMIT_PROPERTY, Long.class)))
+                .end()
+                .routeId(processorRouteId)
+        ;
+
+        for (int i = 0; i < consumerRouteIds.size(); i++) {
+            createConsumerRoute(queue, "?concurrentConsumers=1", processor, consumerRouteIds.get(i), i < controller.getLimit(),
+                    readFromPubsub, convertAttributesToHeaders);
+        }
+        adaptiveConsumers.put(dataType, new AdaptiveConsumers(controller, consumerRouteIds));
+    }
+
+    /**
+     * Queue depth is not available for the subscription - all running consumers being busy is counted as backlog
+     */
+    private long getSaturationBacklog(String processorRouteId, List<String> consumerRouteIds) {
+        RouteController routeController = getContext().getRouteController();
+        long running = consumerRouteIds.stream()
+                .map(routeController::getRouteStatus)
+                .filter(ServiceStatus.Started::equals)
+                .count();
+        return getContext().getInflightRepository().size(processorRouteId) >= running ? 1 : 0;
+    }
+
+    private void createConsumerRoute(String queue, String consumerParameters, String processor, String routeId,
+                                     boolean autoStartup, Predicate readFromPubsub, Processor convertAttributesToHeaders) {
+        from(queue + consumerParameters)
+                .autoStartup(autoStartup)
+                .process(convertAttributesToHeaders)
+                .to("direct:set.mdc.subscriptionId")
+                .choice()
+                    .when(readFromPubsub)
+                        .log(LoggingLevel.DEBUG, "Processing data from " + queue)
+                        .to("direct:decompress.jaxb")
+                        .to(processor)
+                    .otherwise()
+                        .throwException(RuntimeException.class, "Pod shutting down - NACKing message for redelivery to remaining pods")
+                .endChoice()
+                .to("direct:clear.mdc.subscriptionId")
+                .routeId(routeId)
+        ;
+    }
+
+    private void startConcurrencyAdjustment() {
+        if (adaptiveConsumers.isEmpty()) {
+            return;
+        }
+        concurrencyAdjustmentExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "adaptive-concurrency");
+            t.setDaemon(true);
+            return t;
+        });
+        consumerStopExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "adaptive-concurrency-stop");
+            t.setDaemon(true);
+            return t;
+        });
+        concurrencyAdjustmentExecutor.scheduleAtFixedRate(() -> {
+            for (Map.Entry<SiriDataType, AdaptiveConsumers> entry : adaptiveConsumers.entrySet()) {
+                try {
+                    metrics.registerConcurrencyDecision(entry.getKey(), entry.getValue().controller().adjust());
+                    updateRunningConsumers(entry.getValue());
+                } catch (Exception e) {
+                    log.warn("Adjusting concurrency for {} failed", entry.getKey(), e);
+                }
+            }
+        }, adaptiveIntervalSeconds, adaptiveIntervalSeconds, TimeUnit.SECONDS);
+
+        log.info("Adaptive concurrency enabled for {}", adaptiveConsumers.keySet());
+    }
+
+    /**
+     * Starts or stops consumer routes so that the number of running consumers matches the current limit
+     */
+    private void updateRunningConsumers(AdaptiveConsumers consumers) throws Exception {
+        if (!adminRouteHelper.isNotShuttingDown()) {
+            return;
+        }
+        final int limit = consumers.controller().getLimit();
+        final RouteController routeController = getContext().getRouteController();
+        for (int i = 0; i < consumers.routeIds().size(); i++) {
+            String routeId = consumers.routeIds().get(i);
+            ServiceStatus status = routeController.getRouteStatus(routeId);
+            if (status == null) {
+                continue;
+            }
+            if (i < limit && status.isStartable() && !stoppingConsumers.contains(routeId)) {
+                routeController.startRoute(routeId);
+            } else if (i >= limit && status.isStoppable() && stoppingConsumers.add(routeId)) {
+                stopConsumer(routeController, routeId);
+            }
+        }
+    }
+
+    /**
+     * Messages being processed by the consumer are completed before it is stopped - the stop is not waited for
+     */
+    private void stopConsumer(RouteController routeController, String routeId) {
+        consumerStopExecutor.execute(() -> {
+            try {
+                routeController.stopRoute(routeId, 30, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                log.warn("Stopping consumer {} failed", routeId, e);
+            } finally {
+                stoppingConsumers.remove(routeId);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void stopConcurrencyAdjustment() {
+        if (concurrencyAdjustmentExecutor != null) {
+            concurrencyAdjustmentExecutor.shutdownNow();
+        }
+        if (consumerStopExecutor != null) {
+            consumerStopExecutor.shutdownNow();
+        }
+    }
 
     private Boolean enrichSiriData(Exchange e) {
         String subscriptionId = e.getIn().getHeader(PARAM_SUBSCRIPTION_ID, String.class);
@@ -0,0 +1,140 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.messaging;
+
+import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.EstimatedVersionFrameStructure;
+import uk.org.siri.siri21.FacilityConditionStructure;
+import uk.org.siri.siri21.FacilityMonitoringDeliveryStructure;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.ServiceDelivery;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.SituationExchangeDeliveryStructure;
+import uk.org.siri.siri21.VehicleActivityStructure;
+import uk.org.siri.siri21.VehicleMonitoringDeliveryStructure;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a parsed ServiceDelivery into one Siri-object per EstimatedVehicleJourney, VehicleActivity,
+ * PtSituationElement and FacilityCondition - the object-equivalent of xsl/split.xsl.
+ *
+ * Elements are not copied, so the split objects share elements with the original delivery.
+ */
+public class SiriObjectSplitter {
+
+    private SiriObjectSplitter() {
+    }
+
+    /**
+     * @param siri Parsed SIRI-data
+     * @return One Siri-object per element - messages without ServiceDelivery are returned unchanged
+     */
+    public static List<Siri> split(Siri siri) {
+        List<Siri> result = new ArrayList<>();
+        if (siri == null) {
+            return result;
+        }
+
+        ServiceDelivery serviceDelivery = siri.getServiceDelivery();
+        if (serviceDelivery == null) {
+            result.add(siri);
+            return result;
+        }
+
+        for (EstimatedTimetableDeliveryStructure delivery : serviceDelivery.getEstimatedTimetableDeliveries()) {
+            for (EstimatedVersionFrameStructure frame : delivery.getEstimatedJourneyVersionFrames()) {
+                for (EstimatedVehicleJourney journey : frame.getEstimatedVehicleJourneies()) {
+                    EstimatedVersionFrameStructure splitFrame = new EstimatedVersionFrameStructure();
+                    splitFrame.setRecordedAtTime(frame.getRecordedAtTime());
+                    splitFrame.getEstimatedVehicleJourneies().add(journey);
+
+                    EstimatedTimetableDeliveryStructure splitDelivery = new EstimatedTimetableDeliveryStructure();
+                    splitDelivery.setVersion(delivery.getVersion());
+                    splitDelivery.setResponseTimestamp(delivery.getResponseTimestamp());
+                    splitDelivery.getEstimatedJourneyVersionFrames().add(splitFrame);
+
+                    ServiceDelivery split = createServiceDelivery(serviceDelivery);
+                    split.getEstimatedTimetableDeliveries().add(splitDelivery);
+                    result.add(createSiri(siri, split));
+                }
+            }
+        }
+
+        for (VehicleMonitoringDeliveryStructure delivery : serviceDelivery.getVehicleMonitoringDeliveries()) {
+            for (VehicleActivityStructure vehicleActivity : delivery.getVehicleActivities()) {
+                VehicleMonitoringDeliveryStructure splitDelivery = new VehicleMonitoringDeliveryStructure();
+                splitDelivery.setVersion(delivery.getVersion());
+                splitDelivery.setResponseTimestamp(delivery.getResponseTimestamp());
+                splitDelivery.getVehicleActivities().add(vehicleActivity);
+
+                ServiceDelivery split = createServiceDelivery(serviceDelivery);
+                split.getVehicleMonitoringDeliveries().add(splitDelivery);
+                result.add(createSiri(siri, split));
+            }
+        }
+
+        for (SituationExchangeDeliveryStructure delivery : serviceDelivery.getSituationExchangeDeliveries()) {
+            if (delivery.getSituations() == null) {
+                continue;
+            }
+            for (PtSituationElement situation : delivery.getSituations().getPtSituationElements()) {
+                SituationExchangeDeliveryStructure.Situations situations = new SituationExchangeDeliveryStructure.Situations();
+                situations.getPtSituationElements().add(situation);
+
+                SituationExchangeDeliveryStructure splitDelivery = new SituationExchangeDeliveryStructure();
+                splitDelivery.setVersion(delivery.getVersion());
+                splitDelivery.setResponseTimestamp(delivery.getResponseTimestamp());
+                splitDelivery.setSituations(situations);
+
+                ServiceDelivery split = createServiceDelivery(serviceDelivery);
+                split.getSituationExchangeDeliveries().add(splitDelivery);
+                result.add(createSiri(siri, split));
+            }
+        }
+
+        for (FacilityMonitoringDeliveryStructure delivery : serviceDelivery.getFacilityMonitoringDeliveries()) {
+            for (FacilityConditionStructure facilityCondition : delivery.getFacilityConditions()) {
+                FacilityMonitoringDeliveryStructure splitDelivery = new FacilityMonitoringDeliveryStructure();
+                splitDelivery.setVersion(delivery.getVersion());
+                splitDelivery.setResponseTimestamp(delivery.getResponseTimestamp());
+                splitDelivery.setStatus(delivery.isStatus());
+                splitDelivery.getFacilityConditions().add(facilityCondition);
+
+                ServiceDelivery split = createServiceDelivery(serviceDelivery);
+                split.getFacilityMonitoringDeliveries().add(splitDelivery);
+                result.add(createSiri(siri, split));
+            }
+        }
+
+        return result;
+    }
+
+    private static ServiceDelivery createServiceDelivery(ServiceDelivery original) {
+        ServiceDelivery serviceDelivery = new ServiceDelivery();
+        serviceDelivery.setResponseTimestamp(original.getResponseTimestamp());
+        serviceDelivery.setProducerRef(original.getProducerRef());
+        return serviceDelivery;
+    }
+
+    private static Siri createSiri(Siri original, ServiceDelivery serviceDelivery) {
+        Siri siri = new Siri();
+        siri.setVersion(original.getVersion());
+        siri.setServiceDelivery(serviceDelivery);
+        return siri;
+    }
+}
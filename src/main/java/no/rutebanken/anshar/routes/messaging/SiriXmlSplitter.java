@@ -0,0 +1,423 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.messaging;
+
+import jakarta.xml.bind.JAXBException;
+import org.apache.camel.Exchange;
+import org.apache.camel.InvalidPayloadException;
+import org.entur.siri21.util.SiriXml;
+import uk.org.siri.siri21.Siri;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Streaming replacement for xsl/split.xsl followed by tokenizeXML("Siri").
+ *
+ * Reads the delivery with StAX, and creates one self-contained Siri-document per delivered element - keeping the
+ * ServiceDelivery- and delivery-headers. Only the element currently being split is kept in memory, so memory used
+ * does not depend on the size of the delivery.
+ *
+ * Headers are taken from the delivery/frame containing the element - this is identical to the XSLT as long as each
+ * ServiceDelivery only contains one delivery, and each delivery one frame.
+ *
+ * Usage: <code>.split(method(SiriXmlSplitter.ALL, "splitBody")).streaming()</code>
+ */
+public class SiriXmlSplitter {
+
+    /**
+     * Same as xsl/split.xsl
+     */
+    public static final SiriXmlSplitter ALL = new SiriXmlSplitter();
+
+    private static final String SIRI_NS = "http://www.siri.org.uk/siri";
+
+    private static final String SIRI_START = "<Siri xmlns=\"" + SIRI_NS + "\" version=\"2.0\">";
+
+    private static final XMLInputFactory xmlInputFactory = createInputFactory();
+
+    private SiriXmlSplitter() {
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * Splits message body - Siri-objects are serialized to XML first
+     */
+    public Iterator<String> splitBody(Exchange exchange) throws XMLStreamException, JAXBException, InvalidPayloadException {
+        Object body = exchange.getIn().getBody();
+        if (body instanceof Siri siri) {
+            return split(new StringReader(SiriXml.toXml(siri)));
+        }
+        if (body instanceof String xml) {
+            return split(new StringReader(xml));
+        }
+        return split(exchange.getIn().getMandatoryBody(InputStream.class));
+    }
+
+    public Iterator<String> split(InputStream xml) throws XMLStreamException {
+        return new SplitIterator(xmlInputFactory.createXMLStreamReader(xml));
+    }
+
+    public Iterator<String> split(Reader xml) throws XMLStreamException {
+        return new SplitIterator(xmlInputFactory.createXMLStreamReader(xml));
+    }
+
+    private static class SplitIterator implements Iterator<String>, Closeable {
+
+        private final XMLStreamReader reader;
+
+        // Local names of the current path - elements outside the SIRI-namespace are stored as null
+        private final List<String> path = new ArrayList<>();
+
+        // Namespaces declared by each element in the current path
+        private final Deque<Map<String, String>> namespaces = new ArrayDeque<>();
+
+        private final StringBuilder serviceDeliveryHeader = new StringBuilder();
+        private final StringBuilder deliveryResponseTimestamp = new StringBuilder();
+        private final StringBuilder deliveryStatus = new StringBuilder();
+        private final StringBuilder frameRecordedAtTime = new StringBuilder();
+
+        private String next;
+        private boolean done;
+
+        SplitIterator(XMLStreamReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    next = advance();
+                } catch (XMLStreamException e) {
+                    close();
+                    throw new IllegalArgumentException("Unable to split SIRI-data", e);
+                }
+                if (next == null) {
+                    close();
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void close() {
+            if (!done) {
+                done = true;
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        private String advance() throws XMLStreamException {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String message = startElement();
+                    if (message != null) {
+                        return message;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    path.remove(path.size() - 1);
+                    namespaces.removeLast();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Handles element at current position - elements that are copied are consumed completely, all others are
+         * added to the current path.
+         *
+         * @return Split message, or null if no message is created
+         */
+        private String startElement() throws XMLStreamException {
+            String name = SIRI_NS.equals(reader.getNamespaceURI()) ? reader.getLocalName() : null;
+
+            if (name != null) {
+                switch (path.size()) {
+                    case 1:
+                        if (isPath("Siri") && name.equals("ServiceDelivery")) {
+                            serviceDeliveryHeader.setLength(0);
+                        }
+                        break;
+                    case 2:
+                        if (isPath("Siri", "ServiceDelivery")) {
+                            if (name.equals("ResponseTimestamp") || name.equals("ProducerRef")) {
+                                serviceDeliveryHeader.append(copy());
+                                return null;
+                            } else if (name.endsWith("Delivery")) {
+                                deliveryResponseTimestamp.setLength(0);
+                                deliveryStatus.setLength(0);
+                            }
+                        }
+                        break;
+                    case 3:
+                        if (isDelivery()) {
+                            return handleDeliveryElement(name);
+                        }
+                        break;
+                    case 4:
+                        if (isPath("Siri", "ServiceDelivery", "EstimatedTimetableDelivery", "EstimatedJourneyVersionFrame")) {
+                            if (name.equals("RecordedAtTime")) {
+                                frameRecordedAtTime.append(copy());
+                                return null;
+                            } else if (name.equals("EstimatedVehicleJourney")) {
+                                return estimatedVehicleJourney(copy());
+                            }
+                        } else if (isPath("Siri", "ServiceDelivery", "SituationExchangeDelivery", "Situations")
+                                && name.equals("PtSituationElement")) {
+                            return serviceDelivery("<SituationExchangeDelivery version=\"2.0\">" + deliveryResponseTimestamp
+                                    + deliveryStatus + "<Situations>" + copy() + "</Situations></SituationExchangeDelivery>");
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            path.add(name);
+            namespaces.addLast(declaredNamespaces());
+            return null;
+        }
+
+        private String handleDeliveryElement(String name) throws XMLStreamException {
+            String delivery = path.get(2);
+            if (name.equals("ResponseTimestamp")) {
+                deliveryResponseTimestamp.append(copy());
+                return null;
+            }
+            switch (delivery) {
+                case "EstimatedTimetableDelivery":
+                    if (name.equals("EstimatedJourneyVersionFrame")) {
+                        frameRecordedAtTime.setLength(0);
+                    }
+                    break;
+                case "VehicleMonitoringDelivery":
+                    if (name.equals("VehicleActivity")) {
+                        return serviceDelivery("<VehicleMonitoringDelivery version=\"2.0\">" + deliveryResponseTimestamp
+                                + deliveryStatus + copy() + "</VehicleMonitoringDelivery>");
+                    }
+                    break;
+                case "FacilityMonitoringDelivery":
+                    if (name.equals("Status")) {
+                        deliveryStatus.append(copy());
+                        return null;
+                    } else if (name.equals("FacilityCondition")) {
+                        return serviceDelivery("<FacilityMonitoringDelivery version=\"2.0\">" + deliveryResponseTimestamp
+                                + deliveryStatus + copy() + "</FacilityMonitoringDelivery>");
+                    }
+                    break;
+                default:
+                    break;
+            }
+            path.add(name);
+            namespaces.addLast(declaredNamespaces());
+            return null;
+        }
+
+        private String estimatedVehicleJourney(String journey) {
+            return serviceDelivery("<EstimatedTimetableDelivery version=\"2.0\">" + deliveryResponseTimestamp
+                    + deliveryStatus + "<EstimatedJourneyVersionFrame>" + frameRecordedAtTime + journey
+                    + "</EstimatedJourneyVersionFrame></EstimatedTimetableDelivery>");
+        }
+
+        private String serviceDelivery(String delivery) {
+            return SIRI_START + "<ServiceDelivery>" + serviceDeliveryHeader + delivery + "</ServiceDelivery></Siri>";
+        }
+
+        private boolean isDelivery() {
+            String delivery = path.get(2);
+            return delivery != null && delivery.endsWith("Delivery") && isPath("Siri", "ServiceDelivery", delivery);
+        }
+
+        private boolean isPath(String... names) {
+            if (path.size() != names.length) {
+                return false;
+            }
+            for (int i = 0; i < names.length; i++) {
+                if (!names[i].equals(path.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private Map<String, String> declaredNamespaces() {
+            int count = reader.getNamespaceCount();
+            if (count == 0) {
+                return Map.of();
+            }
+            Map<String, String> declared = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                declared.put(nullToEmpty(reader.getNamespacePrefix(i)), nullToEmpty(reader.getNamespaceURI(i)));
+            }
+            return declared;
+        }
+
+        /**
+         * Copies current element, including all children, and leaves the reader at the end of the element.
+         *
+         * Namespaces inherited from ancestors are declared on the copied element, as the copy is placed in a new
+         * document where the default namespace is SIRI.
+         */
+        private String copy() throws XMLStreamException {
+            Map<String, String> inherited = new HashMap<>();
+            inherited.put("", "");
+            for (Map<String, String> declared : namespaces) {
+                inherited.putAll(declared);
+            }
+
+            StringBuilder xml = new StringBuilder();
+
+            int depth = 0;
+
+            int event = XMLStreamConstants.START_ELEMENT;
+            while (true) {
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        Map<String, String> declared = declaredNamespaces();
+                        writeStartElement(xml, declared);
+                        if (depth == 0) {
+                            for (Map.Entry<String, String> namespace : inherited.entrySet()) {
+                                String prefix = namespace.getKey();
+                                if (declared.containsKey(prefix)) {
+                                    continue;
+                                }
+                                if (prefix.isEmpty()) {
+                                    // Only needed when default namespace differs from the new document
+                                    if (!SIRI_NS.equals(namespace.getValue())) {
+                                        writeNamespace(xml, prefix, namespace.getValue());
+                                    }
+                                } else {
+                                    writeNamespace(xml, prefix, namespace.getValue());
+                                }
+                            }
+                        }
+                        xml.append('>');
+                        depth++;
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        xml.append("</").append(qualifiedName(reader.getPrefix(), reader.getLocalName())).append('>');
+                        depth--;
+                        if (depth == 0) {
+                            return xml.toString();
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        escape(xml, reader.getText(), false);
+                        break;
+                    default:
+                        // Comments and processing-instructions are not copied
+                        break;
+                }
+                event = reader.next();
+            }
+        }
+
+        private void writeStartElement(StringBuilder xml, Map<String, String> declared) {
+            xml.append('<').append(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+            for (Map.Entry<String, String> namespace : declared.entrySet()) {
+                writeNamespace(xml, namespace.getKey(), namespace.getValue());
+            }
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                xml.append(' ').append(qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i))).append("=\"");
+                escape(xml, reader.getAttributeValue(i), true);
+                xml.append('"');
+            }
+        }
+
+        private static void writeNamespace(StringBuilder xml, String prefix, String uri) {
+            xml.append(prefix.isEmpty() ? " xmlns" : " xmlns:" + prefix).append("=\"");
+            escape(xml, uri, true);
+            xml.append('"');
+        }
+
+        private static String qualifiedName(String prefix, String localName) {
+            return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+        }
+
+        private static String nullToEmpty(String value) {
+            return value != null ? value : "";
+        }
+
+        private static void escape(StringBuilder xml, String text, boolean attribute) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '&':
+                        xml.append("&amp;");
+                        break;
+                    case '<':
+                        xml.append("&lt;");
+                        break;
+                    case '>':
+                        xml.append("&gt;");
+                        break;
+                    case '"':
+                        xml.append(attribute ? "&quot;" : "\"");
+                        break;
+                    case '\r':
+                        xml.append("&#13;");
+                        break;
+                    case '\n':
+                        xml.append(attribute ? "&#10;" : "\n");
+                        break;
+                    case '\t':
+                        xml.append(attribute ? "&#9;" : "\t");
+                        break;
+                    default:
+                        xml.append(c);
+                }
+            }
+        }
+    }
+}
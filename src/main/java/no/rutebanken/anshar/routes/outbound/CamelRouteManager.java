@@ -37,6 +37,7 @@ import uk.org.siri.siri21.SubscriptionRefStructure;
 import uk.org.siri.siri21.VehicleMonitoringDeliveryStructure;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.xml.stream.XMLStreamException;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -48,9 +49,13 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
@@ -78,6 +83,56 @@ public class CamelRouteManager {
     @Value("${anshar.default.max.threads.per.outbound.subscription:5}")
     private int maximumThreadsPerOutboundSubscription;
 
+    /**
+     * Filtered payloads reference the elements of the shared payload instead of deep-copying the whole payload
+     * for each subscription
+     */
+    @Value("${anshar.feature.outbound.sharedFilter:false}")
+    private boolean FEATURE_TOGGLE_SHARED_FILTER;
+
+    /**
+     * Subscriptions with equal filter, adapters, SIRI-version and dataset share one serialized payload
+     */
+    @Value("${anshar.feature.outbound.groupedFanout:false}")
+    private boolean FEATURE_TOGGLE_GROUPED_FANOUT;
+
+    /**
+     * Data is pushed with a non-blocking client, with a bounded number of requests in flight per subscription
+     */
+    @Value("${anshar.feature.outbound.asyncPush:false}")
+    private boolean FEATURE_TOGGLE_ASYNC_PUSH;
+
+    @Value("${anshar.outbound.push.max.inflight.per.subscription:5}")
+    private int maxInFlightPerSubscription;
+
+    /**
+     * Pushes waiting for a free slot in the in-flight window - pushes are rejected when the queue is full
+     */
+    @Value("${anshar.outbound.push.max.queued.per.subscription:20}")
+    private int maxQueuedPerSubscription;
+
+    @Value("${anshar.outbound.push.timeout.seconds:30}")
+    private int pushTimeoutSeconds;
+
+    /**
+     * RequestorRefs of subscribers that accept gzip-compressed requests
+     */
+    @Value("${anshar.outbound.push.gzip.requestorRefs:}")
+    private List<String> gzipRequestorRefs = new ArrayList<>();
+
+    /**
+     * Threads used to build shared payloads for grouped subscriptions
+     */
+    @Value("${anshar.outbound.fanout.threads:4}")
+    private int fanoutThreads;
+
+    @Value("${anshar.outbound.fanout.queue.size:100}")
+    private int fanoutQueueSize;
+
+    private OutboundPushClient pushClient;
+
+    private ExecutorService fanoutExecutorService;
+
     private Map<String, ExecutorService> threadFactoryMap = new ConcurrentHashMap<>();
 
     private static final HttpClient httpClient = HttpClient.newBuilder()
@@ -89,6 +144,32 @@ public class CamelRouteManager {
     @PostConstruct
     private void initThreadMetrics() {
         metricsService.registerOutboundThreadFactoryMap(threadFactoryMap);
+
+        pushClient = new OutboundPushClient(maxInFlightPerSubscription, maxQueuedPerSubscription, Duration.ofSeconds(2), Duration.ofSeconds(pushTimeoutSeconds));
+        metricsService.registerOutboundPushClient(pushClient);
+
+        ThreadFactory factory = new ThreadFactoryBuilder()
+                .setNameFormat("outbound-fanout-%d")
+                .setDaemon(true)
+                .build();
+
+        // Bounded queue - the calling thread builds the shared payload itself when the pool is saturated
+        fanoutExecutorService = new ThreadPoolExecutor(
+                fanoutThreads,
+                fanoutThreads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(fanoutQueueSize),
+                factory,
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+    }
+
+    @PreDestroy
+    private void shutdownFanout() {
+        if (fanoutExecutorService != null) {
+            fanoutExecutorService.shutdown();
+        }
     }
 
     /**
@@ -97,12 +178,15 @@ public class CamelRouteManager {
      * @param subscriptionRequest
      */
     void pushSiriData(Siri payload, OutboundSubscriptionSetup subscriptionRequest, boolean logBody) {
+        pushSiriData(payload, MDC.get("camel.breadcrumbId"), subscriptionRequest, logBody);
+    }
+
+    private void pushSiriData(Siri payload, String breadcrumbId, OutboundSubscriptionSetup subscriptionRequest, boolean logBody) {
         String consumerAddress = subscriptionRequest.getAddress();
         if (consumerAddress == null) {
             logger.info("ConsumerAddress is null - ignoring data.");
             return;
         }
-        final String breadcrumbId = MDC.get("camel.breadcrumbId");
         final String subscriptionId = subscriptionRequest.getSubscriptionId();
 
         ExecutorService executorService = getOrCreateExecutorService(subscriptionRequest);
@@ -116,7 +200,10 @@ public class CamelRouteManager {
                     return;
                 }
 
-                Siri filteredPayload = SiriHelper.filterSiriPayload(payload, subscriptionRequest.getFilterMap());
+                Siri filteredPayload = SiriHelper.filterSiriPayload(payload, subscriptionRequest.getFilterMap(), !FEATURE_TOGGLE_SHARED_FILTER);
+
+                // Elements are shared with other subscriptions - only the matching elements are copied before ids are mapped
+                boolean copyBeforeTransform = FEATURE_TOGGLE_SHARED_FILTER && filteredPayload != payload;
 
                 metricsService.countOutgoingData(filteredPayload, SubscriptionSetup.SubscriptionMode.SUBSCRIBE);
 
@@ -133,44 +220,213 @@ public class CamelRouteManager {
 
                 for (Siri siri : splitSiri) {
                     addSubscriptionRefToServiceDelivery(siri, subscriptionId);
-                    int responseCode = postDataToSubscription(siri, subscriptionRequest, logBody);
-
-                    metricsService.markPostToSubscription(subscriptionRequest.getSubscriptionType(),
-                            SubscriptionSetup.SubscriptionMode.SUBSCRIBE,
-                            subscriptionId,
-                            responseCode);
 
-                    if (responseCode > 299) {
-                        logger.info("Failed to push data for subscription {}: {}", subscriptionRequest, responseCode);
-                        subscriptionManager.pushFailedForSubscription(subscriptionId);
-                    } else {
-                        subscriptionManager.clearFailTracker(subscriptionId);
-                    }
+                    long t1 = System.currentTimeMillis();
+                    deliver(transformAndSerialize(siri, subscriptionRequest, logBody, copyBeforeTransform), subscriptionRequest, t1);
                 }
             } catch (Exception e) {
-                logger.info("Failed to push data for subscription {}: {}", subscriptionRequest, e.toString());
-
-                int statusCode = -1;
-                if (e.getCause() instanceof SocketException) {
-                    logger.info("Recipient is unreachable - ignoring");
-                } else {
-                    String msg = e.getMessage();
-                    if (e.getCause() != null) {
-                        msg = e.getCause().getMessage();
-                        if (e.getCause() instanceof HttpOperationFailedException) {
-                            statusCode = ((HttpOperationFailedException) e.getCause()).getStatusCode();
+                handlePushFailure(subscriptionRequest, e);
+            } finally {
+                MDC.remove("camel.breadcrumbId");
+                MDC.remove("subscriptionId");
+            }
+        });
+    }
+
+    /**
+     * Pushes the same SIRI-data to all recipients. When enabled, recipients that would get identical payloads are
+     * grouped, and the payload is filtered, transformed and serialized once per group - only the SubscriptionRef
+     * differs between the recipients in a group. Shared payloads are built on the fan-out pool, and handed to the
+     * executors of the recipients when completed.
+     *
+     * @param payload
+     * @param recipients
+     */
+    void pushSiriData(Siri payload, List<OutboundSubscriptionSetup> recipients) {
+        if (!FEATURE_TOGGLE_GROUPED_FANOUT) {
+            for (OutboundSubscriptionSetup recipient : recipients) {
+                pushSiriData(payload, recipient, false);
+            }
+            return;
+        }
+
+        Map<SharedOutboundPayload.GroupKey, List<OutboundSubscriptionSetup>> groups = new LinkedHashMap<>();
+        List<OutboundSubscriptionSetup> separateRecipients = new ArrayList<>();
+        for (OutboundSubscriptionSetup recipient : recipients) {
+            SharedOutboundPayload.GroupKey key = SharedOutboundPayload.createGroupKey(recipient);
+            if (key == null || recipient.getAddress() == null) {
+                separateRecipients.add(recipient);
+            } else {
+                groups.computeIfAbsent(key, k -> new ArrayList<>()).add(recipient);
+            }
+        }
+
+        final String breadcrumbId = MDC.get("camel.breadcrumbId");
+
+        List<CompletableFuture<Void>> sharedPayloads = new ArrayList<>();
+        List<OutboundSubscriptionSetup> failedRecipients = new CopyOnWriteArrayList<>();
+        for (List<OutboundSubscriptionSetup> group : groups.values()) {
+            if (group.size() == 1) {
+                separateRecipients.add(group.get(0));
+                continue;
+            }
+
+            // Built on the fan-out pool, so the calling thread is not held while the payload is filtered, transformed and serialized
+            sharedPayloads.add(CompletableFuture.supplyAsync(() -> {
+                        // May run on the calling thread when the pool is saturated
+                        final String previousBreadcrumbId = MDC.get("camel.breadcrumbId");
+                        try {
+                            MDC.put("camel.breadcrumbId", breadcrumbId);
+                            return createSharedPayload(payload, group.get(0), group.size());
+                        } finally {
+                            if (previousBreadcrumbId != null) {
+                                MDC.put("camel.breadcrumbId", previousBreadcrumbId);
+                            } else {
+                                MDC.remove("camel.breadcrumbId");
+                            }
+                        }
+                    }, fanoutExecutorService)
+                    .handle((sharedPayload, throwable) -> {
+                        if (throwable != null) {
+                            logger.info("Failed to create shared payload for {} subscriptions - pushing separately, {}", group.size(), throwable.toString());
+                            failedRecipients.addAll(group);
+                            return null;
+                        }
+                        logger.debug("Pushing shared payload to {} subscriptions", group.size());
+                        for (OutboundSubscriptionSetup recipient : group) {
+                            pushSharedPayload(sharedPayload, breadcrumbId, recipient);
                         }
+                        return null;
+                    }));
+        }
+
+        // Pushed after the shared payloads are created, since separate pushes may alter the unfiltered payload
+        CompletableFuture.allOf(sharedPayloads.toArray(new CompletableFuture[0]))
+                .whenComplete((result, throwable) -> {
+                    for (OutboundSubscriptionSetup recipient : separateRecipients) {
+                        pushSiriData(payload, breadcrumbId, recipient, false);
                     }
-                    logger.info("Exception caught when pushing SIRI-data: {}", msg);
+                    for (OutboundSubscriptionSetup recipient : failedRecipients) {
+                        pushSiriData(payload, breadcrumbId, recipient, false);
+                    }
+                });
+    }
+
+    /**
+     * Filters, splits, transforms and serializes the payload once on behalf of all subscriptions in a group
+     *
+     * @param payload
+     * @param subscriptionRequest Any subscription in the group
+     * @param recipientCount Number of subscriptions in the group
+     */
+    SharedOutboundPayload createSharedPayload(Siri payload, OutboundSubscriptionSetup subscriptionRequest, int recipientCount) {
+        final String placeholder = SharedOutboundPayload.createPlaceholder();
+
+        Siri filteredPayload = SiriHelper.filterSiriPayload(payload, subscriptionRequest.getFilterMap(), !FEATURE_TOGGLE_SHARED_FILTER);
+
+        // The unfiltered payload is used by the following groups, and must not be altered
+        boolean copyBeforeTransform = FEATURE_TOGGLE_SHARED_FILTER || filteredPayload == payload;
+
+        metricsService.countOutgoingData(filteredPayload, SubscriptionSetup.SubscriptionMode.SUBSCRIBE, recipientCount);
+
+        int deliverySize = this.maximumSizePerDelivery;
+        if (subscriptionRequest.getDatasetId() != null) {
+            deliverySize = Integer.MAX_VALUE;
+        }
+
+        List<Siri> splitSiri = siriHelper.splitDeliveries(filteredPayload, deliverySize);
+
+        if (splitSiri.size() > 1) {
+            logger.info("Object split into {} deliveries for {} subscriptions.", splitSiri.size(), recipientCount);
+        }
+
+        List<byte[]> deliveries = new ArrayList<>();
+        for (Siri siri : splitSiri) {
+            addSubscriptionRefToServiceDelivery(siri, placeholder);
+            deliveries.add(transformAndSerialize(siri, subscriptionRequest, false, copyBeforeTransform));
+        }
+        return new SharedOutboundPayload(placeholder, deliveries);
+    }
+
+    private void pushSharedPayload(SharedOutboundPayload sharedPayload, String breadcrumbId, OutboundSubscriptionSetup subscriptionRequest) {
+        final String subscriptionId = subscriptionRequest.getSubscriptionId();
+
+        ExecutorService executorService = getOrCreateExecutorService(subscriptionRequest);
+        executorService.execute(() -> {
+
+            try {
+                MDC.put("camel.breadcrumbId", breadcrumbId);
+                MDC.put("subscriptionId", subscriptionId);
+                if (!subscriptionManager.subscriptions.containsKey(subscriptionId)) {
+                    // Short circuit if subscription has been terminated while waiting
+                    return;
                 }
-                subscriptionManager.pushFailedForSubscription(subscriptionId);
 
-                metricsService.markPostToSubscription(subscriptionRequest.getSubscriptionType(),
-                        SubscriptionSetup.SubscriptionMode.SUBSCRIBE,
-                        subscriptionId,
-                        statusCode);
+                for (int i = 0; i < sharedPayload.size(); i++) {
+                    deliver(sharedPayload.getDelivery(i, subscriptionId), subscriptionRequest, System.currentTimeMillis());
+                }
+            } catch (Exception e) {
+                handlePushFailure(subscriptionRequest, e);
+            } finally {
+                MDC.remove("camel.breadcrumbId");
+                MDC.remove("subscriptionId");
+            }
+        });
+    }
+
+    /**
+     * Posts the serialized delivery to the subscription, and handles the response - asynchronously when enabled
+     *
+     * @param body Serialized delivery, or null if there is no data to push
+     * @param subscriptionRequest
+     * @param t1 Start time
+     */
+    private void deliver(byte[] body, OutboundSubscriptionSetup subscriptionRequest, long t1) {
+        if (body == null) {
+            handleResponseCode(subscriptionRequest, -1);
+        } else if (FEATURE_TOGGLE_ASYNC_PUSH) {
+            pushAsync(body, subscriptionRequest, t1);
+        } else {
+            handleResponseCode(subscriptionRequest, postToSubscription(body, "data", subscriptionRequest, t1));
+        }
+    }
+
+    private void pushAsync(byte[] body, OutboundSubscriptionSetup subscriptionRequest, long t1) {
+        final String breadcrumbId = MDC.get("camel.breadcrumbId");
+        final String subscriptionId = subscriptionRequest.getSubscriptionId();
+        final boolean gzip = gzipRequestorRefs != null && gzipRequestorRefs.contains(subscriptionRequest.getRequestorRef());
+
+        logger.debug("Posting to subscription {}", subscriptionId);
+
+        pushClient.push(subscriptionRequest, body, gzip).whenComplete((response, throwable) -> {
+            try {
+                MDC.put("camel.breadcrumbId", breadcrumbId);
+                MDC.put("subscriptionId", subscriptionId);
+
+                long elapsed = System.currentTimeMillis() - t1;
+                if (throwable != null) {
+                    metricsService.markPushLatency(subscriptionRequest.getSubscriptionType(), null, -1, elapsed);
+
+                    Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                    handlePushFailure(subscriptionRequest, new RuntimeException(cause));
+                    return;
+                }
+
+                int responseCode = response.statusCode();
+                metricsService.markPushLatency(subscriptionRequest.getSubscriptionType(), response.version(), responseCode, elapsed);
+                if (elapsed > 100) {
+                    // Only log "slow" requests
+                    logger.info("Pushed data to subscription {} with {} took {} ms, got responseCode {}",
+                            subscriptionId,
+                            response.version(),
+                            elapsed,
+                            responseCode
+                    );
+                }
 
-                removeDeadSubscriptionExecutors(subscriptionManager);
+                handleResponseCode(subscriptionRequest, responseCode);
+            } catch (Exception e) {
+                logger.warn("Failed to handle response from subscription {}", subscriptionId, e);
             } finally {
                 MDC.remove("camel.breadcrumbId");
                 MDC.remove("subscriptionId");
@@ -178,6 +434,50 @@ public class CamelRouteManager {
         });
     }
 
+    private void handleResponseCode(OutboundSubscriptionSetup subscriptionRequest, int responseCode) {
+        final String subscriptionId = subscriptionRequest.getSubscriptionId();
+
+        metricsService.markPostToSubscription(subscriptionRequest.getSubscriptionType(),
+                SubscriptionSetup.SubscriptionMode.SUBSCRIBE,
+                subscriptionId,
+                responseCode);
+
+        if (responseCode > 299) {
+            logger.info("Failed to push data for subscription {}: {}", subscriptionRequest, responseCode);
+            subscriptionManager.pushFailedForSubscription(subscriptionId);
+        } else {
+            subscriptionManager.clearFailTracker(subscriptionId);
+        }
+    }
+
+    private void handlePushFailure(OutboundSubscriptionSetup subscriptionRequest, Exception e) {
+        final String subscriptionId = subscriptionRequest.getSubscriptionId();
+
+        logger.info("Failed to push data for subscription {}: {}", subscriptionRequest, e.toString());
+
+        int statusCode = -1;
+        if (e.getCause() instanceof SocketException) {
+            logger.info("Recipient is unreachable - ignoring");
+        } else {
+            String msg = e.getMessage();
+            if (e.getCause() != null) {
+                msg = e.getCause().getMessage();
+                if (e.getCause() instanceof HttpOperationFailedException) {
+                    statusCode = ((HttpOperationFailedException) e.getCause()).getStatusCode();
+                }
+            }
+            logger.info("Exception caught when pushing SIRI-data: {}", msg);
+        }
+        subscriptionManager.pushFailedForSubscription(subscriptionId);
+
+        metricsService.markPostToSubscription(subscriptionRequest.getSubscriptionType(),
+                SubscriptionSetup.SubscriptionMode.SUBSCRIBE,
+                subscriptionId,
+                statusCode);
+
+        removeDeadSubscriptionExecutors(subscriptionManager);
+    }
+
     private static void addSubscriptionRefToServiceDelivery(Siri siri, String subscriptionId) {
         if (subscriptionId == null || subscriptionId.isEmpty()) {
             //ignore
@@ -251,20 +551,23 @@ public class CamelRouteManager {
             for (String id : idsToRemove) {
                 logger.info("Remove executor for subscription {}", id);
                 threadFactoryMap.remove(id);
+                if (pushClient != null) {
+                    pushClient.remove(id);
+                }
             }
         }
     }
 
-    private int postDataToSubscription(Siri payload, OutboundSubscriptionSetup subscription, boolean logBody) {
+    /**
+     * @return Transformed and serialized payload, or null if the payload contains no data
+     */
+    private byte[] transformAndSerialize(Siri payload, OutboundSubscriptionSetup subscription, boolean logBody, boolean copyBeforeTransform) {
 
         if (serviceDeliveryContainsData(payload)) {
-            long t1 = System.currentTimeMillis();
-            logger.debug("Posting to subscription {}", subscription.getSubscriptionId());
-
             Siri transformed = SiriValueTransformer.transform(
                     payload,
                     subscription.getValueAdapters(),
-                    false,
+                    copyBeforeTransform,
                     false);
 
             if (logBody) {
@@ -275,10 +578,6 @@ public class CamelRouteManager {
                 }
             }
 
-            String siriContentType = "data";
-            if (transformed.getServiceDelivery() == null) {
-                siriContentType = "heartbeat";
-            }
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             try {
                 serializeSiriObject(subscription.getSiriVersion(), transformed, out);
@@ -292,46 +591,51 @@ public class CamelRouteManager {
                 }
                 logger.info("Retry succeeded to serialize SIRI-xml");
             }
+            return out.toByteArray();
+        }
+        return null;
+    }
 
-            HttpRequest post = HttpRequest.newBuilder()
-                    .uri(URI.create(subscription.getAddress()))
-                    .header("subscriptionId", subscription.getSubscriptionId())
-                    .header("Content-Type", "application/xml")
-                    .POST(HttpRequest.BodyPublishers.ofInputStream(() -> new ByteArrayInputStream(out.toByteArray())))
-                    .build();
-            int responseCode;
+    private int postToSubscription(byte[] body, String siriContentType, OutboundSubscriptionSetup subscription, long t1) {
+        logger.debug("Posting to subscription {}", subscription.getSubscriptionId());
+
+        HttpRequest post = HttpRequest.newBuilder()
+                .uri(URI.create(subscription.getAddress()))
+                .header("subscriptionId", subscription.getSubscriptionId())
+                .header("Content-Type", "application/xml")
+                .POST(HttpRequest.BodyPublishers.ofInputStream(() -> new ByteArrayInputStream(body)))
+                .build();
+        int responseCode;
+        try {
+            responseCode = httpClient.send(post, HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch (Exception e) {
+            logger.info("Failed to post {} to subscription {} - retrying, {}", siriContentType, subscription, e.toString());
+            // Retry once
             try {
                 responseCode = httpClient.send(post, HttpResponse.BodyHandlers.discarding()).statusCode();
-            } catch (Exception e) {
-                logger.info("Failed to post {} to subscription {} - retrying, {}", siriContentType, subscription, e.toString());
-                // Retry once
-                try {
-                    responseCode = httpClient.send(post, HttpResponse.BodyHandlers.discarding()).statusCode();
-                } catch (Exception ex) {
-                    logger.info("Retry failed to post {} to subscription {}, {}", siriContentType, subscription, ex.toString());
-                    throw new RuntimeException(e);
-                }
-            }
-
-            if (responseCode >= 200 && responseCode < 300) {
-                // Clearing fail-tracker for all success-responses
-                subscriptionManager.clearFailTracker(subscription.getSubscriptionId());
+            } catch (Exception ex) {
+                logger.info("Retry failed to post {} to subscription {}, {}", siriContentType, subscription, ex.toString());
+                throw new RuntimeException(e);
             }
+        }
 
-            long elapsed = System.currentTimeMillis() - t1;
-            if (elapsed > 100) {
-                // Only log "slow" requests
-                logger.info("Pushed {} to subscription {} took {} ms, got responseCode {}",
-                        siriContentType,
-                        subscription.getSubscriptionId(),
-                        elapsed,
-                        responseCode
-                );
-            }
+        if (responseCode >= 200 && responseCode < 300) {
+            // Clearing fail-tracker for all success-responses
+            subscriptionManager.clearFailTracker(subscription.getSubscriptionId());
+        }
 
-            return responseCode;
+        long elapsed = System.currentTimeMillis() - t1;
+        if (elapsed > 100) {
+            // Only log "slow" requests
+            logger.info("Pushed {} to subscription {} took {} ms, got responseCode {}",
+                    siriContentType,
+                    subscription.getSubscriptionId(),
+                    elapsed,
+                    responseCode
+            );
         }
-        return -1;
+
+        return responseCode;
     }
 
     private static void serializeSiriObject(SiriValidator.Version version, Siri transformed, ByteArrayOutputStream out) throws JAXBException, IOException, XMLStreamException {
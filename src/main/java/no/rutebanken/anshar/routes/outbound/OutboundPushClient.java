@@ -0,0 +1,260 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Asynchronous transport for pushing serialized SIRI-data to outbound subscriptions.
+ *
+ * Each subscription has a window of requests that may be in flight at the same time. When the window is full, pushes
+ * are queued per subscription and sent when a request completes - pushes are rejected when the queue is full as well,
+ * so a slow recipient gets backpressure instead of an ever-growing number of open requests. The calling thread is
+ * never blocked. HTTP/2 is negotiated for https-endpoints that support it, plain http-endpoints are posted with
+ * HTTP/1.1.
+ */
+public class OutboundPushClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboundPushClient.class);
+
+    private final HttpClient httpClient;
+
+    private final int maxInFlightPerSubscription;
+
+    private final int maxQueuedPerSubscription;
+
+    private final Duration requestTimeout;
+
+    private final Map<String, Window> inFlightWindows = new ConcurrentHashMap<>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Requests in flight, and pushes waiting for a free slot, for one subscription - guarded by its own monitor
+     */
+    private static final class Window {
+        private int inFlight;
+        private final Deque<PendingPush> queued = new ArrayDeque<>();
+    }
+
+    private record PendingPush(HttpRequest request, CompletableFuture<HttpResponse<Void>> result) {
+    }
+
+    public OutboundPushClient(int maxInFlightPerSubscription, int maxQueuedPerSubscription, Duration connectTimeout, Duration requestTimeout) {
+        if (maxInFlightPerSubscription < 1) {
+            throw new IllegalArgumentException("Invalid in-flight window " + maxInFlightPerSubscription);
+        }
+        if (maxQueuedPerSubscription < 0) {
+            throw new IllegalArgumentException("Invalid queue size " + maxQueuedPerSubscription);
+        }
+        this.maxInFlightPerSubscription = maxInFlightPerSubscription;
+        this.maxQueuedPerSubscription = maxQueuedPerSubscription;
+        this.requestTimeout = requestTimeout;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .build();
+    }
+
+    /**
+     * Posts the body to the subscription, and retries once if the request fails. The request is queued until a slot
+     * in the in-flight window of the subscription is released, if the window is full.
+     *
+     * @param subscription
+     * @param body Serialized payload - is not copied, and must not be altered until the request is completed
+     * @param gzip Compress the body, and set Content-Encoding
+     * @return Response from the recipient - completed exceptionally when the request failed, or both the window and
+     * the queue of the subscription are full
+     */
+    public CompletableFuture<HttpResponse<Void>> push(OutboundSubscriptionSetup subscription, byte[] body, boolean gzip) {
+        final String subscriptionId = subscription.getSubscriptionId();
+
+        HttpRequest request;
+        try {
+            request = createRequest(subscription, body, gzip);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        Window window = inFlightWindows.computeIfAbsent(subscriptionId, id -> new Window());
+        CompletableFuture<HttpResponse<Void>> result = new CompletableFuture<>();
+        synchronized (window) {
+            if (window.inFlight >= maxInFlightPerSubscription) {
+                if (window.queued.size() >= maxQueuedPerSubscription) {
+                    rejectedCount.incrementAndGet();
+                    return CompletableFuture.failedFuture(new RejectedExecutionException(
+                            "In-flight window and queue are full for subscription " + subscriptionId));
+                }
+                window.queued.add(new PendingPush(request, result));
+                return result;
+            }
+            window.inFlight++;
+        }
+
+        start(window, subscriptionId, new PendingPush(request, result));
+        return result;
+    }
+
+    /**
+     * Sends a push that has been given a slot in the window - the slot is handed over to the next queued push when
+     * the request is completed
+     */
+    private void start(Window window, String subscriptionId, PendingPush push) {
+        inFlight.incrementAndGet();
+        send(push.request(), subscriptionId, true)
+                .whenComplete((response, throwable) -> {
+                    inFlight.decrementAndGet();
+                    release(window, subscriptionId);
+                    if (throwable != null) {
+                        push.result().completeExceptionally(throwable);
+                    } else {
+                        push.result().complete(response);
+                    }
+                });
+    }
+
+    private void release(Window window, String subscriptionId) {
+        PendingPush next;
+        synchronized (window) {
+            next = window.queued.poll();
+            if (next == null) {
+                window.inFlight--;
+                return;
+            }
+        }
+        start(window, subscriptionId, next);
+    }
+
+    private CompletableFuture<HttpResponse<Void>> send(HttpRequest request, String subscriptionId, boolean retry) {
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .handle((response, throwable) -> {
+                    if (throwable == null) {
+                        return CompletableFuture.completedFuture(response);
+                    }
+                    if (!retry) {
+                        logger.info("Retry failed to post data to subscription {}, {}", subscriptionId, throwable.toString());
+                        return CompletableFuture.<HttpResponse<Void>>failedFuture(throwable);
+                    }
+                    // Retry once
+                    logger.info("Failed to post data to subscription {} - retrying, {}", subscriptionId, throwable.toString());
+                    return send(request, subscriptionId, false);
+                })
+                .thenCompose(Function.identity());
+    }
+
+    private HttpRequest createRequest(OutboundSubscriptionSetup subscription, byte[] body, boolean gzip) throws IOException {
+        URI uri = URI.create(subscription.getAddress());
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(uri)
+                .timeout(requestTimeout)
+                .header("subscriptionId", subscription.getSubscriptionId())
+                .header("Content-Type", "application/xml");
+
+        if (!"https".equalsIgnoreCase(uri.getScheme())) {
+            // HTTP/2 is only negotiated with TLS - avoids the h2c-upgrade on plain http
+            builder.version(HttpClient.Version.HTTP_1_1);
+        }
+
+        if (gzip) {
+            builder.header("Content-Encoding", "gzip");
+            body = compress(body);
+        }
+
+        return builder.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+    }
+
+    static byte[] compress(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(32, body.length / 4));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(body);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Removes the in-flight window for a terminated subscription - queued pushes are rejected
+     */
+    public void remove(String subscriptionId) {
+        Window window = inFlightWindows.remove(subscriptionId);
+        if (window == null) {
+            return;
+        }
+        List<PendingPush> dropped;
+        synchronized (window) {
+            dropped = new ArrayList<>(window.queued);
+            window.queued.clear();
+        }
+        for (PendingPush push : dropped) {
+            push.result().completeExceptionally(new RejectedExecutionException("Subscription " + subscriptionId + " is removed"));
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getInFlight(String subscriptionId) {
+        Window window = inFlightWindows.get(subscriptionId);
+        if (window == null) {
+            return 0;
+        }
+        synchronized (window) {
+            return window.inFlight;
+        }
+    }
+
+    public int getQueued(String subscriptionId) {
+        Window window = inFlightWindows.get(subscriptionId);
+        if (window == null) {
+            return 0;
+        }
+        synchronized (window) {
+            return window.queued.size();
+        }
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public int getMaxInFlightPerSubscription() {
+        return maxInFlightPerSubscription;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import com.hazelcast.map.IMap;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryEvictedListener;
+import com.hazelcast.map.listener.EntryExpiredListener;
+import com.hazelcast.map.listener.EntryRemovedListener;
+import com.hazelcast.map.listener.EntryUpdatedListener;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.VehicleActivityStructure;
+import uk.org.siri.siri21.VehicleRef;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node-local index of outbound subscriptions, used to find the subscriptions interested in a delivery without reading
+ * all subscriptions from the shared map.
+ *
+ * Subscriptions are indexed by type and datasetId. ET- and VM-subscriptions with a LineRef- or VehicleRef-filter are
+ * also indexed by the filtered values, so they are only returned when at least one element matches - the matching
+ * elements are still picked by the filter when the data is pushed. The index is updated by local writes, and by events
+ * from the subscription-map, so subscriptions added by other nodes are visible after the event has been received.
+ */
+public class OutboundSubscriptionIndex {
+
+    private record RouteKey(SiriDataType dataType, String datasetId) {}
+
+    /**
+     * Subscription ids for one type and datasetId
+     */
+    private static class Route {
+        private final Set<String> unfiltered = ConcurrentHashMap.newKeySet();
+        private final Map<String, Set<String>> byLineRef = new ConcurrentHashMap<>();
+        private final Map<String, Set<String>> byVehicleRef = new ConcurrentHashMap<>();
+
+        private boolean isEmpty() {
+            return unfiltered.isEmpty() && byLineRef.isEmpty() && byVehicleRef.isEmpty();
+        }
+    }
+
+    private final Map<String, OutboundSubscriptionSetup> subscriptions = new ConcurrentHashMap<>();
+
+    private final Map<RouteKey, Route> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Adds existing subscriptions, and keeps the index in sync with the provided map
+     */
+    public void bindTo(IMap<String, OutboundSubscriptionSetup> subscriptionMap) {
+        subscriptionMap.addEntryListener((EntryAddedListener<String, OutboundSubscriptionSetup>) entryEvent ->
+                add(entryEvent.getValue()), true);
+        subscriptionMap.addEntryListener((EntryUpdatedListener<String, OutboundSubscriptionSetup>) entryEvent ->
+                add(entryEvent.getValue()), true);
+        subscriptionMap.addEntryListener((EntryRemovedListener<String, OutboundSubscriptionSetup>) entryEvent ->
+                remove(entryEvent.getKey()), false);
+        subscriptionMap.addEntryListener((EntryExpiredListener<String, OutboundSubscriptionSetup>) entryEvent ->
+                remove(entryEvent.getKey()), false);
+        subscriptionMap.addEntryListener((EntryEvictedListener<String, OutboundSubscriptionSetup>) entryEvent ->
+                remove(entryEvent.getKey()), false);
+
+        subscriptionMap.values().forEach(this::add);
+    }
+
+    /**
+     * Adds the subscription, or replaces an existing subscription with the same id
+     */
+    public synchronized void add(OutboundSubscriptionSetup subscription) {
+        if (subscription == null || subscription.getSubscriptionId() == null) {
+            return;
+        }
+        remove(subscription.getSubscriptionId());
+
+        final String subscriptionId = subscription.getSubscriptionId();
+        subscriptions.put(subscriptionId, subscription);
+
+        Route route = routes.computeIfAbsent(createRouteKey(subscription), key -> new Route());
+
+        Set<String> lineRefs = getLineRefFilter(subscription);
+        Set<String> vehicleRefs = getVehicleRefFilter(subscription);
+        if (!lineRefs.isEmpty()) {
+            lineRefs.forEach(lineRef -> route.byLineRef.computeIfAbsent(lineRef, key -> ConcurrentHashMap.newKeySet()).add(subscriptionId));
+        } else if (!vehicleRefs.isEmpty()) {
+            vehicleRefs.forEach(vehicleRef -> route.byVehicleRef.computeIfAbsent(vehicleRef, key -> ConcurrentHashMap.newKeySet()).add(subscriptionId));
+        } else {
+            route.unfiltered.add(subscriptionId);
+        }
+    }
+
+    public synchronized void remove(String subscriptionId) {
+        OutboundSubscriptionSetup subscription = subscriptions.remove(subscriptionId);
+        if (subscription == null) {
+            return;
+        }
+        RouteKey routeKey = createRouteKey(subscription);
+        Route route = routes.get(routeKey);
+        if (route == null) {
+            return;
+        }
+        route.unfiltered.remove(subscriptionId);
+        removeFromIndex(route.byLineRef, getLineRefFilter(subscription), subscriptionId);
+        removeFromIndex(route.byVehicleRef, getVehicleRefFilter(subscription), subscriptionId);
+        if (route.isEmpty()) {
+            routes.remove(routeKey);
+        }
+    }
+
+    /**
+     * @param dataType
+     * @param datasetId Dataset the elements belong to
+     * @param elements Added or updated elements
+     * @return Subscriptions that will get at least one of the elements
+     */
+    public List<OutboundSubscriptionSetup> findRecipients(SiriDataType dataType, String datasetId, Collection<?> elements) {
+        Set<String> recipientIds = new LinkedHashSet<>();
+        addRecipients(recipientIds, routes.get(new RouteKey(dataType, datasetId)), elements);
+        if (datasetId != null) {
+            // Subscriptions without datasetId get data from all datasets
+            addRecipients(recipientIds, routes.get(new RouteKey(dataType, null)), elements);
+        }
+
+        List<OutboundSubscriptionSetup> recipients = new ArrayList<>(recipientIds.size());
+        for (String subscriptionId : recipientIds) {
+            OutboundSubscriptionSetup subscription = subscriptions.get(subscriptionId);
+            if (subscription != null) {
+                recipients.add(subscription);
+            }
+        }
+        return recipients;
+    }
+
+    public boolean contains(String subscriptionId) {
+        return subscriptions.containsKey(subscriptionId);
+    }
+
+    public int size() {
+        return subscriptions.size();
+    }
+
+    private void addRecipients(Set<String> recipientIds, Route route, Collection<?> elements) {
+        if (route == null) {
+            return;
+        }
+        recipientIds.addAll(route.unfiltered);
+
+        if (route.byLineRef.isEmpty() && route.byVehicleRef.isEmpty()) {
+            return;
+        }
+        for (Object element : elements) {
+            String lineRef = getLineRef(element);
+            if (lineRef != null) {
+                addMatching(recipientIds, route.byLineRef.get(lineRef), element);
+            }
+            String vehicleRef = getVehicleRef(element);
+            if (vehicleRef != null) {
+                addMatching(recipientIds, route.byVehicleRef.get(vehicleRef), element);
+            }
+        }
+    }
+
+    /**
+     * Adds the subscriptions that match all filters for the element
+     */
+    private void addMatching(Set<String> recipientIds, Set<String> candidates, Object element) {
+        if (candidates == null) {
+            return;
+        }
+        for (String subscriptionId : candidates) {
+            if (recipientIds.contains(subscriptionId)) {
+                continue;
+            }
+            OutboundSubscriptionSetup subscription = subscriptions.get(subscriptionId);
+            if (subscription != null && isMatch(getLineRefFilter(subscription), getLineRef(element)) &&
+                    isMatch(getVehicleRefFilter(subscription), getVehicleRef(element))) {
+                recipientIds.add(subscriptionId);
+            }
+        }
+    }
+
+    private static boolean isMatch(Set<String> filter, String value) {
+        return filter.isEmpty() || (value != null && filter.contains(value));
+    }
+
+    private static void removeFromIndex(Map<String, Set<String>> index, Set<String> values, String subscriptionId) {
+        for (String value : values) {
+            index.computeIfPresent(value, (key, subscriptionIds) -> {
+                subscriptionIds.remove(subscriptionId);
+                return subscriptionIds.isEmpty() ? null : subscriptionIds;
+            });
+        }
+    }
+
+    private static RouteKey createRouteKey(OutboundSubscriptionSetup subscription) {
+        return new RouteKey(subscription.getSubscriptionType(), subscription.getDatasetId());
+    }
+
+    /**
+     * Only ET and VM are filtered by LineRef and VehicleRef with one possible match per element
+     */
+    private static boolean isFilteredByElement(OutboundSubscriptionSetup subscription) {
+        return subscription.getSubscriptionType() == SiriDataType.ESTIMATED_TIMETABLE ||
+                subscription.getSubscriptionType() == SiriDataType.VEHICLE_MONITORING;
+    }
+
+    private static Set<String> getLineRefFilter(OutboundSubscriptionSetup subscription) {
+        return getFilter(subscription, LineRef.class);
+    }
+
+    private static Set<String> getVehicleRefFilter(OutboundSubscriptionSetup subscription) {
+        return getFilter(subscription, VehicleRef.class);
+    }
+
+    private static Set<String> getFilter(OutboundSubscriptionSetup subscription, Class filterClass) {
+        if (!isFilteredByElement(subscription) || subscription.getFilterMap() == null) {
+            return Set.of();
+        }
+        Set<String> values = subscription.getFilterMap().get(filterClass);
+        return values != null ? values : Set.of();
+    }
+
+    private static String getLineRef(Object element) {
+        LineRef lineRef = null;
+        if (element instanceof EstimatedVehicleJourney journey) {
+            lineRef = journey.getLineRef();
+        } else if (element instanceof VehicleActivityStructure activity && activity.getMonitoredVehicleJourney() != null) {
+            lineRef = activity.getMonitoredVehicleJourney().getLineRef();
+        }
+        return lineRef != null ? lineRef.getValue() : null;
+    }
+
+    private static String getVehicleRef(Object element) {
+        VehicleRef vehicleRef = null;
+        if (element instanceof EstimatedVehicleJourney journey) {
+            vehicleRef = journey.getVehicleRef();
+        } else if (element instanceof VehicleActivityStructure activity && activity.getMonitoredVehicleJourney() != null) {
+            vehicleRef = activity.getMonitoredVehicleJourney().getVehicleRef();
+        }
+        return vehicleRef != null ? vehicleRef.getValue() : null;
+    }
+}
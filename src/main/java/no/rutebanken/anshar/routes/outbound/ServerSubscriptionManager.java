@@ -46,6 +46,7 @@ import uk.org.siri.siri21.SubscriptionRequest;
 import uk.org.siri.siri21.VehicleActivityStructure;
 import uk.org.siri.siri21.VehicleMonitoringSubscriptionStructure;
 
+import javax.annotation.PostConstruct;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
@@ -107,6 +108,14 @@ public class ServerSubscriptionManager {
     @Autowired
     private MappingAdapterPresets mappingAdapterPresets;
 
+    /**
+     * Recipients are found in a node-local index instead of reading all subscriptions from the shared map
+     */
+    @Value("${anshar.feature.outbound.routingIndex:false}")
+    private boolean FEATURE_TOGGLE_ROUTING_INDEX;
+
+    private OutboundSubscriptionIndex subscriptionIndex;
+
     ExecutorService outboundSenderExecutorService = Executors.newFixedThreadPool(100);
 
     @Produce(value = "direct:send.to.pubsub.topic.estimated_timetable")
@@ -128,6 +137,19 @@ public class ServerSubscriptionManager {
     private SiriHelper siriHelper;
 
 
+    @PostConstruct
+    private void initRoutingIndex() {
+        if (FEATURE_TOGGLE_ROUTING_INDEX) {
+            logger.info("Using local routing-index for outbound subscriptions");
+            subscriptionIndex = new OutboundSubscriptionIndex();
+            subscriptionIndex.bindTo(subscriptions);
+        }
+    }
+
+    OutboundSubscriptionIndex getSubscriptionIndex() {
+        return subscriptionIndex;
+    }
+
     public Collection getSubscriptions() {
         return Collections.unmodifiableCollection(subscriptions.values());
     }
@@ -336,6 +358,9 @@ public class ServerSubscriptionManager {
     }
 
     private void addSubscription(OutboundSubscriptionSetup subscription) {
+        if (subscriptionIndex != null) {
+            subscriptionIndex.add(subscription);
+        }
         subscriptions.put(subscription.getSubscriptionId(), subscription);
     }
 
@@ -343,7 +368,11 @@ public class ServerSubscriptionManager {
         logger.info("Removing subscription {}", subscriptionId);
         failTrackerMap.delete(subscriptionId);
         heartbeatTimestampMap.remove(subscriptionId);
-        return subscriptions.remove(subscriptionId);
+        OutboundSubscriptionSetup removed = subscriptions.remove(subscriptionId);
+        if (subscriptionIndex != null) {
+            subscriptionIndex.remove(subscriptionId);
+        }
+        return removed;
     }
 
     private String findSubscriptionIdentifier(SubscriptionRequest subscriptionRequest) {
@@ -477,29 +506,12 @@ public class ServerSubscriptionManager {
             siriVmTopicProducer.asyncRequestBodyAndHeader(siriVmTopicProducer.getDefaultEndpoint(), delivery, CODESPACE_ID_KAFKA_HEADER_NAME, datasetId);
         }
 
-        final List<OutboundSubscriptionSetup> recipients = subscriptions
-            .values()
-            .stream()
-            .filter(subscriptionRequest -> (
-                    subscriptionRequest.getSubscriptionType().equals(SiriDataType.VEHICLE_MONITORING)
-                        && (
-                        subscriptionRequest.getDatasetId() == null || (
-                            subscriptionRequest
-                                .getDatasetId()
-                                .equals(datasetId)
-                        )
-                    )
-                )
-
-            )
-            .collect(Collectors.toList());
+        final List<OutboundSubscriptionSetup> recipients = findRecipients(SiriDataType.VEHICLE_MONITORING, datasetId, addedOrUpdated);
 
         if (!recipients.isEmpty()) {
             logger.info("Pushing {} VM updates to {} outbound subscriptions", addedOrUpdated.size(), recipients.size());
 
-            for (OutboundSubscriptionSetup recipient : recipients) {
-                camelRouteManager.pushSiriData(delivery, recipient, false);
-            }
+            camelRouteManager.pushSiriData(delivery, recipients);
         }
 
         MDC.remove("camel.breadcrumbId");
@@ -520,29 +532,12 @@ public class ServerSubscriptionManager {
             siriSxTopicProducer.asyncRequestBodyAndHeader(siriSxTopicProducer.getDefaultEndpoint(), delivery, CODESPACE_ID_KAFKA_HEADER_NAME, datasetId);
         }
 
-        final List<OutboundSubscriptionSetup> recipients = subscriptions
-            .values()
-            .stream()
-            .filter(subscriptionRequest -> (
-                    subscriptionRequest.getSubscriptionType().equals(SiriDataType.SITUATION_EXCHANGE)
-                        && (
-                        subscriptionRequest.getDatasetId() == null || (
-                            subscriptionRequest
-                                .getDatasetId()
-                                .equals(datasetId)
-                        )
-                    )
-                )
-
-            )
-            .collect(Collectors.toList());
+        final List<OutboundSubscriptionSetup> recipients = findRecipients(SiriDataType.SITUATION_EXCHANGE, datasetId, addedOrUpdated);
 
         if (!recipients.isEmpty()) {
             logger.info("Pushing {} SX updates to {} outbound subscriptions", addedOrUpdated.size(), recipients.size());
 
-            for (OutboundSubscriptionSetup recipient : recipients) {
-                camelRouteManager.pushSiriData(delivery, recipient, false);
-            }
+            camelRouteManager.pushSiriData(delivery, recipients);
         }
 
         MDC.remove("camel.breadcrumbId");
@@ -562,29 +557,12 @@ public class ServerSubscriptionManager {
             siriEtTopicProducer.asyncRequestBodyAndHeader(siriEtTopicProducer.getDefaultEndpoint(), delivery, CODESPACE_ID_KAFKA_HEADER_NAME, datasetId);
         }
 
-        final List<OutboundSubscriptionSetup> recipients = subscriptions
-            .values()
-            .stream()
-            .filter(subscriptionRequest -> (
-                    subscriptionRequest.getSubscriptionType().equals(SiriDataType.ESTIMATED_TIMETABLE)
-                        && (
-                        subscriptionRequest.getDatasetId() == null || (
-                            subscriptionRequest
-                                .getDatasetId()
-                                .equals(datasetId)
-                        )
-                    )
-                )
-
-            )
-            .collect(Collectors.toList());
+        final List<OutboundSubscriptionSetup> recipients = findRecipients(SiriDataType.ESTIMATED_TIMETABLE, datasetId, addedOrUpdated);
 
         if (!recipients.isEmpty()) {
             logger.info("Pushing {} ET updates to {} outbound subscriptions", addedOrUpdated.size(), recipients.size());
 
-            for (OutboundSubscriptionSetup recipient : recipients) {
-                camelRouteManager.pushSiriData(delivery, recipient, false);
-            }
+            camelRouteManager.pushSiriData(delivery, recipients);
         }
         MDC.remove("camel.breadcrumbId");
     }
@@ -604,34 +582,42 @@ public class ServerSubscriptionManager {
                     delivery, CODESPACE_ID_KAFKA_HEADER_NAME, datasetId);
         }
 
-        final List<OutboundSubscriptionSetup> recipients = subscriptions
-                .values()
-                .stream()
-                .filter(subscriptionRequest -> (
-                                subscriptionRequest.getSubscriptionType().equals(SiriDataType.FACILITY_MONITORING)
-                                        && (
-                                        subscriptionRequest.getDatasetId() == null || (
-                                                subscriptionRequest
-                                                        .getDatasetId()
-                                                        .equals(datasetId)
-                                        )
-                                )
-                        )
-
-                )
-                .collect(Collectors.toList());
+        final List<OutboundSubscriptionSetup> recipients = findRecipients(SiriDataType.FACILITY_MONITORING, datasetId, addedOrUpdated);
 
         if (!recipients.isEmpty()) {
             logger.info("Pushing {} FM updates to {} outbound subscriptions", addedOrUpdated.size(), recipients.size());
 
-            for (OutboundSubscriptionSetup recipient : recipients) {
-                camelRouteManager.pushSiriData(delivery, recipient, false);
-            }
+            camelRouteManager.pushSiriData(delivery, recipients);
         }
 
         MDC.remove("camel.breadcrumbId");
     }
 
+    /**
+     * @return Subscriptions of the given type for the dataset
+     */
+    private List<OutboundSubscriptionSetup> findRecipients(SiriDataType dataType, String datasetId, List<?> addedOrUpdated) {
+        if (subscriptionIndex != null) {
+            return subscriptionIndex.findRecipients(dataType, datasetId, addedOrUpdated);
+        }
+        return subscriptions
+            .values()
+            .stream()
+            .filter(subscriptionRequest -> (
+                    subscriptionRequest.getSubscriptionType().equals(dataType)
+                        && (
+                        subscriptionRequest.getDatasetId() == null || (
+                            subscriptionRequest
+                                .getDatasetId()
+                                .equals(datasetId)
+                        )
+                    )
+                )
+
+            )
+            .collect(Collectors.toList());
+    }
+
     public void pushFailedForSubscription(String subscriptionId) {
         OutboundSubscriptionSetup outboundSubscriptionSetup = subscriptions.get(subscriptionId);
         if (outboundSubscriptionSetup != null) {
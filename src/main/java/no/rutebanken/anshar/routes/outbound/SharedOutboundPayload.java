@@ -0,0 +1,143 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
+import org.entur.siri.validator.SiriValidator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Serialized deliveries shared by outbound subscriptions that would otherwise get identical payloads.
+ *
+ * The deliveries are serialized once with a placeholder SubscriptionRef that is replaced with the
+ * subscriptionId of each recipient.
+ */
+class SharedOutboundPayload {
+
+    /**
+     * Subscriptions with equal keys get the same filtered, transformed and serialized payload
+     */
+    record GroupKey(Map<Class, Set<String>> filterMap, List<ValueAdapter> valueAdapters,
+                    SiriValidator.Version siriVersion, String datasetId) {
+    }
+
+    private final String placeholder;
+
+    private final byte[] placeholderBytes;
+
+    private final List<byte[]> deliveries;
+
+    SharedOutboundPayload(String placeholder, List<byte[]> deliveries) {
+        this.placeholder = placeholder;
+        this.placeholderBytes = placeholder.getBytes(StandardCharsets.UTF_8);
+        this.deliveries = deliveries;
+    }
+
+    /**
+     * @return Key for grouping the subscription, or null if the subscription must get its own payload
+     */
+    static GroupKey createGroupKey(OutboundSubscriptionSetup subscription) {
+        if (!isReplaceable(subscription.getSubscriptionId())) {
+            return null;
+        }
+        return new GroupKey(
+                subscription.getFilterMap(),
+                subscription.getValueAdapters(),
+                subscription.getSiriVersion(),
+                subscription.getDatasetId()
+        );
+    }
+
+    static String createPlaceholder() {
+        return "anshar-fanout-" + UUID.randomUUID();
+    }
+
+    /**
+     * Only ids that are written unescaped to the XML can be inserted into the serialized payload
+     */
+    static boolean isReplaceable(String subscriptionId) {
+        if (subscriptionId == null || subscriptionId.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < subscriptionId.length(); i++) {
+            char c = subscriptionId.charAt(i);
+            if (c < 0x20 || c > 0x7e || c == '&' || c == '<' || c == '>' || c == '"' || c == '\'') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String getPlaceholder() {
+        return placeholder;
+    }
+
+    int size() {
+        return deliveries.size();
+    }
+
+    /**
+     * @return Serialized delivery with the SubscriptionRef of the recipient, or null if the delivery contains no data
+     */
+    byte[] getDelivery(int index, String subscriptionId) {
+        byte[] delivery = deliveries.get(index);
+        if (delivery == null) {
+            return null;
+        }
+        return replace(delivery, placeholderBytes, subscriptionId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static byte[] replace(byte[] source, byte[] target, byte[] replacement) {
+        int count = 0;
+        for (int i = indexOf(source, target, 0); i >= 0; i = indexOf(source, target, i + target.length)) {
+            count++;
+        }
+        if (count == 0) {
+            return source;
+        }
+
+        byte[] result = new byte[source.length + count * (replacement.length - target.length)];
+        int sourcePos = 0;
+        int resultPos = 0;
+        for (int i = indexOf(source, target, 0); i >= 0; i = indexOf(source, target, sourcePos)) {
+            System.arraycopy(source, sourcePos, result, resultPos, i - sourcePos);
+            resultPos += i - sourcePos;
+            System.arraycopy(replacement, 0, result, resultPos, replacement.length);
+            resultPos += replacement.length;
+            sourcePos = i + target.length;
+        }
+        System.arraycopy(source, sourcePos, result, resultPos, source.length - sourcePos);
+        return result;
+    }
+
+    private static int indexOf(byte[] source, byte[] target, int fromIndex) {
+        outer:
+        for (int i = fromIndex; i <= source.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (source[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
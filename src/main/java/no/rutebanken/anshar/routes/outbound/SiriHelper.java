@@ -36,6 +36,7 @@ import uk.org.siri.siri21.FacilityConditionStructure;
 import uk.org.siri.siri21.LineDirectionStructure;
 import uk.org.siri.siri21.LineRef;
 import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.ServiceDelivery;
 import uk.org.siri.siri21.Siri;
 import uk.org.siri.siri21.SituationExchangeDeliveryStructure;
 import uk.org.siri.siri21.SituationExchangeRequestStructure;
@@ -264,6 +265,18 @@ public class SiriHelper {
     }
 
     public static Siri filterSiriPayload(Siri siri, Map<Class, Set<String>> filter) {
+        return filterSiriPayload(siri, filter, true);
+    }
+
+    /**
+     * @param siri
+     * @param filter
+     * @param copyElements If false, only the delivery-structures are copied - the filtered object references the
+     *                     matching elements of the original object. Shared elements must be treated as read-only,
+     *                     and must be copied before they are altered.
+     * @return Filtered copy of the object, or the original object if no filter is applied
+     */
+    public static Siri filterSiriPayload(Siri siri, Map<Class, Set<String>> filter, boolean copyElements) {
         if (filter == null || filter.isEmpty()) {
             logger.debug("No filter to apply");
             return siri;
@@ -273,7 +286,11 @@ public class SiriHelper {
 
             Siri filtered;
             try {
-                filtered = SiriObjectFactory.deepCopy(siri);
+                if (copyElements) {
+                    filtered = SiriObjectFactory.deepCopy(siri);
+                } else {
+                    filtered = copyDeliveryStructures(siri);
+                }
             } catch (Exception e) {
                 return siri;
             }
@@ -289,6 +306,32 @@ public class SiriHelper {
         return siri;
     }
 
+    /*
+     * Copies the structures holding the delivered elements - the elements are shared with the original object
+     */
+    private static Siri copyDeliveryStructures(Siri siri) {
+        Siri copy = SiriObjectFactory.shallowCopy(siri);
+        ServiceDelivery serviceDelivery = SiriObjectFactory.shallowCopy(siri.getServiceDelivery());
+        copy.setServiceDelivery(serviceDelivery);
+
+        serviceDelivery.getVehicleMonitoringDeliveries().replaceAll(SiriObjectFactory::shallowCopy);
+
+        serviceDelivery.getEstimatedTimetableDeliveries().replaceAll(delivery -> {
+            EstimatedTimetableDeliveryStructure deliveryCopy = SiriObjectFactory.shallowCopy(delivery);
+            deliveryCopy.getEstimatedJourneyVersionFrames().replaceAll(SiriObjectFactory::shallowCopy);
+            return deliveryCopy;
+        });
+
+        serviceDelivery.getSituationExchangeDeliveries().replaceAll(delivery -> {
+            SituationExchangeDeliveryStructure deliveryCopy = SiriObjectFactory.shallowCopy(delivery);
+            if (delivery.getSituations() != null) {
+                deliveryCopy.setSituations(SiriObjectFactory.shallowCopy(delivery.getSituations()));
+            }
+            return deliveryCopy;
+        });
+        return copy;
+    }
+
     /*
      * Filters elements with 1 - one - possible match per element
      */
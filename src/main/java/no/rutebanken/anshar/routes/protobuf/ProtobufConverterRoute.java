@@ -15,9 +15,12 @@
 package no.rutebanken.anshar.routes.protobuf;
 
 import no.rutebanken.anshar.data.collections.KryoSerializer;
+import org.apache.camel.Exchange;
 import org.apache.camel.builder.RouteBuilder;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
 import static org.apache.camel.Exchange.CONTENT_LENGTH;
@@ -27,74 +30,76 @@ public class ProtobufConverterRoute extends RouteBuilder {
 
     KryoSerializer kryoSerializer = new KryoSerializer();
 
+    private final QueuePayloadCodec queuePayloadCodec;
+
+    public ProtobufConverterRoute(@Value("${anshar.message.queue.compression:KRYO}") QueuePayloadCodec.Compression compression) {
+        queuePayloadCodec = new QueuePayloadCodec(kryoSerializer, compression);
+    }
+
     @Override
     public void configure() {
 
 
         from("direct:compress.jaxb")
-                .setBody(body().convertToString())
                 .process(p -> {
-                    final String body = fixEncodingErrorsInXml(p.getIn().getBody(String.class), p.getIn().getHeader("subscriptionId", String.class));
-                    p.getOut().setBody(body);
+                    final byte[] body = fixEncodingErrorsInXml(getXmlBytes(p), p.getIn().getHeader("subscriptionId", String.class));
+                    p.getOut().setBody(queuePayloadCodec.encode(body));
                     p.getOut().setHeaders(p.getIn().getHeaders());
-                    p.getOut().setHeader(CONTENT_LENGTH, body.getBytes(StandardCharsets.UTF_8).length);
+                    p.getOut().setHeader(CONTENT_LENGTH, body.length);
                 })
+        ;
+
+        // Parsed Siri-objects are encoded as is - avoids serializing to XML, and parsing again when consumed
+        from("direct:compress.siri")
                 .bean(kryoSerializer, "write")
         ;
 
         from("direct:decompress.jaxb")
-                .bean(kryoSerializer, "read")
                 .process(p -> {
-                    final String body = p.getIn().getBody(String.class);
-                    p.getOut().setBody(body);
+                    final byte[] encoded = p.getIn().getBody(byte[].class);
+                    final Object decoded = queuePayloadCodec.decode(encoded);
+                    p.getOut().setBody(decoded);
                     p.getOut().setHeaders(p.getIn().getHeaders());
                 })
         ;
 
     }
 
-    /*
-     * Temporarily replaces characters when receiving data created by wrong encoding - KOLDATA-479
+    /**
+     * Returns body as UTF-8 encoded bytes - bodies received with a different charset are converted
      */
-    private String fixEncodingErrorsInXml(String body, String subscriptionId) {
-
+    private static byte[] getXmlBytes(Exchange exchange) {
+        final Object body = exchange.getIn().getBody();
         if (body == null) {
             // This should never happen (!), keeping it for now, but should be removed
-            body = "";
-            log.warn("Body is null!!!");
-        }
-
-        boolean replacedChars = false;
-        if (body.indexOf("Ã¦") >= 0) {
-            body = body.replaceAll("Ã¦", "æ");
-            replacedChars = true;
+            return new byte[0];
         }
-        if (body.indexOf("Ã†") >= 0) {
-            body = body.replaceAll("Ã†", "Æ");
-            replacedChars = true;
+        if (body instanceof String s) {
+            return s.getBytes(StandardCharsets.UTF_8);
         }
-        if (body.indexOf("Ã¸") >= 0) {
-            body = body.replaceAll("Ã¸", "ø");
-            replacedChars = true;
+        final String charset = exchange.getProperty(Exchange.CHARSET_NAME, String.class);
+        if (charset != null && !StandardCharsets.UTF_8.equals(Charset.forName(charset))) {
+            return exchange.getIn().getBody(String.class).getBytes(StandardCharsets.UTF_8);
         }
-        if (body.indexOf("Ã\u0098") >= 0) {
-            body = body.replaceAll("Ã\u0098", "Ø");
-            replacedChars = true;
-        }
-        if (body.indexOf("Ã¥") >= 0) {
-            body = body.replaceAll("Ã¥", "å");
-            replacedChars = true;
-        }
-        if (body.indexOf("Ã\u0085") >= 0) {
-            body = body.replaceAll("Ã\u0085", "Å");
-            replacedChars = true;
+        return exchange.getIn().getBody(byte[].class);
+    }
+
+    /*
+     * Temporarily replaces characters when receiving data created by wrong encoding - KOLDATA-479
+     */
+    private byte[] fixEncodingErrorsInXml(byte[] body, String subscriptionId) {
+
+        if (body.length == 0) {
+            log.warn("Body is null!!!");
+            return body;
         }
 
-        if (replacedChars) {
+        final byte[] fixed = QueuePayloadCodec.fixEncodingErrors(body);
+
+        if (fixed != body) {
             log.info("Fixed encoding errors for subscriptionId: {}", subscriptionId);
         }
 
-        return body;
+        return fixed;
     }
 }
-
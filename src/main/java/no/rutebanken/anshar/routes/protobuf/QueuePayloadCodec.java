@@ -0,0 +1,245 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.protobuf;
+
+import no.rutebanken.anshar.data.collections.KryoSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes XML-payloads put on the message-queue as bytes, without going through String or Kryo.
+ *
+ * Encoded payloads start with a header:
+ * <pre>
+ *   [MAGIC][VERSION][compression][uncompressed length - 4 bytes]
+ * </pre>
+ * Payloads without the header are Kryo-encoded by {@link KryoSerializer} - i.e. messages queued by earlier versions -
+ * and are decoded as before.
+ */
+public class QueuePayloadCodec {
+
+    // Deflate-streams written by KryoSerializer always start with 0x78
+    static final byte MAGIC = (byte) 0xA5;
+    static final byte VERSION = 1;
+    static final int HEADER_LENGTH = 7;
+
+    private static final int POOL_SIZE = 32;
+
+    public enum Compression {
+        /**
+         * Queued as Kryo-encoded String - compatible with earlier versions
+         */
+        KRYO(-1),
+        NONE(0),
+        DEFLATE(1);
+
+        private final byte id;
+
+        Compression(int id) {
+            this.id = (byte) id;
+        }
+
+        static Compression fromId(byte id) {
+            for (Compression compression : values()) {
+                if (compression != KRYO && compression.id == id) {
+                    return compression;
+                }
+            }
+            throw new IllegalArgumentException("Unknown compression " + id);
+        }
+    }
+
+    private final Queue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final Queue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private final KryoSerializer kryoSerializer;
+
+    private final Compression compression;
+
+    public QueuePayloadCodec(KryoSerializer kryoSerializer, Compression compression) {
+        this.kryoSerializer = kryoSerializer;
+        this.compression = compression;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param xml UTF-8 encoded XML
+     */
+    public byte[] encode(byte[] xml) {
+        return switch (compression) {
+            case KRYO -> kryoSerializer.write(new String(xml, StandardCharsets.UTF_8));
+            case NONE -> withHeader(xml);
+            case DEFLATE -> deflate(xml);
+        };
+    }
+
+    /**
+     * @return UTF-8 encoded XML as byte[], or the decoded object if the payload is Kryo-encoded
+     */
+    public Object decode(byte[] encoded) {
+        if (!hasHeader(encoded)) {
+            return kryoSerializer.read(encoded);
+        }
+        if (encoded[1] != VERSION) {
+            throw new IllegalArgumentException("Unsupported payload version " + encoded[1]);
+        }
+        int length = ((encoded[3] & 0xFF) << 24) | ((encoded[4] & 0xFF) << 16) | ((encoded[5] & 0xFF) << 8) | (encoded[6] & 0xFF);
+
+        return switch (Compression.fromId(encoded[2])) {
+            case NONE -> Arrays.copyOfRange(encoded, HEADER_LENGTH, HEADER_LENGTH + length);
+            case DEFLATE -> inflate(encoded, length);
+            case KRYO -> throw new IllegalStateException();
+        };
+    }
+
+    static boolean hasHeader(byte[] encoded) {
+        return encoded.length >= HEADER_LENGTH && encoded[0] == MAGIC;
+    }
+
+    private byte[] deflate(byte[] xml) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater();
+        }
+        try {
+            deflater.setInput(xml);
+            deflater.finish();
+
+            byte[] buffer = new byte[HEADER_LENGTH + Math.max(64, xml.length / 4)];
+            int position = HEADER_LENGTH;
+            while (!deflater.finished()) {
+                if (position == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                position += deflater.deflate(buffer, position, buffer.length - position);
+            }
+            writeHeader(buffer, Compression.DEFLATE, xml.length);
+            return Arrays.copyOf(buffer, position);
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    private byte[] inflate(byte[] encoded, int length) {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(encoded, HEADER_LENGTH, encoded.length - HEADER_LENGTH);
+
+            byte[] xml = new byte[length];
+            int position = 0;
+            while (position < length && !inflater.finished()) {
+                int inflated = inflater.inflate(xml, position, length - position);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated payload");
+                }
+                position += inflated;
+            }
+            return xml;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid payload", e);
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static byte[] withHeader(byte[] xml) {
+        byte[] encoded = new byte[HEADER_LENGTH + xml.length];
+        writeHeader(encoded, Compression.NONE, xml.length);
+        System.arraycopy(xml, 0, encoded, HEADER_LENGTH, xml.length);
+        return encoded;
+    }
+
+    private static void writeHeader(byte[] encoded, Compression compression, int length) {
+        encoded[0] = MAGIC;
+        encoded[1] = VERSION;
+        encoded[2] = compression.id;
+        encoded[3] = (byte) (length >>> 24);
+        encoded[4] = (byte) (length >>> 16);
+        encoded[5] = (byte) (length >>> 8);
+        encoded[6] = (byte) length;
+    }
+
+    /**
+     * Replaces characters created by wrong encoding - i.e. UTF-8 that has been decoded as ISO-8859-1/Windows-1252 and
+     * encoded as UTF-8 again - KOLDATA-479.
+     *
+     * Done in one pass over the bytes - the original array is returned if nothing is replaced.
+     *
+     * @param xml UTF-8 encoded XML
+     */
+    public static byte[] fixEncodingErrors(byte[] xml) {
+        byte[] fixed = null;
+        int position = 0;
+
+        int i = 0;
+        while (i < xml.length) {
+            int matched = 0;
+            byte replacement = 0;
+
+            // "Ã" followed by the misencoded second byte of æ, Æ, ø, Ø, å or Å
+            if (xml[i] == (byte) 0xC3 && i + 3 < xml.length && xml[i + 1] == (byte) 0x83) {
+                byte next = xml[i + 2];
+                byte last = xml[i + 3];
+                if (next == (byte) 0xC2 && (last == (byte) 0xA6 || last == (byte) 0xB8 || last == (byte) 0x98 ||
+                        last == (byte) 0xA5 || last == (byte) 0x85)) {
+                    // Ã¦ -> æ, Ã¸ -> ø, Ã\u0098 -> Ø, Ã¥ -> å, Ã\u0085 -> Å
+                    matched = 4;
+                    replacement = last;
+                } else if (next == (byte) 0xE2 && i + 4 < xml.length && last == (byte) 0x80 && xml[i + 4] == (byte) 0xA0) {
+                    // Ã† -> Æ
+                    matched = 5;
+                    replacement = (byte) 0x86;
+                }
+            }
+
+            if (matched == 0) {
+                if (fixed != null) {
+                    fixed[position++] = xml[i];
+                }
+                i++;
+                continue;
+            }
+
+            if (fixed == null) {
+                fixed = new byte[xml.length];
+                System.arraycopy(xml, 0, fixed, 0, i);
+                position = i;
+            }
+            fixed[position++] = (byte) 0xC3;
+            fixed[position++] = replacement;
+            i += matched;
+        }
+
+        return fixed != null ? Arrays.copyOf(fixed, position) : xml;
+    }
+}
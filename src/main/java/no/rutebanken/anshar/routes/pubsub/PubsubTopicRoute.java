@@ -15,6 +15,7 @@
 package no.rutebanken.anshar.routes.pubsub;
 
 import no.rutebanken.anshar.routes.avro.AvroConvertorProcessor;
+import no.rutebanken.anshar.routes.messaging.SiriXmlSplitter;
 import org.apache.camel.builder.RouteBuilder;
 import org.entur.avro.realtime.siri.model.SiriRecord;
 import org.entur.siri21.util.SiriXml;
@@ -58,8 +59,7 @@ public class PubsubTopicRoute extends RouteBuilder {
             from("direct:send.to.pubsub.topic.estimated_timetable")
                     .to("direct:siri.transform.data")
                     .choice().when(body().isNotNull())
-                        .to("xslt-saxon:xsl/split.xsl")
-                        .split().tokenizeXML("Siri").streaming()
+                        .split(method(SiriXmlSplitter.ALL, "splitBody")).streaming()
                         .wireTap("direct:publish.et.avro")        // Publish as Avro
                         .to("direct:publish.et.xml")        // Publish as XML
                     .end()
@@ -85,8 +85,7 @@ public class PubsubTopicRoute extends RouteBuilder {
                                 }
                             }
                         })
-                        .to("xslt-saxon:xsl/split.xsl")
-                        .split().tokenizeXML("Siri").streaming()
+                        .split(method(SiriXmlSplitter.ALL, "splitBody")).streaming()
                         .to("direct:publish.vm.avro")// Publish as Avro
                     .end()
             ;
@@ -98,8 +97,7 @@ public class PubsubTopicRoute extends RouteBuilder {
             from("direct:send.to.pubsub.topic.situation_exchange")
                     .to("direct:siri.transform.data")
                     .choice().when(body().isNotNull())
-                        .to("xslt-saxon:xsl/split.xsl")
-                        .split().tokenizeXML("Siri").streaming()
+                        .split(method(SiriXmlSplitter.ALL, "splitBody")).streaming()
                         .wireTap("direct:publish.sx.avro")// Publish as Avro
                         .to("direct:publish.sx.xml")        // Publish as XML
                     .end()
@@ -112,8 +110,7 @@ public class PubsubTopicRoute extends RouteBuilder {
             from("direct:send.to.pubsub.topic.facility_monitoring")
                     .to("direct:siri.transform.data")
                     .choice().when(body().isNotNull())
-                        .to("xslt-saxon:xsl/split.xsl")
-                        .split().tokenizeXML("Siri").streaming()
+                        .split(method(SiriXmlSplitter.ALL, "splitBody")).streaming()
 //                        .wireTap("direct:publish.sx.avro")// Publish as Avro
                         .to("direct:publish.fm.xml")        // Publish as XML
                     .end()
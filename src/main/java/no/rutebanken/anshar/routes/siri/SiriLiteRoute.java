@@ -17,6 +17,8 @@ package no.rutebanken.anshar.routes.siri;
 
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.data.EstimatedTimetables;
 import no.rutebanken.anshar.data.Facilities;
@@ -26,8 +28,8 @@ import no.rutebanken.anshar.metrics.PrometheusMetricsService;
 import no.rutebanken.anshar.routes.RestRouteBuilder;
 import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
 import no.rutebanken.anshar.routes.siri.handlers.SiriHandler;
+import no.rutebanken.anshar.routes.siri.helpers.EstimatedTimetableFragmentCache;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
-import no.rutebanken.anshar.routes.siri.transformer.SiriValueTransformer;
 import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
 import no.rutebanken.anshar.subscription.SiriDataType;
 import no.rutebanken.anshar.subscription.SubscriptionSetup;
@@ -40,6 +42,7 @@ import org.springframework.stereotype.Service;
 import uk.org.siri.siri21.Siri;
 import uk.org.siri.siri21.VehicleActivityStructure;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -79,6 +82,9 @@ public class SiriLiteRoute extends RestRouteBuilder {
     @Autowired
     private MappingAdapterPresets mappingAdapterPresets;
 
+    @Autowired
+    private EstimatedTimetableFragmentCache estimatedTimetableFragmentCache;
+
     @Override
     public void configure() throws Exception {
         super.configure();
@@ -142,12 +148,11 @@ public class SiriLiteRoute extends RestRouteBuilder {
                         if ("test".equals(originalId)) {
                             outboundAdapters = null;
                         }
-                        response = SiriValueTransformer.transform(response, outboundAdapters, false, false);
 
                         metrics.countOutgoingData(response, SubscriptionSetup.SubscriptionMode.LITE);
 
                         HttpServletResponse out = p.getIn().getBody(HttpServletResponse.class);
-                        streamOutput(p, response, out);
+                        streamOutput(p, response, outboundAdapters, false, false, out);
                     })
                     .log("RequestTracer - Request done (SX)")
                 .otherwise()
@@ -180,12 +185,10 @@ public class SiriLiteRoute extends RestRouteBuilder {
                             OutboundIdMappingPolicy.DEFAULT
                         );
 
-                        response = SiriValueTransformer.transform(response, outboundAdapters, false, false);
-
                         metrics.countOutgoingData(response, SubscriptionSetup.SubscriptionMode.LITE);
 
                         HttpServletResponse out = p.getIn().getBody(HttpServletResponse.class);
-                        streamOutput(p, response, out);
+                        streamOutput(p, response, outboundAdapters, false, false, out);
                     })
                     .log("RequestTracer - Request done (FM)")
                 .otherwise()
@@ -232,13 +235,12 @@ public class SiriLiteRoute extends RestRouteBuilder {
                         if ("test".equals(originalId)) {
                             outboundAdapters = null;
                         }
-                        response = SiriValueTransformer.transform(response, outboundAdapters, false, false);
 
                         metrics.countOutgoingData(response, SubscriptionSetup.SubscriptionMode.LITE);
 
                         HttpServletResponse out = p.getIn().getBody(HttpServletResponse.class);
 
-                        streamOutput(p, response, out);
+                        streamOutput(p, response, outboundAdapters, false, false, out);
                     })
                     .log("RequestTracer - Request done (VM)")
                 .otherwise()
@@ -292,13 +294,12 @@ public class SiriLiteRoute extends RestRouteBuilder {
                         if ("test".equals(originalId)) {
                             outboundAdapters = null;
                         }
-                        response = SiriValueTransformer.transform(response, outboundAdapters, false, false);
 
                         metrics.countOutgoingData(response, SubscriptionSetup.SubscriptionMode.LITE);
 
                         HttpServletResponse out = p.getIn().getBody(HttpServletResponse.class);
 
-                        streamOutput(p, response, out);
+                        streamOutput(p, response, outboundAdapters, false, false, out);
                     })
                     .log("RequestTracer - Request done (ET)")
                 .otherwise()
@@ -314,6 +315,27 @@ public class SiriLiteRoute extends RestRouteBuilder {
                 .process(p -> {
 
 
+                    HttpServletResponse out = p.getIn().getBody(HttpServletResponse.class);
+
+                    if (estimatedTimetableFragmentCache.isEnabled() && !isAvroRequested(p)) {
+                        logger.info("Fetching monitored ET-data from fragment-cache");
+                        Siri envelope = siriObjectFactory.createETServiceDelivery(new ArrayList<>());
+                        boolean json = isJsonRequested(p);
+                        p.getMessage().setHeader(HttpHeaders.CONTENT_TYPE, json ? MediaType.APPLICATION_JSON : MediaType.APPLICATION_XML);
+
+                        int count = estimatedTimetableFragmentCache.write(envelope,
+                                estimatedTimetables.getAllMonitoredKeys(),
+                                OutboundIdMappingPolicy.DEFAULT,
+                                isSiri21Requested(p),
+                                json,
+                                out.getOutputStream()
+                        );
+
+                        metrics.countOutgoingData(SiriDataType.ESTIMATED_TIMETABLE, SubscriptionSetup.SubscriptionMode.LITE, count);
+                        logger.info("Done processing monitored ET-data");
+                        return;
+                    }
+
                     logger.info("Fetching monitored ET-data");
                     Siri response = siriObjectFactory.createETServiceDelivery(estimatedTimetables.getAllMonitored());
 
@@ -322,14 +344,10 @@ public class SiriLiteRoute extends RestRouteBuilder {
                                                                                     OutboundIdMappingPolicy.DEFAULT
                                                                                 );
 
-                    logger.info("Transforming monitored ET-data");
-                    response = SiriValueTransformer.transform(response, outboundAdapters, false, true);
-
                     metrics.countOutgoingData(response, SubscriptionSetup.SubscriptionMode.LITE);
 
-                    HttpServletResponse out = p.getIn().getBody(HttpServletResponse.class);
                     logger.info("Streaming monitored ET-data");
-                    streamOutput(p, response, out);
+                    streamOutput(p, response, outboundAdapters, false, true, out);
                     logger.info("Done processing monitored ET-data");
                 })
                 .log("RequestTracer - Request done (ET)")
@@ -358,15 +376,12 @@ public class SiriLiteRoute extends RestRouteBuilder {
                                                                                         OutboundIdMappingPolicy.DEFAULT
                                                                                     );
 
-                        logger.info("Transforming cached SX-data");
-                        response = SiriValueTransformer.transform(response, outboundAdapters, false, false);
-
                         metrics.countOutgoingData(response, SubscriptionSetup.SubscriptionMode.LITE);
 
                         HttpServletResponse out = p.getIn().getBody(HttpServletResponse.class);
 
                         logger.info("Streaming cached SX-data");
-                        streamOutput(p, response, out);
+                        streamOutput(p, response, outboundAdapters, false, false, out);
                         logger.info("Done processing cached SX-data");
                     })
                     .log("RequestTracer - Request done (SX)")
@@ -395,15 +410,12 @@ public class SiriLiteRoute extends RestRouteBuilder {
                             OutboundIdMappingPolicy.DEFAULT
                     );
 
-                    logger.info("Transforming cached FM-data");
-                    response = SiriValueTransformer.transform(response, outboundAdapters, false, false);
-
                     metrics.countOutgoingData(response, SubscriptionSetup.SubscriptionMode.LITE);
 
                     HttpServletResponse out = p.getIn().getBody(HttpServletResponse.class);
 
                     logger.info("Streaming cached FM-data");
-                    streamOutput(p, response, out);
+                    streamOutput(p, response, outboundAdapters, false, false, out);
                     logger.info("Done processing cached FM-data");
                 })
                 .log("RequestTracer - Request done (FM)")
@@ -447,15 +459,12 @@ public class SiriLiteRoute extends RestRouteBuilder {
                                                                                         OutboundIdMappingPolicy.DEFAULT
                                                                                     );
 
-                        logger.info("Transforming cached VM-data");
-                        response = SiriValueTransformer.transform(response, outboundAdapters, false, false);
-
                         metrics.countOutgoingData(response, SubscriptionSetup.SubscriptionMode.LITE);
 
                         HttpServletResponse out = p.getIn().getBody(HttpServletResponse.class);
 
                         logger.info("Streaming cached VM-data");
-                        streamOutput(p, response, out);
+                        streamOutput(p, response, outboundAdapters, false, false, out);
                         logger.info("Done processing cached VM-data");
                     })
                     .log("RequestTracer - Request done (VM)")
@@ -486,15 +495,12 @@ public class SiriLiteRoute extends RestRouteBuilder {
                             OutboundIdMappingPolicy.DEFAULT
                     );
 
-                    logger.info("Transforming cached ET-data");
-                    response = SiriValueTransformer.transform(response, outboundAdapters, true, false);
-
                     metrics.countOutgoingData(response, SubscriptionSetup.SubscriptionMode.LITE);
 
                     HttpServletResponse out = p.getIn().getBody(HttpServletResponse.class);
 
                     logger.info("Streaming cached ET-data");
-                    streamOutput(p, response, out);
+                    streamOutput(p, response, outboundAdapters, true, false, out);
                     logger.info("Done processing cached ET-data");
                 })
                 .log("RequestTracer - Request done (ET)")
@@ -522,15 +528,12 @@ public class SiriLiteRoute extends RestRouteBuilder {
                     OutboundIdMappingPolicy.DEFAULT
                 );
 
-                logger.info("Transforming cached ET-data");
-                response = SiriValueTransformer.transform(response, outboundAdapters, false, true);
-
                 metrics.countOutgoingData(response, SubscriptionSetup.SubscriptionMode.LITE);
 
                 HttpServletResponse out = p.getIn().getBody(HttpServletResponse.class);
 
                 logger.info("Streaming cached ET-data");
-                streamOutput(p, response, out);
+                streamOutput(p, response, outboundAdapters, false, true, out);
                 logger.info("Done processing cached ET-data");
             })
             .log("RequestTracer - Request done (ET)")
@@ -0,0 +1,423 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.handlers;
+
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.Unmarshaller;
+import org.entur.siri21.util.SiriXml;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.FacilityConditionStructure;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.ServiceDelivery;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.VehicleActivityStructure;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Reads a ServiceDelivery element by element, and passes the elements on in chunks - each chunk is a separate Siri-
+ * object with a copy of all headers of the ServiceDelivery, the delivery and the frame containing the elements,
+ * including SubscriptionRef, RequestMessageRef, MoreData, Status and ErrorCondition.
+ *
+ * Each element is unmarshalled directly from the stream, so only the current chunk is kept in memory - large
+ * deliveries are processed without materializing the complete delivery first.
+ *
+ * Headers are expected before the elements, as defined by the SIRI-schema - a header following the elements is only
+ * included in chunks read after it. Deliveries of other types are passed on unaltered as a separate chunk.
+ */
+class SiriChunkReader {
+
+    private static final String SIRI_NS = "http://www.siri.org.uk/siri";
+
+    private static final String SIRI_START = "<Siri xmlns=\"" + SIRI_NS + "\" version=\"2.0\">";
+
+    // Max number of bytes read when checking the type of message
+    private static final int PEEK_LIMIT = 256 * 1024;
+
+    private static final XMLInputFactory xmlInputFactory = createInputFactory();
+
+    private static final XMLOutputFactory xmlOutputFactory = createOutputFactory();
+
+    private static JAXBContext jaxbContext;
+
+    /**
+     * Deliveries that are read in chunks
+     */
+    private enum Content {
+        ESTIMATED_TIMETABLE("EstimatedTimetableDelivery", "EstimatedJourneyVersionFrame", "EstimatedVehicleJourney",
+                EstimatedVehicleJourney.class, serviceDelivery -> serviceDelivery.getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies()),
+        VEHICLE_MONITORING("VehicleMonitoringDelivery", null, "VehicleActivity",
+                VehicleActivityStructure.class, serviceDelivery -> serviceDelivery.getVehicleMonitoringDeliveries().get(0)
+                .getVehicleActivities()),
+        SITUATION_EXCHANGE("SituationExchangeDelivery", "Situations", "PtSituationElement",
+                PtSituationElement.class, serviceDelivery -> serviceDelivery.getSituationExchangeDeliveries().get(0)
+                .getSituations().getPtSituationElements()),
+        FACILITY_MONITORING("FacilityMonitoringDelivery", null, "FacilityCondition",
+                FacilityConditionStructure.class, serviceDelivery -> serviceDelivery.getFacilityMonitoringDeliveries().get(0)
+                .getFacilityConditions());
+
+        private final String delivery;
+        private final String container;
+        private final String element;
+        private final Class<?> type;
+        private final Function<ServiceDelivery, List<?>> elements;
+
+        Content(String delivery, String container, String element, Class<?> type, Function<ServiceDelivery, List<?>> elements) {
+            this.delivery = delivery;
+            this.container = container;
+            this.element = element;
+            this.type = type;
+            this.elements = elements;
+        }
+
+        static Content of(String delivery) {
+            for (Content content : values()) {
+                if (content.delivery.equals(delivery)) {
+                    return content;
+                }
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        void add(Siri chunk, Object value) {
+            ((List<Object>) elements.apply(chunk.getServiceDelivery())).add(value);
+        }
+    }
+
+    private final XMLStreamReader reader;
+    private final Unmarshaller unmarshaller;
+    private final int chunkSize;
+    private final Consumer<Siri> consumer;
+
+    // Number of open elements - Siri, ServiceDelivery, delivery and frame
+    private int depth;
+
+    private final StringBuilder serviceDeliveryHeader = new StringBuilder();
+
+    private Content content;
+    // Start-tag and headers of the current delivery
+    private StringBuilder deliveryHeader;
+    // Start-tag and headers of the current frame, or null
+    private StringBuilder containerHeader;
+    // Headers of current chunk, created when the first element is read after a header has changed
+    private String template;
+
+    private Siri chunk;
+    private int chunkCount;
+    private int deliveryChunks;
+    private int total;
+
+    private SiriChunkReader(XMLStreamReader reader, Unmarshaller unmarshaller, int chunkSize, Consumer<Siri> consumer) {
+        this.reader = reader;
+        this.unmarshaller = unmarshaller;
+        this.chunkSize = chunkSize;
+        this.consumer = consumer;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    private static XMLOutputFactory createOutputFactory() {
+        XMLOutputFactory factory = XMLOutputFactory.newInstance();
+        factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+        return factory;
+    }
+
+    private static synchronized JAXBContext getJaxbContext() throws JAXBException {
+        if (jaxbContext == null) {
+            jaxbContext = JAXBContext.newInstance(Siri.class);
+        }
+        return jaxbContext;
+    }
+
+    /**
+     * Checks if the message is a ServiceDelivery - the stream is reset to its start afterwards.
+     */
+    static boolean isServiceDelivery(BufferedInputStream xml) throws IOException {
+        xml.mark(PEEK_LIMIT);
+        try {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(xml);
+            try {
+                int depth = 0;
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        depth++;
+                        if (depth == 2) {
+                            return SIRI_NS.equals(reader.getNamespaceURI()) && "ServiceDelivery".equals(reader.getLocalName());
+                        }
+                    }
+                }
+                return false;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            // Invalid XML is handled by regular parsing
+            return false;
+        } finally {
+            xml.reset();
+        }
+    }
+
+    /**
+     * Reads ServiceDelivery, and passes elements on in chunks of the given size
+     *
+     * @param xml ServiceDelivery
+     * @param chunkSize Max number of elements per chunk
+     * @param consumer Called once per chunk
+     * @return Total number of elements read
+     */
+    static int read(InputStream xml, int chunkSize, Consumer<Siri> consumer) throws XMLStreamException, JAXBException {
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(xml);
+        try {
+            return new SiriChunkReader(reader, getJaxbContext().createUnmarshaller(), chunkSize, consumer).read();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private int read() throws XMLStreamException, JAXBException {
+        int event = reader.getEventType();
+        while (event != XMLStreamConstants.END_DOCUMENT) {
+            boolean unmarshalled = false;
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                unmarshalled = startElement();
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                endElement();
+            }
+            // The unmarshaller leaves the reader at the event following the element
+            event = unmarshalled ? reader.getEventType() : reader.next();
+        }
+        return total;
+    }
+
+    /**
+     * Handles element at current position - headers are copied, and elements are unmarshalled and added to the
+     * current chunk.
+     *
+     * @return true if the element was unmarshalled
+     */
+    private boolean startElement() throws XMLStreamException, JAXBException {
+        String name = SIRI_NS.equals(reader.getNamespaceURI()) ? reader.getLocalName() : null;
+
+        switch (depth) {
+            case 0:
+            case 1:
+                // Siri and ServiceDelivery
+                depth++;
+                return false;
+            case 2:
+                if (name != null && name.endsWith("Delivery")) {
+                    content = Content.of(name);
+                    if (content == null) {
+                        // Not read in chunks
+                        consumer.accept(parse(serviceDelivery(copy())));
+                        return false;
+                    }
+                    deliveryHeader = new StringBuilder(startTag(name));
+                    deliveryChunks = 0;
+                    template = null;
+                    depth++;
+                } else {
+                    serviceDeliveryHeader.append(copy());
+                }
+                return false;
+            case 3:
+                if (content.container == null && content.element.equals(name)) {
+                    addElement();
+                    return true;
+                }
+                flushChunk();
+                template = null;
+                if (content.container != null && content.container.equals(name)) {
+                    containerHeader = new StringBuilder(startTag(name));
+                    depth++;
+                } else {
+                    deliveryHeader.append(copy());
+                }
+                return false;
+            default:
+                if (content.element.equals(name)) {
+                    addElement();
+                    return true;
+                }
+                flushChunk();
+                template = null;
+                containerHeader.append(copy());
+                return false;
+        }
+    }
+
+    private void endElement() throws XMLStreamException, JAXBException {
+        depth--;
+        if (depth == 3) {
+            flushChunk();
+            containerHeader = null;
+            template = null;
+        } else if (depth == 2) {
+            flushChunk();
+            if (deliveryChunks == 0) {
+                // Delivery without elements, e.g. only reporting Status and ErrorCondition
+                consumer.accept(createChunk());
+            }
+            content = null;
+            deliveryHeader = null;
+        }
+    }
+
+    private void addElement() throws XMLStreamException, JAXBException {
+        Object element = unmarshaller.unmarshal(reader, content.type).getValue();
+        if (chunk == null) {
+            chunk = createChunk();
+        }
+        content.add(chunk, element);
+        total++;
+        if (++chunkCount >= chunkSize) {
+            flushChunk();
+        }
+    }
+
+    private void flushChunk() {
+        if (chunk != null) {
+            consumer.accept(chunk);
+            deliveryChunks++;
+            chunk = null;
+            chunkCount = 0;
+        }
+    }
+
+    /**
+     * @return New chunk with the current headers, and no elements
+     */
+    private Siri createChunk() throws XMLStreamException, JAXBException {
+        if (template == null) {
+            StringBuilder delivery = new StringBuilder(deliveryHeader);
+            if (containerHeader != null) {
+                delivery.append(containerHeader).append("</").append(content.container).append('>');
+            }
+            template = serviceDelivery(delivery.append("</").append(content.delivery).append('>').toString());
+        }
+        return parse(template);
+    }
+
+    private String serviceDelivery(String delivery) {
+        return SIRI_START + "<ServiceDelivery>" + serviceDeliveryHeader + delivery + "</ServiceDelivery></Siri>";
+    }
+
+    private static Siri parse(String xml) throws XMLStreamException, JAXBException {
+        return SiriXml.parseXml(xml);
+    }
+
+    /**
+     * @return Start-tag of current element in the SIRI-namespace, with all unqualified attributes
+     */
+    private String startTag(String name) {
+        StringBuilder xml = new StringBuilder("<").append(name);
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String namespace = reader.getAttributeNamespace(i);
+            if (namespace == null || namespace.isEmpty()) {
+                xml.append(' ').append(reader.getAttributeLocalName(i)).append("=\"");
+                escape(xml, reader.getAttributeValue(i));
+                xml.append('"');
+            }
+        }
+        return xml.append('>').toString();
+    }
+
+    /**
+     * Copies current element, including all children, and leaves the reader at the end of the element
+     */
+    private String copy() throws XMLStreamException {
+        StringWriter xml = new StringWriter();
+        XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(xml);
+
+        int elements = 0;
+        int event = XMLStreamConstants.START_ELEMENT;
+        while (true) {
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    writer.writeStartElement(nullToEmpty(reader.getPrefix()), reader.getLocalName(), nullToEmpty(reader.getNamespaceURI()));
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        writer.writeNamespace(nullToEmpty(reader.getNamespacePrefix(i)), nullToEmpty(reader.getNamespaceURI(i)));
+                    }
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        writer.writeAttribute(nullToEmpty(reader.getAttributePrefix(i)), nullToEmpty(reader.getAttributeNamespace(i)),
+                                reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                    }
+                    elements++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.writeEndElement();
+                    if (--elements == 0) {
+                        writer.close();
+                        return xml.toString();
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    writer.writeCharacters(reader.getText());
+                    break;
+                default:
+                    // Comments and processing-instructions are not copied
+                    break;
+            }
+            event = reader.next();
+        }
+    }
+
+    private static String nullToEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    private static void escape(StringBuilder xml, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    xml.append("&amp;");
+                    break;
+                case '<':
+                    xml.append("&lt;");
+                    break;
+                case '"':
+                    xml.append("&quot;");
+                    break;
+                default:
+                    xml.append(c);
+            }
+        }
+    }
+}
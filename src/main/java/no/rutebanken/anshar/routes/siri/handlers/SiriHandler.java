@@ -38,6 +38,7 @@ import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import uk.org.siri.siri21.ErrorCodeStructure;
 import uk.org.siri.siri21.ErrorDescriptionStructure;
@@ -48,6 +49,7 @@ import uk.org.siri.siri21.FacilityMonitoringDeliveryStructure;
 import uk.org.siri.siri21.LineRef;
 import uk.org.siri.siri21.PtSituationElement;
 import uk.org.siri.siri21.RequestorRef;
+import uk.org.siri.siri21.ServiceDelivery;
 import uk.org.siri.siri21.ServiceDeliveryErrorConditionElement;
 import uk.org.siri.siri21.ServiceRequest;
 import uk.org.siri.siri21.Siri;
@@ -61,6 +63,7 @@ import uk.org.siri.siri21.VehicleMonitoringRequestStructure;
 import uk.org.siri.siri21.VehicleRef;
 
 import javax.xml.stream.XMLStreamException;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.Duration;
@@ -115,6 +118,21 @@ public class SiriHandler {
     @Autowired
     private MappingAdapterPresets mappingAdapterPresets;
 
+    @Value("${anshar.feature.ingest.streaming:false}")
+    private boolean FEATURE_TOGGLE_STREAMING_INGEST;
+
+    /**
+     * Deliveries larger than this are read in chunks when streaming ingest is enabled
+     */
+    @Value("${anshar.ingest.streaming.threshold.bytes:1048576}")
+    private int streamingIngestThresholdBytes;
+
+    @Value("${anshar.ingest.streaming.chunk.size:1000}")
+    private int streamingIngestChunkSize;
+
+    @Value("${anshar.feature.outbound.sharedFilter:false}")
+    private boolean FEATURE_TOGGLE_SHARED_FILTER;
+
     public Siri handleIncomingSiri(String subscriptionId, InputStream xml) throws UnmarshalException {
         return handleIncomingSiri(subscriptionId, xml, null, -1);
     }
@@ -269,6 +287,7 @@ public class SiriHandler {
             String requestorRef = null;
 
             Siri serviceResponse = null;
+            boolean copyBeforeTransform = false;
 
             if (serviceRequest.getRequestorRef() != null) {
                 requestorRef = serviceRequest.getRequestorRef().getValue();
@@ -301,7 +320,10 @@ public class SiriHandler {
 
                 Siri siri = vehicleActivities.createServiceDelivery(requestorRef, datasetId, clientTrackingName, excludedDatasetIdList, maxSize);
 
-                serviceResponse = SiriHelper.filterSiriPayload(siri, filterMap);
+                serviceResponse = SiriHelper.filterSiriPayload(siri, filterMap, !FEATURE_TOGGLE_SHARED_FILTER);
+
+                // Filtered elements may be shared with cached objects - only the matching elements are copied before ids are mapped
+                copyBeforeTransform = FEATURE_TOGGLE_SHARED_FILTER && serviceResponse != siri;
             } else if (hasValues(serviceRequest.getEstimatedTimetableRequests())) {
                 dataType = SiriDataType.ESTIMATED_TIMETABLE;
                 Duration previewInterval = serviceRequest.getEstimatedTimetableRequests().get(0).getPreviewInterval();
@@ -323,7 +345,7 @@ public class SiriHandler {
                 return SiriValueTransformer.transform(
                     serviceResponse,
                     mappingAdapterPresets.getOutboundAdapters(dataType, outboundIdMappingPolicy),
-                    false,
+                    copyBeforeTransform,
                     false
                 );
             }
@@ -356,6 +378,20 @@ public class SiriHandler {
             } catch (IOException e) {
                 receivedBytes = 0;
             }
+
+            if (FEATURE_TOGGLE_STREAMING_INGEST && receivedBytes > streamingIngestThresholdBytes) {
+                BufferedInputStream bufferedXml = new BufferedInputStream(xml);
+                try {
+                    if (SiriChunkReader.isServiceDelivery(bufferedXml)) {
+                        processServiceDeliveryInChunks(subscriptionSetup, bufferedXml, receivedBytes);
+                        return;
+                    }
+                } catch (IOException e) {
+                    throw new XMLStreamException("Unable to read delivery", e);
+                }
+                xml = bufferedXml;
+            }
+
             long t1 = System.currentTimeMillis();
             Siri incoming = SiriXml.parseXml(xml);
 
@@ -368,94 +404,161 @@ public class SiriHandler {
             } else {
                 logger.info("Parsing XML took {} ms, {} bytes", duration, receivedBytes);
             }
-            if (incoming == null) {
-                return;
+            processSiriClientRequest(subscriptionSetup, incoming, receivedBytes);
+        } else {
+            logger.debug("ServiceDelivery for invalid subscriptionId [{}] ignored.", subscriptionId);
+        }
+    }
+
+    /**
+     * Handles an already parsed SIRI-object - e.g. when objects are read from the message-queue instead of XML. The
+     * size of the received XML is not known, and is not included in the statistics.
+     *
+     * @param subscriptionId          SubscriptionId
+     * @param incoming                Parsed SIRI-object
+     * @param datasetId               Optional datasetId
+     * @param outboundIdMappingPolicy Defines outbound idmapping-policy
+     * @return
+     */
+    public Siri handleIncomingSiri(String subscriptionId, Siri incoming, String datasetId, OutboundIdMappingPolicy outboundIdMappingPolicy, int maxSize, String clientTrackingName) {
+        if (subscriptionId != null) {
+            SubscriptionSetup subscriptionSetup = subscriptionManager.get(subscriptionId);
+
+            if (subscriptionSetup != null) {
+                processSiriClientRequest(subscriptionSetup, incoming, 0);
+            } else {
+                logger.debug("ServiceDelivery for invalid subscriptionId [{}] ignored.", subscriptionId);
             }
+            return null;
+        }
+        return processSiriServerRequest(incoming, datasetId, null, outboundIdMappingPolicy, maxSize, clientTrackingName);
+    }
 
-            if (incoming.getHeartbeatNotification() != null) {
-                subscriptionManager.touchSubscription(subscriptionId);
-                logger.info("Heartbeat - {}", subscriptionSetup);
-            } else if (incoming.getCheckStatusResponse() != null) {
-                logger.info("Incoming CheckStatusResponse {}, reporting ServiceStartedTime: {}", subscriptionSetup, incoming.getCheckStatusResponse().getServiceStartedTime());
-                subscriptionManager.touchSubscription(subscriptionId, incoming.getCheckStatusResponse().getServiceStartedTime());
-            } else if (incoming.getSubscriptionResponse() != null) {
-                SubscriptionResponseStructure subscriptionResponse = incoming.getSubscriptionResponse();
-                subscriptionResponse.getResponseStatuses().forEach(responseStatus -> {
-                    if (responseStatus.isStatus() == null || responseStatus.isStatus()) {
-
-                        // If no status is provided it is handled as "true"
-                        subscriptionManager.activatePendingSubscription(subscriptionId);
-                    }
-                });
+    /**
+     * Reads a ServiceDelivery for a subscription in chunks, and stores each chunk before the next is read - the
+     * complete delivery is never kept in memory.
+     *
+     * Mapping-adapters for the subscription have already been applied before the delivery was queued.
+     */
+    private void processServiceDeliveryInChunks(SubscriptionSetup subscriptionSetup, InputStream xml, int receivedBytes)
+            throws XMLStreamException, JAXBException {
+        long t1 = System.currentTimeMillis();
+        healthManager.dataReceived();
 
-            } else if (incoming.getTerminateSubscriptionResponse() != null) {
-                TerminateSubscriptionResponseStructure terminateSubscriptionResponse = incoming.getTerminateSubscriptionResponse();
+        int[] addedOrUpdated = new int[1];
+        int[] chunks = new int[1];
+        int elements = SiriChunkReader.read(xml, streamingIngestChunkSize, chunk -> {
+            addedOrUpdated[0] += processServiceDelivery(subscriptionSetup, chunk.getServiceDelivery());
+            chunks[0]++;
+        });
 
-                logger.info("Subscription terminated {}", subscriptionSetup);
+        logger.info("Processed {} elements from {} bytes in {} chunks in {} ms, {}", elements, receivedBytes, chunks[0],
+                (System.currentTimeMillis() - t1), subscriptionSetup);
 
-            } else if (incoming.getDataReadyNotification() != null) {
-                //Handled using camel routing
-            } else if (incoming.getServiceDelivery() != null) {
-                boolean deliveryContainsData = false;
-                healthManager.dataReceived();
-                List addedOrUpdated = new ArrayList();
-                SiriDataType subscriptionType = subscriptionSetup.getSubscriptionType();
+        serviceDeliveryProcessed(subscriptionSetup, addedOrUpdated[0], receivedBytes);
+    }
 
-                if (subscriptionType.equals(SiriDataType.SITUATION_EXCHANGE)) {
-                    List<SituationExchangeDeliveryStructure> situationExchangeDeliveries = incoming.getServiceDelivery().getSituationExchangeDeliveries();
-                    logger.info("Got SX-delivery: Subscription {}", subscriptionSetup);
+    private void processSiriClientRequest(SubscriptionSetup subscriptionSetup, Siri incoming, int receivedBytes) {
+        String subscriptionId = subscriptionSetup.getSubscriptionId();
+        if (incoming == null) {
+            return;
+        }
 
-                    addedOrUpdated = handlePtSituations(situationExchangeDeliveries, subscriptionSetup);
+        if (incoming.getHeartbeatNotification() != null) {
+            subscriptionManager.touchSubscription(subscriptionId);
+            logger.info("Heartbeat - {}", subscriptionSetup);
+        } else if (incoming.getCheckStatusResponse() != null) {
+            logger.info("Incoming CheckStatusResponse {}, reporting ServiceStartedTime: {}", subscriptionSetup, incoming.getCheckStatusResponse().getServiceStartedTime());
+            subscriptionManager.touchSubscription(subscriptionId, incoming.getCheckStatusResponse().getServiceStartedTime());
+        } else if (incoming.getSubscriptionResponse() != null) {
+            SubscriptionResponseStructure subscriptionResponse = incoming.getSubscriptionResponse();
+            subscriptionResponse.getResponseStatuses().forEach(responseStatus -> {
+                if (responseStatus.isStatus() == null || responseStatus.isStatus()) {
+
+                    // If no status is provided it is handled as "true"
+                    subscriptionManager.activatePendingSubscription(subscriptionId);
+                }
+            });
 
-                    logger.info("Active SX-elements: {}, current delivery: {}, {}", situations.getSize(), addedOrUpdated.size(), subscriptionSetup);
-                } else if (subscriptionType.equals(SiriDataType.VEHICLE_MONITORING)) {
+        } else if (incoming.getTerminateSubscriptionResponse() != null) {
+            TerminateSubscriptionResponseStructure terminateSubscriptionResponse = incoming.getTerminateSubscriptionResponse();
 
-                    List<VehicleMonitoringDeliveryStructure> vehicleMonitoringDeliveries = incoming.getServiceDelivery().getVehicleMonitoringDeliveries();
-                    logger.info("Got VM-delivery: Subscription {} {}", subscriptionSetup, subscriptionSetup.forwardPositionData() ? "- Position only":"");
+            logger.info("Subscription terminated {}", subscriptionSetup);
 
-                    addedOrUpdated = handleVehicleActivities(vehicleMonitoringDeliveries, subscriptionSetup);
+        } else if (incoming.getDataReadyNotification() != null) {
+            //Handled using camel routing
+        } else if (incoming.getServiceDelivery() != null) {
+            healthManager.dataReceived();
 
+            int addedOrUpdated = processServiceDelivery(subscriptionSetup, incoming.getServiceDelivery());
 
-                    logger.info("Active VM-elements: {}, current delivery: {}, {}", vehicleActivities.getSize(), addedOrUpdated.size(), subscriptionSetup);
-                } else if (subscriptionType.equals(SiriDataType.ESTIMATED_TIMETABLE)) {
-                    List<EstimatedTimetableDeliveryStructure> estimatedTimetableDeliveries = incoming.getServiceDelivery().getEstimatedTimetableDeliveries();
-                    logger.info("Got ET-delivery: Subscription {}", subscriptionSetup);
+            serviceDeliveryProcessed(subscriptionSetup, addedOrUpdated, receivedBytes);
+        } else {
+            try {
+                logger.info("Unsupported SIRI-request:" + SiriXml.toXml(incoming));
+            } catch (JAXBException e) {
+                //Ignore
+            }
+        }
+    }
 
-                    addedOrUpdated = handleEstimatedTimetables(estimatedTimetableDeliveries, subscriptionSetup);
+    /**
+     * Stores the data in the delivery, and pushes updates to subscribers
+     *
+     * @return Number of added or updated elements
+     */
+    private int processServiceDelivery(SubscriptionSetup subscriptionSetup, ServiceDelivery serviceDelivery) {
+        List addedOrUpdated = new ArrayList();
+        SiriDataType subscriptionType = subscriptionSetup.getSubscriptionType();
 
-                    logger.info("Active ET-elements: {}, current delivery: {}, {}", estimatedTimetables.getSize(), addedOrUpdated.size(), subscriptionSetup);
-                } else if (subscriptionType.equals(SiriDataType.FACILITY_MONITORING)) {
-                    List<FacilityMonitoringDeliveryStructure> facilityMonitoringDeliveries = incoming.getServiceDelivery().getFacilityMonitoringDeliveries();
-                    logger.info("Got FM-delivery: Subscription {}", subscriptionSetup);
+        if (subscriptionType.equals(SiriDataType.SITUATION_EXCHANGE)) {
+            List<SituationExchangeDeliveryStructure> situationExchangeDeliveries = serviceDelivery.getSituationExchangeDeliveries();
+            logger.info("Got SX-delivery: Subscription {}", subscriptionSetup);
 
-                    addedOrUpdated = handleFacilityConditions(facilityMonitoringDeliveries, subscriptionSetup);
+            addedOrUpdated = handlePtSituations(situationExchangeDeliveries, subscriptionSetup);
 
-                    logger.info("Active FM-elements: {}, current delivery: {}, {}", facilities.getSize(), addedOrUpdated.size(), subscriptionSetup);
-                }
+            logger.info("Active SX-elements: {}, current delivery: {}, {}", situations.getSize(), addedOrUpdated.size(), subscriptionSetup);
+        } else if (subscriptionType.equals(SiriDataType.VEHICLE_MONITORING)) {
 
-                deliveryContainsData = deliveryContainsData || (!addedOrUpdated.isEmpty());
+            List<VehicleMonitoringDeliveryStructure> vehicleMonitoringDeliveries = serviceDelivery.getVehicleMonitoringDeliveries();
+            logger.info("Got VM-delivery: Subscription {} {}", subscriptionSetup, subscriptionSetup.forwardPositionData() ? "- Position only":"");
 
-                if (!subscriptionSetup.isUseProvidedCodespaceId()) {
-                    // Subscription is not separated on provided codespaceId, push updates to all subscribers
-                    serverSubscriptionManager.pushUpdatesAsync(subscriptionType, addedOrUpdated, subscriptionSetup.getDatasetId());
-                }
+            addedOrUpdated = handleVehicleActivities(vehicleMonitoringDeliveries, subscriptionSetup);
 
-                subscriptionManager.incrementObjectCounter(subscriptionSetup, addedOrUpdated.size());
 
-                if (deliveryContainsData) {
-                    subscriptionManager.dataReceived(subscriptionId, receivedBytes);
-                } else {
-                    subscriptionManager.touchSubscription(subscriptionId);
-                }
-            } else {
-                try {
-                    logger.info("Unsupported SIRI-request:" + SiriXml.toXml(incoming));
-                } catch (JAXBException e) {
-                    //Ignore
-                }
-            }
+            logger.info("Active VM-elements: {}, current delivery: {}, {}", vehicleActivities.getSize(), addedOrUpdated.size(), subscriptionSetup);
+        } else if (subscriptionType.equals(SiriDataType.ESTIMATED_TIMETABLE)) {
+            List<EstimatedTimetableDeliveryStructure> estimatedTimetableDeliveries = serviceDelivery.getEstimatedTimetableDeliveries();
+            logger.info("Got ET-delivery: Subscription {}", subscriptionSetup);
+
+            addedOrUpdated = handleEstimatedTimetables(estimatedTimetableDeliveries, subscriptionSetup);
+
+            logger.info("Active ET-elements: {}, current delivery: {}, {}", estimatedTimetables.getSize(), addedOrUpdated.size(), subscriptionSetup);
+        } else if (subscriptionType.equals(SiriDataType.FACILITY_MONITORING)) {
+            List<FacilityMonitoringDeliveryStructure> facilityMonitoringDeliveries = serviceDelivery.getFacilityMonitoringDeliveries();
+            logger.info("Got FM-delivery: Subscription {}", subscriptionSetup);
+
+            addedOrUpdated = handleFacilityConditions(facilityMonitoringDeliveries, subscriptionSetup);
+
+            logger.info("Active FM-elements: {}, current delivery: {}, {}", facilities.getSize(), addedOrUpdated.size(), subscriptionSetup);
+        }
+
+        if (!subscriptionSetup.isUseProvidedCodespaceId()) {
+            // Subscription is not separated on provided codespaceId, push updates to all subscribers
+            serverSubscriptionManager.pushUpdatesAsync(subscriptionType, addedOrUpdated, subscriptionSetup.getDatasetId());
+        }
+        return addedOrUpdated.size();
+    }
+
+    private void serviceDeliveryProcessed(SubscriptionSetup subscriptionSetup, int addedOrUpdated, int receivedBytes) {
+        String subscriptionId = subscriptionSetup.getSubscriptionId();
+
+        subscriptionManager.incrementObjectCounter(subscriptionSetup, addedOrUpdated);
+
+        if (addedOrUpdated > 0) {
+            subscriptionManager.dataReceived(subscriptionId, receivedBytes);
         } else {
-            logger.debug("ServiceDelivery for invalid subscriptionId [{}] ignored.", subscriptionId);
+            subscriptionManager.touchSubscription(subscriptionId);
         }
     }
 
@@ -471,23 +574,11 @@ public class SiriHandler {
                                     List<PtSituationElement> ptSituationElements = sx.getSituations().getPtSituationElements();
                                     if (subscriptionSetup.isUseProvidedCodespaceId()) {
                                         Map<String, List<PtSituationElement>> situationsByCodespace = splitSituationsByCodespace(ptSituationElements);
-                                        for (String codespace : situationsByCodespace.keySet()) {
-
-                                            // List containing added situations for current codespace
-                                            List<PtSituationElement> addedSituations = new ArrayList();
-
-                                            addedSituations.addAll(situations.addAll(
-                                                codespace,
-                                                situationsByCodespace.get(codespace)
-                                            ));
-
-                                            // Push updates to subscribers on this codespace
-                                            serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedSituations, codespace);
-
-                                            // Add to complete list of added situations
-                                            addedOrUpdated.addAll(addedSituations);
 
-                                        }
+                                        addedOrUpdated.addAll(pushUpdatesByCodespace(
+                                                subscriptionSetup.getSubscriptionType(),
+                                                situations.addAll(situationsByCodespace)
+                                        ));
 
                                     } else {
 
@@ -539,23 +630,11 @@ public class SiriHandler {
                                         if (versionFrame != null && versionFrame.getEstimatedVehicleJourneies() != null) {
                                             if (subscriptionSetup.isUseProvidedCodespaceId()) {
                                                 Map<String, List<EstimatedVehicleJourney>> journeysByCodespace = splitEstimatedTimetablesByCodespace(versionFrame.getEstimatedVehicleJourneies());
-                                                for (String codespace : journeysByCodespace.keySet()) {
-
-                                                    // List containing added situations for current codespace
-                                                    List<EstimatedVehicleJourney> addedJourneys = new ArrayList();
-
-                                                    addedJourneys.addAll(estimatedTimetables.addAll(
-                                                            codespace,
-                                                            journeysByCodespace.get(codespace)
-                                                    ));
-
-                                                    // Push updates to subscribers on this codespace
-                                                    serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedJourneys, codespace);
-
-                                                    // Add to complete list of added situations
-                                                    addedOrUpdated.addAll(addedJourneys);
 
-                                                }
+                                                addedOrUpdated.addAll(pushUpdatesByCodespace(
+                                                        subscriptionSetup.getSubscriptionType(),
+                                                        estimatedTimetables.addAll(journeysByCodespace)
+                                                ));
 
                                             } else {
                                                 addedOrUpdated.addAll(
@@ -584,23 +663,11 @@ public class SiriHandler {
                                 if (vm.getVehicleActivities() != null) {
                                     if (subscriptionSetup.isUseProvidedCodespaceId()) {
                                         Map<String, List<VehicleActivityStructure>> vehiclesByCodespace = splitVehicleMonitoringByCodespace(vm.getVehicleActivities());
-                                        for (String codespace : vehiclesByCodespace.keySet()) {
 
-                                            // List containing added situations for current codespace
-                                            List<VehicleActivityStructure> addedVehicles = new ArrayList();
-
-                                            addedVehicles.addAll(vehicleActivities.addAll(
-                                                    codespace,
-                                                    vehiclesByCodespace.get(codespace)
-                                            ));
-
-                                            // Push updates to subscribers on this codespace
-                                            serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedVehicles, codespace);
-
-                                            // Add to complete list of added situations
-                                            addedOrUpdated.addAll(addedVehicles);
-
-                                        }
+                                        addedOrUpdated.addAll(pushUpdatesByCodespace(
+                                                subscriptionSetup.getSubscriptionType(),
+                                                vehicleActivities.addAll(vehiclesByCodespace)
+                                        ));
 
                                     } else {
                                         addedOrUpdated.addAll(
@@ -616,6 +683,26 @@ public class SiriHandler {
         return addedOrUpdated;
     }
 
+    /**
+     * Pushes updates to subscribers on each codespace
+     *
+     * @return All updated elements
+     */
+    private <T> List<T> pushUpdatesByCodespace(SiriDataType dataType, Map<String, Collection<T>> updatedByCodespace) {
+        List<T> addedOrUpdated = new ArrayList<>();
+        for (Map.Entry<String, Collection<T>> entry : updatedByCodespace.entrySet()) {
+
+            // List containing added elements for current codespace
+            List<T> added = new ArrayList<>(entry.getValue());
+
+            // Push updates to subscribers on this codespace
+            serverSubscriptionManager.pushUpdatesAsync(dataType, added, entry.getKey());
+
+            addedOrUpdated.addAll(added);
+        }
+        return addedOrUpdated;
+    }
+
     private Map<String, List<PtSituationElement>> splitSituationsByCodespace(
         List<PtSituationElement> ptSituationElements
     ) {
@@ -0,0 +1,432 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.helpers;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import jakarta.xml.bind.JAXBException;
+import no.rutebanken.anshar.data.EstimatedTimetables;
+import no.rutebanken.anshar.data.SiriObjectStorageKey;
+import no.rutebanken.anshar.routes.RestRouteBuilder;
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
+import no.rutebanken.anshar.routes.siri.transformer.SiriValueTransformer;
+import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import no.rutebanken.anshar.subscription.helpers.MappingAdapterPresets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.EstimatedVersionFrameStructure;
+import uk.org.siri.siri21.ServiceDelivery;
+import uk.org.siri.siri21.Siri;
+
+import javax.annotation.PostConstruct;
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of already transformed and serialized EstimatedVehicleJourneys.
+ *
+ * Each journey is cached per outbound id-mapping policy, SIRI-version and format. Responses are assembled by
+ * writing the serialized delivery-envelope around the cached fragments, so only journeys that have changed since
+ * the previous request need to be transformed and serialized.
+ *
+ * Fragments are located by serializing marker-journeys between the actual journeys, which guarantees that the
+ * output is identical to serializing the complete response.
+ *
+ * Fragments are invalidated when the journey is updated, removed, expired or evicted in EstimatedTimetables.
+ */
+@Service
+public class EstimatedTimetableFragmentCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(EstimatedTimetableFragmentCache.class);
+
+    private static final String JOURNEY_ELEMENT_NAME = "EstimatedVehicleJourney";
+
+    /**
+     * Max number of journeys transformed and serialized in one operation
+     */
+    private static final int RENDER_BATCH_SIZE = 1000;
+
+    private static final byte[] REMOVED = new byte[0];
+
+    private final String marker = "anshar-fragment-marker-" + UUID.randomUUID();
+
+    @Value("${anshar.feature.et.fragmentCache:false}")
+    private boolean FEATURE_TOGGLE_FRAGMENT_CACHE;
+
+    @Value("${anshar.et.fragmentCache.maxBytes:268435456}")
+    private long maxBytes;
+
+    @Autowired
+    private EstimatedTimetables estimatedTimetables;
+
+    @Autowired
+    private MappingAdapterPresets mappingAdapterPresets;
+
+    private Cache<FragmentKey, byte[]> fragments;
+
+    /**
+     * Keys recently invalidated - used to avoid caching a fragment rendered from a value that was replaced while
+     * the fragment was being rendered
+     */
+    private Cache<SiriObjectStorageKey, Long> recentInvalidations;
+
+    private final AtomicLong invalidationSequence = new AtomicLong();
+
+    @PostConstruct
+    void init() {
+        fragments = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((FragmentKey key, byte[] fragment) -> fragment.length)
+                .recordStats()
+                .build();
+
+        recentInvalidations = CacheBuilder.newBuilder()
+                .expireAfterWrite(1, TimeUnit.MINUTES)
+                .build();
+
+        if (FEATURE_TOGGLE_FRAGMENT_CACHE) {
+            logger.info("Using fragment-cache with max {} bytes for ET", maxBytes);
+            estimatedTimetables.addInvalidationListener(this::invalidate);
+        }
+    }
+
+    public boolean isEnabled() {
+        return FEATURE_TOGGLE_FRAGMENT_CACHE;
+    }
+
+    void invalidate(SiriObjectStorageKey key) {
+        recentInvalidations.put(key, invalidationSequence.incrementAndGet());
+        List<FragmentKey> variants = new ArrayList<>();
+        for (OutboundIdMappingPolicy policy : OutboundIdMappingPolicy.values()) {
+            for (boolean siri21 : new boolean[]{true, false}) {
+                for (boolean json : new boolean[]{true, false}) {
+                    variants.add(new FragmentKey(key, policy, siri21, json));
+                }
+            }
+        }
+        fragments.invalidateAll(variants);
+    }
+
+    /**
+     * Writes the journeys for the given keys into the provided envelope
+     *
+     * @param envelope ET-delivery without journeys - will be transformed using the outbound adapters for policy
+     * @param keys Keys for the journeys to include, in the order they should be written
+     * @param policy Outbound id-mapping policy
+     * @param siri21Version true for SIRI 2.1, false for SIRI 2.0
+     * @param json true for JSON, false for XML
+     * @param out Response is written to this stream
+     *
+     * @return Number of journeys written
+     */
+    public int write(Siri envelope, Collection<SiriObjectStorageKey> keys, OutboundIdMappingPolicy policy,
+                     boolean siri21Version, boolean json, OutputStream out) throws JAXBException, XMLStreamException, IOException {
+
+        final long sequence = invalidationSequence.get();
+        final List<ValueAdapter> outboundAdapters = mappingAdapterPresets.getOutboundAdapters(SiriDataType.ESTIMATED_TIMETABLE, policy);
+
+        Map<SiriObjectStorageKey, FragmentKey> fragmentKeys = new HashMap<>();
+        for (SiriObjectStorageKey key : keys) {
+            fragmentKeys.put(key, new FragmentKey(key, policy, siri21Version, json));
+        }
+
+        Map<FragmentKey, byte[]> result = new HashMap<>(fragments.getAllPresent(fragmentKeys.values()));
+
+        Set<SiriObjectStorageKey> missing = new LinkedHashSet<>();
+        for (SiriObjectStorageKey key : keys) {
+            if (!result.containsKey(fragmentKeys.get(key))) {
+                missing.add(key);
+            }
+        }
+
+        Siri transformedEnvelope = SiriValueTransformer.transform(envelope, outboundAdapters, false, false);
+        List<EstimatedVehicleJourney> journeyList = getJourneyList(transformedEnvelope);
+        if (journeyList == null || !journeyList.isEmpty()) {
+            throw new IllegalArgumentException("Envelope must contain one empty EstimatedJourneyVersionFrame");
+        }
+
+        try {
+            Envelope serializedEnvelope = serializeEnvelope(transformedEnvelope, journeyList, siri21Version, json);
+
+            for (List<SiriObjectStorageKey> batch : partition(missing)) {
+                render(batch, transformedEnvelope, journeyList, outboundAdapters, siri21Version, json)
+                        .forEach((key, fragment) -> {
+                            FragmentKey fragmentKey = fragmentKeys.get(key);
+                            result.put(fragmentKey, fragment);
+
+                            Long invalidatedAt = recentInvalidations.getIfPresent(key);
+                            if (invalidatedAt == null || invalidatedAt <= sequence) {
+                                fragments.put(fragmentKey, fragment);
+                            }
+                        });
+            }
+
+            List<byte[]> orderedFragments = new ArrayList<>(keys.size());
+            for (SiriObjectStorageKey key : keys) {
+                byte[] fragment = result.get(fragmentKeys.get(key));
+                if (fragment != null && fragment.length > 0) {
+                    orderedFragments.add(fragment);
+                }
+            }
+
+            logger.info("Writing {} journeys, {} served from fragment-cache", orderedFragments.size(), keys.size() - missing.size());
+
+            if (orderedFragments.isEmpty()) {
+                // Empty delivery may not be formatted as prefix + suffix
+                RestRouteBuilder.writeSiri(transformedEnvelope, siri21Version, json, out);
+                return 0;
+            }
+
+            out.write(serializedEnvelope.prefix);
+            for (int i = 0; i < orderedFragments.size(); i++) {
+                if (i > 0) {
+                    out.write(serializedEnvelope.separator);
+                }
+                out.write(orderedFragments.get(i));
+            }
+            out.write(serializedEnvelope.suffix);
+
+            return orderedFragments.size();
+        } finally {
+            journeyList.clear();
+        }
+    }
+
+    public CacheStats getStats() {
+        return fragments.stats();
+    }
+
+    public long getSize() {
+        return fragments.size();
+    }
+
+    /**
+     * Serializes the envelope with two marker-journeys, and splits the result into the parts before, between and
+     * after the journeys
+     */
+    private Envelope serializeEnvelope(Siri envelope, List<EstimatedVehicleJourney> journeyList,
+                                       boolean siri21Version, boolean json) throws JAXBException, XMLStreamException, IOException {
+        journeyList.clear();
+        journeyList.add(createMarker());
+        journeyList.add(createMarker());
+
+        byte[] serialized = serialize(envelope, siri21Version, json);
+        journeyList.clear();
+
+        int[][] markers = locateMarkers(serialized, json);
+        if (markers.length != 2) {
+            throw new IllegalStateException("Expected 2 marker-journeys in envelope, found " + markers.length);
+        }
+
+        return new Envelope(
+                Arrays.copyOfRange(serialized, 0, markers[0][0]),
+                Arrays.copyOfRange(serialized, markers[0][1], markers[1][0]),
+                Arrays.copyOfRange(serialized, markers[1][1], serialized.length)
+        );
+    }
+
+    /**
+     * Transforms and serializes the journeys for the given keys
+     *
+     * @return Serialized fragment per key - empty if the journey is not included in the requested SIRI-version
+     */
+    private Map<SiriObjectStorageKey, byte[]> render(List<SiriObjectStorageKey> keys, Siri envelope, List<EstimatedVehicleJourney> journeyList,
+                                                     List<ValueAdapter> outboundAdapters, boolean siri21Version, boolean json) throws JAXBException, XMLStreamException, IOException {
+
+        Map<SiriObjectStorageKey, EstimatedVehicleJourney> journeys = estimatedTimetables.getAllByKeys(new LinkedHashSet<>(keys));
+        List<SiriObjectStorageKey> renderedKeys = new ArrayList<>(journeys.keySet());
+        if (renderedKeys.isEmpty()) {
+            return Map.of();
+        }
+
+        // Journeys are transformed separately to avoid transforming the envelope twice
+        Siri journeyDelivery = createDelivery();
+        for (SiriObjectStorageKey key : renderedKeys) {
+            getJourneyList(journeyDelivery).add(journeys.get(key));
+        }
+        journeyDelivery = SiriValueTransformer.transform(journeyDelivery, outboundAdapters, false, false);
+        List<EstimatedVehicleJourney> transformedJourneys = getJourneyList(journeyDelivery);
+
+        if (transformedJourneys == null || transformedJourneys.size() != renderedKeys.size()) {
+            throw new IllegalStateException("Outbound adapters changed number of journeys");
+        }
+
+        journeyList.clear();
+        journeyList.add(createMarker());
+        for (EstimatedVehicleJourney journey : transformedJourneys) {
+            journeyList.add(journey);
+            journeyList.add(createMarker());
+        }
+
+        byte[] serialized = serialize(envelope, siri21Version, json);
+        journeyList.clear();
+
+        int[][] markers = locateMarkers(serialized, json);
+        if (markers.length != renderedKeys.size() + 1) {
+            throw new IllegalStateException("Expected " + (renderedKeys.size() + 1) + " marker-journeys, found " + markers.length);
+        }
+
+        Map<SiriObjectStorageKey, byte[]> rendered = new HashMap<>();
+        for (int i = 0; i < renderedKeys.size(); i++) {
+            rendered.put(renderedKeys.get(i), extractFragment(serialized, markers[i][1], markers[i + 1][0]));
+        }
+        return rendered;
+    }
+
+    /**
+     * Extracts the journey between two markers - surrounded by a separator on each side. When the journey has
+     * been removed during serialization, only the separator is left.
+     */
+    private static byte[] extractFragment(byte[] serialized, int from, int to) {
+        // Separator is the whitespace and/or comma between two journeys
+        while (from < to && isSeparator(serialized[from])) {
+            from++;
+        }
+        while (to > from && isSeparator(serialized[to - 1])) {
+            to--;
+        }
+        if (from == to) {
+            return REMOVED;
+        }
+        return Arrays.copyOfRange(serialized, from, to);
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ',' || b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    /**
+     * @return Start (inclusive) and end (exclusive) of each marker-journey in the serialized output
+     */
+    int[][] locateMarkers(byte[] serialized, boolean json) {
+        // ISO-8859-1 maps every byte to one char, so indexes in the String matches indexes in the byte-array
+        String text = new String(serialized, StandardCharsets.ISO_8859_1);
+
+        List<int[]> markers = new ArrayList<>();
+        int position = text.indexOf(marker);
+        while (position >= 0) {
+            int start;
+            int end;
+            if (json) {
+                start = findEnclosingBrace(text, position, -1);
+                end = findEnclosingBrace(text, position, 1) + 1;
+            } else {
+                start = text.lastIndexOf('<', text.lastIndexOf(JOURNEY_ELEMENT_NAME, position));
+                end = text.indexOf('>', text.indexOf(JOURNEY_ELEMENT_NAME, position)) + 1;
+            }
+            if (start < 0 || end <= position) {
+                throw new IllegalStateException("Unable to locate marker-journey at position " + position);
+            }
+            markers.add(new int[]{start, end});
+            position = text.indexOf(marker, end);
+        }
+        return markers.toArray(new int[0][]);
+    }
+
+    private static int findEnclosingBrace(String text, int position, int direction) {
+        char open = direction < 0 ? '}' : '{';
+        char close = direction < 0 ? '{' : '}';
+        int depth = 0;
+        for (int i = position; i >= 0 && i < text.length(); i += direction) {
+            char c = text.charAt(i);
+            if (c == open) {
+                depth++;
+            } else if (c == close) {
+                if (depth == 0) {
+                    return i;
+                }
+                depth--;
+            }
+        }
+        return -1;
+    }
+
+    private EstimatedVehicleJourney createMarker() {
+        EstimatedVehicleJourney marker = new EstimatedVehicleJourney();
+        marker.setDataSource(this.marker);
+        return marker;
+    }
+
+    private static byte[] serialize(Siri siri, boolean siri21Version, boolean json) throws JAXBException, XMLStreamException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RestRouteBuilder.writeSiri(siri, siri21Version, json, out);
+        return out.toByteArray();
+    }
+
+    private static Siri createDelivery() {
+        EstimatedVersionFrameStructure frame = new EstimatedVersionFrameStructure();
+        EstimatedTimetableDeliveryStructure delivery = new EstimatedTimetableDeliveryStructure();
+        delivery.getEstimatedJourneyVersionFrames().add(frame);
+        ServiceDelivery serviceDelivery = new ServiceDelivery();
+        serviceDelivery.getEstimatedTimetableDeliveries().add(delivery);
+        Siri siri = new Siri();
+        siri.setServiceDelivery(serviceDelivery);
+        return siri;
+    }
+
+    private static List<EstimatedVehicleJourney> getJourneyList(Siri siri) {
+        if (siri.getServiceDelivery() == null ||
+                siri.getServiceDelivery().getEstimatedTimetableDeliveries().size() != 1) {
+            return null;
+        }
+        EstimatedTimetableDeliveryStructure delivery = siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0);
+        if (delivery.getEstimatedJourneyVersionFrames().size() != 1) {
+            return null;
+        }
+        return delivery.getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+    }
+
+    private static List<List<SiriObjectStorageKey>> partition(Collection<SiriObjectStorageKey> keys) {
+        List<List<SiriObjectStorageKey>> batches = new ArrayList<>();
+        List<SiriObjectStorageKey> batch = new ArrayList<>();
+        for (SiriObjectStorageKey key : keys) {
+            batch.add(key);
+            if (batch.size() == RENDER_BATCH_SIZE) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private record Envelope(byte[] prefix, byte[] separator, byte[] suffix) {}
+
+    private record FragmentKey(SiriObjectStorageKey key, OutboundIdMappingPolicy policy, boolean siri21Version, boolean json) {}
+}
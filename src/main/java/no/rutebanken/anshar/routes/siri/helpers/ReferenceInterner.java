@@ -0,0 +1,139 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.helpers;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import jakarta.xml.bind.Unmarshaller;
+import uk.org.siri.siri21.DestinationRef;
+import uk.org.siri.siri21.DirectionRefStructure;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.JourneyPlaceRefStructure;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.OperatorRefStructure;
+import uk.org.siri.siri21.RequestorRef;
+import uk.org.siri.siri21.StopPointRefStructure;
+import uk.org.siri.siri21.VehicleActivityStructure;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deduplicates reference-values that occur in many elements - e.g. StopPointRef, LineRef and DataSource - so that
+ * equal values share one String-instance.
+ *
+ * Values are kept in a weak interner, so values no longer referenced by any element are garbage-collected.
+ */
+public class ReferenceInterner {
+
+    /**
+     * Classes with reference-values that are interned
+     */
+    public static final List<Class<?>> REFERENCE_CLASSES = List.of(
+            StopPointRefStructure.class,
+            LineRef.class,
+            OperatorRefStructure.class,
+            DestinationRef.class,
+            DirectionRefStructure.class,
+            JourneyPlaceRefStructure.class,
+            RequestorRef.class,
+            EstimatedVehicleJourney.class,
+            VehicleActivityStructure.MonitoredVehicleJourney.class
+    );
+
+    private static final ReferenceInterner INSTANCE = new ReferenceInterner();
+
+    private final Interner<String> interner = Interners.newWeakInterner();
+
+    private final LongAdder lookupCount = new LongAdder();
+
+    private final LongAdder deduplicatedCount = new LongAdder();
+
+    ReferenceInterner() {
+    }
+
+    public static ReferenceInterner getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return Shared instance equal to the given value
+     */
+    public String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String interned = interner.intern(value);
+        lookupCount.increment();
+        if (interned != value) {
+            deduplicatedCount.increment();
+        }
+        return interned;
+    }
+
+    /**
+     * Interns the reference-values of the given element - other elements are ignored
+     */
+    public void internReferences(Object element) {
+        if (element instanceof StopPointRefStructure ref) {
+            ref.setValue(intern(ref.getValue()));
+        } else if (element instanceof LineRef ref) {
+            ref.setValue(intern(ref.getValue()));
+        } else if (element instanceof OperatorRefStructure ref) {
+            ref.setValue(intern(ref.getValue()));
+        } else if (element instanceof DestinationRef ref) {
+            ref.setValue(intern(ref.getValue()));
+        } else if (element instanceof DirectionRefStructure ref) {
+            ref.setValue(intern(ref.getValue()));
+        } else if (element instanceof JourneyPlaceRefStructure ref) {
+            ref.setValue(intern(ref.getValue()));
+        } else if (element instanceof RequestorRef ref) {
+            ref.setValue(intern(ref.getValue()));
+        } else if (element instanceof EstimatedVehicleJourney journey) {
+            journey.setDataSource(intern(journey.getDataSource()));
+        } else if (element instanceof VehicleActivityStructure.MonitoredVehicleJourney journey) {
+            journey.setDataSource(intern(journey.getDataSource()));
+        }
+    }
+
+    /**
+     * @return Listener that interns reference-values as elements are unmarshalled
+     */
+    public Unmarshaller.Listener createUnmarshallerListener() {
+        return new Unmarshaller.Listener() {
+            @Override
+            public void afterUnmarshal(Object target, Object parent) {
+                internReferences(target);
+            }
+        };
+    }
+
+    public long getLookupCount() {
+        return lookupCount.sum();
+    }
+
+    public long getDeduplicatedCount() {
+        return deduplicatedCount.sum();
+    }
+
+    /**
+     * @return Share of interned values that were replaced by an existing instance
+     */
+    public double getDeduplicationRatio() {
+        long lookups = getLookupCount();
+        return lookups > 0 ? (double) getDeduplicatedCount() / lookups : 0;
+    }
+}
@@ -76,11 +76,15 @@ import uk.org.siri.siri21.VehicleRef;
 
 import javax.annotation.Nonnull;
 import javax.xml.namespace.QName;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -681,6 +685,38 @@ public class SiriObjectFactory {
         }
     }
 
+    /**
+     * Creates a shallow copy of provided object - referenced objects are shared with the original, but lists are
+     * copied, so that elements may be added to or removed from the copy without altering the original.
+     * @param object
+     * @return
+     */
+    public static <T> T shallowCopy(T object) {
+        T copy;
+    	Kryo kryo = kryoPool.borrow();
+        try {
+        	copy = kryo.copyShallow(object);
+        } finally {
+        	kryoPool.release(kryo);
+        }
+        for (Class<?> c = copy.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && List.class.isAssignableFrom(field.getType())) {
+                    try {
+                        field.setAccessible(true);
+                        List<?> list = (List<?>) field.get(copy);
+                        if (list != null) {
+                            field.set(copy, new ArrayList<>(list));
+                        }
+                    } catch (IllegalAccessException e) {
+                        throw new IllegalStateException("Unable to copy " + field, e);
+                    }
+                }
+            }
+        }
+        return copy;
+    }
+
     /**
      * Creates a deep copy of provided object
      * @param estimatedVehicleJourney
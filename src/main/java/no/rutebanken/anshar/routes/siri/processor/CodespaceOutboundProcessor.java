@@ -17,22 +17,19 @@ package no.rutebanken.anshar.routes.siri.processor;
 
 import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
 import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
-import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
 import uk.org.siri.siri21.EstimatedVehicleJourney;
-import uk.org.siri.siri21.EstimatedVersionFrameStructure;
 import uk.org.siri.siri21.PtSituationElement;
 import uk.org.siri.siri21.RequestorRef;
 import uk.org.siri.siri21.Siri;
 import uk.org.siri.siri21.SituationExchangeDeliveryStructure;
 import uk.org.siri.siri21.VehicleActivityStructure;
-import uk.org.siri.siri21.VehicleMonitoringDeliveryStructure;
 
-import java.util.List;
+import java.util.Objects;
 
 import static no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter.getMappedId;
 import static no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter.getOriginalId;
 
-public class CodespaceOutboundProcessor extends ValueAdapter implements PostProcessor {
+public class CodespaceOutboundProcessor extends ValueAdapter implements VisitingPostProcessor, StreamingPostProcessor {
 
     private final OutboundIdMappingPolicy outboundIdMappingPolicy;
 
@@ -46,58 +43,76 @@ public class CodespaceOutboundProcessor extends ValueAdapter implements PostProc
     }
 
     @Override
-    public void process(Siri siri) {
-        if (siri != null && siri.getServiceDelivery() != null) {
-            List<EstimatedTimetableDeliveryStructure> etDeliveries = siri.getServiceDelivery().getEstimatedTimetableDeliveries();
-            if (etDeliveries != null) {
-                for (EstimatedTimetableDeliveryStructure etDelivery : etDeliveries) {
-                    List<EstimatedVersionFrameStructure> estimatedJourneyVersionFrames = etDelivery.getEstimatedJourneyVersionFrames();
-                    for (EstimatedVersionFrameStructure estimatedJourneyVersionFrame : estimatedJourneyVersionFrames) {
-                        List<EstimatedVehicleJourney> estimatedVehicleJourneies = estimatedJourneyVersionFrame.getEstimatedVehicleJourneies();
-                        for (EstimatedVehicleJourney estimatedVehicleJourney : estimatedVehicleJourneies) {
-                            String original = estimatedVehicleJourney.getDataSource();
-                            estimatedVehicleJourney.setDataSource(getMappedCodespace(original));
-                        }
-                    }
+    public PostProcessorVisitor createVisitor() {
+        return new PostProcessorVisitor() {
+            @Override
+            public boolean visitJourney(EstimatedVehicleJourney estimatedVehicleJourney) {
+                String original = estimatedVehicleJourney.getDataSource();
+                estimatedVehicleJourney.setDataSource(getMappedCodespace(original));
+                return true;
+            }
+
+            @Override
+            public boolean visitSituation(PtSituationElement ptSituationElement) {
+                String original = null;
+                if (ptSituationElement.getParticipantRef() != null) {
+                    original = ptSituationElement.getParticipantRef().getValue();
                 }
+
+                RequestorRef participantRef = new RequestorRef();
+                participantRef.setValue(getMappedCodespace(original));
+                ptSituationElement.setParticipantRef(participantRef);
+                return true;
             }
 
-            List<SituationExchangeDeliveryStructure> situationExchangeDeliveries = siri.getServiceDelivery().getSituationExchangeDeliveries();
-            if (situationExchangeDeliveries != null) {
-                for (SituationExchangeDeliveryStructure situationExchangeDelivery : situationExchangeDeliveries) {
-                    SituationExchangeDeliveryStructure.Situations situations = situationExchangeDelivery.getSituations();
-                    if (situations != null && situations.getPtSituationElements() != null) {
-                        for (PtSituationElement ptSituationElement : situations.getPtSituationElements()) {
-
-                            String original = null;
-                            if (ptSituationElement.getParticipantRef() != null) {
-                                original = ptSituationElement.getParticipantRef().getValue();
-                            }
-
-                            RequestorRef participantRef = new RequestorRef();
-                            participantRef.setValue(getMappedCodespace(original));
-                            ptSituationElement.setParticipantRef(participantRef);
-                        }
-                    }
+            @Override
+            public boolean visitVehicleActivity(VehicleActivityStructure vehicleActivity) {
+                if (vehicleActivity.getMonitoredVehicleJourney() != null) {
+                    String original = vehicleActivity.getMonitoredVehicleJourney().getDataSource();
+                    vehicleActivity.getMonitoredVehicleJourney().setDataSource(getMappedCodespace(original));
                 }
+                return true;
             }
+        };
+    }
+
+    @Override
+    public boolean isElementLocal() {
+        return true;
+    }
+
+    @Override
+    public boolean isRewritten(Class<?> owner, String fieldName) {
+        if ("dataSource".equals(fieldName)) {
+            return EstimatedVehicleJourney.class.isAssignableFrom(owner) ||
+                    VehicleActivityStructure.MonitoredVehicleJourney.class.isAssignableFrom(owner);
+        }
+        return "participantRef".equals(fieldName) && PtSituationElement.class.isAssignableFrom(owner);
+    }
 
-            List<VehicleMonitoringDeliveryStructure> vehicleMonitoringDeliveries = siri.getServiceDelivery().getVehicleMonitoringDeliveries();
-            if (vehicleMonitoringDeliveries != null) {
-                for (VehicleMonitoringDeliveryStructure vehicleMonitoringDeliveryStructure : vehicleMonitoringDeliveries) {
-                    List<VehicleActivityStructure> vehicleActivities = vehicleMonitoringDeliveryStructure.getVehicleActivities();
-                    if (vehicleActivities != null) {
-                        for (VehicleActivityStructure vehicleActivity : vehicleActivities) {
-
-                            if (vehicleActivity.getMonitoredVehicleJourney() != null) {
-                                String original = vehicleActivity.getMonitoredVehicleJourney().getDataSource();
-                                vehicleActivity.getMonitoredVehicleJourney().setDataSource(getMappedCodespace(original));
-                            }
-                        }
+    @Override
+    public String rewrite(String value) {
+        return getMappedCodespace(value);
+    }
+
+    /**
+     * @return false if a situation is missing ParticipantRef - it is added by the processor
+     */
+    @Override
+    public boolean isStreamable(Siri siri) {
+        if (siri == null || siri.getServiceDelivery() == null) {
+            return true;
+        }
+        for (SituationExchangeDeliveryStructure delivery : siri.getServiceDelivery().getSituationExchangeDeliveries()) {
+            if (delivery.getSituations() != null) {
+                for (PtSituationElement situation : delivery.getSituations().getPtSituationElements()) {
+                    if (situation.getParticipantRef() == null) {
+                        return false;
                     }
                 }
             }
         }
+        return true;
     }
 
     private String getMappedCodespace(String text) {
@@ -112,4 +127,19 @@ public class CodespaceOutboundProcessor extends ValueAdapter implements PostProc
                 return getMappedId(text);
         }
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CodespaceOutboundProcessor)) return false;
+
+        CodespaceOutboundProcessor that = (CodespaceOutboundProcessor) o;
+
+        return outboundIdMappingPolicy == that.outboundIdMappingPolicy;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(CodespaceOutboundProcessor.class, outboundIdMappingPolicy);
+    }
 }
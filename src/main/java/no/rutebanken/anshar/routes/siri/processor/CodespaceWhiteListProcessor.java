@@ -22,17 +22,15 @@ import no.rutebanken.anshar.subscription.SiriDataType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.org.siri.siri21.DatedVehicleJourneyRef;
-import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
-import uk.org.siri.siri21.EstimatedVersionFrameStructure;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
 import uk.org.siri.siri21.FramedVehicleJourneyRefStructure;
 import uk.org.siri.siri21.LineRef;
-import uk.org.siri.siri21.Siri;
 
 import java.util.List;
 
 import static no.rutebanken.anshar.routes.siri.transformer.MappingNames.REMOVE_INVALID_CODESPACE;
 
-public class CodespaceWhiteListProcessor extends ValueAdapter implements PostProcessor {
+public class CodespaceWhiteListProcessor extends ValueAdapter implements VisitingPostProcessor {
 
     private static final Logger logger = LoggerFactory.getLogger(CodespaceWhiteListProcessor.class);
     private final String codespace;
@@ -51,51 +49,13 @@ public class CodespaceWhiteListProcessor extends ValueAdapter implements PostPro
     }
 
     @Override
-    public void process(Siri siri) {
-        if (this.whitelist == null || this.whitelist.isEmpty()) {
-            //Nothing to do - return immediately
-            return;
-        }
-        if (siri != null && siri.getServiceDelivery() != null) {
-            List<EstimatedTimetableDeliveryStructure> etDeliveries = siri.getServiceDelivery().getEstimatedTimetableDeliveries();
-            if (etDeliveries != null) {
-                for (EstimatedTimetableDeliveryStructure etDelivery : etDeliveries) {
-                    List<EstimatedVersionFrameStructure> estimatedJourneyVersionFrames = etDelivery.getEstimatedJourneyVersionFrames();
-                    for (EstimatedVersionFrameStructure estimatedJourneyVersionFrame : estimatedJourneyVersionFrames) {
-                        int size = estimatedJourneyVersionFrame.getEstimatedVehicleJourneies().size();
-
-                        estimatedJourneyVersionFrame
-                                .getEstimatedVehicleJourneies()
-                                .removeIf(et -> isInvalidCodespace(et.getFramedVehicleJourneyRef()));
-
-                        estimatedJourneyVersionFrame
-                                .getEstimatedVehicleJourneies()
-                                .removeIf(et -> isInvalidCodespace(et.getDatedVehicleJourneyRef()));
-
-                        estimatedJourneyVersionFrame
-                                .getEstimatedVehicleJourneies()
-                                .removeIf(et -> isInvalidCodespace(et.getEstimatedVehicleJourneyCode()));
-
-                        estimatedJourneyVersionFrame
-                                .getEstimatedVehicleJourneies()
-                                .removeIf(et -> isInvalidCodespace(et.getLineRef()));
-
-                        if (estimatedJourneyVersionFrame.getEstimatedVehicleJourneies().size() != size) {
-                            final int removedDataCount = size - estimatedJourneyVersionFrame.getEstimatedVehicleJourneies().size();
-                            logger.info("Removed {} ET-messages NOT on whitelisted codespaces from {}.", removedDataCount, codespace);
-                            getMetricsService()
-                                    .registerDataMapping(
-                                            SiriDataType.ESTIMATED_TIMETABLE,
-                                            codespace,
-                                            REMOVE_INVALID_CODESPACE,
-                                            removedDataCount
-                                    );
-                        }
-                    }
-                }
-            }
-        }
+    public PostProcessorVisitor createVisitor() {
+        return new WhiteListVisitor();
+    }
 
+    @Override
+    public boolean isElementLocal() {
+        return true;
     }
 
     private boolean isInvalidCodespace(LineRef lineRef) {
@@ -139,4 +99,48 @@ public class CodespaceWhiteListProcessor extends ValueAdapter implements PostPro
             metrics = ApplicationContextHolder.getContext().getBean(PrometheusMetricsService.class);
         }
     }
+
+    /**
+     * Counts the journeys removed from the delivery
+     */
+    private class WhiteListVisitor implements PostProcessorVisitor {
+        private int removedDataCount;
+
+        @Override
+        public boolean visitJourney(EstimatedVehicleJourney et) {
+            if (whitelist == null || whitelist.isEmpty()) {
+                //Nothing to do
+                return true;
+            }
+            if (isInvalidCodespace(et.getFramedVehicleJourneyRef()) ||
+                    isInvalidCodespace(et.getDatedVehicleJourneyRef()) ||
+                    isInvalidCodespace(et.getEstimatedVehicleJourneyCode()) ||
+                    isInvalidCodespace(et.getLineRef())) {
+                removedDataCount++;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void merge(PostProcessorVisitor other) {
+            if (other instanceof WhiteListVisitor visitor) {
+                removedDataCount += visitor.removedDataCount;
+            }
+        }
+
+        @Override
+        public void completed() {
+            if (removedDataCount > 0) {
+                logger.info("Removed {} ET-messages NOT on whitelisted codespaces from {}.", removedDataCount, codespace);
+                getMetricsService()
+                        .registerDataMapping(
+                                SiriDataType.ESTIMATED_TIMETABLE,
+                                codespace,
+                                REMOVE_INVALID_CODESPACE,
+                                removedDataCount
+                        );
+            }
+        }
+    }
 }
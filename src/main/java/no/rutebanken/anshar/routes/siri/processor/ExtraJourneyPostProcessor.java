@@ -25,15 +25,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.org.siri.siri21.DepartureBoardingActivityEnumeration;
 import uk.org.siri.siri21.EstimatedCall;
-import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
 import uk.org.siri.siri21.EstimatedVehicleJourney;
-import uk.org.siri.siri21.EstimatedVersionFrameStructure;
 import uk.org.siri.siri21.RecordedCall;
-import uk.org.siri.siri21.Siri;
 import uk.org.siri.siri21.VehicleModesEnumeration;
 
 import java.time.ZonedDateTime;
-import java.util.ArrayList;
 import java.util.List;
 
 import static no.rutebanken.anshar.routes.siri.processor.routedata.NetexUpdaterService.serviceJourneyIdExists;
@@ -49,7 +45,7 @@ import static no.rutebanken.anshar.routes.validation.validators.et.SaneSpeedVali
  * Verifies that ExtraJourneys in ET stop at stops having the correct mode, and that
  * the reported arrival-/departure times are reasonable
  */
-public class ExtraJourneyPostProcessor extends ValueAdapter implements PostProcessor {
+public class ExtraJourneyPostProcessor extends ValueAdapter implements VisitingPostProcessor {
     private final Logger logger = LoggerFactory.getLogger(ExtraJourneyPostProcessor.class);
     private final String datasetId;
 
@@ -63,50 +59,45 @@ public class ExtraJourneyPostProcessor extends ValueAdapter implements PostProce
     }
 
     @Override
-    public void process(Siri siri) {
-        if (siri == null || siri.getServiceDelivery() == null) {
-            return;
-        }
-        List<EstimatedTimetableDeliveryStructure> etDeliveries = siri.getServiceDelivery().getEstimatedTimetableDeliveries();
-        if (etDeliveries == null) {
-            return;
-        }
-        for (EstimatedTimetableDeliveryStructure etDelivery : etDeliveries) {
-            for (EstimatedVersionFrameStructure frame : etDelivery.getEstimatedJourneyVersionFrames()) {
-                List<EstimatedVehicleJourney> journeys = frame.getEstimatedVehicleJourneies();
-                List<EstimatedVehicleJourney> toRemove = new ArrayList<>();
-
-                for (EstimatedVehicleJourney journey : journeys) {
-                    String journeyCode = journey.getEstimatedVehicleJourneyCode();
-                    /*
-                        Only verify that EstimatedVehicleJourneyCode exists - as it should only be
-                        used together when also "ExtraJourney=true" is set
-                     */
-                    if (journeyCode == null) {
-                        continue;
-                    }
-                    try {
-                        if (serviceJourneyIdExists(journeyCode)) {
-                            throw new AlreadyExistsException(journeyCode);
-                        }
-                        validateJourney(journey);
-                    } catch (TooFastException e) {
-                        getMetricsService().registerDataMapping(SiriDataType.ESTIMATED_TIMETABLE, datasetId, EXTRA_JOURNEY_TOO_FAST, 1);
-                        logger.info("Removing {}, cause: {}", journeyCode, e.getMessage());
-                        toRemove.add(journey);
-                    } catch (InvalidVehicleModeForStopException e) {
-                        getMetricsService().registerDataMapping(SiriDataType.ESTIMATED_TIMETABLE, datasetId, EXTRA_JOURNEY_INVALID_MODE, 1);
-                        logger.info("Removing {}, cause: {}", journeyCode, e.getMessage());
-                        toRemove.add(journey);
-                    } catch (AlreadyExistsException e) {
-                        getMetricsService().registerDataMapping(SiriDataType.ESTIMATED_TIMETABLE, datasetId, EXTRA_JOURNEY_ID_EXISTS, 1);
-                        logger.info("Removing {}, cause: {}", journeyCode, e.getMessage());
-                        toRemove.add(journey);
+    public PostProcessorVisitor createVisitor() {
+        return new PostProcessorVisitor() {
+            @Override
+            public boolean visitJourney(EstimatedVehicleJourney journey) {
+                String journeyCode = journey.getEstimatedVehicleJourneyCode();
+                /*
+                    Only verify that EstimatedVehicleJourneyCode exists - as it should only be
+                    used together when also "ExtraJourney=true" is set
+                 */
+                if (journeyCode == null) {
+                    return true;
+                }
+                try {
+                    if (serviceJourneyIdExists(journeyCode)) {
+                        throw new AlreadyExistsException(journeyCode);
                     }
+                    validateJourney(journey);
+                } catch (TooFastException e) {
+                    getMetricsService().registerDataMapping(SiriDataType.ESTIMATED_TIMETABLE, datasetId, EXTRA_JOURNEY_TOO_FAST, 1);
+                    logger.info("Removing {}, cause: {}", journeyCode, e.getMessage());
+                    return false;
+                } catch (InvalidVehicleModeForStopException e) {
+                    getMetricsService().registerDataMapping(SiriDataType.ESTIMATED_TIMETABLE, datasetId, EXTRA_JOURNEY_INVALID_MODE, 1);
+                    logger.info("Removing {}, cause: {}", journeyCode, e.getMessage());
+                    return false;
+                } catch (AlreadyExistsException e) {
+                    getMetricsService().registerDataMapping(SiriDataType.ESTIMATED_TIMETABLE, datasetId, EXTRA_JOURNEY_ID_EXISTS, 1);
+                    logger.info("Removing {}, cause: {}", journeyCode, e.getMessage());
+                    return false;
                 }
-                journeys.removeAll(toRemove);
+                return true;
             }
-        }
+        };
+    }
+
+    @Override
+    public boolean isElementLocal() {
+        // Journeys are only validated against route-data - not against other journeys in the delivery
+        return true;
     }
 
     private void validateJourney(EstimatedVehicleJourney journey)
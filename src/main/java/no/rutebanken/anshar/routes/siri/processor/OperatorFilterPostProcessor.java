@@ -19,9 +19,7 @@ import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
 import no.rutebanken.anshar.subscription.SiriDataType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
-import uk.org.siri.siri21.EstimatedVersionFrameStructure;
-import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
 
 import java.util.HashMap;
 import java.util.List;
@@ -29,7 +27,7 @@ import java.util.Map;
 
 import static no.rutebanken.anshar.routes.siri.transformer.MappingNames.LINE_MAPPING;
 
-public class OperatorFilterPostProcessor extends ValueAdapter implements PostProcessor {
+public class OperatorFilterPostProcessor extends ValueAdapter implements VisitingPostProcessor {
     private static transient final Logger logger = LoggerFactory.getLogger(OperatorFilterPostProcessor.class);
 
     private final List<String> operatorsToIgnore;
@@ -54,52 +52,57 @@ public class OperatorFilterPostProcessor extends ValueAdapter implements PostPro
     }
 
     @Override
-    public void process(Siri siri) {
-        if (siri != null && siri.getServiceDelivery() != null && siri.getServiceDelivery().getEstimatedTimetableDeliveries() != null) {
-            List<EstimatedTimetableDeliveryStructure> estimatedTimetableDeliveries = siri.getServiceDelivery().getEstimatedTimetableDeliveries();
-            for (EstimatedTimetableDeliveryStructure estimatedTimetableDelivery : estimatedTimetableDeliveries) {
-                if (estimatedTimetableDeliveries != null) {
-                    List<EstimatedVersionFrameStructure> estimatedJourneyVersionFrames = estimatedTimetableDelivery.getEstimatedJourneyVersionFrames();
-                    if (estimatedJourneyVersionFrames != null) {
-                        for (EstimatedVersionFrameStructure estimatedVersionFrameStructure : estimatedJourneyVersionFrames) {
-                            if (estimatedVersionFrameStructure != null) {
-
-                                if (operatorsToIgnore != null && !operatorsToIgnore.isEmpty()) {
-                                    final int sizeBefore = estimatedVersionFrameStructure
-                                        .getEstimatedVehicleJourneies()
-                                        .size();
-
-                                    estimatedVersionFrameStructure.getEstimatedVehicleJourneies()
-                                            .removeIf(et -> et.getOperatorRef() != null && operatorsToIgnore.contains(et.getOperatorRef().getValue()));
-
-                                    int ignoredUpdates = sizeBefore - estimatedVersionFrameStructure
-                                                                        .getEstimatedVehicleJourneies()
-                                                                        .size();
-
-                                    logger.info("Removed {} updates from ignored operators {}", ignoredUpdates, operatorsToIgnore);
-                                }
-
-                                estimatedVersionFrameStructure.getEstimatedVehicleJourneies()
-                                        .forEach(et -> {
-                                            if (et.getLineRef() != null && et.getOperatorRef() != null) {
-                                                String lineRef = et.getLineRef().getValue();
-                                                if (lineRef != null) {
-                                                    String operatorRef = et.getOperatorRef().getValue();
-
-                                                    String updatedLineRef;
-                                                    if (!lineRef.contains(":Line:")) {
-                                                        updatedLineRef = operatorOverrideMapping.getOrDefault(operatorRef, operatorRef) + ":Line:" + lineRef;
-                                                        et.getLineRef().setValue(updatedLineRef);
-                                                        getMetricsService().registerDataMapping(SiriDataType.ESTIMATED_TIMETABLE, datasetId, LINE_MAPPING, 1);
-                                                    }
-                                                }
-                                            }
-                                        });
-                            }
-                        }
+    public PostProcessorVisitor createVisitor() {
+        return new OperatorFilterVisitor();
+    }
+
+    @Override
+    public boolean isElementLocal() {
+        return true;
+    }
+
+    /**
+     * Counts the updates removed from the delivery
+     */
+    private class OperatorFilterVisitor implements PostProcessorVisitor {
+        private int ignoredUpdates;
+
+        @Override
+        public boolean visitJourney(EstimatedVehicleJourney et) {
+            if (operatorsToIgnore != null && !operatorsToIgnore.isEmpty() &&
+                    et.getOperatorRef() != null && operatorsToIgnore.contains(et.getOperatorRef().getValue())) {
+                ignoredUpdates++;
+                return false;
+            }
+
+            if (et.getLineRef() != null && et.getOperatorRef() != null) {
+                String lineRef = et.getLineRef().getValue();
+                if (lineRef != null) {
+                    String operatorRef = et.getOperatorRef().getValue();
+
+                    String updatedLineRef;
+                    if (!lineRef.contains(":Line:")) {
+                        updatedLineRef = operatorOverrideMapping.getOrDefault(operatorRef, operatorRef) + ":Line:" + lineRef;
+                        et.getLineRef().setValue(updatedLineRef);
+                        getMetricsService().registerDataMapping(SiriDataType.ESTIMATED_TIMETABLE, datasetId, LINE_MAPPING, 1);
                     }
                 }
             }
+            return true;
+        }
+
+        @Override
+        public void merge(PostProcessorVisitor other) {
+            if (other instanceof OperatorFilterVisitor visitor) {
+                ignoredUpdates += visitor.ignoredUpdates;
+            }
+        }
+
+        @Override
+        public void completed() {
+            if (ignoredUpdates > 0) {
+                logger.info("Removed {} updates from ignored operators {}", ignoredUpdates, operatorsToIgnore);
+            }
         }
     }
 }
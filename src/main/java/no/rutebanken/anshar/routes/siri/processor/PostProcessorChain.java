@@ -0,0 +1,290 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.siri.processor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.EstimatedVersionFrameStructure;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.RecordedCall;
+import uk.org.siri.siri21.ServiceDelivery;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.SituationExchangeDeliveryStructure;
+import uk.org.siri.siri21.VehicleActivityStructure;
+import uk.org.siri.siri21.VehicleMonitoringDeliveryStructure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Applies a chain of PostProcessors in order.
+ *
+ * Consecutive {@link VisitingPostProcessor}s are applied in one traversal of the delivery. Each element is passed to
+ * the visitors in the order of the processors, and an element removed by one visitor is not passed to the next - so
+ * the result is the same as applying the processors one by one, as long as each visitor only depends on the element
+ * it is visiting.
+ */
+public class PostProcessorChain {
+
+    private static final Logger logger = LoggerFactory.getLogger(PostProcessorChain.class);
+
+    private static final Map<Class<?>, Boolean> visitsCalls = new ConcurrentHashMap<>();
+
+    private PostProcessorChain() {
+    }
+
+    public static void process(Siri siri, List<? extends PostProcessor> processors) {
+        List<VisitingPostProcessor> visitingProcessors = new ArrayList<>();
+        for (PostProcessor processor : processors) {
+            if (processor instanceof VisitingPostProcessor visitingProcessor) {
+                visitingProcessors.add(visitingProcessor);
+                continue;
+            }
+            traverse(siri, visitingProcessors);
+            visitingProcessors.clear();
+
+            try {
+                processor.process(siri);
+            } catch (Throwable t) {
+                logFailure(processor, t);
+            }
+        }
+        traverse(siri, visitingProcessors);
+    }
+
+    /**
+     * Starts a traversal of a delivery that is visited in parts - e.g. in parallel. Each part is visited by a
+     * {@link Traversal#fork() fork} of the traversal, that is merged back when done, so the processors are completed
+     * once for the whole delivery.
+     */
+    public static Traversal startTraversal(List<VisitingPostProcessor> processors) {
+        return new Traversal(processors);
+    }
+
+    private static void traverse(Siri siri, List<VisitingPostProcessor> processors) {
+        if (processors.isEmpty() || siri == null || siri.getServiceDelivery() == null) {
+            return;
+        }
+        Traversal traversal = new Traversal(processors);
+        traversal.visit(siri);
+        traversal.completed();
+    }
+
+    private static void logFailure(PostProcessor processor, Throwable t) {
+        logger.warn("Caught exception while post-processing SIRI-object with processor '" + processor + "'", t);
+    }
+
+    /**
+     * @return true if the visitor implements any of the call-callbacks - calls are only iterated when needed
+     */
+    private static boolean isVisitingCalls(PostProcessorVisitor visitor) {
+        return visitsCalls.computeIfAbsent(visitor.getClass(), c -> {
+            try {
+                return c.getMethod("visitRecordedCall", EstimatedVehicleJourney.class, RecordedCall.class).getDeclaringClass() != PostProcessorVisitor.class ||
+                        c.getMethod("visitEstimatedCall", EstimatedVehicleJourney.class, EstimatedCall.class).getDeclaringClass() != PostProcessorVisitor.class;
+            } catch (NoSuchMethodException e) {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * State of one traversal - a processor that fails is not applied to the rest of the delivery.
+     *
+     * Not thread-safe - each part of a delivery that is visited in parallel must use its own fork.
+     */
+    public static final class Traversal {
+        private final List<VisitingPostProcessor> processors;
+        private final PostProcessorVisitor[] visitors;
+        private final boolean[] visitingCalls;
+
+        private Traversal(List<VisitingPostProcessor> processors) {
+            this.processors = processors;
+            this.visitors = new PostProcessorVisitor[processors.size()];
+            this.visitingCalls = new boolean[processors.size()];
+            for (int i = 0; i < visitors.length; i++) {
+                try {
+                    visitors[i] = processors.get(i).createVisitor();
+                    visitingCalls[i] = isVisitingCalls(visitors[i]);
+                } catch (Throwable t) {
+                    fail(i, t);
+                }
+            }
+        }
+
+        /**
+         * @return New traversal with the same processors - for visiting another part of the delivery
+         */
+        public Traversal fork() {
+            return new Traversal(processors);
+        }
+
+        /**
+         * Visits all elements in the delivery - unwanted elements are removed
+         */
+        public void visit(Siri siri) {
+            if (visitors.length == 0 || siri == null || siri.getServiceDelivery() == null) {
+                return;
+            }
+            ServiceDelivery serviceDelivery = siri.getServiceDelivery();
+
+            if (serviceDelivery.getEstimatedTimetableDeliveries() != null) {
+                for (EstimatedTimetableDeliveryStructure delivery : serviceDelivery.getEstimatedTimetableDeliveries()) {
+                    if (delivery.getEstimatedJourneyVersionFrames() != null) {
+                        for (EstimatedVersionFrameStructure frame : delivery.getEstimatedJourneyVersionFrames()) {
+                            if (frame != null) {
+                                visitJourneys(frame.getEstimatedVehicleJourneies());
+                            }
+                        }
+                    }
+                }
+            }
+
+            if (serviceDelivery.getVehicleMonitoringDeliveries() != null) {
+                for (VehicleMonitoringDeliveryStructure delivery : serviceDelivery.getVehicleMonitoringDeliveries()) {
+                    if (delivery.getVehicleActivities() != null) {
+                        delivery.getVehicleActivities().removeIf(activity -> !visitVehicleActivity(activity));
+                    }
+                }
+            }
+
+            if (serviceDelivery.getSituationExchangeDeliveries() != null) {
+                for (SituationExchangeDeliveryStructure delivery : serviceDelivery.getSituationExchangeDeliveries()) {
+                    SituationExchangeDeliveryStructure.Situations situations = delivery.getSituations();
+                    if (situations != null && situations.getPtSituationElements() != null) {
+                        situations.getPtSituationElements().removeIf(situation -> !visitSituation(situation));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Visits a list of journeys - unwanted journeys are removed from the list
+         */
+        public void visitJourneys(List<EstimatedVehicleJourney> journeys) {
+            if (visitors.length == 0 || journeys == null) {
+                return;
+            }
+            journeys.removeIf(journey -> !visitJourney(journey));
+        }
+
+        /**
+         * Adds the state of a fork that has visited another part of the delivery - the fork is not completed
+         */
+        public void merge(Traversal fork) {
+            for (int i = 0; i < visitors.length; i++) {
+                if (visitors[i] == null || fork.visitors[i] == null) {
+                    continue;
+                }
+                try {
+                    visitors[i].merge(fork.visitors[i]);
+                } catch (Throwable t) {
+                    fail(i, t);
+                }
+            }
+        }
+
+        private boolean visitJourney(EstimatedVehicleJourney journey) {
+            for (int i = 0; i < visitors.length; i++) {
+                PostProcessorVisitor visitor = visitors[i];
+                if (visitor == null) {
+                    continue;
+                }
+                try {
+                    if (!visitor.visitJourney(journey)) {
+                        return false;
+                    }
+                    if (visitingCalls[i]) {
+                        visitCalls(visitor, journey);
+                    }
+                } catch (Throwable t) {
+                    fail(i, t);
+                }
+            }
+            return true;
+        }
+
+        private void visitCalls(PostProcessorVisitor visitor, EstimatedVehicleJourney journey) {
+            if (journey.getRecordedCalls() != null && journey.getRecordedCalls().getRecordedCalls() != null) {
+                for (RecordedCall call : journey.getRecordedCalls().getRecordedCalls()) {
+                    visitor.visitRecordedCall(journey, call);
+                }
+            }
+            if (journey.getEstimatedCalls() != null && journey.getEstimatedCalls().getEstimatedCalls() != null) {
+                for (EstimatedCall call : journey.getEstimatedCalls().getEstimatedCalls()) {
+                    visitor.visitEstimatedCall(journey, call);
+                }
+            }
+        }
+
+        private boolean visitVehicleActivity(VehicleActivityStructure vehicleActivity) {
+            for (int i = 0; i < visitors.length; i++) {
+                if (visitors[i] == null) {
+                    continue;
+                }
+                try {
+                    if (!visitors[i].visitVehicleActivity(vehicleActivity)) {
+                        return false;
+                    }
+                } catch (Throwable t) {
+                    fail(i, t);
+                }
+            }
+            return true;
+        }
+
+        private boolean visitSituation(PtSituationElement situation) {
+            for (int i = 0; i < visitors.length; i++) {
+                if (visitors[i] == null) {
+                    continue;
+                }
+                try {
+                    if (!visitors[i].visitSituation(situation)) {
+                        return false;
+                    }
+                } catch (Throwable t) {
+                    fail(i, t);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Called once when the whole delivery has been visited
+         */
+        public void completed() {
+            for (int i = 0; i < visitors.length; i++) {
+                if (visitors[i] == null) {
+                    continue;
+                }
+                try {
+                    visitors[i].completed();
+                } catch (Throwable t) {
+                    fail(i, t);
+                }
+            }
+        }
+
+        private void fail(int index, Throwable t) {
+            visitors[index] = null;
+            logFailure(processors.get(index), t);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.siri.processor;
+
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.RecordedCall;
+import uk.org.siri.siri21.VehicleActivityStructure;
+
+/**
+ * Callbacks for the elements of a delivery - called by {@link PostProcessorChain} during one traversal of the delivery.
+ * A visitor is created for each traversal, and may hold state for that traversal only. When parts of a delivery are
+ * traversed separately, the state of the visitors is merged before the delivery is completed.
+ */
+public interface PostProcessorVisitor {
+
+    /**
+     * @return false if the journey should be removed from the delivery
+     */
+    default boolean visitJourney(EstimatedVehicleJourney journey) {
+        return true;
+    }
+
+    /**
+     * Called for each RecordedCall in a journey that is kept - after visitJourney
+     */
+    default void visitRecordedCall(EstimatedVehicleJourney journey, RecordedCall call) {
+    }
+
+    /**
+     * Called for each EstimatedCall in a journey that is kept - after all RecordedCalls
+     */
+    default void visitEstimatedCall(EstimatedVehicleJourney journey, EstimatedCall call) {
+    }
+
+    /**
+     * @return false if the vehicle activity should be removed from the delivery
+     */
+    default boolean visitVehicleActivity(VehicleActivityStructure vehicleActivity) {
+        return true;
+    }
+
+    /**
+     * @return false if the situation should be removed from the delivery
+     */
+    default boolean visitSituation(PtSituationElement situation) {
+        return true;
+    }
+
+    /**
+     * Adds the state of another visitor from the same processor, that has visited another part of the same delivery.
+     * Only this visitor is completed afterwards.
+     */
+    default void merge(PostProcessorVisitor other) {
+    }
+
+    /**
+     * Called once when all elements have been visited - e.g. for logging and metrics
+     */
+    default void completed() {
+    }
+}
@@ -26,16 +26,27 @@ import uk.org.siri.siri21.RecordedCall;
 import uk.org.siri.siri21.Siri;
 import uk.org.siri.siri21.VehicleOccupancyStructure;
 
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Post processor that removes detailed APC data, leaving only occupancy level.
  * This is a "temporary solution" to avoid sharing potentially sensitive data about how many passengers
  * are on board - until rules and regulations are clarified.
  */
-public class RemoveDetailedAPCDataPostProcessor extends ValueAdapter implements PostProcessor {
-    private Logger logger = LoggerFactory.getLogger(RemoveDetailedAPCDataPostProcessor.class);
+public class RemoveDetailedAPCDataPostProcessor extends ValueAdapter implements VisitingPostProcessor, StreamingPostProcessor {
+    private static final Logger logger = LoggerFactory.getLogger(RemoveDetailedAPCDataPostProcessor.class);
+
+    /**
+     * Properties of VehicleOccupancyStructure that are kept by {@link #clearApcData(List)}
+     */
+    static final Set<String> OCCUPANCY_GETTERS_KEPT = Set.of("getOccupancyLevel", "getEntranceToVehicleRef");
+
+    private static List<Method> removedOccupancyGetters;
 
     @Override
     protected String apply(String text) {
@@ -43,38 +54,123 @@ public class RemoveDetailedAPCDataPostProcessor extends ValueAdapter implements
     }
 
     @Override
-    public void process(Siri siri) {
-
-        if (siri != null && siri.getServiceDelivery() != null) {
-
-            List<EstimatedTimetableDeliveryStructure> estimatedTimetableDeliveries = siri.getServiceDelivery().getEstimatedTimetableDeliveries();
-            for (EstimatedTimetableDeliveryStructure delivery : estimatedTimetableDeliveries) {
-                List<EstimatedVersionFrameStructure> estimatedJourneyVersionFrames = delivery.getEstimatedJourneyVersionFrames();
-                for (EstimatedVersionFrameStructure estimatedJourneyVersionFrame : estimatedJourneyVersionFrames) {
-                    List<EstimatedVehicleJourney> estimatedVehicleJourneies = estimatedJourneyVersionFrame.getEstimatedVehicleJourneies();
-                    for (EstimatedVehicleJourney estimatedVehicleJourney : estimatedVehicleJourneies) {
-                        if (estimatedVehicleJourney.getRecordedCalls() != null) {
-                            List<RecordedCall> calls = estimatedVehicleJourney.getRecordedCalls().getRecordedCalls();
-                            for (RecordedCall call : calls) {
-                                clearApcData(call.getRecordedDepartureOccupancies());
-                                call.getRecordedDepartureCapacities().clear();
-                            }
-                        }
-
-                        if (estimatedVehicleJourney.getEstimatedCalls() != null) {
-                            List<EstimatedCall> calls = estimatedVehicleJourney.getEstimatedCalls().getEstimatedCalls();
-                            for (EstimatedCall call : calls) {
-                                clearApcData(call.getRecordedDepartureOccupancies());
-                                clearApcData(call.getExpectedDepartureOccupancies());
-
-                                call.getRecordedDepartureCapacities().clear();
-                                call.getExpectedDepartureCapacities().clear();
-                            }
-                        }
+    public PostProcessorVisitor createVisitor() {
+        return new PostProcessorVisitor() {
+            @Override
+            public void visitRecordedCall(EstimatedVehicleJourney journey, RecordedCall call) {
+                clearApcData(call.getRecordedDepartureOccupancies());
+                call.getRecordedDepartureCapacities().clear();
+            }
+
+            @Override
+            public void visitEstimatedCall(EstimatedVehicleJourney journey, EstimatedCall call) {
+                clearApcData(call.getRecordedDepartureOccupancies());
+                clearApcData(call.getExpectedDepartureOccupancies());
+
+                call.getRecordedDepartureCapacities().clear();
+                call.getExpectedDepartureCapacities().clear();
+            }
+        };
+    }
+
+    @Override
+    public boolean isElementLocal() {
+        return true;
+    }
+
+    /**
+     * No values are rewritten - detailed APC-data is removed by altering the structure
+     */
+    @Override
+    public boolean isRewritten(Class<?> owner, String fieldName) {
+        return false;
+    }
+
+    @Override
+    public String rewrite(String value) {
+        return value;
+    }
+
+    /**
+     * @return false if the delivery has detailed APC-data - the processor is a no-op otherwise
+     */
+    @Override
+    public boolean isStreamable(Siri siri) {
+        if (siri == null || siri.getServiceDelivery() == null) {
+            return true;
+        }
+        for (EstimatedTimetableDeliveryStructure delivery : siri.getServiceDelivery().getEstimatedTimetableDeliveries()) {
+            for (EstimatedVersionFrameStructure frame : delivery.getEstimatedJourneyVersionFrames()) {
+                for (EstimatedVehicleJourney journey : frame.getEstimatedVehicleJourneies()) {
+                    if (hasDetailedApcData(journey)) {
+                        return false;
                     }
                 }
             }
         }
+        return true;
+    }
+
+    private static boolean hasDetailedApcData(EstimatedVehicleJourney journey) {
+        if (journey.getRecordedCalls() != null) {
+            for (RecordedCall call : journey.getRecordedCalls().getRecordedCalls()) {
+                if (!call.getRecordedDepartureCapacities().isEmpty() ||
+                        hasDetailedOccupancy(call.getRecordedDepartureOccupancies())) {
+                    return true;
+                }
+            }
+        }
+        if (journey.getEstimatedCalls() != null) {
+            for (EstimatedCall call : journey.getEstimatedCalls().getEstimatedCalls()) {
+                if (!call.getRecordedDepartureCapacities().isEmpty() ||
+                        !call.getExpectedDepartureCapacities().isEmpty() ||
+                        hasDetailedOccupancy(call.getRecordedDepartureOccupancies()) ||
+                        hasDetailedOccupancy(call.getExpectedDepartureOccupancies())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if any of the occupancies would be altered by {@link #clearApcData(List)}
+     */
+    private static boolean hasDetailedOccupancy(List<VehicleOccupancyStructure> occupancies) {
+        for (VehicleOccupancyStructure occupancy : occupancies) {
+            if (occupancy.getOccupancyLevel() == null) {
+                return true;
+            }
+            for (Method getter : getRemovedOccupancyGetters()) {
+                try {
+                    Object value = getter.invoke(occupancy);
+                    if (value != null && !(value instanceof List<?> list && list.isEmpty())) {
+                        return true;
+                    }
+                } catch (ReflectiveOperationException e) {
+                    logger.warn("Unable to check occupancy-data", e);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static synchronized List<Method> getRemovedOccupancyGetters() {
+        if (removedOccupancyGetters == null) {
+            List<Method> getters = new ArrayList<>();
+            for (Method method : VehicleOccupancyStructure.class.getMethods()) {
+                if (method.getParameterCount() == 0 &&
+                        method.getReturnType() != void.class &&
+                        !Modifier.isStatic(method.getModifiers()) &&
+                        method.getDeclaringClass().getName().startsWith("uk.org.siri") &&
+                        !OCCUPANCY_GETTERS_KEPT.contains(method.getName())) {
+                    getters.add(method);
+                }
+            }
+            removedOccupancyGetters = Collections.unmodifiableList(getters);
+        }
+        return removedOccupancyGetters;
     }
 
     private static void clearApcData(List<VehicleOccupancyStructure> vehicleOccupancyStructures) {
@@ -92,4 +188,14 @@ public class RemoveDetailedAPCDataPostProcessor extends ValueAdapter implements
         vehicleOccupancyStructures.clear();
         vehicleOccupancyStructures.addAll(reducedOccupancyList);
     }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RemoveDetailedAPCDataPostProcessor;
+    }
+
+    @Override
+    public int hashCode() {
+        return RemoveDetailedAPCDataPostProcessor.class.hashCode();
+    }
 }
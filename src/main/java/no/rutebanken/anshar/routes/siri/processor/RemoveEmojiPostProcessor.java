@@ -26,8 +26,10 @@ import uk.org.siri.siri21.SituationExchangeDeliveryStructure;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 
-public class RemoveEmojiPostProcessor extends ValueAdapter implements PostProcessor {
+public class RemoveEmojiPostProcessor extends ValueAdapter implements VisitingPostProcessor, StreamingPostProcessor {
     private Logger logger = LoggerFactory.getLogger(RemoveEmojiPostProcessor.class);
 
     private OutboundIdMappingPolicy outboundIdMappingPolicy;
@@ -36,6 +38,11 @@ public class RemoveEmojiPostProcessor extends ValueAdapter implements PostProces
         this.outboundIdMappingPolicy = outboundIdMappingPolicy;
     }
 
+    /**
+     * Text-fields in PtSituationElement that emojis are removed from
+     */
+    private static final Set<String> TEXT_FIELDS = Set.of("summaries", "descriptions", "details");
+
     private static transient List<Character> specialCharactersToKeep = Arrays.asList((char)8211, (char)8212);
 
     @Override
@@ -43,28 +50,33 @@ public class RemoveEmojiPostProcessor extends ValueAdapter implements PostProces
         return null;
     }
 
-    @Override
-    public void process(Siri siri) {
+    /**
+     * @return true if emojis are removed for the id-policy
+     */
+    private boolean isRemovingEmojis() {
+        return outboundIdMappingPolicy == OutboundIdMappingPolicy.DEFAULT;
+    }
 
-        if (outboundIdMappingPolicy == OutboundIdMappingPolicy.DEFAULT) {
+    @Override
+    public PostProcessorVisitor createVisitor() {
+        if (!isRemovingEmojis()) {
             //Only remove emojis when requested
-            if (siri != null && siri.getServiceDelivery() != null) {
-
-                List<SituationExchangeDeliveryStructure> situationExchangeDeliveries = siri.getServiceDelivery().getSituationExchangeDeliveries();
-                if (situationExchangeDeliveries != null) {
-                    for (SituationExchangeDeliveryStructure situationExchangeDelivery : situationExchangeDeliveries) {
-                        SituationExchangeDeliveryStructure.Situations situations = situationExchangeDelivery.getSituations();
-                        if (situations != null && situations.getPtSituationElements() != null) {
-                            for (PtSituationElement ptSituationElement : situations.getPtSituationElements()) {
-                                removeEmojisFromTexts(ptSituationElement.getSummaries());
-                                removeEmojisFromTexts(ptSituationElement.getDescriptions());
-                                removeEmojisFromTexts(ptSituationElement.getDetails());
-                            }
-                        }
-                    }
-                }
-            }
+            return new PostProcessorVisitor() {};
         }
+        return new PostProcessorVisitor() {
+            @Override
+            public boolean visitSituation(PtSituationElement ptSituationElement) {
+                removeEmojisFromTexts(ptSituationElement.getSummaries());
+                removeEmojisFromTexts(ptSituationElement.getDescriptions());
+                removeEmojisFromTexts(ptSituationElement.getDetails());
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public boolean isElementLocal() {
+        return true;
     }
 
     private void removeEmojisFromTexts(List<DefaultedTextStructure> textStructures) {
@@ -72,13 +84,54 @@ public class RemoveEmojiPostProcessor extends ValueAdapter implements PostProces
             for (DefaultedTextStructure text : textStructures) {
                 String value = text.getValue();
 
-                String cleanedValue = cleanup(value);
+                String cleanedValue = rewrite(value);
                 text.setValue(cleanedValue);
 
             }
         }
     }
 
+    @Override
+    public boolean isRewritten(Class<?> owner, String fieldName) {
+        return isRemovingEmojis() && TEXT_FIELDS.contains(fieldName) && PtSituationElement.class.isAssignableFrom(owner);
+    }
+
+    @Override
+    public String rewrite(String value) {
+        return cleanup(value);
+    }
+
+    /**
+     * @return false if a text has no value - the object-path fails on these, and leaves the remaining texts unaltered
+     */
+    @Override
+    public boolean isStreamable(Siri siri) {
+        if (!isRemovingEmojis() || siri == null || siri.getServiceDelivery() == null) {
+            return true;
+        }
+        for (SituationExchangeDeliveryStructure delivery : siri.getServiceDelivery().getSituationExchangeDeliveries()) {
+            if (delivery.getSituations() != null) {
+                for (PtSituationElement situation : delivery.getSituations().getPtSituationElements()) {
+                    if (hasTextWithoutValue(situation)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasTextWithoutValue(PtSituationElement situation) {
+        for (List<DefaultedTextStructure> texts : List.of(situation.getSummaries(), situation.getDescriptions(), situation.getDetails())) {
+            for (DefaultedTextStructure text : texts) {
+                if (text.getValue() == null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     private String cleanup(String value) {
         String cleanedValue = "";
 
@@ -100,4 +153,19 @@ public class RemoveEmojiPostProcessor extends ValueAdapter implements PostProces
     private boolean keepCharacter(char c) {
         return (c > 30 && c <= 500) || specialCharactersToKeep.contains(c);
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof RemoveEmojiPostProcessor)) return false;
+
+        RemoveEmojiPostProcessor that = (RemoveEmojiPostProcessor) o;
+
+        return outboundIdMappingPolicy == that.outboundIdMappingPolicy;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(RemoveEmojiPostProcessor.class, outboundIdMappingPolicy);
+    }
 }
@@ -17,13 +17,9 @@ package no.rutebanken.anshar.routes.siri.processor;
 
 import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
 import uk.org.siri.siri21.PtSituationElement;
-import uk.org.siri.siri21.Siri;
-import uk.org.siri.siri21.SituationExchangeDeliveryStructure;
 import uk.org.siri.siri21.SituationSourceStructure;
 
-import java.util.List;
-
-public class RemovePersonalInformationProcessor extends ValueAdapter implements PostProcessor {
+public class RemovePersonalInformationProcessor extends ValueAdapter implements VisitingPostProcessor {
 
     @Override
     protected String apply(String text) {
@@ -31,25 +27,23 @@ public class RemovePersonalInformationProcessor extends ValueAdapter implements
     }
 
     @Override
-    public void process(Siri siri) {
-        if (siri != null && siri.getServiceDelivery() != null) {
-
-            List<SituationExchangeDeliveryStructure> situationExchangeDeliveries = siri.getServiceDelivery().getSituationExchangeDeliveries();
-            if (situationExchangeDeliveries != null) {
-                for (SituationExchangeDeliveryStructure situationExchangeDelivery : situationExchangeDeliveries) {
-                    SituationExchangeDeliveryStructure.Situations situations = situationExchangeDelivery.getSituations();
-                    if (situations != null && situations.getPtSituationElements() != null) {
-                        for (PtSituationElement ptSituationElement : situations.getPtSituationElements()) {
-                            SituationSourceStructure sourceStructure = ptSituationElement.getSource();
-                            if (sourceStructure != null) {
-                                SituationSourceStructure cleanedSourceStructure = new SituationSourceStructure();
-                                cleanedSourceStructure.setSourceType(sourceStructure.getSourceType());
-                                ptSituationElement.setSource(cleanedSourceStructure);
-                            }
-                        }
-                    }
+    public PostProcessorVisitor createVisitor() {
+        return new PostProcessorVisitor() {
+            @Override
+            public boolean visitSituation(PtSituationElement ptSituationElement) {
+                SituationSourceStructure sourceStructure = ptSituationElement.getSource();
+                if (sourceStructure != null) {
+                    SituationSourceStructure cleanedSourceStructure = new SituationSourceStructure();
+                    cleanedSourceStructure.setSourceType(sourceStructure.getSourceType());
+                    ptSituationElement.setSource(cleanedSourceStructure);
                 }
+                return true;
             }
-        }
+        };
+    }
+
+    @Override
+    public boolean isElementLocal() {
+        return true;
     }
 }
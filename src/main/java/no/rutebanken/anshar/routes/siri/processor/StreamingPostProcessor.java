@@ -0,0 +1,44 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.siri.processor;
+
+import uk.org.siri.siri21.Siri;
+
+/**
+ * PostProcessor that only rewrites the text-value of known elements - and can thereby be applied while a delivery is
+ * written, instead of to a copy of the object. The object-path of the processor rewrites values with the same
+ * {@link #rewrite(String)}, so both paths give the same result.
+ */
+public interface StreamingPostProcessor {
+
+    /**
+     * @param owner Class of the object holding the element
+     * @param fieldName Name of the field holding the element
+     * @return true if the text-value of the element is rewritten
+     */
+    boolean isRewritten(Class<?> owner, String fieldName);
+
+    /**
+     * @return Rewritten text-value of an element accepted by {@link #isRewritten(Class, String)}
+     */
+    String rewrite(String value);
+
+    /**
+     * @return false if the processor would alter the structure of the delivery, and must be applied to the object
+     */
+    default boolean isStreamable(Siri siri) {
+        return true;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.siri.processor;
+
+import uk.org.siri.siri21.Siri;
+
+import java.util.List;
+
+/**
+ * PostProcessor that processes one element at a time. Consecutive VisitingPostProcessors are applied in one traversal
+ * of the delivery by {@link PostProcessorChain} - instead of each processor traversing the whole delivery.
+ */
+public interface VisitingPostProcessor extends PostProcessor {
+
+    /**
+     * @return Visitor for one traversal of a delivery
+     */
+    PostProcessorVisitor createVisitor();
+
+    /**
+     * @return true if the result for an element only depends on that element - and not on other elements in the
+     * delivery, e.g. when removing duplicates. Only element-local processors are applied to parts of a delivery in
+     * parallel, so processors must declare it explicitly.
+     */
+    default boolean isElementLocal() {
+        return false;
+    }
+
+    @Override
+    default void process(Siri siri) {
+        PostProcessorChain.process(siri, List.of(this));
+    }
+}
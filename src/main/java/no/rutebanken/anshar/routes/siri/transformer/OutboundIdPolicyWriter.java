@@ -0,0 +1,594 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.transformer;
+
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.Marshaller;
+import jakarta.xml.bind.annotation.XmlAttribute;
+import jakarta.xml.bind.annotation.XmlElement;
+import jakarta.xml.bind.annotation.XmlElementRef;
+import jakarta.xml.bind.annotation.XmlElementRefs;
+import jakarta.xml.bind.annotation.XmlElements;
+import jakarta.xml.bind.annotation.XmlTransient;
+import jakarta.xml.bind.annotation.XmlValue;
+import no.rutebanken.anshar.routes.siri.processor.StreamingPostProcessor;
+import no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter;
+import uk.org.siri.siri21.Siri;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Writes SIRI as XML, and applies the outbound id-policy to each value while it is written - instead of copying and
+ * transforming the object before it is serialized. The object that is written is never altered.
+ *
+ * Values are resolved from the declared type of each element, so the result is the same as with
+ * {@link SiriValueTransformer#transform(Siri, List)}: OutboundIdAdapters are applied to elements with the class
+ * they apply to, and {@link StreamingPostProcessor}s rewrite the values of the elements they accept. Adapters that
+ * alter the structure of the data are not supported - see {@link #isSupported(Siri, List)}.
+ */
+public class OutboundIdPolicyWriter {
+
+    private static final String SIRI_PACKAGE_PREFIX = "uk.org.siri";
+
+    private static final String DEFAULT_NAME = "##default";
+
+    private static final Set<String> FIELDS_TO_IGNORE = Set.of("monitoringError");
+
+    private static final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newFactory();
+
+    private static final Map<Class<?>, Map<String, ElementInfo>> elementsByClass = new ConcurrentHashMap<>();
+
+    private static JAXBContext jaxbContext;
+
+    /**
+     * @param fieldName Name of the field holding the element
+     * @param type Declared type - List for repeated elements
+     * @param traverse true if the value is traversed by SiriValueTransformer
+     */
+    private record ElementInfo(String fieldName, Class<?> type, boolean traverse) {}
+
+    private final Map<Class<?>, List<ValueAdapter>> idAdapters = new HashMap<>();
+    private final List<StreamingPostProcessor> streamingProcessors = new ArrayList<>();
+
+    private OutboundIdPolicyWriter(List<ValueAdapter> adapters) {
+        if (adapters != null) {
+            for (ValueAdapter adapter : adapters) {
+                if (adapter instanceof OutboundIdAdapter && adapter.getClassToApply() != null) {
+                    idAdapters.computeIfAbsent(adapter.getClassToApply(), c -> new ArrayList<>()).add(adapter);
+                } else if (adapter instanceof StreamingPostProcessor processor) {
+                    streamingProcessors.add(processor);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the adapters can be applied while writing - if not, the object must be transformed
+     */
+    public static boolean isSupported(Siri siri, List<ValueAdapter> adapters) {
+        if (siri == null || adapters == null) {
+            return true;
+        }
+        for (ValueAdapter adapter : adapters) {
+            if (adapter instanceof OutboundIdAdapter) {
+                continue;
+            }
+            if (adapter instanceof StreamingPostProcessor processor && processor.isStreamable(siri)) {
+                continue;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes SIRI as XML with the adapters applied - adapters must be supported
+     */
+    public static void writeXml(Siri siri, List<ValueAdapter> adapters, OutputStream out) throws JAXBException, XMLStreamException {
+        // Adapters are only applied to deliveries - as in SiriValueTransformer
+        OutboundIdPolicyWriter writer = new OutboundIdPolicyWriter(siri.getServiceDelivery() != null ? adapters : null);
+
+        XMLStreamWriter xmlStreamWriter = xmlOutputFactory.createXMLStreamWriter(out, "UTF-8");
+        PolicyStreamWriter policyStreamWriter = writer.new PolicyStreamWriter(xmlStreamWriter);
+
+        Marshaller marshaller = getJaxbContext().createMarshaller();
+        marshaller.setListener(policyStreamWriter.listener);
+        marshaller.marshal(siri, policyStreamWriter);
+
+        xmlStreamWriter.flush();
+        xmlStreamWriter.close();
+    }
+
+    private static synchronized JAXBContext getJaxbContext() throws JAXBException {
+        if (jaxbContext == null) {
+            jaxbContext = JAXBContext.newInstance(Siri.class);
+        }
+        return jaxbContext;
+    }
+
+    /**
+     * @return Mapping of the value in the element, or null if the value is written unaltered
+     */
+    private UnaryOperator<String> resolveMapping(Class<?> owner, ElementInfo element, boolean traversed) {
+        List<UnaryOperator<String>> mappings = new ArrayList<>();
+
+        List<ValueAdapter> adapters = idAdapters.get(element.type());
+        if (traversed && adapters != null) {
+            for (ValueAdapter adapter : adapters) {
+                mappings.add(value -> SiriValueTransformer.adaptValue(adapter, value));
+            }
+        }
+
+        for (StreamingPostProcessor processor : streamingProcessors) {
+            if (processor.isRewritten(owner, element.fieldName())) {
+                mappings.add(processor::rewrite);
+            }
+        }
+
+        if (mappings.isEmpty()) {
+            return null;
+        }
+        if (mappings.size() == 1) {
+            return mappings.get(0);
+        }
+        return value -> {
+            for (UnaryOperator<String> mapping : mappings) {
+                value = mapping.apply(value);
+            }
+            return value;
+        };
+    }
+
+    /**
+     * Element being written
+     */
+    private static class Frame {
+        private final Frame parent;
+
+        /**
+         * true if SiriValueTransformer would traverse the value of this element
+         */
+        private final boolean traversed;
+        private final UnaryOperator<String> mapping;
+
+        /**
+         * Runtime class of the object written as this element - null for simple values
+         */
+        private Class<?> beanClass;
+        private StringBuilder text;
+
+        private Frame(Frame parent, boolean traversed, UnaryOperator<String> mapping) {
+            this.parent = parent;
+            this.traversed = traversed;
+            this.mapping = mapping;
+        }
+    }
+
+    /**
+     * Tracks the objects marshalled by JAXB, and the elements written for them - JAXB notifies the listener right
+     * before the start-element of each object is written. Characters in elements with a mapping are buffered, and
+     * written mapped when the element ends.
+     */
+    private class PolicyStreamWriter extends DelegatingXMLStreamWriter {
+
+        private final Map<Class<?>, Map<String, UnaryOperator<String>>> mappingCache = new HashMap<>();
+
+        private Frame current;
+
+        /**
+         * Class of the object JAXB is about to write - notified before its start-element is written
+         */
+        private Class<?> pendingClass;
+
+        private final Marshaller.Listener listener = new Marshaller.Listener() {
+            @Override
+            public void beforeMarshal(Object source) {
+                pendingClass = source.getClass();
+            }
+        };
+
+        private PolicyStreamWriter(XMLStreamWriter delegate) {
+            super(delegate);
+        }
+
+        private void startElement(String localName) {
+            Frame frame;
+            if (current == null) {
+                frame = new Frame(null, true, null);
+            } else {
+                frame = createFrame(current, localName);
+            }
+            // Simple values are written without notification
+            frame.beanClass = pendingClass;
+            pendingClass = null;
+            current = frame;
+        }
+
+        private Frame createFrame(Frame parent, String localName) {
+            Class<?> owner = parent.beanClass;
+            if (owner == null) {
+                return new Frame(parent, false, null);
+            }
+            ElementInfo element = getElements(owner).get(localName);
+            if (element == null) {
+                return new Frame(parent, false, null);
+            }
+            boolean traversed = parent.traversed && isSiriClass(owner) && element.traverse();
+
+            Map<String, UnaryOperator<String>> ownerMappings = mappingCache.computeIfAbsent(owner, c -> new HashMap<>());
+            String key = localName + (traversed ? "" : "#");
+            UnaryOperator<String> mapping;
+            if (ownerMappings.containsKey(key)) {
+                mapping = ownerMappings.get(key);
+            } else {
+                mapping = resolveMapping(owner, element, traversed);
+                ownerMappings.put(key, mapping);
+            }
+            return new Frame(parent, traversed, mapping);
+        }
+
+        private void endElement() throws XMLStreamException {
+            pendingClass = null;
+            if (current == null) {
+                return;
+            }
+            if (current.text != null) {
+                super.writeCharacters(current.mapping.apply(current.text.toString()));
+            }
+            current = current.parent;
+        }
+
+        private boolean bufferCharacters(String text) {
+            if (current != null && current.mapping != null) {
+                if (current.text == null) {
+                    current.text = new StringBuilder(text.length());
+                }
+                current.text.append(text);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void writeStartElement(String localName) throws XMLStreamException {
+            startElement(localName);
+            super.writeStartElement(localName);
+        }
+
+        @Override
+        public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException {
+            startElement(localName);
+            super.writeStartElement(namespaceURI, localName);
+        }
+
+        @Override
+        public void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+            startElement(localName);
+            super.writeStartElement(prefix, localName, namespaceURI);
+        }
+
+        @Override
+        public void writeEndElement() throws XMLStreamException {
+            endElement();
+            super.writeEndElement();
+        }
+
+        @Override
+        public void writeCharacters(String text) throws XMLStreamException {
+            if (!bufferCharacters(text)) {
+                super.writeCharacters(text);
+            }
+        }
+
+        @Override
+        public void writeCharacters(char[] text, int start, int len) throws XMLStreamException {
+            if (!bufferCharacters(new String(text, start, len))) {
+                super.writeCharacters(text, start, len);
+            }
+        }
+    }
+
+    /**
+     * @return Elements written for the fields of the class, by element name
+     */
+    private static Map<String, ElementInfo> getElements(Class<?> clazz) {
+        return elementsByClass.computeIfAbsent(clazz, OutboundIdPolicyWriter::resolveElements);
+    }
+
+    private static Map<String, ElementInfo> resolveElements(Class<?> clazz) {
+        Map<String, ElementInfo> elements = new LinkedHashMap<>();
+        List<Field> elementRefs = new ArrayList<>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers()) ||
+                        field.isAnnotationPresent(XmlAttribute.class) || field.isAnnotationPresent(XmlValue.class) ||
+                        field.isAnnotationPresent(XmlTransient.class)) {
+                    continue;
+                }
+                ElementInfo element = new ElementInfo(field.getName(), field.getType(), isTraversed(field));
+
+                XmlElements choice = field.getAnnotation(XmlElements.class);
+                XmlElementRef elementRef = field.getAnnotation(XmlElementRef.class);
+                XmlElementRefs elementRefChoice = field.getAnnotation(XmlElementRefs.class);
+                if (choice != null) {
+                    for (XmlElement xmlElement : choice.value()) {
+                        elements.put(xmlElement.name(), element);
+                    }
+                } else if (elementRef != null || elementRefChoice != null) {
+                    if (elementRef != null && !DEFAULT_NAME.equals(elementRef.name())) {
+                        elements.put(elementRef.name(), element);
+                    } else {
+                        elementRefs.add(field);
+                    }
+                } else {
+                    XmlElement xmlElement = field.getAnnotation(XmlElement.class);
+                    String name = xmlElement != null && !DEFAULT_NAME.equals(xmlElement.name()) ?
+                            xmlElement.name() : field.getName();
+                    elements.put(name, element);
+                }
+            }
+        }
+        if (elementRefs.size() == 1) {
+            // Names of referenced elements are unknown - only one field they may belong to
+            Field field = elementRefs.get(0);
+            ElementInfo element = new ElementInfo(field.getName(), field.getType(), isTraversed(field));
+            return new DefaultingMap(elements, element);
+        }
+        return elements;
+    }
+
+    /**
+     * @return true if SiriValueTransformer traverses the value of the field
+     */
+    private static boolean isTraversed(Field field) {
+        if (FIELDS_TO_IGNORE.contains(field.getName())) {
+            return false;
+        }
+        Class<?> type = field.getType();
+        if (List.class.isAssignableFrom(type)) {
+            type = getElementType(field.getGenericType());
+            if (type == null) {
+                return true;
+            }
+        }
+        return isSiriClass(type) || type == Object.class || type.isInterface();
+    }
+
+    private static Class<?> getElementType(Type genericType) {
+        if (genericType instanceof ParameterizedType parameterizedType &&
+                parameterizedType.getActualTypeArguments().length == 1) {
+            Type elementType = parameterizedType.getActualTypeArguments()[0];
+            if (elementType instanceof Class<?> elementClass) {
+                return elementClass;
+            }
+            if (elementType instanceof ParameterizedType parameterizedElement &&
+                    parameterizedElement.getRawType() instanceof Class<?> rawClass) {
+                return rawClass;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSiriClass(Class<?> clazz) {
+        return clazz.getName().startsWith(SIRI_PACKAGE_PREFIX);
+    }
+
+    /**
+     * Element map with a default for unknown names
+     */
+    private static class DefaultingMap extends HashMap<String, ElementInfo> {
+        private final ElementInfo defaultElement;
+
+        private DefaultingMap(Map<String, ElementInfo> elements, ElementInfo defaultElement) {
+            super(elements);
+            this.defaultElement = defaultElement;
+        }
+
+        @Override
+        public ElementInfo get(Object key) {
+            return getOrDefault(key, defaultElement);
+        }
+    }
+
+    /**
+     * Passes all calls to the delegate
+     */
+    private static class DelegatingXMLStreamWriter implements XMLStreamWriter {
+
+        private final XMLStreamWriter delegate;
+
+        DelegatingXMLStreamWriter(XMLStreamWriter delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void writeStartElement(String localName) throws XMLStreamException {
+            delegate.writeStartElement(localName);
+        }
+
+        @Override
+        public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException {
+            delegate.writeStartElement(namespaceURI, localName);
+        }
+
+        @Override
+        public void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+            delegate.writeStartElement(prefix, localName, namespaceURI);
+        }
+
+        @Override
+        public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException {
+            delegate.writeEmptyElement(namespaceURI, localName);
+        }
+
+        @Override
+        public void writeEmptyElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+            delegate.writeEmptyElement(prefix, localName, namespaceURI);
+        }
+
+        @Override
+        public void writeEmptyElement(String localName) throws XMLStreamException {
+            delegate.writeEmptyElement(localName);
+        }
+
+        @Override
+        public void writeEndElement() throws XMLStreamException {
+            delegate.writeEndElement();
+        }
+
+        @Override
+        public void writeEndDocument() throws XMLStreamException {
+            delegate.writeEndDocument();
+        }
+
+        @Override
+        public void close() throws XMLStreamException {
+            delegate.close();
+        }
+
+        @Override
+        public void flush() throws XMLStreamException {
+            delegate.flush();
+        }
+
+        @Override
+        public void writeAttribute(String localName, String value) throws XMLStreamException {
+            delegate.writeAttribute(localName, value);
+        }
+
+        @Override
+        public void writeAttribute(String prefix, String namespaceURI, String localName, String value) throws XMLStreamException {
+            delegate.writeAttribute(prefix, namespaceURI, localName, value);
+        }
+
+        @Override
+        public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException {
+            delegate.writeAttribute(namespaceURI, localName, value);
+        }
+
+        @Override
+        public void writeNamespace(String prefix, String namespaceURI) throws XMLStreamException {
+            delegate.writeNamespace(prefix, namespaceURI);
+        }
+
+        @Override
+        public void writeDefaultNamespace(String namespaceURI) throws XMLStreamException {
+            delegate.writeDefaultNamespace(namespaceURI);
+        }
+
+        @Override
+        public void writeComment(String data) throws XMLStreamException {
+            delegate.writeComment(data);
+        }
+
+        @Override
+        public void writeProcessingInstruction(String target) throws XMLStreamException {
+            delegate.writeProcessingInstruction(target);
+        }
+
+        @Override
+        public void writeProcessingInstruction(String target, String data) throws XMLStreamException {
+            delegate.writeProcessingInstruction(target, data);
+        }
+
+        @Override
+        public void writeCData(String data) throws XMLStreamException {
+            delegate.writeCData(data);
+        }
+
+        @Override
+        public void writeDTD(String dtd) throws XMLStreamException {
+            delegate.writeDTD(dtd);
+        }
+
+        @Override
+        public void writeEntityRef(String name) throws XMLStreamException {
+            delegate.writeEntityRef(name);
+        }
+
+        @Override
+        public void writeStartDocument() throws XMLStreamException {
+            delegate.writeStartDocument();
+        }
+
+        @Override
+        public void writeStartDocument(String version) throws XMLStreamException {
+            delegate.writeStartDocument(version);
+        }
+
+        @Override
+        public void writeStartDocument(String encoding, String version) throws XMLStreamException {
+            delegate.writeStartDocument(encoding, version);
+        }
+
+        @Override
+        public void writeCharacters(String text) throws XMLStreamException {
+            delegate.writeCharacters(text);
+        }
+
+        @Override
+        public void writeCharacters(char[] text, int start, int len) throws XMLStreamException {
+            delegate.writeCharacters(text, start, len);
+        }
+
+        @Override
+        public String getPrefix(String uri) throws XMLStreamException {
+            return delegate.getPrefix(uri);
+        }
+
+        @Override
+        public void setPrefix(String prefix, String uri) throws XMLStreamException {
+            delegate.setPrefix(prefix, uri);
+        }
+
+        @Override
+        public void setDefaultNamespace(String uri) throws XMLStreamException {
+            delegate.setDefaultNamespace(uri);
+        }
+
+        @Override
+        public void setNamespaceContext(NamespaceContext context) throws XMLStreamException {
+            delegate.setNamespaceContext(context);
+        }
+
+        @Override
+        public NamespaceContext getNamespaceContext() {
+            return delegate.getNamespaceContext();
+        }
+
+        @Override
+        public Object getProperty(String name) throws IllegalArgumentException {
+            return delegate.getProperty(name);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.transformer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri21.EstimatedVersionFrameStructure;
+import uk.org.siri.siri21.Siri;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Transforms large ET-deliveries in parallel - journeys are split in chunks that are transformed on a bounded pool.
+ * Smaller deliveries, and deliveries without ET, are transformed sequentially on the calling thread.
+ *
+ * @see SiriValueTransformer#transform(Siri, List, boolean, boolean)
+ */
+@Service
+public class ParallelSiriTransformer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelSiriTransformer.class);
+
+    @Value("${anshar.transform.parallel.threads:4}")
+    private int parallelism;
+
+    @Value("${anshar.transform.parallel.chunkSize:500}")
+    private int chunkSize;
+
+    /**
+     * Deliveries with fewer journeys are transformed sequentially
+     */
+    @Value("${anshar.transform.parallel.minJourneys:2000}")
+    private int minJourneys;
+
+    private volatile ForkJoinPool pool;
+
+    public ParallelSiriTransformer() {
+    }
+
+    ParallelSiriTransformer(int parallelism, int chunkSize, int minJourneys) {
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+        this.minJourneys = minJourneys;
+    }
+
+    public Siri transform(Siri siri, List<ValueAdapter> adapters, boolean deepCopyBeforeTransform, boolean detailedLogging) {
+        if (countJourneys(siri) < minJourneys) {
+            return SiriValueTransformer.transform(siri, adapters, deepCopyBeforeTransform, detailedLogging);
+        }
+        return SiriValueTransformer.transform(siri, adapters, deepCopyBeforeTransform, detailedLogging, getPool(), chunkSize);
+    }
+
+    private ForkJoinPool getPool() {
+        if (pool == null) {
+            synchronized (this) {
+                if (pool == null) {
+                    logger.info("Creating pool with {} threads for parallel transformation.", parallelism);
+                    pool = new ForkJoinPool(parallelism);
+                }
+            }
+        }
+        return pool;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    static int countJourneys(Siri siri) {
+        int count = 0;
+        if (siri != null && siri.getServiceDelivery() != null && siri.getServiceDelivery().getEstimatedTimetableDeliveries() != null) {
+            for (EstimatedTimetableDeliveryStructure etDelivery : siri.getServiceDelivery().getEstimatedTimetableDeliveries()) {
+                if (etDelivery.getEstimatedJourneyVersionFrames() != null) {
+                    for (EstimatedVersionFrameStructure frame : etDelivery.getEstimatedJourneyVersionFrames()) {
+                        if (frame != null && frame.getEstimatedVehicleJourneies() != null) {
+                            count += frame.getEstimatedVehicleJourneies().size();
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -15,30 +15,29 @@
 
 package no.rutebanken.anshar.routes.siri.transformer;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import jakarta.xml.bind.JAXBException;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
 import no.rutebanken.anshar.routes.siri.processor.PostProcessor;
+import no.rutebanken.anshar.routes.siri.processor.PostProcessorChain;
+import no.rutebanken.anshar.routes.siri.processor.VisitingPostProcessor;
 import no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter;
 import org.entur.siri21.util.SiriXml;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.EstimatedVersionFrameStructure;
 import uk.org.siri.siri21.LineRef;
 import uk.org.siri.siri21.Siri;
 
 import javax.xml.stream.XMLStreamException;
 import java.io.InputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
 
 public class SiriValueTransformer {
 
@@ -46,28 +45,8 @@ public class SiriValueTransformer {
 
     private static final Logger logger = LoggerFactory.getLogger(SiriValueTransformer.class);
 
-    private static final Map<GetterKey, Set<Method>> cachedGettersForAdapter = new HashMap<>();
-
     private static Set<Class> onewayMappingList = Set.of(LineRef.class);
 
-    private static final LoadingCache<Class, List<Method>> getterMethodsCache = CacheBuilder.newBuilder()
-            .build(
-                    new CacheLoader<Class, List<Method>>() {
-                        public List<Method> load(Class clazz) {
-                            Method[] methods = clazz.getMethods();
-                            List<Method> getterMethods = new ArrayList<>();
-                            for (Method method : methods) {
-                                if (method.getParameterCount() == 0 &&
-                                        !("void".equals(method.getReturnType().getName()))) {
-                                    getterMethods.add(method);
-                                }
-                            }
-                            return getterMethods;
-                        }
-                    });
-
-    private static final List<String> methodsToIgnore = Collections.singletonList("getMonitoringError");
-
     /**
      *
      * @param xml
@@ -97,10 +76,21 @@ public class SiriValueTransformer {
      * @return Transformed SIRI-object
      */
     public static Siri transform(Siri siri, List<ValueAdapter> adapters, boolean deepCopyBeforeTransform, boolean detailedLogging) {
+        return transform(siri, adapters, deepCopyBeforeTransform, detailedLogging, null, 0);
+    }
+
+    /**
+     * Same as {@link #transform(Siri, List, boolean, boolean)} - but when a pool is given, ET-journeys are split in
+     * chunks that are transformed in parallel.
+     *
+     * @param pool Pool to transform chunks on - null to transform sequentially
+     * @param chunkSize Max number of journeys in each chunk
+     */
+    static Siri transform(Siri siri, List<ValueAdapter> adapters, boolean deepCopyBeforeTransform, boolean detailedLogging, ForkJoinPool pool, int chunkSize) {
         if (siri == null) {
             return null;
         }
-        int cacheSize = cachedGettersForAdapter.size();
+        int planCount = ValueAdapterEngine.getPlanCount();
 
         if (detailedLogging) {
             logger.debug("SIRI Transform: starting");
@@ -151,157 +141,158 @@ public class SiriValueTransformer {
             if (detailedLogging) {
                 logger.debug("SIRI Transform: {} postProcessors added", postProcessors.size());
             }
-            for (ValueAdapter a : valueAdapters) {
-                try {
-                    applyAdapter(transformed, a);
+            if (pool != null && chunkSize > 0) {
+                transformInChunks(transformed, valueAdapters, postProcessors, pool, chunkSize);
 
-                    if (detailedLogging) {
-                        logger.debug("SIRI Transform: valueAdapter {} processed", a.toString());
+                if (detailedLogging) {
+                    logger.debug("SIRI Transform: valueAdapters and postProcessors processed in chunks");
+                }
+            } else {
+                // All adapters are applied in one traversal
+                Set<ValueAdapter> failedAdapters = ValueAdapterEngine.applyAdapters(transformed, valueAdapters);
+
+                if (detailedLogging) {
+                    for (ValueAdapter a : valueAdapters) {
+                        if (!failedAdapters.contains(a)) {
+                            logger.debug("SIRI Transform: valueAdapter {} processed", a.toString());
+                        }
                     }
-                } catch (Throwable t) {
-                    logger.warn("Caught exception while transforming SIRI-object.", t);
-                    logger.debug("SIRI Transform: valueAdapter {} failed", a.toString());
                 }
-            }
-            if (detailedLogging) {
-                logger.debug("SIRI Transform: valueAdapters processed");
-            }
+                if (detailedLogging) {
+                    logger.debug("SIRI Transform: valueAdapters processed");
+                }
 
-            for (PostProcessor processor : postProcessors) {
-                try {
-                    processor.process(transformed);
+                // Consecutive element-processors are applied in one traversal
+                PostProcessorChain.process(transformed, postProcessors);
 
-                    if (detailedLogging) {
-                        logger.debug("SIRI Transform: PostProcessor {} processed", processor.toString());
-                    }
-                } catch (Throwable t) {
-                    logger.warn("Caught exception while post-processing SIRI-object with processor '" + processor + "'", t);
+                if (detailedLogging) {
+                    logger.debug("SIRI Transform: postProcessors processed");
                 }
             }
-
-            if (detailedLogging) {
-                logger.debug("SIRI Transform: postProcessors processed");
-            }
         }
-        if (cachedGettersForAdapter.size() > cacheSize) {
-            logger.info("Getter-cache size increased from {} to {}. Could indicate a memory leak.", cacheSize, cachedGettersForAdapter.size());
+        if (ValueAdapterEngine.getPlanCount() > planCount) {
+            logger.debug("Number of compiled adapter-plans increased from {} to {}.", planCount, ValueAdapterEngine.getPlanCount());
         }
         return transformed;
     }
 
     /**
-     * Recursively applies ValueAdapter to all fields of the specified type within SIRI-packages.
+     * Journeys are detached from the version-frames, and transformed in chunks on the pool while the rest of the
+     * delivery is transformed by the calling thread. Leading element-local processors are applied to each chunk -
+     * the remaining processors are applied to the whole delivery afterwards.
      *
-     * Uses getValue()/setValue(...) apply adapters
-     *
-     * @param obj
-     * @param adapter
-     * @throws NoSuchMethodException
-     * @throws InvocationTargetException
-     * @throws IllegalAccessException
+     * Chunks are put back in their original order, so the result is the same as when transforming sequentially. The
+     * visitors of each chunk are merged, so the chunk-processors are completed once for the whole delivery.
      */
-    private static void applyAdapter(Object obj, ValueAdapter adapter) throws Throwable {
-
-        //Only apply to Siri-classes
-        if (obj != null && obj.getClass().getName().startsWith("uk.org.siri")) {
-
-            GetterKey getterKey = new GetterKey(obj.getClass(), adapter);
-            Set<Method> allMethods = cachedGettersForAdapter.get(getterKey);
-
-            if (allMethods == null) {
-                allMethods = new HashSet<>();
-                allMethods.addAll(getterMethodsCache.get(obj.getClass()));
+    private static void transformInChunks(Siri transformed, List<ValueAdapter> valueAdapters, List<PostProcessor> postProcessors,
+                                          ForkJoinPool pool, int chunkSize) {
+        List<VisitingPostProcessor> chunkProcessors = new ArrayList<>();
+        for (PostProcessor processor : postProcessors) {
+            if (processor instanceof VisitingPostProcessor visitingProcessor && visitingProcessor.isElementLocal()) {
+                chunkProcessors.add(visitingProcessor);
+            } else {
+                break;
             }
-            for (Method method : allMethods) {
-                if (methodsToIgnore.contains(method.getName())) {
+        }
+        List<PostProcessor> remainingProcessors = postProcessors.subList(chunkProcessors.size(), postProcessors.size());
+        PostProcessorChain.Traversal traversal = PostProcessorChain.startTraversal(chunkProcessors);
+
+        List<Chunk> chunks = new ArrayList<>();
+        List<EstimatedTimetableDeliveryStructure> etDeliveries = transformed.getServiceDelivery().getEstimatedTimetableDeliveries();
+        if (etDeliveries != null) {
+            for (EstimatedTimetableDeliveryStructure etDelivery : etDeliveries) {
+                if (etDelivery.getEstimatedJourneyVersionFrames() == null) {
                     continue;
                 }
+                for (EstimatedVersionFrameStructure frame : etDelivery.getEstimatedJourneyVersionFrames()) {
+                    if (frame == null || frame.getEstimatedVehicleJourneies() == null) {
+                        continue;
+                    }
+                    List<EstimatedVehicleJourney> journeys = frame.getEstimatedVehicleJourneies();
+                    for (int i = 0; i < journeys.size(); i += chunkSize) {
+                        List<EstimatedVehicleJourney> chunkJourneys = new ArrayList<>(journeys.subList(i, Math.min(i + chunkSize, journeys.size())));
+                        PostProcessorChain.Traversal chunkTraversal = traversal.fork();
+                        chunks.add(new Chunk(frame, chunkJourneys, chunkTraversal, submit(pool, chunkJourneys, valueAdapters, chunkTraversal)));
+                    }
+                    journeys.clear();
+                }
+            }
+        }
 
+        // Rest of the delivery - journeys are detached
+        ValueAdapterEngine.applyAdapters(transformed, valueAdapters);
+        traversal.visit(transformed);
 
-                if (method.getReturnType().equals(adapter.getClassToApply())) {
-
-                    Set<Method> methods = cachedGettersForAdapter.getOrDefault(getterKey, new HashSet<>());
-                    methods.add(method);
-                    cachedGettersForAdapter.put(getterKey, methods);
-
-                    Object previousValue = method.invoke(obj);
-                    if (previousValue != null) {
-                        String value = (String) previousValue.getClass().getMethod("getValue").invoke(previousValue);
-                        String alteredValue;
-
-                        String originalId = value;
-
-                        if (adapter instanceof OutboundIdAdapter) {
-                            alteredValue = adapter.apply(value);
-                        } else {
-                            if (value.contains(SEPARATOR)) {
-                                originalId = value.substring(0, value.indexOf(SEPARATOR));
-                                alteredValue = adapter.apply(value.substring(value.indexOf(SEPARATOR) + SEPARATOR.length()));
-                            } else {
-                                alteredValue = adapter.apply(value);
-                            }
-                            if (!originalId.equals(alteredValue) &&                     // No need to map already correct ids
-                                    !isOnewayMapping(adapter.getClassToApply())) {      // Check for oneway-mapping
-                                alteredValue = originalId + SEPARATOR + alteredValue;
-                            }
-                        }
-
-
-                        Method valueSetter = previousValue.getClass().getMethod("setValue", String.class);
-                        valueSetter.invoke(previousValue, alteredValue);
-                    }
+        for (Chunk chunk : chunks) {
+            try {
+                if (chunk.task() != null) {
+                    chunk.task().join();
                 } else {
-                    Object currentValue = method.invoke(obj);
-                    if (currentValue != null) {
-                        if (currentValue instanceof List) {
-                            List list = (List) currentValue;
-                            for (Object o : list) {
-                                applyAdapter(o, adapter);
-                            }
-                        } else {
-                            applyAdapter(currentValue, adapter);
-                        }
-                    }
+                    transformChunk(chunk.journeys(), valueAdapters, chunk.traversal());
                 }
+            } catch (RuntimeException e) {
+                logger.warn("Caught exception while transforming chunk of {} journeys.", chunk.journeys().size(), e);
             }
+            chunk.frame().getEstimatedVehicleJourneies().addAll(chunk.journeys());
+            traversal.merge(chunk.traversal());
         }
-    }
+        traversal.completed();
 
-    private static boolean isOnewayMapping(Class classToApply) {
-        return onewayMappingList.contains(classToApply);
+        PostProcessorChain.process(transformed, remainingProcessors);
     }
 
-    private static class GetterKey {
-        private final ValueAdapter adapter;
-        private final Class clazz;
+    private record Chunk(EstimatedVersionFrameStructure frame, List<EstimatedVehicleJourney> journeys,
+                         PostProcessorChain.Traversal traversal, ForkJoinTask<?> task) {}
 
-        public GetterKey(Class clazz, ValueAdapter adapter) {
-            this.clazz = clazz;
-            this.adapter = adapter;
+    /**
+     * @return Task transforming the chunk, or null if the pool does not accept more tasks
+     */
+    private static ForkJoinTask<?> submit(ForkJoinPool pool, List<EstimatedVehicleJourney> journeys,
+                                          List<ValueAdapter> valueAdapters, PostProcessorChain.Traversal traversal) {
+        try {
+            return pool.submit(() -> transformChunk(journeys, valueAdapters, traversal));
+        } catch (RejectedExecutionException e) {
+            return null;
         }
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
-            }
-            if (o == null || getClass() != o.getClass()) {
-                return false;
-            }
+    private static void transformChunk(List<EstimatedVehicleJourney> journeys, List<ValueAdapter> valueAdapters,
+                                       PostProcessorChain.Traversal traversal) {
+        ValueAdapterEngine.applyAdapters(journeys, valueAdapters);
+        traversal.visitJourneys(journeys);
+    }
+
+    /**
+     * Applies adapter to a single value - ids that are mapped are combined with the original id, unless the mapping
+     * is oneway
+     *
+     * @param adapter
+     * @param value
+     * @return
+     */
+    static String adaptValue(ValueAdapter adapter, String value) {
+        String alteredValue;
 
-            GetterKey getterKey = (GetterKey) o;
+        String originalId = value;
 
-            if (adapter != null ? !adapter.equals(getterKey.adapter) : getterKey.adapter != null) {
-                return false;
+        if (adapter instanceof OutboundIdAdapter) {
+            alteredValue = adapter.apply(value);
+        } else {
+            if (value.contains(SEPARATOR)) {
+                originalId = value.substring(0, value.indexOf(SEPARATOR));
+                alteredValue = adapter.apply(value.substring(value.indexOf(SEPARATOR) + SEPARATOR.length()));
+            } else {
+                alteredValue = adapter.apply(value);
+            }
+            if (!originalId.equals(alteredValue) &&                     // No need to map already correct ids
+                    !isOnewayMapping(adapter.getClassToApply())) {      // Check for oneway-mapping
+                alteredValue = originalId + SEPARATOR + alteredValue;
             }
-            return clazz != null ? clazz.equals(getterKey.clazz) : getterKey.clazz == null;
         }
+        return alteredValue;
+    }
 
-        @Override
-        public int hashCode() {
-            int result = adapter != null ? adapter.hashCode() : 0;
-            result = 31 * result + (clazz != null ? clazz.hashCode() : 0);
-            return result;
-        }
+    private static boolean isOnewayMapping(Class classToApply) {
+        return onewayMappingList.contains(classToApply);
     }
 }
@@ -0,0 +1,355 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.transformer;
+
+import jakarta.xml.bind.annotation.XmlSeeAlso;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Applies a list of ValueAdapters to a SIRI object graph in a single traversal.
+ *
+ * For each class, and set of classes the adapters apply to, a plan is compiled with the getters to follow - getters
+ * returning one of the classes, and getters that may lead to one of them. Getters that cannot lead to any of the
+ * classes are never invoked. Plans only depend on classes, and are cached for the lifetime of the application.
+ *
+ * The result is the same as applying each adapter in turn to the whole object graph.
+ */
+class ValueAdapterEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(ValueAdapterEngine.class);
+
+    private static final String SIRI_PACKAGE_PREFIX = "uk.org.siri";
+
+    private static final Set<String> METHODS_TO_IGNORE = Set.of("getMonitoringError");
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, String.class);
+
+    private static final Map<PlanKey, Step[]> plans = new ConcurrentHashMap<>();
+
+    private static final Map<PlanKey, Boolean> reachableTargets = new ConcurrentHashMap<>();
+
+    private static final Map<Class<?>, ValueAccessor> valueAccessors = new ConcurrentHashMap<>();
+
+    private record PlanKey(Class<?> clazz, Set<Class<?>> targets) {}
+
+    /**
+     * @param isTarget true if the getter returns one of the target classes
+     * @param traverse true if the returned object may lead to one of the (remaining) target classes
+     */
+    private record Step(MethodHandle getter, Class<?> returnType, boolean isTarget, boolean traverse) {}
+
+    private final Set<ValueAdapter> failedAdapters = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private ValueAdapterEngine() {
+    }
+
+    /**
+     * Applies all adapters to the object graph
+     *
+     * @param obj SIRI-object, or list of SIRI-objects
+     * @return Adapters that failed - these are not applied to the rest of the graph
+     */
+    static Set<ValueAdapter> applyAdapters(Object obj, List<ValueAdapter> adapters) {
+        ValueAdapterEngine engine = new ValueAdapterEngine();
+
+        // Adapters without class are never applied
+        List<ValueAdapter> applicable = new ArrayList<>();
+        for (ValueAdapter adapter : adapters) {
+            if (adapter.getClassToApply() != null) {
+                applicable.add(adapter);
+            }
+        }
+        if (!applicable.isEmpty()) {
+            engine.visitValue(obj, applicable, getTargets(applicable));
+        }
+        return engine.failedAdapters;
+    }
+
+    static int getPlanCount() {
+        return plans.size();
+    }
+
+    private void visit(Object obj, List<ValueAdapter> adapters, Set<Class<?>> targets) {
+        if (obj == null || !isSiriClass(obj.getClass())) {
+            return;
+        }
+
+        Step[] steps;
+        try {
+            steps = plans.computeIfAbsent(new PlanKey(obj.getClass(), targets), ValueAdapterEngine::compilePlan);
+        } catch (RuntimeException e) {
+            fail(adapters, e);
+            return;
+        }
+
+        for (Step step : steps) {
+            Object value;
+            try {
+                value = step.getter().invoke(obj);
+            } catch (Throwable t) {
+                fail(adapters, t);
+                return;
+            }
+            if (value == null) {
+                continue;
+            }
+
+            if (step.isTarget()) {
+                for (ValueAdapter adapter : adapters) {
+                    if (adapter.getClassToApply().equals(step.returnType())) {
+                        applyAdapter(value, adapter);
+                    }
+                }
+                if (step.traverse()) {
+                    List<ValueAdapter> remaining = new ArrayList<>();
+                    for (ValueAdapter adapter : adapters) {
+                        if (!adapter.getClassToApply().equals(step.returnType())) {
+                            remaining.add(adapter);
+                        }
+                    }
+                    visitValue(value, remaining, getTargets(remaining));
+                }
+            } else {
+                visitValue(value, adapters, targets);
+            }
+        }
+    }
+
+    private void visitValue(Object value, List<ValueAdapter> adapters, Set<Class<?>> targets) {
+        if (value instanceof List<?> list) {
+            for (Object o : list) {
+                visit(o, adapters, targets);
+            }
+        } else {
+            visit(value, adapters, targets);
+        }
+    }
+
+    private void applyAdapter(Object value, ValueAdapter adapter) {
+        if (failedAdapters.contains(adapter)) {
+            return;
+        }
+        try {
+            ValueAccessor accessor = valueAccessors.computeIfAbsent(value.getClass(), ValueAccessor::create);
+            accessor.setValue(value, SiriValueTransformer.adaptValue(adapter, accessor.getValue(value)));
+        } catch (Throwable t) {
+            fail(List.of(adapter), t);
+        }
+    }
+
+    private void fail(List<ValueAdapter> adapters, Throwable t) {
+        for (ValueAdapter adapter : adapters) {
+            if (failedAdapters.add(adapter)) {
+                logger.warn("Caught exception while transforming SIRI-object.", t);
+                logger.debug("SIRI Transform: valueAdapter {} failed", adapter);
+            }
+        }
+    }
+
+    private static Set<Class<?>> getTargets(List<ValueAdapter> adapters) {
+        Set<Class<?>> targets = new HashSet<>();
+        for (ValueAdapter adapter : adapters) {
+            targets.add(adapter.getClassToApply());
+        }
+        return Set.copyOf(targets);
+    }
+
+    private static Step[] compilePlan(PlanKey key) {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        List<Step> steps = new ArrayList<>();
+        for (Method method : getGetters(key.clazz())) {
+            Class<?> returnType = method.getReturnType();
+            boolean isTarget = key.targets().contains(returnType);
+
+            Set<Class<?>> remaining = key.targets();
+            if (isTarget) {
+                remaining = new HashSet<>(key.targets());
+                remaining.remove(returnType);
+            }
+            boolean traverse = mayReach(returnType, method.getGenericReturnType(), remaining);
+
+            if (isTarget || traverse) {
+                try {
+                    steps.add(new Step(lookup.unreflect(method).asType(GETTER_TYPE), returnType, isTarget, traverse));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("Unable to access " + method, e);
+                }
+            }
+        }
+        logger.debug("Compiled plan for {} with targets {}: {} steps", key.clazz().getSimpleName(), key.targets(), steps.size());
+        return steps.toArray(new Step[0]);
+    }
+
+    /**
+     * @return true if an object of the declared type may lead to one of the target classes
+     */
+    private static boolean mayReach(Class<?> type, Type genericType, Set<Class<?>> targets) {
+        if (targets.isEmpty()) {
+            return false;
+        }
+        if (List.class.isAssignableFrom(type)) {
+            Class<?> elementType = getElementType(genericType);
+            return elementType == null || mayReach(elementType, targets);
+        }
+        return mayReach(type, targets);
+    }
+
+    private static boolean mayReach(Class<?> type, Set<Class<?>> targets) {
+        if (type.isPrimitive()) {
+            return false;
+        }
+        if (!isSiriClass(type)) {
+            // Only SIRI-objects are traversed - unless the declared type may hold one
+            return type == Object.class || type.isInterface();
+        }
+        return reachableTargets.computeIfAbsent(new PlanKey(type, Set.copyOf(targets)), ValueAdapterEngine::searchTargets);
+    }
+
+    /**
+     * Searches the declared types reachable from the given type, including known subclasses
+     */
+    private static boolean searchTargets(PlanKey key) {
+        Deque<Class<?>> queue = new ArrayDeque<>();
+        Set<Class<?>> visited = new HashSet<>();
+        queue.add(key.clazz());
+
+        while (!queue.isEmpty()) {
+            Class<?> type = queue.poll();
+            if (!visited.add(type)) {
+                continue;
+            }
+
+            XmlSeeAlso subclasses = type.getAnnotation(XmlSeeAlso.class);
+            if (subclasses != null) {
+                Collections.addAll(queue, subclasses.value());
+            } else if (Modifier.isAbstract(type.getModifiers())) {
+                // Subclasses are unknown
+                return true;
+            }
+
+            for (Method method : getGetters(type)) {
+                Class<?> returnType = method.getReturnType();
+                if (key.targets().contains(returnType)) {
+                    return true;
+                }
+                if (List.class.isAssignableFrom(returnType)) {
+                    returnType = getElementType(method.getGenericReturnType());
+                    if (returnType == null) {
+                        return true;
+                    }
+                }
+                if (returnType.isPrimitive()) {
+                    continue;
+                }
+                if (isSiriClass(returnType)) {
+                    queue.add(returnType);
+                } else if (returnType == Object.class || returnType.isInterface()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Element type of a List, or null if unknown
+     */
+    private static Class<?> getElementType(Type genericType) {
+        if (genericType instanceof ParameterizedType parameterizedType &&
+                parameterizedType.getActualTypeArguments().length == 1) {
+            Type elementType = parameterizedType.getActualTypeArguments()[0];
+            if (elementType instanceof Class<?> elementClass) {
+                return elementClass;
+            }
+            if (elementType instanceof ParameterizedType parameterizedElement &&
+                    parameterizedElement.getRawType() instanceof Class<?> rawClass) {
+                return rawClass;
+            }
+        }
+        return null;
+    }
+
+    private static Set<Method> getGetters(Class<?> clazz) {
+        Set<Method> getters = new LinkedHashSet<>();
+        for (Method method : clazz.getMethods()) {
+            if (method.getParameterCount() == 0 &&
+                    method.getReturnType() != void.class &&
+                    !Modifier.isStatic(method.getModifiers()) &&
+                    !METHODS_TO_IGNORE.contains(method.getName())) {
+                getters.add(method);
+            }
+        }
+        return getters;
+    }
+
+    private static boolean isSiriClass(Class<?> clazz) {
+        return clazz.getName().startsWith(SIRI_PACKAGE_PREFIX);
+    }
+
+    /**
+     * getValue/setValue of the objects adapters are applied to
+     */
+    private record ValueAccessor(MethodHandle getter, MethodHandle setter, Class<?> clazz) {
+
+        static ValueAccessor create(Class<?> clazz) {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            MethodHandle getter = null;
+            MethodHandle setter = null;
+            try {
+                getter = lookup.unreflect(clazz.getMethod("getValue")).asType(GETTER_TYPE);
+                setter = lookup.unreflect(clazz.getMethod("setValue", String.class)).asType(SETTER_TYPE);
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                logger.warn("Unable to access value of {}", clazz, e);
+            }
+            return new ValueAccessor(getter, setter, clazz);
+        }
+
+        String getValue(Object obj) throws Throwable {
+            if (getter == null) {
+                throw new NoSuchMethodException(clazz.getName() + ".getValue()");
+            }
+            return (String) getter.invoke(obj);
+        }
+
+        void setValue(Object obj, String value) throws Throwable {
+            if (setter == null) {
+                throw new NoSuchMethodException(clazz.getName() + ".setValue(String)");
+            }
+            setter.invoke(obj, value);
+        }
+    }
+}
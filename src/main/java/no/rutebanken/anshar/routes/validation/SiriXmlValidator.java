@@ -24,6 +24,7 @@ import jakarta.xml.bind.Unmarshaller;
 import jakarta.xml.bind.ValidationEvent;
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import no.rutebanken.anshar.routes.siri.helpers.ReferenceInterner;
 import no.rutebanken.anshar.routes.siri.transformer.ApplicationContextHolder;
 import no.rutebanken.anshar.routes.validation.validators.CustomValidator;
 import no.rutebanken.anshar.routes.validation.validators.ProfileValidationEventOrList;
@@ -40,6 +41,7 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Component;
 import org.w3c.dom.Document;
@@ -131,6 +133,12 @@ public class SiriXmlValidator extends ApplicationContextHolder {
     @Autowired
     private SubscriptionManager subscriptionManager;
 
+    /**
+     * When enabled, reference-values are deduplicated while unmarshalling
+     */
+    @Value("${anshar.feature.referenceInterning:false}")
+    private boolean FEATURE_TOGGLE_REFERENCE_INTERNING;
+
     @Autowired
     private PrometheusMetricsService metricsService;
 
@@ -193,6 +201,10 @@ public class SiriXmlValidator extends ApplicationContextHolder {
 
             Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
 
+            if (FEATURE_TOGGLE_REFERENCE_INTERNING) {
+                unmarshaller.setListener(ReferenceInterner.getInstance().createUnmarshallerListener());
+            }
+
             final SiriValidationEventHandler schemaValidationHandler = new SiriValidationEventHandler();
 
             boolean validate = false;
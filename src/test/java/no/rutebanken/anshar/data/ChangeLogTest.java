@@ -0,0 +1,230 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.RingbufferConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChangeLogTest {
+
+    private static final String CHANGE_LOG = "anshar.test.changelog";
+    private static final int CAPACITY = 10_000;
+
+    private static final Predicate<SiriObjectStorageKey> ALL = key -> true;
+
+    private static final Predicate<SiriObjectStorageKey> TST = key -> "TST".equals(key.getCodespaceId());
+
+    private HazelcastInstance hazelcast;
+    private IMap<String, Long> cursorMap;
+    private ChangeLog changeLog;
+
+    @BeforeEach
+    public void init() {
+        Config config = new Config();
+        config.setClusterName("changelog-test-" + UUID.randomUUID());
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.addRingBufferConfig(new RingbufferConfig(CHANGE_LOG).setCapacity(CAPACITY));
+        hazelcast = Hazelcast.newHazelcastInstance(config);
+
+        cursorMap = hazelcast.getMap("anshar.test.changelog.cursor");
+        changeLog = new ChangeLog(hazelcast.getRingbuffer(CHANGE_LOG), cursorMap);
+    }
+
+    @AfterEach
+    public void shutdown() {
+        hazelcast.shutdown();
+    }
+
+    @Test
+    public void testUnknownRequestorGetsSnapshot() {
+        changeLog.append(createKeys("before", 10));
+
+        assertNull(read("requestor", ALL, 100), "Unknown requestor should get snapshot");
+
+        List<SiriObjectStorageKey> changes = createKeys("after", 10);
+        changeLog.append(changes);
+
+        assertEquals(Set.copyOf(changes), read("requestor", ALL, 100));
+        assertTrue(read("requestor", ALL, 100).isEmpty());
+    }
+
+    @Test
+    public void testThousandRequestorsWithFlatMemory() {
+        final int requestorCount = 1000;
+        final int changesPerRound = 100;
+
+        for (int i = 0; i < requestorCount; i++) {
+            assertNull(read("requestor-" + i, ALL, Integer.MAX_VALUE));
+        }
+
+        long cursorMemoryCost = -1;
+        for (int round = 0; round < 10; round++) {
+            List<SiriObjectStorageKey> changes = createKeys("round-" + round, changesPerRound);
+            changeLog.append(changes);
+
+            for (int i = 0; i < requestorCount; i++) {
+                assertEquals(Set.copyOf(changes), read("requestor-" + i, ALL, Integer.MAX_VALUE));
+            }
+
+            long memoryCost = cursorMap.getLocalMapStats().getOwnedEntryMemoryCost();
+            if (cursorMemoryCost < 0) {
+                cursorMemoryCost = memoryCost;
+            }
+            assertEquals(cursorMemoryCost, memoryCost, "Memory used per requestor should not grow with number of changes");
+        }
+
+        // Every change is only stored once - regardless of number of requestors
+        assertEquals(10 * changesPerRound, changeLog.size());
+        assertEquals(requestorCount, cursorMap.size());
+    }
+
+    @Test
+    public void testPagingWithMaxSize() {
+        read("requestor", ALL, 10);
+
+        List<SiriObjectStorageKey> changes = createKeys("paging", 25);
+        changeLog.append(changes);
+
+        Set<SiriObjectStorageKey> firstPage = read("requestor", ALL, 10);
+        Set<SiriObjectStorageKey> secondPage = read("requestor", ALL, 10);
+        Set<SiriObjectStorageKey> thirdPage = read("requestor", ALL, 10);
+
+        assertEquals(10, firstPage.size());
+        assertEquals(10, secondPage.size());
+        assertEquals(5, thirdPage.size());
+        assertTrue(read("requestor", ALL, 10).isEmpty());
+
+        // Returned in the order they were changed
+        assertEquals(changes.subList(0, 10), new ArrayList<>(firstPage));
+        assertEquals(changes.subList(10, 20), new ArrayList<>(secondPage));
+        assertEquals(changes.subList(20, 25), new ArrayList<>(thirdPage));
+    }
+
+    @Test
+    public void testDuplicatesAreRemoved() {
+        read("requestor", ALL, 10);
+
+        SiriObjectStorageKey key = createKeys("duplicate", 1).get(0);
+        changeLog.append(List.of(key));
+        changeLog.append(List.of(key));
+        changeLog.append(List.of(key));
+
+        assertEquals(Set.of(key), read("requestor", ALL, 10));
+    }
+
+    @Test
+    public void testFilterByDataset() {
+        read("requestor", "TST", TST, 10);
+
+        changeLog.append(createKeys("other", 20));
+        List<SiriObjectStorageKey> changes = List.of(new SiriObjectStorageKey("TST", null, "TST:1"));
+        changeLog.append(changes);
+
+        assertEquals(Set.copyOf(changes), read("requestor", "TST", TST, 10));
+    }
+
+    @Test
+    public void testSeparateCursorPerFilter() {
+        read("requestor", "TST", TST, 10);
+        read("requestor", ALL, 10);
+
+        List<SiriObjectStorageKey> other = createKeys("other", 5);
+        List<SiriObjectStorageKey> tst = List.of(new SiriObjectStorageKey("TST", null, "TST:1"));
+        changeLog.append(other);
+        changeLog.append(tst);
+
+        assertEquals(Set.copyOf(tst), read("requestor", "TST", TST, 10));
+
+        // Ids skipped by the filtered request are still returned when requested without filter
+        Set<SiriObjectStorageKey> all = new HashSet<>(other);
+        all.addAll(tst);
+        assertEquals(all, read("requestor", ALL, 10));
+
+        assertTrue(read("requestor", "TST", TST, 10).isEmpty());
+        assertTrue(read("requestor", ALL, 10).isEmpty());
+    }
+
+    @Test
+    public void testConcurrentRequestsDoNotReturnSameChanges() {
+        read("requestor", ALL, 10);
+
+        List<SiriObjectStorageKey> changes = createKeys("concurrent", 5);
+        changeLog.append(changes);
+
+        // Second request from the same requestor moves the cursor while the first is reading
+        AtomicReference<Set<SiriObjectStorageKey>> concurrentResult = new AtomicReference<>();
+        Predicate<SiriObjectStorageKey> filter = key -> {
+            if (concurrentResult.get() == null) {
+                concurrentResult.set(read("requestor", ALL, 10));
+            }
+            return true;
+        };
+
+        Set<SiriObjectStorageKey> result = read("requestor", filter, 10);
+
+        assertEquals(Set.copyOf(changes), concurrentResult.get());
+        assertTrue(result.isEmpty(), "Changes already returned to concurrent request");
+        assertTrue(read("requestor", ALL, 10).isEmpty());
+    }
+
+    @Test
+    public void testRequestorFallenBehindGetsSnapshot() {
+        read("requestor", ALL, 10);
+
+        changeLog.append(createKeys("overflow", CAPACITY + 1));
+
+        assertNull(read("requestor", ALL, 10), "Overwritten cursor should give snapshot");
+
+        List<SiriObjectStorageKey> changes = createKeys("after", 5);
+        changeLog.append(changes);
+        assertEquals(Set.copyOf(changes), read("requestor", ALL, 10));
+    }
+
+    private Set<SiriObjectStorageKey> read(String requestorId, Predicate<SiriObjectStorageKey> filter, int maxSize) {
+        return read(requestorId, null, filter, maxSize);
+    }
+
+    private Set<SiriObjectStorageKey> read(String requestorId, String filterId, Predicate<SiriObjectStorageKey> filter, int maxSize) {
+        return changeLog.readChanges(requestorId, filterId, filter, maxSize, 5, TimeUnit.MINUTES);
+    }
+
+    private static List<SiriObjectStorageKey> createKeys(String prefix, int count) {
+        List<SiriObjectStorageKey> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            keys.add(new SiriObjectStorageKey("OTHER", null, prefix + ":" + i));
+        }
+        return keys;
+    }
+}
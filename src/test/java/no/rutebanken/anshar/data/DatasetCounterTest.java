@@ -0,0 +1,150 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryEventType;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DatasetCounterTest {
+
+    private HazelcastInstance hazelcast;
+    private IMap<SiriObjectStorageKey, String> map;
+    private IMap<String, Map<String, Integer>> clusterCounts;
+    private DatasetCounter counter;
+
+    @BeforeEach
+    public void init() {
+        Config config = new Config();
+        config.setClusterName("dataset-counter-test-" + UUID.randomUUID());
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        hazelcast = Hazelcast.newHazelcastInstance(config);
+
+        map = hazelcast.getMap("anshar.test");
+        clusterCounts = hazelcast.getMap("anshar.test.dataset.count");
+    }
+
+    @AfterEach
+    public void shutdown() {
+        hazelcast.shutdown();
+    }
+
+    @Test
+    public void testExistingEntriesAreCountedOnStart() {
+        populate("AAA", 10);
+        populate("BBB", 5);
+
+        startCounter();
+
+        assertEquals(Map.of("AAA", 10, "BBB", 5), counter.getLocalCounts());
+        assertEquals(0, counter.getLastDrift());
+    }
+
+    @Test
+    public void testCountsAreUpdatedIncrementally() {
+        startCounter();
+
+        populate("AAA", 10);
+        awaitCount(10, () -> counter.getCount("AAA"));
+
+        // Updating existing entries does not change count
+        populate("AAA", 10);
+        map.delete(createKey("AAA", 0));
+        map.remove(createKey("AAA", 1));
+        awaitCount(8, () -> counter.getCount("AAA"));
+
+        map.set(createKey("AAA", 2), "value", 1, TimeUnit.SECONDS);
+        awaitCount(7, () -> counter.getCount("AAA"));
+
+        map.clear();
+        awaitCount(0, () -> counter.getCount("AAA"));
+
+        assertEquals(0, counter.reconcile(), "Incremental counts should match exact count");
+    }
+
+    @Test
+    public void testDriftIsReconciled() {
+        startCounter();
+        populate("AAA", 10);
+        awaitCount(10, () -> counter.getCount("AAA"));
+
+        // Simulates entries migrated to this node, which is not notified
+        counter.entryRemoved(new EntryEvent<>("anshar.test", null, EntryEventType.REMOVED.getType(), createKey("AAA", 0), null));
+        assertEquals(9, counter.getCount("AAA"));
+
+        assertEquals(1, counter.reconcile());
+        assertEquals(10, counter.getCount("AAA"));
+    }
+
+    @Test
+    public void testClusterCountsIncludePublishedCountsFromOtherNodes() {
+        startCounter();
+        populate("AAA", 10);
+        awaitCount(10, () -> counter.getCount("AAA"));
+
+        clusterCounts.set("other-node", Map.of("AAA", 5, "BBB", 3));
+
+        assertEquals(Map.of("AAA", 15, "BBB", 3), counter.getClusterCounts());
+    }
+
+    private void startCounter() {
+        counter = new DatasetCounter(map, clusterCounts, 60);
+        counter.start();
+    }
+
+    private void populate(String codespace, int count) {
+        Map<SiriObjectStorageKey, String> values = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            values.put(createKey(codespace, i), "value-" + i);
+        }
+        // As written by the repositories while counters are used
+        map.putAll(values);
+    }
+
+    private static SiriObjectStorageKey createKey(String codespace, int i) {
+        return new SiriObjectStorageKey(codespace, null, codespace + ":" + i);
+    }
+
+    /**
+     * Entry-events are notified asynchronously
+     */
+    private static void awaitCount(long expected, Supplier<Long> count) {
+        long timeout = System.currentTimeMillis() + 10000;
+        while (count.get() != expected && System.currentTimeMillis() < timeout) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        assertEquals(expected, count.get());
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Runs all tests in EstimatedTimetablesTest with EntryProcessor-based upsert enabled
+ */
+public class EstimatedTimetablesEntryProcessorUpsertTest extends EstimatedTimetablesTest {
+
+    private static final String FEATURE_TOGGLE = "FEATURE_TOGGLE_UPSERT_USING_ENTRY_PROCESSOR";
+
+    @Autowired
+    private EstimatedTimetables estimatedTimetables;
+
+    @BeforeEach
+    public void enableEntryProcessorUpsert() {
+        ReflectionTestUtils.setField(estimatedTimetables, FEATURE_TOGGLE, true);
+    }
+
+    @AfterEach
+    public void disableEntryProcessorUpsert() {
+        ReflectionTestUtils.setField(estimatedTimetables, FEATURE_TOGGLE, false);
+    }
+}
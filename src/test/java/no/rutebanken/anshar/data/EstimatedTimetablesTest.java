@@ -35,7 +35,10 @@ import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import static no.rutebanken.anshar.helpers.SleepUtil.sleep;
@@ -821,6 +824,65 @@ public class EstimatedTimetablesTest extends SpringBootBaseTest {
         assertEquals(aimed, EstimatedTimetables.getLatestArrivalTime(journey));
     }
 
+    @Test
+    public void testAddAllForMultipleDatasetsMatchesSequentialAdd() {
+        List<String> codespaces = Arrays.asList("AAA", "BBB", "CCC");
+
+        // Sequential - one addAll per dataset
+        Map<String, Integer> sequentialUpdates = new HashMap<>();
+        for (Map.Entry<String, List<EstimatedVehicleJourney>> entry : createMultiCodespaceDelivery(codespaces).entrySet()) {
+            sequentialUpdates.put(entry.getKey(), estimatedTimetables.addAll(entry.getKey(), entry.getValue()).size());
+        }
+        Map<String, Integer> sequentialState = getDatasetSizes(codespaces);
+        estimatedTimetables.commitChanges();
+        sleep(50);
+        int sequentialChanges = estimatedTimetables.getAllUpdates(UUID.randomUUID().toString(), null).size();
+
+        estimatedTimetables.clearAll();
+
+        // Batched - one addAll for all datasets
+        Map<String, Collection<EstimatedVehicleJourney>> batchUpdates = estimatedTimetables.addAll(createMultiCodespaceDelivery(codespaces));
+        Map<String, Integer> batchState = getDatasetSizes(codespaces);
+        estimatedTimetables.commitChanges();
+        sleep(50);
+        int batchChanges = estimatedTimetables.getAllUpdates(UUID.randomUUID().toString(), null).size();
+
+        for (String codespace : codespaces) {
+            assertEquals(sequentialUpdates.get(codespace), batchUpdates.get(codespace).size(), "Updates for " + codespace);
+        }
+        assertEquals(sequentialState, batchState);
+        assertEquals(sequentialChanges, batchChanges);
+        assertEquals(3 + 5 + 7, batchChanges);
+
+        // Same delivery again - nothing is updated
+        Map<String, Collection<EstimatedVehicleJourney>> unchanged = estimatedTimetables.addAll(createMultiCodespaceDelivery(codespaces));
+        for (String codespace : codespaces) {
+            assertTrue(unchanged.get(codespace).isEmpty(), "Unchanged data updated for " + codespace);
+        }
+    }
+
+    private Map<String, List<EstimatedVehicleJourney>> createMultiCodespaceDelivery(List<String> codespaces) {
+        ZonedDateTime arrival = ZonedDateTime.now().plusHours(1).withNano(0);
+        Map<String, List<EstimatedVehicleJourney>> delivery = new LinkedHashMap<>();
+        for (int i = 0; i < codespaces.size(); i++) {
+            String codespace = codespaces.get(i);
+            List<EstimatedVehicleJourney> journeys = new ArrayList<>();
+            for (int j = 0; j < 3 + 2 * i; j++) {
+                journeys.add(createEstimatedVehicleJourney(codespace + ":Line:" + j, codespace + "-" + j, 0, 5, arrival, true));
+            }
+            delivery.put(codespace, journeys);
+        }
+        return delivery;
+    }
+
+    private Map<String, Integer> getDatasetSizes(List<String> codespaces) {
+        Map<String, Integer> sizes = new HashMap<>();
+        for (String codespace : codespaces) {
+            sizes.put(codespace, estimatedTimetables.getAll(codespace).size());
+        }
+        return sizes;
+    }
+
 
     private void assertExcludedId(String excludedDatasetId) {
         Siri serviceDelivery = estimatedTimetables.createServiceDelivery(null, null, null, Arrays.asList(excludedDatasetId), 100, -1);
@@ -0,0 +1,204 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static no.rutebanken.anshar.data.LocalChecksumTable.Lookup.MATCH;
+import static no.rutebanken.anshar.data.LocalChecksumTable.Lookup.MISMATCH;
+import static no.rutebanken.anshar.data.LocalChecksumTable.Lookup.MISS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LocalChecksumTableTest {
+
+    private static final String CHECKSUM_MAP = "anshar.test.checksum.cache";
+
+    // Large enough to avoid colliding slots for the keys used in the two-node test
+    private static final int TABLE_SIZE = 1 << 20;
+
+    @Test
+    public void testLookup() {
+        LocalChecksumTable table = new LocalChecksumTable(1024);
+        SiriObjectStorageKey key = createKey(1);
+
+        assertEquals(MISS, table.lookup(key, "abc"));
+
+        table.put(key, "abc");
+        assertEquals(MATCH, table.lookup(key, "abc"));
+        assertEquals(MISMATCH, table.lookup(key, "def"));
+        assertEquals(MISS, table.lookup(createKey(2), "abc"));
+
+        table.remove(key);
+        assertEquals(MISS, table.lookup(key, "abc"));
+
+        assertEquals(1, table.getMatchCount());
+        assertEquals(1, table.getMismatchCount());
+        assertEquals(3, table.getMissCount());
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        LocalChecksumTable table = new LocalChecksumTable(16);
+        for (int i = 0; i < 1000; i++) {
+            table.put(createKey(i), "checksum-" + i);
+        }
+
+        int found = 0;
+        for (int i = 0; i < 1000; i++) {
+            LocalChecksumTable.Lookup lookup = table.lookup(createKey(i), "checksum-" + i);
+            // Overwritten entries are unknown - never reported with wrong checksum
+            assertTrue(lookup != MISMATCH);
+            if (lookup == MATCH) {
+                found++;
+            }
+        }
+        assertTrue(found <= 16);
+    }
+
+    /**
+     * Two nodes ingest overlapping deliveries - both tables must end up consistent with the shared map
+     */
+    @Test
+    public void testTwoNodeConsistency() throws Exception {
+        String clusterName = "checksum-test-" + UUID.randomUUID();
+        HazelcastInstance node1 = Hazelcast.newHazelcastInstance(createConfig(clusterName));
+        HazelcastInstance node2 = Hazelcast.newHazelcastInstance(createConfig(clusterName));
+        try {
+            assertEquals(2, node1.getCluster().getMembers().size());
+
+            IMap<SiriObjectStorageKey, String> checksums1 = node1.getMap(CHECKSUM_MAP);
+            IMap<SiriObjectStorageKey, String> checksums2 = node2.getMap(CHECKSUM_MAP);
+
+            LocalChecksumTable table1 = new LocalChecksumTable(TABLE_SIZE);
+            table1.bindTo(checksums1);
+            LocalChecksumTable table2 = new LocalChecksumTable(TABLE_SIZE);
+            table2.bindTo(checksums2);
+
+            // Overlapping keys 100-199, with different content
+            Thread ingest1 = new Thread(() -> ingest(checksums1, table1, createDelivery(0, 200, "v1")));
+            Thread ingest2 = new Thread(() -> ingest(checksums2, table2, createDelivery(100, 300, "v2")));
+            ingest1.start();
+            ingest2.start();
+            ingest1.join();
+            ingest2.join();
+
+            // New version of some of the overlapping keys from node 1
+            ingest(checksums1, table1, createDelivery(150, 250, "v3"));
+
+            awaitConsistent(checksums1, table1, table2);
+
+            for (int i = 0; i < 300; i++) {
+                SiriObjectStorageKey key = createKey(i);
+                String stored = checksums1.get(key);
+                assertEquals(MATCH, table1.lookup(key, stored), "Node 1 inconsistent for " + key);
+                assertEquals(MATCH, table2.lookup(key, stored), "Node 2 inconsistent for " + key);
+            }
+
+            // Unchanged deliveries are resolved without remote lookups on both nodes
+            long misses1 = table1.getMissCount();
+            long misses2 = table2.getMissCount();
+            assertEquals(0, ingest(checksums2, table2, createDelivery(0, 100, "v1")));
+            assertEquals(0, ingest(checksums1, table1, createDelivery(250, 300, "v2")));
+            assertEquals(misses1, table1.getMissCount());
+            assertEquals(misses2, table2.getMissCount());
+
+            // Removed on one node - unknown on the other
+            checksums2.delete(createKey(0));
+            awaitConsistent(checksums1, table1, table2);
+            assertEquals(MISS, table1.lookup(createKey(0), "v1-0"));
+        } finally {
+            node2.shutdown();
+            node1.shutdown();
+        }
+    }
+
+    /**
+     * Mirrors the checksum-check in EstimatedTimetables.addAll
+     *
+     * @return Number of updated elements
+     */
+    private static int ingest(IMap<SiriObjectStorageKey, String> checksums, LocalChecksumTable table, Map<SiriObjectStorageKey, String> delivery) {
+        Map<SiriObjectStorageKey, String> changes = new HashMap<>();
+        for (Map.Entry<SiriObjectStorageKey, String> entry : delivery.entrySet()) {
+            LocalChecksumTable.Lookup lookup = table.lookup(entry.getKey(), entry.getValue());
+            boolean updated;
+            if (lookup == MISS) {
+                String existing = checksums.get(entry.getKey());
+                updated = existing == null || !existing.equals(entry.getValue());
+            } else {
+                updated = lookup == MISMATCH;
+            }
+            if (updated) {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        changes.forEach(table::put);
+        checksums.setAll(changes);
+        return changes.size();
+    }
+
+    private static void awaitConsistent(IMap<SiriObjectStorageKey, String> checksums, LocalChecksumTable... tables) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < timeout) {
+            if (isConsistent(checksums, tables)) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static boolean isConsistent(IMap<SiriObjectStorageKey, String> checksums, LocalChecksumTable... tables) {
+        for (int i = 0; i < 300; i++) {
+            SiriObjectStorageKey key = createKey(i);
+            String stored = checksums.get(key);
+            for (LocalChecksumTable table : tables) {
+                LocalChecksumTable.Lookup lookup = table.lookup(key, stored);
+                if (stored == null ? lookup != MISS : lookup != MATCH) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static Map<SiriObjectStorageKey, String> createDelivery(int from, int to, String version) {
+        Map<SiriObjectStorageKey, String> delivery = new HashMap<>();
+        for (int i = from; i < to; i++) {
+            delivery.put(createKey(i), version + "-" + i);
+        }
+        return delivery;
+    }
+
+    private static SiriObjectStorageKey createKey(int i) {
+        return new SiriObjectStorageKey("TST", "TST:Line:" + (i % 10), "2024-01-01:TST:ServiceJourney:" + i);
+    }
+
+    private static Config createConfig(String clusterName) {
+        Config config = new Config();
+        config.setClusterName(clusterName);
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.getNetworkConfig().getJoin().getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        return config;
+    }
+}
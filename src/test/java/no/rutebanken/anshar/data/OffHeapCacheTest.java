@@ -0,0 +1,202 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OffHeapCacheTest {
+
+    @Test
+    public void testPutAndGet() {
+        OffHeapCache<TestValue> cache = new OffHeapCache<>(1024 * 1024);
+
+        SiriObjectStorageKey key = createKey("TST", 1);
+        cache.put(key, new TestValue("value-1"));
+
+        assertEquals("value-1", cache.get(key).value);
+        assertTrue(cache.containsKey(key));
+        assertEquals(1, cache.size());
+        assertTrue(cache.getUsedBytes() > 0);
+
+        cache.put(key, new TestValue("value-2"));
+        assertEquals("value-2", cache.get(key).value);
+        assertEquals(1, cache.size());
+
+        cache.remove(key);
+        assertNull(cache.get(key));
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    @Test
+    public void testValuesAreDeserializedOnRead() {
+        OffHeapCache<TestValue> cache = new OffHeapCache<>(1024 * 1024);
+        for (int i = 0; i < 100; i++) {
+            cache.put(createKey("TST", i), new TestValue("value-" + i));
+        }
+
+        assertEquals(100, cache.keySet().size());
+        assertEquals(100, cache.entrySet().size());
+        for (Map.Entry<SiriObjectStorageKey, TestValue> entry : cache.entrySet()) {
+            entry.getKey();
+        }
+        assertEquals(0, cache.getDeserializationCount());
+
+        cache.get(createKey("TST", 1));
+        assertEquals(1, cache.getDeserializationCount());
+    }
+
+    @Test
+    public void testCodespaceIndex() {
+        OffHeapCache<TestValue> cache = new OffHeapCache<>(1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            cache.put(createKey("AAA", i), new TestValue("a"));
+        }
+        for (int i = 0; i < 5; i++) {
+            cache.put(createKey("BBB", i), new TestValue("b"));
+        }
+
+        assertEquals(10, cache.keySet("AAA").size());
+        assertEquals(5, cache.keySet("BBB").size());
+        assertEquals(Set.of(), cache.keySet("CCC"));
+        assertEquals(Map.of("AAA", 10, "BBB", 5), cache.getSizePerCodespace());
+
+        cache.remove(createKey("BBB", 0));
+        assertEquals(4, cache.keySet("BBB").size());
+
+        cache.clear();
+        assertTrue(cache.getSizePerCodespace().isEmpty());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testOldestEntriesAreEvicted() {
+        // 4 slabs with room for 4 entries each
+        OffHeapCache<TestValue> cache = new OffHeapCache<>(4 * 1024, 1024);
+        List<SiriObjectStorageKey> keys = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            SiriObjectStorageKey key = createKey("TST", i);
+            keys.add(key);
+            cache.put(key, new TestValue(createValue(200)));
+        }
+
+        assertEquals(4 * 1024, cache.getAllocatedBytes());
+        assertTrue(cache.isTruncated());
+        assertEquals(4, cache.getEvictionCount());
+        for (int i = 0; i < 4; i++) {
+            assertFalse(cache.containsKey(keys.get(i)), "Oldest entries should be evicted");
+        }
+        for (int i = 4; i < 20; i++) {
+            assertTrue(cache.containsKey(keys.get(i)));
+        }
+        assertEquals(16, cache.keySet("TST").size());
+
+        cache.clear();
+        assertFalse(cache.isTruncated());
+    }
+
+    @Test
+    public void testMemoryIsReused() {
+        OffHeapCache<TestValue> cache = new OffHeapCache<>(4 * 1024, 1024);
+        SiriObjectStorageKey key = createKey("TST", 0);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(key, new TestValue(createValue(100 + i % 500)));
+            assertEquals(100 + i % 500, cache.get(key).value.length());
+        }
+        for (int i = 0; i < 1000; i++) {
+            cache.put(createKey("TST", i), new TestValue(createValue(100)));
+            cache.remove(createKey("TST", i));
+        }
+
+        assertEquals(1024, cache.getAllocatedBytes());
+        assertEquals(0, cache.getEvictionCount());
+        assertFalse(cache.isTruncated());
+    }
+
+    @Test
+    public void testValueLargerThanSlabIsIgnored() {
+        OffHeapCache<TestValue> cache = new OffHeapCache<>(4 * 1024, 1024);
+        SiriObjectStorageKey key = createKey("TST", 0);
+        cache.put(key, new TestValue("value"));
+        cache.put(key, new TestValue(createValue(2000)));
+
+        assertNull(cache.get(key));
+        assertTrue(cache.isTruncated());
+    }
+
+    @Test
+    public void testEntryReadAfterChunkIsReused() {
+        OffHeapCache<TestValue> cache = new OffHeapCache<>(4 * 1024, 1024);
+        SiriObjectStorageKey first = createKey("TST", 1);
+        SiriObjectStorageKey second = createKey("TST", 2);
+        cache.put(first, new TestValue("first"));
+
+        Map.Entry<SiriObjectStorageKey, TestValue> entry = cache.entrySet().iterator().next();
+        cache.remove(first);
+        cache.put(second, new TestValue("other"));
+
+        // Chunk of the removed entry now holds another value
+        assertNull(entry.getValue());
+    }
+
+    @Test
+    public void testChunkSizes() {
+        assertEquals(64, SlabAllocator.chunkSize(1));
+        assertEquals(64, SlabAllocator.chunkSize(64));
+        assertEquals(80, SlabAllocator.chunkSize(65));
+        assertEquals(1024, SlabAllocator.chunkSize(1024));
+        assertEquals(1280, SlabAllocator.chunkSize(1025));
+        for (int length = 1; length < 100_000; length++) {
+            int chunkSize = SlabAllocator.chunkSize(length);
+            assertTrue(chunkSize >= length);
+            assertTrue(length <= 64 || chunkSize < length * 1.25, "Chunk size " + chunkSize + " for " + length);
+        }
+    }
+
+    /**
+     * Random characters, as serialized values are compressed
+     */
+    private static String createValue(int length) {
+        Random random = new Random(length);
+        StringBuilder value = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            value.append((char) ('a' + random.nextInt(26)));
+        }
+        return value.toString();
+    }
+
+    private static SiriObjectStorageKey createKey(String codespace, int i) {
+        return new SiriObjectStorageKey(codespace, null, codespace + ":" + i);
+    }
+
+    static class TestValue {
+        private final String value;
+
+        TestValue(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.map.IMap;
+import com.hazelcast.query.LocalIndexStats;
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.FacilityConditionStructure;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.VehicleActivityStructure;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SiriObjectStorageKeyIndexTest extends SpringBootBaseTest {
+
+    @Autowired
+    private EstimatedTimetables estimatedTimetables;
+
+    @Autowired
+    private VehicleActivities vehicleActivities;
+
+    @Autowired
+    private Situations situations;
+
+    @Autowired
+    private Facilities facilities;
+
+    @Test
+    public void testEtQueriesUseIndex() {
+        assertQueriesUseIndex(estimatedTimetables, EstimatedVehicleJourney::new);
+    }
+
+    @Test
+    public void testVmQueriesUseIndex() {
+        assertQueriesUseIndex(vehicleActivities, VehicleActivityStructure::new);
+    }
+
+    @Test
+    public void testSxQueriesUseIndex() {
+        assertQueriesUseIndex(situations, PtSituationElement::new);
+    }
+
+    @Test
+    public void testFmQueriesUseIndex() {
+        assertQueriesUseIndex(facilities, FacilityConditionStructure::new);
+    }
+
+    @Test
+    public void testLineRefIsNormalized() {
+        IMap<SiriObjectStorageKey, EstimatedVehicleJourney> map = estimatedTimetables.getMainMap();
+        SiriObjectStorageKey key = new SiriObjectStorageKey("NORMALIZED", "Tst:Line:Æ 1", "normalized-key");
+        map.set(key, new EstimatedVehicleJourney());
+
+        assertTrue(map.keySet(estimatedTimetables.createHzLineRefPredicate("TST%3ALINE%3A%C3%86+1")).contains(key));
+        assertTrue(map.keySet(estimatedTimetables.createHzLineRefPredicate("tst:line:æ 1")).contains(key));
+
+        map.delete(key);
+    }
+
+    private <T> void assertQueriesUseIndex(SiriRepository<T> repository, Supplier<T> valueSupplier) {
+        IMap<SiriObjectStorageKey, T> map = repository.getMainMap();
+
+        String codespace = "IDX" + repository.getClass().getSimpleName().toUpperCase();
+        for (int i = 0; i < 20; i++) {
+            map.set(new SiriObjectStorageKey(codespace, codespace + ":Line:" + (i % 2), codespace + ":" + i), valueSupplier.get());
+        }
+
+        long codespaceQueries = getIndexQueryCount(map, "codespaceId");
+        long lineRefQueries = getIndexQueryCount(map, "normalizedLineRef");
+
+        assertEquals(20, repository.getAll(codespace).size());
+        assertEquals(10, map.keySet(repository.createHzLineRefPredicate(codespace + ":Line:1")).size());
+
+        assertTrue(getIndexQueryCount(map, "codespaceId") > codespaceQueries, "Codespace-index not used");
+        assertTrue(getIndexQueryCount(map, "normalizedLineRef") > lineRefQueries, "LineRef-index not used");
+
+        repository.clearAllByDatasetId(codespace);
+        assertEquals(0, repository.getAll(codespace).size());
+    }
+
+    private static long getIndexQueryCount(IMap<SiriObjectStorageKey, ?> map, String attribute) {
+        Map<String, LocalIndexStats> indexStats = map.getLocalMapStats().getIndexStats();
+        LocalIndexStats stats = indexStats.entrySet().stream()
+                .filter(e -> e.getKey().endsWith(attribute))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElse(null);
+        assertNotNull(stats, "No index found for " + attribute + " in " + indexStats.keySet());
+        return stats.getQueryCount();
+    }
+}
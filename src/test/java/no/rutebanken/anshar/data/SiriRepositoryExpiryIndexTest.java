@@ -0,0 +1,261 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.SerializerConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.StreamSerializer;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Verifies that cleanup using the expiry-index only reads the entries that are due
+ */
+public class SiriRepositoryExpiryIndexTest {
+
+    private static final AtomicInteger DESERIALIZATION_COUNTER = new AtomicInteger();
+
+    private static final int VALID_COUNT = 5000;
+    private static final int EXPIRED_COUNT = 50;
+
+    private HazelcastInstance hazelcast;
+    private IMap<SiriObjectStorageKey, TestElement> map;
+    private IMap<String, Set<SiriObjectStorageKey>> changesMap;
+    private IMap<SiriObjectStorageKey, String> checksumMap;
+    private TestRepository repository;
+
+    @BeforeEach
+    public void init() {
+        Config config = new Config();
+        config.setClusterName("expiry-index-test-" + UUID.randomUUID());
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.getSerializationConfig().addSerializerConfig(new SerializerConfig()
+                .setTypeClass(TestElement.class)
+                .setImplementation(new CountingSerializer()));
+        hazelcast = Hazelcast.newHazelcastInstance(config);
+
+        map = hazelcast.getMap("anshar.test");
+        changesMap = hazelcast.getMap("anshar.test.changes");
+        checksumMap = hazelcast.getMap("anshar.test.checksum");
+
+        repository = new TestRepository(map, checksumMap);
+        ReflectionTestUtils.setField(repository, "FEATURE_TOGGLE_USE_EXPIRY_INDEX", true);
+        repository.initExpiryIndex(hazelcast.getMap("anshar.test.index.expiry"), -1);
+    }
+
+    @AfterEach
+    public void shutdown() {
+        hazelcast.shutdown();
+    }
+
+    @Test
+    public void testCleanupOnlyReadsDueEntries() {
+        Set<SiriObjectStorageKey> expiredKeys = populate();
+
+        SiriObjectStorageKey validKey = createKey(0);
+        Set<SiriObjectStorageKey> changes = new HashSet<>(expiredKeys);
+        changes.add(validKey);
+        changesMap.set("requestor", changes);
+
+        DESERIALIZATION_COUNTER.set(0);
+        repository.removeExpiredUsingIndex(map, changesMap, -1);
+
+        assertEquals(EXPIRED_COUNT, DESERIALIZATION_COUNTER.get(), "Only expired entries should be read");
+        assertEquals(VALID_COUNT, map.size());
+        for (SiriObjectStorageKey key : expiredKeys) {
+            assertFalse(map.containsKey(key));
+        }
+        assertEquals(Set.of(validKey), changesMap.get("requestor"), "Expired keys should be removed from changes");
+        assertEquals(VALID_COUNT, checksumMap.size(), "Expired keys should be removed from linked maps");
+        for (SiriObjectStorageKey key : expiredKeys) {
+            assertFalse(checksumMap.containsKey(key));
+        }
+
+        DESERIALIZATION_COUNTER.set(0);
+        repository.removeExpiredUsingIndex(map, changesMap, -1);
+        assertEquals(0, DESERIALIZATION_COUNTER.get(), "Nothing is due - nothing should be read");
+    }
+
+    @Test
+    public void testFullCleanupReadsAllEntries() {
+        populate();
+
+        DESERIALIZATION_COUNTER.set(0);
+        repository.removeExpired(map, changesMap, -1);
+
+        assertTrue(DESERIALIZATION_COUNTER.get() >= VALID_COUNT + EXPIRED_COUNT);
+        assertEquals(VALID_COUNT, map.size());
+    }
+
+    @Test
+    public void testUpdatedEntryIsNotRemoved() {
+        Set<SiriObjectStorageKey> expiredKeys = populate();
+        SiriObjectStorageKey updatedKey = expiredKeys.iterator().next();
+
+        // Updated without updating the index - e.g. written after the index was read
+        map.set(updatedKey, new TestElement(System.currentTimeMillis() + 60_000));
+
+        repository.removeExpiredUsingIndex(map, changesMap, -1);
+
+        assertTrue(map.containsKey(updatedKey));
+        assertEquals(VALID_COUNT + 1, map.size());
+
+        DESERIALIZATION_COUNTER.set(0);
+        repository.removeExpiredUsingIndex(map, changesMap, -1);
+        assertEquals(0, DESERIALIZATION_COUNTER.get(), "Updated entry should have been postponed in the index");
+    }
+
+    private Set<SiriObjectStorageKey> populate() {
+        long now = System.currentTimeMillis();
+        Map<SiriObjectStorageKey, TestElement> elements = new HashMap<>();
+        Map<SiriObjectStorageKey, String> checksums = new HashMap<>();
+        Set<SiriObjectStorageKey> expiredKeys = new HashSet<>();
+        for (int i = 0; i < VALID_COUNT + EXPIRED_COUNT; i++) {
+            SiriObjectStorageKey key = createKey(i);
+            if (i < VALID_COUNT) {
+                elements.put(key, new TestElement(now + 60 * 60 * 1000));
+            } else {
+                elements.put(key, new TestElement(now - 1000));
+                expiredKeys.add(key);
+            }
+            checksums.put(key, "checksum-" + i);
+        }
+        map.setAll(elements);
+        checksumMap.setAll(checksums);
+        repository.updateExpiryIndex(elements);
+        return expiredKeys;
+    }
+
+    private static SiriObjectStorageKey createKey(int i) {
+        return new SiriObjectStorageKey("TST", null, "TST:Element:" + i);
+    }
+
+    static class TestElement implements Serializable {
+        private final long expiresAt;
+
+        TestElement(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    static class CountingSerializer implements StreamSerializer<TestElement> {
+
+        @Override
+        public void write(ObjectDataOutput out, TestElement object) throws java.io.IOException {
+            out.writeLong(object.expiresAt);
+        }
+
+        @Override
+        public TestElement read(ObjectDataInput in) throws java.io.IOException {
+            DESERIALIZATION_COUNTER.incrementAndGet();
+            return new TestElement(in.readLong());
+        }
+
+        @Override
+        public int getTypeId() {
+            return 1000;
+        }
+    }
+
+    static class TestRepository extends SiriRepository<TestElement> {
+
+        private final IMap<SiriObjectStorageKey, TestElement> map;
+        private final IMap<SiriObjectStorageKey, String> checksumMap;
+
+        TestRepository(IMap<SiriObjectStorageKey, TestElement> map, IMap<SiriObjectStorageKey, String> checksumMap) {
+            super(SiriDataType.ESTIMATED_TIMETABLE);
+            this.map = map;
+            this.checksumMap = checksumMap;
+        }
+
+        @Override
+        long getExpiration(TestElement s) {
+            return s.expiresAt - System.currentTimeMillis();
+        }
+
+        @Override
+        IMap<SiriObjectStorageKey, TestElement> getMainMap() {
+            return map;
+        }
+
+        @Override
+        List<IMap<SiriObjectStorageKey, ?>> getLinkedMaps() {
+            return List.of(checksumMap);
+        }
+
+        @Override
+        Collection<TestElement> getAll() {
+            return map.values();
+        }
+
+        @Override
+        Map<SiriObjectStorageKey, TestElement> getAllAsMap() {
+            return map;
+        }
+
+        @Override
+        int getSize() {
+            return map.size();
+        }
+
+        @Override
+        Collection<TestElement> getAll(String datasetId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        Collection<TestElement> getAllUpdates(String requestorId, String datasetId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        Collection<TestElement> addAll(String datasetId, List<TestElement> ptList) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        TestElement add(String datasetId, TestElement timetableDelivery) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        void clearAllByDatasetId(String datasetId) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
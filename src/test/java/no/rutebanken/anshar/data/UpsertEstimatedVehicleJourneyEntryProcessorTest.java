@@ -0,0 +1,274 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.config.SerializerConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import no.rutebanken.anshar.data.collections.KryoSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.StopPointRefStructure;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static no.rutebanken.anshar.data.UpsertEstimatedVehicleJourneyEntryProcessor.Status.EXPIRED;
+import static no.rutebanken.anshar.data.UpsertEstimatedVehicleJourneyEntryProcessor.Status.NOT_UPDATED;
+import static no.rutebanken.anshar.data.UpsertEstimatedVehicleJourneyEntryProcessor.Status.OUTDATED;
+import static no.rutebanken.anshar.data.UpsertEstimatedVehicleJourneyEntryProcessor.Status.UNCHANGED;
+import static no.rutebanken.anshar.data.UpsertEstimatedVehicleJourneyEntryProcessor.Status.UPDATED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the EntryProcessor against embedded single- and two-node clusters
+ */
+public class UpsertEstimatedVehicleJourneyEntryProcessorTest {
+
+    private static final String ET_MAP = "anshar.et";
+
+    private static final String CHECKSUM_MAP = "anshar.et.checksum.cache";
+
+    private final List<HazelcastInstance> members = new ArrayList<>();
+
+    @AfterEach
+    public void shutdown() {
+        members.forEach(HazelcastInstance::shutdown);
+        members.clear();
+    }
+
+    @Test
+    public void testUpsertSingleNode() {
+        startCluster(1);
+        assertUpsertSemantics(members.get(0), members.get(0));
+    }
+
+    @Test
+    public void testUpsertTwoNodes() {
+        startCluster(2);
+        assertUpsertSemantics(members.get(0), members.get(1));
+    }
+
+    @Test
+    public void testUpdatedValuesAreBackedUp() {
+        startCluster(2);
+        HazelcastInstance member = members.get(0);
+
+        Map<SiriObjectStorageKey, UpsertEstimatedVehicleJourneyEntryProcessor.Upsert> upserts = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            SiriObjectStorageKey key = createKey("backup-" + i);
+            upserts.put(key, createUpsert(createJourney(ZonedDateTime.now(), 10), false));
+        }
+        upsertPerPartition(member, upserts);
+
+        // Terminate without migration - remaining data must come from backups
+        members.remove(1).getLifecycleService().terminate();
+
+        IMap<SiriObjectStorageKey, EstimatedVehicleJourney> map = member.getMap(ET_MAP);
+        assertEquals(upserts.size(), map.size());
+    }
+
+    @Test
+    public void testChecksumSingleNode() {
+        startCluster(1);
+        assertChecksumSemantics(members.get(0), members.get(0));
+    }
+
+    @Test
+    public void testChecksumTwoNodes() {
+        startCluster(2);
+        assertChecksumSemantics(members.get(0), members.get(1));
+    }
+
+    private void assertChecksumSemantics(HazelcastInstance writer, HazelcastInstance reader) {
+        IMap<SiriObjectStorageKey, EstimatedVehicleJourney> map = reader.getMap(ET_MAP);
+        IMap<SiriObjectStorageKey, String> checksums = reader.getMap(CHECKSUM_MAP);
+
+        ZonedDateTime recordedAtTime = ZonedDateTime.now();
+        SiriObjectStorageKey key = createKey("checksum");
+
+        // Checksum is written with the element
+        assertEquals(UPDATED, upsert(writer, key, createUpsert(createJourney(recordedAtTime, 1), "checksum-1", false)).getStatus());
+        assertEquals("checksum-1", checksums.get(key));
+
+        // Same checksum - existing element is kept
+        assertEquals(UNCHANGED, upsert(writer, key, createUpsert(createJourney(recordedAtTime.plusMinutes(1), 2), "checksum-1", false)).getStatus());
+        assertEquals(1, map.get(key).getEstimatedCalls().getEstimatedCalls().size());
+
+        // Changed checksum
+        assertEquals(UPDATED, upsert(writer, key, createUpsert(createJourney(recordedAtTime.plusMinutes(2), 3), "checksum-2", false)).getStatus());
+        assertEquals("checksum-2", checksums.get(key));
+        assertEquals(3, map.get(key).getEstimatedCalls().getEstimatedCalls().size());
+
+        // Checksum not written when element is outdated
+        assertEquals(OUTDATED, upsert(writer, key, createUpsert(createJourney(recordedAtTime, 4), "checksum-3", false)).getStatus());
+        assertEquals("checksum-2", checksums.get(key));
+
+        // Unknown checksum - element is always written, and stale checksum is removed
+        assertEquals(UPDATED, upsert(writer, key, createUpsert(createJourney(recordedAtTime.plusMinutes(3), 5), null, false)).getStatus());
+        assertNull(checksums.get(key));
+    }
+
+    private void assertUpsertSemantics(HazelcastInstance writer, HazelcastInstance reader) {
+        IMap<SiriObjectStorageKey, EstimatedVehicleJourney> map = reader.getMap(ET_MAP);
+
+        ZonedDateTime recordedAtTime = ZonedDateTime.now();
+        SiriObjectStorageKey key = createKey("1234");
+
+        // New journey
+        EstimatedVehicleJourney journey = createJourney(recordedAtTime, 1);
+        UpsertEstimatedVehicleJourneyEntryProcessor.Result result = upsert(writer, key, createUpsert(journey, false));
+        assertEquals(UPDATED, result.getStatus());
+        assertNull(result.getMonitored(), "New journey should keep monitored-flag");
+        assertNotNull(map.get(key));
+
+        // Key without upsert
+        SiriObjectStorageKey otherKey = createKey("5678");
+        assertEquals(NOT_UPDATED, map.executeOnKey(otherKey, new UpsertEstimatedVehicleJourneyEntryProcessor(CHECKSUM_MAP, Map.of(key, createUpsert(journey, false)))).getStatus());
+        assertNull(map.get(otherKey));
+
+        // Changed, but older
+        assertEquals(OUTDATED, upsert(writer, key, createUpsert(createJourney(recordedAtTime.minusMinutes(1), 2), false)).getStatus());
+        assertEquals(1, map.get(key).getEstimatedCalls().getEstimatedCalls().size());
+
+        // Changed and newer
+        result = upsert(writer, key, createUpsert(createJourney(recordedAtTime.plusMinutes(1), 3), false));
+        assertEquals(UPDATED, result.getStatus());
+        assertEquals(Boolean.TRUE, result.getMonitored(), "Updated journey without monitored-flag should be set to monitored");
+        assertEquals(3, map.get(key).getEstimatedCalls().getEstimatedCalls().size());
+
+        // Changed, but already expired
+        EstimatedVehicleJourney expiredJourney = createJourney(recordedAtTime.plusMinutes(2), 4);
+        assertEquals(EXPIRED, upsert(writer, key, new UpsertEstimatedVehicleJourneyEntryProcessor.Upsert(expiredJourney, null, -1, false)).getStatus());
+        assertEquals(3, map.get(key).getEstimatedCalls().getEstimatedCalls().size());
+
+        // Previously monitored - may not be changed to not monitored
+        EstimatedVehicleJourney notMonitored = createJourney(recordedAtTime.plusMinutes(3), 5);
+        notMonitored.setMonitored(false);
+        result = upsert(writer, key, createUpsert(notMonitored, false));
+        assertEquals(UPDATED, result.getStatus());
+        assertTrue(result.isOverrideMonitoredNoLongerTrue());
+        assertTrue(map.get(key).isMonitored());
+    }
+
+    @Test
+    public void testPatternChanges() {
+        startCluster(1);
+        HazelcastInstance member = members.get(0);
+        SiriObjectStorageKey key = createKey("pattern");
+
+        EstimatedVehicleJourney journey = createJourney(ZonedDateTime.now(), 2);
+        journey.setMonitored(false);
+
+        UpsertEstimatedVehicleJourneyEntryProcessor.Result result = upsert(member, key, createUpsert(journey, true));
+
+        assertEquals(UPDATED, result.getStatus());
+        assertTrue(result.isOverrideMonitoredFalse());
+        assertFalse(result.isOverrideMonitoredNoLongerTrue());
+        assertEquals(Boolean.TRUE, result.getMonitored());
+
+        SiriObjectStorageKey cancelledKey = createKey("cancelled");
+        EstimatedVehicleJourney cancelled = createJourney(ZonedDateTime.now(), 2);
+        cancelled.setMonitored(false);
+        cancelled.setCancellation(true);
+        result = upsert(member, cancelledKey, createUpsert(cancelled, true));
+        assertFalse(result.isOverrideMonitoredFalse());
+        assertEquals(Boolean.FALSE, result.getMonitored());
+    }
+
+    private void startCluster(int size) {
+        String clusterName = "upsert-test-" + UUID.randomUUID();
+        for (int i = 0; i < size; i++) {
+            Config config = new Config();
+            config.setClusterName(clusterName);
+            config.getSerializationConfig().addSerializerConfig(new SerializerConfig()
+                    .setTypeClass(EstimatedVehicleJourney.class)
+                    .setImplementation(new KryoSerializer()));
+
+            JoinConfig join = config.getNetworkConfig().getJoin();
+            join.getMulticastConfig().setEnabled(false);
+            join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+
+            members.add(Hazelcast.newHazelcastInstance(config));
+        }
+    }
+
+    private static UpsertEstimatedVehicleJourneyEntryProcessor.Result upsert(HazelcastInstance member, SiriObjectStorageKey key,
+                                                                            UpsertEstimatedVehicleJourneyEntryProcessor.Upsert upsert) {
+        Map<SiriObjectStorageKey, UpsertEstimatedVehicleJourneyEntryProcessor.Upsert> upserts = new HashMap<>();
+        upserts.put(key, upsert);
+        return upsertPerPartition(member, upserts).get(key);
+    }
+
+    private static Map<SiriObjectStorageKey, UpsertEstimatedVehicleJourneyEntryProcessor.Result> upsertPerPartition(HazelcastInstance member,
+                                                                                                                    Map<SiriObjectStorageKey, UpsertEstimatedVehicleJourneyEntryProcessor.Upsert> upserts) {
+        Map<Integer, Map<SiriObjectStorageKey, UpsertEstimatedVehicleJourneyEntryProcessor.Upsert>> byPartition = new HashMap<>();
+        upserts.forEach((key, upsert) -> byPartition
+                .computeIfAbsent(member.getPartitionService().getPartition(key).getPartitionId(), p -> new HashMap<>())
+                .put(key, upsert));
+
+        IMap<SiriObjectStorageKey, EstimatedVehicleJourney> map = member.getMap(ET_MAP);
+        Map<SiriObjectStorageKey, UpsertEstimatedVehicleJourneyEntryProcessor.Result> results = new HashMap<>();
+        for (Map<SiriObjectStorageKey, UpsertEstimatedVehicleJourneyEntryProcessor.Upsert> partitionUpserts : byPartition.values()) {
+            results.putAll(map.executeOnKeys(partitionUpserts.keySet(),
+                    new UpsertEstimatedVehicleJourneyEntryProcessor(CHECKSUM_MAP, partitionUpserts)));
+        }
+        return results;
+    }
+
+    private static UpsertEstimatedVehicleJourneyEntryProcessor.Upsert createUpsert(EstimatedVehicleJourney journey, boolean hasPatternChanges) {
+        return createUpsert(journey, null, hasPatternChanges);
+    }
+
+    private static UpsertEstimatedVehicleJourneyEntryProcessor.Upsert createUpsert(EstimatedVehicleJourney journey, String checksum, boolean hasPatternChanges) {
+        return new UpsertEstimatedVehicleJourneyEntryProcessor.Upsert(journey, checksum, 60 * 60 * 1000, hasPatternChanges);
+    }
+
+    private static SiriObjectStorageKey createKey(String id) {
+        return new SiriObjectStorageKey("TST", "TST:Line:1", "TST:ServiceJourney:" + id);
+    }
+
+    private static EstimatedVehicleJourney createJourney(ZonedDateTime recordedAtTime, int callCount) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        journey.setRecordedAtTime(recordedAtTime);
+
+        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+        for (int i = 0; i < callCount; i++) {
+            StopPointRefStructure stopPointRef = new StopPointRefStructure();
+            stopPointRef.setValue("NSR:TEST:" + i);
+
+            EstimatedCall call = new EstimatedCall();
+            call.setStopPointRef(stopPointRef);
+            call.setAimedArrivalTime(recordedAtTime.plusHours(1));
+            estimatedCalls.getEstimatedCalls().add(call);
+        }
+        journey.setEstimatedCalls(estimatedCalls);
+        return journey;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data.checksum;
+
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.Unmarshaller;
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.EstimatedVersionFrameStructure;
+import uk.org.siri.siri21.FacilityConditionStructure;
+import uk.org.siri.siri21.FacilityRef;
+import uk.org.siri.siri21.HalfOpenTimestampOutputRangeStructure;
+import uk.org.siri.siri21.LocationStructure;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.RequestorRef;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.SituationNumber;
+import uk.org.siri.siri21.VehicleActivityStructure;
+import uk.org.siri.siri21.VehicleRef;
+
+import javax.xml.stream.XMLInputFactory;
+import java.io.FileInputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChecksumEngineTest {
+
+    private static final ZonedDateTime TIMESTAMP = ZonedDateTime.parse("2024-01-01T12:00:00+01:00");
+
+    private final ChecksumEngine md5 = ChecksumAlgorithm.MD5.getEngine();
+    private final ChecksumEngine fieldHash = ChecksumAlgorithm.FIELD_HASH.getEngine();
+
+    @Test
+    public void testEnginesAgreeOnEt() throws Exception {
+        List<EstimatedVehicleJourney> journeys = readJourneys("src/test/resources/siri-et-from-bnr.xml");
+        List<EstimatedVehicleJourney> copies = readJourneys("src/test/resources/siri-et-from-bnr.xml");
+
+        assertTrue(journeys.size() > 1);
+        assertEquals(journeys.size(), copies.size());
+
+        for (int i = 0; i < journeys.size(); i++) {
+            assertAgree(true, journeys.get(i), copies.get(i), "recordedAtTime");
+            if (i > 0) {
+                assertAgree(false, journeys.get(i - 1), journeys.get(i), "recordedAtTime");
+            }
+        }
+    }
+
+    @Test
+    public void testEtRecordedAtTimeIgnored() throws Exception {
+        EstimatedVehicleJourney journey = readJourneys("src/test/resources/siri-et-gir-npe.xml").get(0);
+        EstimatedVehicleJourney copy = readJourneys("src/test/resources/siri-et-gir-npe.xml").get(0);
+
+        copy.setRecordedAtTime(TIMESTAMP.plusYears(1));
+
+        assertAgree(true, journey, copy, "recordedAtTime");
+        assertAgree(false, journey, copy);
+    }
+
+    @Test
+    public void testFieldHashDoesNotModifyObject() throws Exception {
+        EstimatedVehicleJourney journey = readJourneys("src/test/resources/siri-et-from-bnr.xml").get(0);
+        ZonedDateTime recordedAtTime = journey.getRecordedAtTime();
+
+        fieldHash.getChecksum(journey, "recordedAtTime");
+
+        assertSame(recordedAtTime, journey.getRecordedAtTime());
+    }
+
+    @Test
+    public void testEnginesAgreeOnVm() {
+        VehicleActivityStructure activity = createVm("TST:Vehicle:1234", TIMESTAMP);
+
+        assertAgree(true, activity, createVm("TST:Vehicle:1234", TIMESTAMP), "validUntilTime");
+        assertAgree(false, activity, createVm("TST:Vehicle:2345", TIMESTAMP), "validUntilTime");
+
+        VehicleActivityStructure extendedValidity = createVm("TST:Vehicle:1234", TIMESTAMP);
+        extendedValidity.setValidUntilTime(TIMESTAMP.plusHours(1));
+        assertAgree(true, activity, extendedValidity, "validUntilTime");
+        assertAgree(false, activity, extendedValidity);
+
+        VehicleActivityStructure moved = createVm("TST:Vehicle:1234", TIMESTAMP);
+        moved.getMonitoredVehicleJourney().getVehicleLocation().setLatitude(BigDecimal.valueOf(10.64));
+        assertAgree(false, activity, moved, "validUntilTime");
+    }
+
+    @Test
+    public void testEnginesAgreeOnSx() {
+        PtSituationElement situation = createSx("TST:SituationNumber:1234", TIMESTAMP.plusHours(1));
+
+        assertAgree(true, situation, createSx("TST:SituationNumber:1234", TIMESTAMP.plusHours(1)));
+        assertAgree(false, situation, createSx("TST:SituationNumber:2345", TIMESTAMP.plusHours(1)));
+        assertAgree(false, situation, createSx("TST:SituationNumber:1234", TIMESTAMP.plusHours(2)));
+    }
+
+    @Test
+    public void testEnginesAgreeOnFm() {
+        FacilityConditionStructure facility = createFm("TST:Facility:1234", TIMESTAMP.plusHours(1));
+
+        assertAgree(true, facility, createFm("TST:Facility:1234", TIMESTAMP.plusHours(1)));
+        assertAgree(false, facility, createFm("TST:Facility:2345", TIMESTAMP.plusHours(1)));
+        assertAgree(false, facility, createFm("TST:Facility:1234", TIMESTAMP.plusHours(2)));
+    }
+
+    private void assertAgree(boolean expectedEqual, Serializable a, Serializable b, String... ignoredFields) {
+        boolean md5Equal = md5.getChecksum(a, ignoredFields).equals(md5.getChecksum(b, ignoredFields));
+        boolean fieldHashEqual = fieldHash.getChecksum(a, ignoredFields).equals(fieldHash.getChecksum(b, ignoredFields));
+
+        assertEquals(expectedEqual, md5Equal, "Unexpected MD5-result");
+        assertEquals(md5Equal, fieldHashEqual, "Checksum engines disagree");
+        if (!expectedEqual) {
+            assertNotEquals(fieldHash.getChecksum(a, ignoredFields), fieldHash.getChecksum(b, ignoredFields));
+        }
+    }
+
+    private static List<EstimatedVehicleJourney> readJourneys(String filename) throws Exception {
+        Unmarshaller unmarshaller = JAXBContext.newInstance(Siri.class).createUnmarshaller();
+        Siri siri;
+        try (FileInputStream xml = new FileInputStream(filename)) {
+            siri = (Siri) unmarshaller.unmarshal(XMLInputFactory.newInstance().createXMLStreamReader(xml));
+        }
+
+        List<EstimatedVehicleJourney> journeys = new ArrayList<>();
+        for (EstimatedVersionFrameStructure frame : siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames()) {
+            journeys.addAll(frame.getEstimatedVehicleJourneies());
+        }
+        return journeys;
+    }
+
+    private static VehicleActivityStructure createVm(String vehicleReference, ZonedDateTime recordedAtTime) {
+        VehicleActivityStructure element = new VehicleActivityStructure();
+        element.setRecordedAtTime(recordedAtTime);
+        element.setValidUntilTime(recordedAtTime.plusMinutes(10));
+
+        VehicleActivityStructure.MonitoredVehicleJourney vehicleJourney = new VehicleActivityStructure.MonitoredVehicleJourney();
+        VehicleRef vRef = new VehicleRef();
+        vRef.setValue(vehicleReference);
+        vehicleJourney.setVehicleRef(vRef);
+
+        LocationStructure location = new LocationStructure();
+        location.setLatitude(BigDecimal.valueOf(10.63));
+        location.setLongitude(BigDecimal.valueOf(63.10));
+        vehicleJourney.setVehicleLocation(location);
+
+        element.setMonitoredVehicleJourney(vehicleJourney);
+        return element;
+    }
+
+    private static PtSituationElement createSx(String situationNumber, ZonedDateTime endTime) {
+        PtSituationElement situation = new PtSituationElement();
+        situation.setCreationTime(TIMESTAMP);
+
+        SituationNumber sitNumber = new SituationNumber();
+        sitNumber.setValue(situationNumber);
+        situation.setSituationNumber(sitNumber);
+
+        RequestorRef participantRef = new RequestorRef();
+        participantRef.setValue("TST");
+        situation.setParticipantRef(participantRef);
+
+        HalfOpenTimestampOutputRangeStructure validity = new HalfOpenTimestampOutputRangeStructure();
+        validity.setStartTime(TIMESTAMP);
+        validity.setEndTime(endTime);
+        situation.getValidityPeriods().add(validity);
+
+        return situation;
+    }
+
+    private static FacilityConditionStructure createFm(String facilityRef, ZonedDateTime endTime) {
+        FacilityConditionStructure element = new FacilityConditionStructure();
+        FacilityRef facRef = new FacilityRef();
+        facRef.setValue(facilityRef);
+        element.setFacilityRef(facRef);
+
+        element.setValidityPeriod(new HalfOpenTimestampOutputRangeStructure());
+        element.getValidityPeriod().setStartTime(TIMESTAMP);
+        element.getValidityPeriod().setEndTime(endTime);
+        return element;
+    }
+}
@@ -16,12 +16,21 @@
 package no.rutebanken.anshar.outbound;
 
 import no.rutebanken.anshar.routes.outbound.SiriHelper;
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import no.rutebanken.anshar.routes.siri.transformer.SiriValueTransformer;
+import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import no.rutebanken.anshar.subscription.helpers.MappingAdapterPresets;
+import org.entur.siri21.util.SiriXml;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.EstimatedVersionFrameStructure;
 import uk.org.siri.siri21.LineRef;
 import uk.org.siri.siri21.Siri;
 import uk.org.siri.siri21.VehicleActivityStructure;
+import uk.org.siri.siri21.VehicleMonitoringDeliveryStructure;
 import uk.org.siri.siri21.VehicleRef;
 
 import java.time.Instant;
@@ -37,6 +46,8 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class SiriHelperTest {
@@ -185,6 +196,94 @@ public class SiriHelperTest {
         assertEquals(filteredSizeAfter, filteredSizeAfter2, "Filtered size does not match");
     }
 
+    @Test
+    public void testSharedFilterVmDelivery() {
+        List<VehicleActivityStructure> vmElements = new ArrayList<>();
+        vmElements.add(createVehicleActivity("1234", "22"));
+        vmElements.add(createVehicleActivity("1234", "3333"));
+        vmElements.add(createVehicleActivity("2345", "222"));
+        vmElements.add(createVehicleActivity("342435", "33"));
+
+        Siri siri = siriObjectFactory.createVMServiceDelivery(vmElements);
+
+        Map<Class, Set<String>> filter = new HashMap<>();
+        filter.put(LineRef.class, new HashSet<>(Arrays.asList("1234")));
+
+        Siri filtered = SiriHelper.filterSiriPayload(siri, filter, false);
+
+        VehicleMonitoringDeliveryStructure originalDelivery = siri.getServiceDelivery().getVehicleMonitoringDeliveries().get(0);
+        VehicleMonitoringDeliveryStructure filteredDelivery = filtered.getServiceDelivery().getVehicleMonitoringDeliveries().get(0);
+
+        assertNotSame(siri, filtered);
+        assertNotSame(siri.getServiceDelivery(), filtered.getServiceDelivery());
+        assertNotSame(originalDelivery, filteredDelivery);
+        assertEquals(originalDelivery.getResponseTimestamp(), filteredDelivery.getResponseTimestamp());
+
+        assertEquals(2, filteredDelivery.getVehicleActivities().size(), "Non-matching element has not been removed");
+        assertEquals(4, originalDelivery.getVehicleActivities().size(), "Original object has been altered");
+
+        // Matching elements are shared - not copied
+        assertSame(vmElements.get(0), filteredDelivery.getVehicleActivities().get(0));
+        assertSame(vmElements.get(1), filteredDelivery.getVehicleActivities().get(1));
+    }
+
+    @Test
+    public void testSharedFilterEtDelivery() {
+        List<EstimatedVehicleJourney> etElements = new ArrayList<>();
+        etElements.add(createEstimatedVehicleJourney("1234", "22"));
+        etElements.add(createEstimatedVehicleJourney("2345", "33"));
+        etElements.add(createEstimatedVehicleJourney("3456", "22"));
+
+        Siri siri = siriObjectFactory.createETServiceDelivery(etElements);
+
+        Map<Class, Set<String>> filter = new HashMap<>();
+        filter.put(LineRef.class, new HashSet<>(Arrays.asList("1234", "3456")));
+        filter.put(VehicleRef.class, new HashSet<>(Arrays.asList("22")));
+
+        Siri filtered = SiriHelper.filterSiriPayload(siri, filter, false);
+
+        EstimatedVersionFrameStructure originalFrame = siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0);
+        EstimatedVersionFrameStructure filteredFrame = filtered.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0);
+
+        assertNotSame(originalFrame, filteredFrame);
+        assertEquals(originalFrame.getRecordedAtTime(), filteredFrame.getRecordedAtTime());
+
+        assertEquals(2, filteredFrame.getEstimatedVehicleJourneies().size(), "Non-matching element has not been removed");
+        assertEquals(3, originalFrame.getEstimatedVehicleJourneies().size(), "Original object has been altered");
+        assertSame(etElements.get(0), filteredFrame.getEstimatedVehicleJourneies().get(0));
+        assertSame(etElements.get(2), filteredFrame.getEstimatedVehicleJourneies().get(1));
+    }
+
+    @Test
+    public void testSharedElementsAreNotAlteredDownstream() throws Exception {
+        List<VehicleActivityStructure> vmElements = new ArrayList<>();
+        vmElements.add(createVehicleActivity("1$TST:Line:1", "22"));
+        vmElements.add(createVehicleActivity("2$TST:Line:2", "33"));
+
+        Siri siri = siriObjectFactory.createVMServiceDelivery(vmElements);
+        String originalXml = SiriXml.toXml(siri);
+
+        List<ValueAdapter> outboundAdapters = new MappingAdapterPresets(null)
+                .getOutboundAdapters(SiriDataType.VEHICLE_MONITORING, OutboundIdMappingPolicy.DEFAULT);
+
+        // Same steps as when pushing to a subscription
+        for (String lineRef : Arrays.asList("1$TST:Line:1", "2$TST:Line:2")) {
+            Map<Class, Set<String>> filter = new HashMap<>();
+            filter.put(LineRef.class, new HashSet<>(Arrays.asList(lineRef)));
+
+            Siri filtered = SiriHelper.filterSiriPayload(siri, filter, false);
+            for (Siri split : siriHelper.splitDeliveries(filtered, 1000)) {
+                Siri transformed = SiriValueTransformer.transform(split, outboundAdapters, true, false);
+                String xml = SiriXml.toXml(transformed);
+
+                assertTrue(xml.contains(lineRef.substring(lineRef.indexOf('$') + 1)));
+                assertFalse(xml.contains(lineRef));
+            }
+        }
+
+        assertEquals(originalXml, SiriXml.toXml(siri), "Shared elements have been altered");
+    }
+
     @Test
     public void testSplitDelivery(){
 
@@ -224,6 +323,17 @@ public class SiriHelperTest {
         assertEquals(siri, splitDeliveries.get(0));
     }
 
+    private EstimatedVehicleJourney createEstimatedVehicleJourney(String lineRefValue, String vehicleRefValue) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue(lineRefValue);
+        VehicleRef vehicleRef = new VehicleRef();
+        vehicleRef.setValue(vehicleRefValue);
+        journey.setLineRef(lineRef);
+        journey.setVehicleRef(vehicleRef);
+        return journey;
+    }
+
     private VehicleActivityStructure createVehicleActivity(String lineRefValue, String vehicleRefValue) {
         VehicleActivityStructure v = new VehicleActivityStructure();
         VehicleActivityStructure.MonitoredVehicleJourney mvj = new VehicleActivityStructure.MonitoredVehicleJourney();
@@ -0,0 +1,214 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.messaging;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static no.rutebanken.anshar.routes.messaging.AdaptiveConcurrencyController.Decision.DECREASE;
+import static no.rutebanken.anshar.routes.messaging.AdaptiveConcurrencyController.Decision.HOLD;
+import static no.rutebanken.anshar.routes.messaging.AdaptiveConcurrencyController.Decision.INCREASE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AdaptiveConcurrencyControllerTest {
+
+    private static final int MAX_WORKERS = 8;
+
+    private final BlockingQueue<Integer> queue = new LinkedBlockingQueue<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicInteger processed = new AtomicInteger();
+
+    @AfterEach
+    public void stopWorkers() throws InterruptedException {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (Thread worker : workers) {
+            worker.join(5000);
+        }
+    }
+
+    @Test
+    public void testInvalidBounds() {
+        assertThrows(IllegalArgumentException.class, () -> new AdaptiveConcurrencyController("test", 0, 1, 2, 100, queue::size));
+        assertThrows(IllegalArgumentException.class, () -> new AdaptiveConcurrencyController("test", 3, 3, 2, 100, queue::size));
+        assertThrows(NullPointerException.class, () -> new AdaptiveConcurrencyController("test", 1, 1, 2, 100, null));
+        assertEquals(2, new AdaptiveConcurrencyController("test", 1, 5, 2, 100, queue::size).getLimit());
+    }
+
+    @Test
+    public void testBacklogIncreasesConcurrency() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController("test", 1, 1, MAX_WORKERS, 1000, queue::size);
+        startWorkers(controller, () -> sleep(5));
+
+        fillQueue(10_000);
+
+        for (int i = 0; i < MAX_WORKERS + 2; i++) {
+            Thread.sleep(50);
+            AdaptiveConcurrencyController.Decision decision = controller.adjust();
+            if (controller.getLimit() < MAX_WORKERS) {
+                assertEquals(INCREASE, decision);
+            }
+        }
+        assertEquals(MAX_WORKERS, controller.getLimit());
+        assertEquals(HOLD, controller.getLastDecision());
+
+        // Concurrency is never above the limit
+        assertTrue(controller.getInFlight() <= controller.getLimit());
+    }
+
+    @Test
+    public void testSlowHandlerLimitsConcurrency() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController("test", 1, MAX_WORKERS, MAX_WORKERS, 40, queue::size);
+
+        // Synthetic handler where latency increases with the number of concurrent messages - e.g. a shared resource
+        AtomicInteger concurrent = new AtomicInteger();
+        startWorkers(controller, () -> {
+            int current = concurrent.incrementAndGet();
+            try {
+                sleep(10L * current);
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        });
+
+        fillQueue(10_000);
+
+        int decreases = 0;
+        for (int i = 0; i < 20; i++) {
+            Thread.sleep(200);
+            if (controller.adjust() == DECREASE) {
+                decreases++;
+            }
+        }
+
+        assertTrue(decreases > 0);
+        // Latency is 10 ms per concurrent message - limit should stabilize around target latency
+        assertTrue(controller.getLimit() < MAX_WORKERS, "Limit was " + controller.getLimit());
+        assertTrue(controller.getLimit() <= 5, "Limit was " + controller.getLimit());
+        assertTrue(processed.get() > 0);
+    }
+
+    @Test
+    public void testIdleQueueDecreasesConcurrency() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController("test", 2, MAX_WORKERS, MAX_WORKERS, 1000, queue::size);
+        startWorkers(controller, () -> sleep(1));
+
+        fillQueue(10);
+        awaitEmptyQueue();
+
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            controller.adjust();
+        }
+        assertEquals(2, controller.getLimit());
+        assertEquals(HOLD, controller.adjust());
+        assertEquals(10, processed.get());
+    }
+
+    @Test
+    public void testBacklogIsReadWhenMessageIsRegistered() {
+        AtomicLong backlog = new AtomicLong();
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController("test", 1, 2, 4, 1000, backlog::get);
+
+        // One of two consumers busy - idle worker
+        controller.release(controller.begin());
+        assertEquals(DECREASE, controller.adjust());
+        assertEquals(1, controller.getLimit());
+
+        // Backlog while the message is registered - is kept until next adjustment
+        backlog.set(1);
+        long start = controller.begin();
+        backlog.set(0);
+        assertEquals(INCREASE, controller.adjust());
+        assertEquals(2, controller.getLimit());
+
+        // Messages are never held waiting for a permit
+        long second = controller.begin();
+        long third = controller.begin();
+        assertEquals(3, controller.getInFlight());
+        controller.release(start);
+        controller.release(second);
+        controller.release(third);
+        assertEquals(0, controller.getInFlight());
+    }
+
+    /**
+     * Starts one worker per consumer - workers above the limit are paused, as consumers are stopped by the route
+     */
+    private void startWorkers(AdaptiveConcurrencyController controller, Runnable handler) {
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            final int index = i;
+            Thread worker = new Thread(() -> {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        if (index >= controller.getLimit()) {
+                            Thread.sleep(5);
+                            continue;
+                        }
+                        Integer message = queue.poll(10, TimeUnit.MILLISECONDS);
+                        if (message == null) {
+                            continue;
+                        }
+                        long start = controller.begin();
+                        try {
+                            handler.run();
+                            processed.incrementAndGet();
+                        } finally {
+                            controller.release(start);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped
+                }
+            });
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    private void fillQueue(int count) {
+        for (int i = 0; i < count; i++) {
+            queue.add(i);
+        }
+    }
+
+    private void awaitEmptyQueue() throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while (processed.get() < 10 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        // Let statistics from processing settle
+        Thread.sleep(50);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.messaging;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static no.rutebanken.anshar.routes.messaging.DuplicateDeliveryFilter.Result.DUPLICATE;
+import static no.rutebanken.anshar.routes.messaging.DuplicateDeliveryFilter.Result.EXPIRED;
+import static no.rutebanken.anshar.routes.messaging.DuplicateDeliveryFilter.Result.NEW;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class DuplicateDeliveryFilterTest {
+
+    private static final String SAMPLE_1 = "src/test/resources/siri-et-from-bnr.xml";
+    private static final String SAMPLE_2 = "src/test/resources/siri-et-gir-npe.xml";
+
+    private DuplicateDeliveryFilter filter;
+
+    @BeforeEach
+    public void init() {
+        filter = new DuplicateDeliveryFilter();
+        ReflectionTestUtils.setField(filter, "maxAgeSeconds", 300);
+    }
+
+    @Test
+    public void testIdenticalDeliveryIsDuplicate() throws Exception {
+        String xml = read(SAMPLE_1);
+        Instant now = Instant.now();
+
+        assertEquals(NEW, accept("sub-1", xml, now));
+        assertEquals(DUPLICATE, accept("sub-1", xml, now.plusSeconds(10)));
+        assertEquals(DUPLICATE, accept("sub-1", xml, now.plusSeconds(20)));
+    }
+
+    @Test
+    public void testVolatileHeadersAreIgnored() throws Exception {
+        String xml = read(SAMPLE_1);
+        String repolled = xml
+                .replace("<ResponseTimestamp>2018-08-28T09:08:35.867+02:00</ResponseTimestamp>", "<ResponseTimestamp>2018-08-28T09:09:05.123+02:00</ResponseTimestamp>")
+                .replace("<RequestMessageRef>RutebankenDEV_29e53f52-f1cd-4c8e-b933-418592d3719a</RequestMessageRef>", "<RequestMessageRef>RutebankenDEV_other</RequestMessageRef>")
+                .replaceFirst("<RecordedAtTime>2018-08-28T09:08:35.867\\+02:00</RecordedAtTime>", "<RecordedAtTime>2018-08-28T09:09:05.123+02:00</RecordedAtTime>");
+        assertNotEquals(xml, repolled);
+
+        Instant now = Instant.now();
+        assertEquals(NEW, accept("sub-1", xml, now));
+        assertEquals(DUPLICATE, accept("sub-1", repolled, now.plusSeconds(30)));
+    }
+
+    @Test
+    public void testChangedContentIsNew() throws Exception {
+        String xml = read(SAMPLE_1);
+        String changed = xml.replaceFirst("<VehicleRef>1617</VehicleRef>", "<VehicleRef>1618</VehicleRef>");
+        assertNotEquals(xml, changed);
+
+        Instant now = Instant.now();
+        assertEquals(NEW, accept("sub-1", xml, now));
+        assertEquals(NEW, accept("sub-1", changed, now.plusSeconds(10)));
+        assertEquals(NEW, accept("sub-1", read(SAMPLE_2), now.plusSeconds(20)));
+
+        // Compared to the last accepted delivery only
+        assertEquals(NEW, accept("sub-1", xml, now.plusSeconds(30)));
+    }
+
+    @Test
+    public void testSubscriptionsAreSeparated() throws Exception {
+        String xml = read(SAMPLE_1);
+        Instant now = Instant.now();
+
+        assertEquals(NEW, accept("sub-1", xml, now));
+        assertEquals(NEW, accept("sub-2", xml, now));
+        assertEquals(DUPLICATE, accept("sub-2", xml, now));
+    }
+
+    @Test
+    public void testDuplicateIsReprocessedAfterMaxAge() throws Exception {
+        String xml = read(SAMPLE_1);
+        Instant now = Instant.now();
+
+        assertEquals(NEW, accept("sub-1", xml, now));
+        assertEquals(DUPLICATE, accept("sub-1", xml, now.plusSeconds(299)));
+        assertEquals(EXPIRED, accept("sub-1", xml, now.plusSeconds(301)));
+
+        // Max age is counted from the last time the delivery was processed
+        assertEquals(DUPLICATE, accept("sub-1", xml, now.plusSeconds(400)));
+    }
+
+    @Test
+    public void testOnlyServiceDeliveriesAreFingerprinted() throws Exception {
+        String heartbeat = "<Siri xmlns=\"http://www.siri.org.uk/siri\" version=\"2.0\"><HeartbeatNotification>" +
+                "<RequestTimestamp>2018-08-28T09:08:35.867+02:00</RequestTimestamp></HeartbeatNotification></Siri>";
+
+        assertNull(DuplicateDeliveryFilter.fingerprint(heartbeat));
+        assertNull(DuplicateDeliveryFilter.fingerprint("not xml"));
+        assertNotNull(DuplicateDeliveryFilter.fingerprint(read(SAMPLE_1)));
+
+        assertEquals(NEW, accept("sub-1", heartbeat, Instant.now()));
+        assertEquals(NEW, accept("sub-1", heartbeat, Instant.now()));
+    }
+
+    @Test
+    public void testSoapDeliveryIsFingerprinted() {
+        String xml = soapDelivery("2018-08-28T09:08:35.867+02:00", "1617");
+        String repolled = soapDelivery("2018-08-28T09:09:05.123+02:00", "1617");
+        String changed = soapDelivery("2018-08-28T09:09:35.123+02:00", "1618");
+
+        assertNotNull(DuplicateDeliveryFilter.fingerprint(xml));
+        assertEquals(DuplicateDeliveryFilter.fingerprint(xml), DuplicateDeliveryFilter.fingerprint(repolled));
+
+        Instant now = Instant.now();
+        assertEquals(NEW, accept("sub-1", xml, now));
+        assertEquals(DUPLICATE, accept("sub-1", repolled, now.plusSeconds(30)));
+        assertEquals(NEW, accept("sub-1", changed, now.plusSeconds(60)));
+    }
+
+    @Test
+    public void testSoapWithoutDeliveryIsNotFingerprinted() {
+        String heartbeat = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Body>" +
+                "<siri:NotifyHeartbeat xmlns:siri=\"http://www.siri.org.uk/siri\"><HeartbeatNotifyInfo>" +
+                "<siri:RequestTimestamp>2018-08-28T09:08:35.867+02:00</siri:RequestTimestamp></HeartbeatNotifyInfo>" +
+                "</siri:NotifyHeartbeat></soapenv:Body></soapenv:Envelope>";
+
+        assertNull(DuplicateDeliveryFilter.fingerprint(heartbeat));
+    }
+
+    @Test
+    public void testValuesAreNotShiftedIntoEachOther() {
+        String xml = "<Siri xmlns=\"http://www.siri.org.uk/siri\"><ServiceDelivery><VehicleRef ab=\"c\"/></ServiceDelivery></Siri>";
+        String shifted = "<Siri xmlns=\"http://www.siri.org.uk/siri\"><ServiceDelivery><VehicleRef a=\"bc\"/></ServiceDelivery></Siri>";
+
+        assertNotEquals(DuplicateDeliveryFilter.fingerprint(xml), DuplicateDeliveryFilter.fingerprint(shifted));
+    }
+
+    @Test
+    public void testFailedDeliveryIsProcessedAgain() throws Exception {
+        String xml = read(SAMPLE_1);
+        Instant now = Instant.now();
+
+        // Processing fails - delivery is not marked as accepted
+        assertEquals(NEW, filter.check("sub-1", xml, now).result());
+
+        // Redelivery is processed
+        assertEquals(NEW, accept("sub-1", xml, now.plusSeconds(5)));
+        assertEquals(DUPLICATE, accept("sub-1", xml, now.plusSeconds(10)));
+    }
+
+    /**
+     * Checks the delivery, and marks it as accepted as when it is processed successfully
+     */
+    private DuplicateDeliveryFilter.Result accept(String subscriptionId, String xml, Instant now) {
+        DuplicateDeliveryFilter.CheckedDelivery delivery = filter.check(subscriptionId, xml, now);
+        filter.markAccepted(delivery, now);
+        return delivery.result();
+    }
+
+    private static String soapDelivery(String responseTimestamp, String vehicleRef) {
+        return "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+                "<soapenv:Header><MessageId>" + responseTimestamp + "</MessageId></soapenv:Header>" +
+                "<soapenv:Body>" +
+                "<siri:NotifyEstimatedTimetable xmlns:siri=\"http://www.siri.org.uk/siri\">" +
+                "<ServiceDeliveryInfo>" +
+                "<siri:ResponseTimestamp>" + responseTimestamp + "</siri:ResponseTimestamp>" +
+                "<siri:ProducerRef>BNR</siri:ProducerRef>" +
+                "</ServiceDeliveryInfo>" +
+                "<Notification>" +
+                "<siri:EstimatedTimetableDelivery version=\"2.0\">" +
+                "<siri:ResponseTimestamp>" + responseTimestamp + "</siri:ResponseTimestamp>" +
+                "<siri:EstimatedJourneyVersionFrame>" +
+                "<siri:RecordedAtTime>" + responseTimestamp + "</siri:RecordedAtTime>" +
+                "<siri:EstimatedVehicleJourney>" +
+                "<siri:LineRef>NSB:Line:L1</siri:LineRef>" +
+                "<siri:VehicleRef>" + vehicleRef + "</siri:VehicleRef>" +
+                "</siri:EstimatedVehicleJourney>" +
+                "</siri:EstimatedJourneyVersionFrame>" +
+                "</siri:EstimatedTimetableDelivery>" +
+                "</Notification>" +
+                "</siri:NotifyEstimatedTimetable>" +
+                "</soapenv:Body></soapenv:Envelope>";
+    }
+
+    private static String read(String file) throws Exception {
+        return Files.readString(Path.of(file), StandardCharsets.UTF_8);
+    }
+}
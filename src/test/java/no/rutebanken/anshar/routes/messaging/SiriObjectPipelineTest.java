@@ -0,0 +1,252 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.messaging;
+
+import no.rutebanken.anshar.data.collections.KryoSerializer;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.siri.siri21.DataFrameRefStructure;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.FramedVehicleJourneyRefStructure;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.SituationNumber;
+import uk.org.siri.siri21.StopPointRefStructure;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SiriObjectPipelineTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(SiriObjectPipelineTest.class);
+
+    private final SiriObjectFactory siriObjectFactory = new SiriObjectFactory(Instant.now());
+
+    private final KryoSerializer kryoSerializer = new KryoSerializer();
+
+    /**
+     * In-memory stand-in for the message-queue
+     */
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+
+    @Test
+    public void testSplitEstimatedTimetable() throws Exception {
+        List<EstimatedVehicleJourney> journeys = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            journeys.add(createJourney("TST:ServiceJourney:" + i));
+        }
+        Siri siri = siriObjectFactory.createETServiceDelivery(journeys);
+
+        List<Siri> split = SiriObjectSplitter.split(siri);
+        assertEquals(journeys.size(), split.size());
+
+        for (int i = 0; i < split.size(); i++) {
+            Siri message = split.get(i);
+            assertEquals(siri.getVersion(), message.getVersion());
+            assertEquals(siri.getServiceDelivery().getResponseTimestamp(), message.getServiceDelivery().getResponseTimestamp());
+            assertEquals(siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0).getRecordedAtTime(),
+                    message.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0).getRecordedAtTime());
+
+            List<EstimatedVehicleJourney> splitJourneys = message.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                    .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+            assertEquals(1, splitJourneys.size());
+            assertSame(journeys.get(i), splitJourneys.get(0));
+        }
+    }
+
+    @Test
+    public void testSplitSituations() {
+        List<PtSituationElement> situations = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            PtSituationElement situation = new PtSituationElement();
+            SituationNumber situationNumber = new SituationNumber();
+            situationNumber.setValue("TST:SituationNumber:" + i);
+            situation.setSituationNumber(situationNumber);
+            situations.add(situation);
+        }
+
+        List<Siri> split = SiriObjectSplitter.split(siriObjectFactory.createSXServiceDelivery(situations));
+        assertEquals(situations.size(), split.size());
+        for (int i = 0; i < split.size(); i++) {
+            assertSame(situations.get(i), split.get(i).getServiceDelivery().getSituationExchangeDeliveries().get(0)
+                    .getSituations().getPtSituationElements().get(0));
+        }
+    }
+
+    @Test
+    public void testNonDeliveryIsNotSplit() {
+        Siri heartbeat = siriObjectFactory.createHeartbeatNotification("TST");
+        List<Siri> split = SiriObjectSplitter.split(heartbeat);
+        assertEquals(1, split.size());
+        assertSame(heartbeat, split.get(0));
+    }
+
+    @Test
+    public void testObjectsAreTransferredThroughQueue() throws Exception {
+        List<EstimatedVehicleJourney> journeys = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            journeys.add(createJourney("TST:ServiceJourney:" + i));
+        }
+        Siri siri = siriObjectFactory.createETServiceDelivery(journeys);
+
+        for (Siri message : SiriObjectSplitter.split(siri)) {
+            queue.add(kryoSerializer.write(message));
+        }
+        assertEquals(journeys.size(), queue.size());
+
+        for (int i = 0; i < journeys.size(); i++) {
+            Object decoded = kryoSerializer.read(queue.take());
+            assertTrue(decoded instanceof Siri);
+
+            EstimatedVehicleJourney journey = ((Siri) decoded).getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                    .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies().get(0);
+
+            // Received object should be identical to the one sent
+            assertEquals(SiriXml.toXml(SiriObjectSplitter.split(siri).get(i)), SiriXml.toXml((Siri) decoded));
+            assertEquals(journeys.get(i).getFramedVehicleJourneyRef().getDatedVehicleJourneyRef(),
+                    journey.getFramedVehicleJourneyRef().getDatedVehicleJourneyRef());
+        }
+    }
+
+    /**
+     * Compares CPU-time spent per delivery when data is serialized to XML and parsed again by the consumer, with
+     * sending the parsed objects
+     */
+    @Test
+    @Tag("benchmark")
+    public void testCpuPerDeliveryBenchmark() throws Exception {
+        final int deliveryCount = 200;
+        final int journeysPerDelivery = 50;
+
+        List<Siri> deliveries = new ArrayList<>();
+        for (int i = 0; i < deliveryCount; i++) {
+            List<EstimatedVehicleJourney> journeys = new ArrayList<>();
+            for (int j = 0; j < journeysPerDelivery; j++) {
+                journeys.add(createJourney("TST:ServiceJourney:" + i + "-" + j));
+            }
+            deliveries.add(siriObjectFactory.createETServiceDelivery(journeys));
+        }
+
+        // Warm up both paths
+        for (int i = 0; i < 3; i++) {
+            runXmlPipeline(deliveries.subList(0, 20));
+            runObjectPipeline(deliveries.subList(0, 20));
+        }
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        long t1 = threadMXBean.getCurrentThreadCpuTime();
+        int xmlMessages = runXmlPipeline(deliveries);
+        long xmlCpu = threadMXBean.getCurrentThreadCpuTime() - t1;
+
+        t1 = threadMXBean.getCurrentThreadCpuTime();
+        int objectMessages = runObjectPipeline(deliveries);
+        long objectCpu = threadMXBean.getCurrentThreadCpuTime() - t1;
+
+        assertEquals(deliveryCount, xmlMessages);
+        assertEquals(deliveryCount * journeysPerDelivery, objectMessages);
+
+        logger.info("CPU per delivery with {} journeys: xml {} µs, objects {} µs",
+                journeysPerDelivery, xmlCpu / deliveryCount / 1000, objectCpu / deliveryCount / 1000);
+    }
+
+    /**
+     * Mirrors the default pipeline - serialized to XML, queued, and parsed again by the consumer
+     */
+    private int runXmlPipeline(List<Siri> deliveries) throws Exception {
+        for (Siri delivery : deliveries) {
+            queue.add(kryoSerializer.write(SiriXml.toXml(delivery)));
+        }
+        int count = 0;
+        while (!queue.isEmpty()) {
+            String xml = (String) kryoSerializer.read(queue.take());
+            assertNotNull(SiriXml.parseXml(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Mirrors the object pipeline - parsed objects are split and queued
+     */
+    private int runObjectPipeline(List<Siri> deliveries) throws Exception {
+        for (Siri delivery : deliveries) {
+            for (Siri message : SiriObjectSplitter.split(delivery)) {
+                queue.add(kryoSerializer.write(message));
+            }
+        }
+        int count = 0;
+        while (!queue.isEmpty()) {
+            assertNotNull(kryoSerializer.read(queue.take()));
+            count++;
+        }
+        return count;
+    }
+
+    private static EstimatedVehicleJourney createJourney(String serviceJourneyId) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue("TST:Line:1");
+        journey.setLineRef(lineRef);
+
+        FramedVehicleJourneyRefStructure framedVehicleJourneyRef = new FramedVehicleJourneyRefStructure();
+        DataFrameRefStructure dataFrameRef = new DataFrameRefStructure();
+        dataFrameRef.setValue(ZonedDateTime.now().toLocalDate().toString());
+        framedVehicleJourneyRef.setDataFrameRef(dataFrameRef);
+        framedVehicleJourneyRef.setDatedVehicleJourneyRef(serviceJourneyId);
+        journey.setFramedVehicleJourneyRef(framedVehicleJourneyRef);
+
+        journey.setDataSource("TST");
+        journey.setIsCompleteStopSequence(true);
+
+        ZonedDateTime time = ZonedDateTime.now().plusMinutes(30);
+        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+        for (int i = 0; i < 10; i++) {
+            StopPointRefStructure stopPointRef = new StopPointRefStructure();
+            stopPointRef.setValue("NSR:Quay:" + i);
+
+            EstimatedCall call = new EstimatedCall();
+            call.setStopPointRef(stopPointRef);
+            call.setOrder(BigInteger.valueOf(i + 1));
+            call.setAimedDepartureTime(time.plusMinutes(i * 5));
+            call.setExpectedDepartureTime(time.plusMinutes(i * 5 + 2));
+            estimatedCalls.getEstimatedCalls().add(call);
+        }
+        journey.setEstimatedCalls(estimatedCalls);
+        journey.setRecordedAtTime(ZonedDateTime.now());
+
+        return journey;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.messaging;
+
+import no.rutebanken.anshar.config.AnsharConfiguration;
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import no.rutebanken.anshar.routes.CamelRouteNames;
+import no.rutebanken.anshar.routes.outbound.OutboundSubscriptionSetup;
+import no.rutebanken.anshar.routes.outbound.ServerSubscriptionManager;
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
+import no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter;
+import org.apache.camel.ProducerTemplate;
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.Siri;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static no.rutebanken.anshar.routes.HttpParameter.PARAM_USE_ORIGINAL_ID;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SiriObjectProcessorTest extends SpringBootBaseTest {
+
+    @Autowired
+    private ProducerTemplate producerTemplate;
+
+    @Autowired
+    private ServerSubscriptionManager serverSubscriptionManager;
+
+    @Autowired
+    private AnsharConfiguration configuration;
+
+    /**
+     * Parsed objects are handled with the same id-policy and client-name as XML
+     */
+    @Test
+    public void testObjectPayloadWithOriginalIdAndTrackingHeader() throws Exception {
+        final String subscriptionId = UUID.randomUUID().toString();
+        Siri subscriptionRequest = SiriXml.parseXml(createSubscriptionRequest(subscriptionId));
+
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(PARAM_USE_ORIGINAL_ID, "true");
+        headers.put(configuration.getTrackingHeaderName(), "test-client");
+
+        producerTemplate.sendBodyAndHeaders("direct:" + CamelRouteNames.PROCESSOR_QUEUE_DEFAULT, subscriptionRequest, headers);
+
+        OutboundSubscriptionSetup subscription = findSubscription(subscriptionId);
+        assertNotNull(subscription);
+        assertEquals("test-client", subscription.getClientTrackingName());
+        assertTrue(subscription.getValueAdapters().contains(new OutboundIdAdapter(LineRef.class, OutboundIdMappingPolicy.ORIGINAL_ID)));
+        assertFalse(subscription.getValueAdapters().contains(new OutboundIdAdapter(LineRef.class, OutboundIdMappingPolicy.DEFAULT)));
+
+        serverSubscriptionManager.terminateSubscription(subscriptionId, false);
+    }
+
+    private OutboundSubscriptionSetup findSubscription(String subscriptionId) {
+        for (Object subscription : serverSubscriptionManager.getSubscriptions()) {
+            if (subscription instanceof OutboundSubscriptionSetup setup && subscriptionId.equals(setup.getSubscriptionId())) {
+                return setup;
+            }
+        }
+        return null;
+    }
+
+    private static String createSubscriptionRequest(String subscriptionId) {
+        return "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<Siri xmlns=\"http://www.siri.org.uk/siri\" version=\"2.0\">\n" +
+                "\t<SubscriptionRequest>\n" +
+                "\t\t<RequestTimestamp>2019-12-06T14:38:42.5012071Z</RequestTimestamp>\n" +
+                "\t\t<ConsumerAddress>https://0.0.0.0/api/siri/et/" + subscriptionId + "</ConsumerAddress>\n" +
+                "\t\t<RequestorRef>TEST-ET-" + subscriptionId + "</RequestorRef>\n" +
+                "\t\t<MessageIdentifier>444dde0d-3663-4de9-aa94-56ee17d86ba9</MessageIdentifier>\n" +
+                "\t\t<SubscriptionContext>\n" +
+                "\t\t\t<HeartbeatInterval>PT60M</HeartbeatInterval>\n" +
+                "\t\t</SubscriptionContext>\n" +
+                "\t\t<EstimatedTimetableSubscriptionRequest>\n" +
+                "\t\t\t<SubscriptionIdentifier>" + subscriptionId + "</SubscriptionIdentifier>\n" +
+                "\t\t\t<InitialTerminationTime>2119-12-06T14:38:42.500977Z</InitialTerminationTime>\n" +
+                "\t\t\t<EstimatedTimetableRequest>\n" +
+                "\t\t\t\t<RequestTimestamp>2019-12-06T14:38:42.5011831Z</RequestTimestamp>\n" +
+                "\t\t\t</EstimatedTimetableRequest>\n" +
+                "\t\t</EstimatedTimetableSubscriptionRequest>\n" +
+                "\t</SubscriptionRequest>\n" +
+                "</Siri>";
+    }
+}
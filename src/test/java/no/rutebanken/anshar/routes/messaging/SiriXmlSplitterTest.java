@@ -0,0 +1,374 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.messaging;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SiriXmlSplitterTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(SiriXmlSplitterTest.class);
+
+    private static final String SIRI_START = "<Siri xmlns=\"http://www.siri.org.uk/siri\" xmlns:ns2=\"http://www.ifopt.org.uk/acsb\" " +
+            "xmlns:ns3=\"http://www.ifopt.org.uk/ifopt\" xmlns:ns4=\"http://datex2.eu/schema/2_0RC1/2_0\" version=\"2.0\">";
+
+    private static final String SERVICE_DELIVERY_HEADER = "<ResponseTimestamp>2024-01-01T12:00:00+01:00</ResponseTimestamp>" +
+            "<ProducerRef>TST</ProducerRef>";
+
+    @Test
+    public void testEstimatedTimetable() throws Exception {
+        String xml = SIRI_START + "<ServiceDelivery>" + SERVICE_DELIVERY_HEADER +
+                "<EstimatedTimetableDelivery version=\"2.0\">" +
+                "<ResponseTimestamp>2024-01-01T12:00:01+01:00</ResponseTimestamp>" +
+                "<EstimatedJourneyVersionFrame>" +
+                "<RecordedAtTime>2024-01-01T12:00:02+01:00</RecordedAtTime>" +
+                estimatedVehicleJourney(1, true, false) +
+                estimatedVehicleJourney(2, false, false) +
+                estimatedVehicleJourney(3, false, true) +
+                "</EstimatedJourneyVersionFrame>" +
+                "</EstimatedTimetableDelivery>" +
+                "</ServiceDelivery></Siri>";
+
+        assertEquivalent(xml, "xsl/split.xsl", SiriXmlSplitter.ALL, 3);
+    }
+
+    @Test
+    public void testVehicleMonitoring() throws Exception {
+        String xml = SIRI_START + "<ServiceDelivery>" + SERVICE_DELIVERY_HEADER +
+                "<VehicleMonitoringDelivery version=\"2.0\">" +
+                "<ResponseTimestamp>2024-01-01T12:00:01+01:00</ResponseTimestamp>" +
+                vehicleActivity(1, true) +
+                vehicleActivity(2, false) +
+                "</VehicleMonitoringDelivery>" +
+                "</ServiceDelivery></Siri>";
+
+        assertEquivalent(xml, "xsl/split.xsl", SiriXmlSplitter.ALL, 2);
+    }
+
+    @Test
+    public void testSituationExchange() throws Exception {
+        String xml = SIRI_START + "<ServiceDelivery>" + SERVICE_DELIVERY_HEADER +
+                "<SituationExchangeDelivery version=\"2.0\">" +
+                "<ResponseTimestamp>2024-01-01T12:00:01+01:00</ResponseTimestamp>" +
+                "<Situations>" +
+                situation(1) +
+                situation(2) +
+                "</Situations>" +
+                "</SituationExchangeDelivery>" +
+                "</ServiceDelivery></Siri>";
+
+        assertEquivalent(xml, "xsl/split.xsl", SiriXmlSplitter.ALL, 2);
+    }
+
+    @Test
+    public void testFacilityMonitoring() throws Exception {
+        String xml = SIRI_START + "<ServiceDelivery>" + SERVICE_DELIVERY_HEADER +
+                "<FacilityMonitoringDelivery version=\"2.0\">" +
+                "<ResponseTimestamp>2024-01-01T12:00:01+01:00</ResponseTimestamp>" +
+                "<Status>true</Status>" +
+                "<FacilityCondition><FacilityRef>TST:Facility:1</FacilityRef></FacilityCondition>" +
+                "<FacilityCondition><FacilityRef>TST:Facility:2</FacilityRef></FacilityCondition>" +
+                "</FacilityMonitoringDelivery>" +
+                "</ServiceDelivery></Siri>";
+
+        assertEquivalent(xml, "xsl/split.xsl", SiriXmlSplitter.ALL, 2);
+    }
+
+    @Test
+    public void testDataReadyNotification() throws Exception {
+        String xml = SIRI_START + "<DataReadyNotification>" +
+                "<RequestTimestamp>2024-01-01T12:00:00+01:00</RequestTimestamp>" +
+                "<ProducerRef>TST</ProducerRef>" +
+                "</DataReadyNotification></Siri>";
+
+        assertEquivalent(xml, "xsl/split.xsl", SiriXmlSplitter.ALL, 0);
+    }
+
+    @Test
+    public void testPrefixedNamespaceAndEscapedValues() throws Exception {
+        String xml = "<siri:Siri xmlns:siri=\"http://www.siri.org.uk/siri\" version=\"2.0\"><siri:ServiceDelivery>" +
+                "<siri:ResponseTimestamp>2024-01-01T12:00:00+01:00</siri:ResponseTimestamp>" +
+                "<siri:SituationExchangeDelivery><siri:Situations>" +
+                "<siri:PtSituationElement><siri:Summary xml:lang=\"NO\">Buss &amp; b&#229;t &lt;innstilt&gt;</siri:Summary></siri:PtSituationElement>" +
+                "</siri:Situations></siri:SituationExchangeDelivery>" +
+                "</siri:ServiceDelivery></siri:Siri>";
+
+        assertEquivalent(xml, "xsl/split.xsl", SiriXmlSplitter.ALL, 1);
+    }
+
+    /**
+     * Each message is returned before the following elements are read - only the current element is held in memory
+     */
+    @Test
+    public void testLargeDeliveryIsReadIncrementally() throws Exception {
+        final int journeyCount = 5_000;
+        final int journeySize = estimatedVehicleJourney(0, true, false).getBytes(StandardCharsets.UTF_8).length;
+        // Room for the header and the read-buffer of the parser
+        final long margin = 256 * 1024;
+
+        CountingInputStream delivery = new CountingInputStream(generateDelivery(journeyCount));
+        Iterator<String> split = SiriXmlSplitter.ALL.split(delivery);
+
+        int count = 0;
+        long maxReadAhead = 0;
+        while (split.hasNext()) {
+            assertTrue(split.next().contains("TST:ServiceJourney:" + count + "<"));
+            count++;
+            maxReadAhead = Math.max(maxReadAhead, delivery.getCount() - (long) count * journeySize);
+        }
+
+        assertEquals(journeyCount, count);
+        assertTrue(maxReadAhead < margin, "Read " + maxReadAhead + " bytes ahead of the returned message");
+    }
+
+    /**
+     * Splits a 50 MB ET-delivery generated while it is read, and reports throughput and heap used
+     */
+    @Test
+    @Tag("benchmark")
+    public void testLargeDeliveryBenchmark() throws Exception {
+        final long targetBytes = 50L * 1024 * 1024;
+        int journeySize = estimatedVehicleJourney(0, true, false).getBytes(StandardCharsets.UTF_8).length;
+        final int journeyCount = (int) (targetBytes / journeySize);
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long maxHeapUsed = 0;
+
+        long t1 = System.currentTimeMillis();
+        Iterator<String> split = SiriXmlSplitter.ALL.split(generateDelivery(journeyCount));
+        int count = 0;
+        while (split.hasNext()) {
+            assertTrue(split.next().endsWith("</Siri>"));
+            if (++count % 10_000 == 0) {
+                maxHeapUsed = Math.max(maxHeapUsed, runtime.totalMemory() - runtime.freeMemory() - heapBefore);
+            }
+        }
+        long duration = System.currentTimeMillis() - t1;
+
+        assertEquals(journeyCount, count);
+        logger.info("Split {} MB into {} messages in {} ms ({} MB/s), max heap-increase observed: {} MB",
+                targetBytes / (1024 * 1024), count, duration,
+                duration > 0 ? (targetBytes / (1024 * 1024)) * 1000 / duration : "-",
+                maxHeapUsed / (1024 * 1024));
+    }
+
+    private static void assertEquivalent(String xml, String xsl, SiriXmlSplitter splitter, int expectedCount) throws Exception {
+        List<String> expected = splitWithXslt(xml, xsl);
+        List<String> actual = new ArrayList<>();
+        splitter.split(new StringReader(xml)).forEachRemaining(actual::add);
+
+        assertEquals(expectedCount, expected.size(), "Unexpected number of messages from XSLT");
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Document expectedDocument = parse(expected.get(i));
+            Document actualDocument = parse(actual.get(i));
+            assertTrue(expectedDocument.isEqualNode(actualDocument),
+                    "Expected:\n" + expected.get(i) + "\nActual:\n" + actual.get(i));
+        }
+    }
+
+    /**
+     * Splits using XSLT, and returns each Siri-element as a separate document - the same as tokenizeXML("Siri")
+     */
+    private static List<String> splitWithXslt(String xml, String xsl) throws Exception {
+        Transformer transformer = TransformerFactory.newInstance().newTransformer(
+                new StreamSource(SiriXmlSplitterTest.class.getClassLoader().getResourceAsStream(xsl)));
+        StringWriter result = new StringWriter();
+        transformer.transform(new StreamSource(new StringReader(xml)), new StreamResult(result));
+
+        Document document = parse(result.toString());
+        List<String> messages = new ArrayList<>();
+        NodeList children = document.getDocumentElement().getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            if (children.item(i) instanceof Element) {
+                Transformer serializer = TransformerFactory.newInstance().newTransformer();
+                serializer.setOutputProperty("omit-xml-declaration", "yes");
+                StringWriter message = new StringWriter();
+                serializer.transform(new DOMSource(children.item(i)), new StreamResult(message));
+                messages.add(message.toString());
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Parses XML, and removes namespace-declarations and stray text, so documents can be compared by content
+     */
+    private static Document parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        Document document = builder.parse(new InputSource(new StringReader(xml)));
+        normalize(document.getDocumentElement());
+        return document;
+    }
+
+    private static void normalize(Element element) {
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = attributes.getLength() - 1; i >= 0; i--) {
+            Node attribute = attributes.item(i);
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+                element.removeAttributeNode((Attr) attribute);
+            }
+        }
+        boolean hasElements = false;
+        NodeList children = element.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            hasElements |= children.item(i) instanceof Element;
+        }
+        for (int i = children.getLength() - 1; i >= 0; i--) {
+            Node child = children.item(i);
+            if (child instanceof Element) {
+                normalize((Element) child);
+            } else if (hasElements && child.getNodeType() == Node.TEXT_NODE) {
+                // Whitespace between elements
+                element.removeChild(child);
+            }
+        }
+    }
+
+    private static InputStream generateDelivery(int journeyCount) {
+        byte[] header = (SIRI_START + "<ServiceDelivery>" + SERVICE_DELIVERY_HEADER +
+                "<EstimatedTimetableDelivery version=\"2.0\">" +
+                "<ResponseTimestamp>2024-01-01T12:00:01+01:00</ResponseTimestamp>" +
+                "<EstimatedJourneyVersionFrame>" +
+                "<RecordedAtTime>2024-01-01T12:00:02+01:00</RecordedAtTime>").getBytes(StandardCharsets.UTF_8);
+        byte[] footer = "</EstimatedJourneyVersionFrame></EstimatedTimetableDelivery></ServiceDelivery></Siri>".getBytes(StandardCharsets.UTF_8);
+
+        return new SequenceInputStream(new Enumeration<>() {
+            int position = -1;
+
+            @Override
+            public boolean hasMoreElements() {
+                return position <= journeyCount;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                if (!hasMoreElements()) {
+                    throw new NoSuchElementException();
+                }
+                byte[] content;
+                if (position < 0) {
+                    content = header;
+                } else if (position == journeyCount) {
+                    content = footer;
+                } else {
+                    content = estimatedVehicleJourney(position, true, false).getBytes(StandardCharsets.UTF_8);
+                }
+                position++;
+                return new ByteArrayInputStream(content);
+            }
+        });
+    }
+
+    private static String estimatedVehicleJourney(int id, boolean monitored, boolean cancellation) {
+        StringBuilder xml = new StringBuilder("<EstimatedVehicleJourney>")
+                .append("<LineRef>TST:Line:1</LineRef>")
+                .append("<FramedVehicleJourneyRef><DataFrameRef>2024-01-01</DataFrameRef>")
+                .append("<DatedVehicleJourneyRef>TST:ServiceJourney:").append(id).append("</DatedVehicleJourneyRef></FramedVehicleJourneyRef>");
+        if (cancellation) {
+            xml.append("<Cancellation>true</Cancellation>");
+        }
+        xml.append("<Monitored>").append(monitored).append("</Monitored>")
+                .append("<EstimatedCalls>");
+        for (int i = 1; i <= 10; i++) {
+            xml.append("<EstimatedCall><StopPointRef>NSR:Quay:").append(i).append("</StopPointRef>")
+                    .append("<Order>").append(i).append("</Order>")
+                    .append("<AimedDepartureTime>2024-01-01T12:").append(10 + i).append(":00+01:00</AimedDepartureTime>")
+                    .append("<ExpectedDepartureTime>2024-01-01T12:").append(11 + i).append(":00+01:00</ExpectedDepartureTime>")
+                    .append("</EstimatedCall>");
+        }
+        return xml.append("</EstimatedCalls></EstimatedVehicleJourney>").toString();
+    }
+
+    private static String vehicleActivity(int id, boolean monitored) {
+        return "<VehicleActivity><RecordedAtTime>2024-01-01T12:00:00+01:00</RecordedAtTime>" +
+                "<MonitoredVehicleJourney><LineRef>TST:Line:" + id + "</LineRef>" +
+                "<Monitored>" + monitored + "</Monitored></MonitoredVehicleJourney></VehicleActivity>";
+    }
+
+    private static String situation(int id) {
+        return "<PtSituationElement><CreationTime>2024-01-01T12:00:00+01:00</CreationTime>" +
+                "<ParticipantRef>TST</ParticipantRef><SituationNumber>TST:SituationNumber:" + id + "</SituationNumber>" +
+                "<Summary xml:lang=\"NO\">Situation " + id + "</Summary></PtSituationElement>";
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        private long getCount() {
+            return count;
+        }
+    }
+}
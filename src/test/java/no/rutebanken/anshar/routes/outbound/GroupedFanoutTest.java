@@ -0,0 +1,225 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import com.sun.net.httpserver.HttpServer;
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import no.rutebanken.anshar.subscription.helpers.MappingAdapterPresets;
+import org.entur.siri.validator.SiriValidator;
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.util.ReflectionTestUtils;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.Siri;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GroupedFanoutTest extends SpringBootBaseTest {
+
+    private static final String SAMPLE = "src/test/resources/siri-et-from-bnr.xml";
+
+    @Autowired
+    private CamelRouteManager camelRouteManager;
+
+    @Autowired
+    private ServerSubscriptionManager serverSubscriptionManager;
+
+    @Autowired
+    private MappingAdapterPresets mappingAdapterPresets;
+
+    private HttpServer server;
+
+    private final Map<String, List<String>> receivedPayloads = new ConcurrentHashMap<>();
+
+    private final List<String> subscriptionIds = new ArrayList<>();
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                String subscriptionId = exchange.getRequestHeaders().getFirst("subscriptionId");
+                receivedPayloads.computeIfAbsent(subscriptionId, id -> new CopyOnWriteArrayList<>())
+                        .add(new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        ReflectionTestUtils.setField(camelRouteManager, "FEATURE_TOGGLE_GROUPED_FANOUT", false);
+        for (String subscriptionId : subscriptionIds) {
+            serverSubscriptionManager.subscriptions.remove(subscriptionId);
+        }
+        server.stop(0);
+    }
+
+    @Test
+    public void testGroupedPayloadMatchesPerSubscriberPayload() throws Exception {
+        Siri delivery = read(SAMPLE);
+
+        Map<Class, Set<String>> lineFilter = Map.of(LineRef.class, Set.of("FLT:Line:F2$FLT:Line:F2"));
+
+        List<OutboundSubscriptionSetup> recipients = new ArrayList<>();
+        // Unfiltered
+        recipients.add(createSubscription("grouped-1", null, OutboundIdMappingPolicy.DEFAULT, SiriValidator.Version.VERSION_2_1));
+        recipients.add(createSubscription("grouped-2", null, OutboundIdMappingPolicy.DEFAULT, SiriValidator.Version.VERSION_2_1));
+        recipients.add(createSubscription("grouped-3", null, OutboundIdMappingPolicy.DEFAULT, SiriValidator.Version.VERSION_2_1));
+        // Filtered
+        recipients.add(createSubscription("grouped-filter-1", lineFilter, OutboundIdMappingPolicy.DEFAULT, SiriValidator.Version.VERSION_2_1));
+        recipients.add(createSubscription("grouped-filter-2", lineFilter, OutboundIdMappingPolicy.DEFAULT, SiriValidator.Version.VERSION_2_1));
+        // Other adapters and versions
+        recipients.add(createSubscription("grouped-original-1", null, OutboundIdMappingPolicy.ORIGINAL_ID, SiriValidator.Version.VERSION_2_1));
+        recipients.add(createSubscription("grouped-original-2", null, OutboundIdMappingPolicy.ORIGINAL_ID, SiriValidator.Version.VERSION_2_1));
+        recipients.add(createSubscription("grouped-siri20-1", null, OutboundIdMappingPolicy.DEFAULT, SiriValidator.Version.VERSION_2_0));
+        recipients.add(createSubscription("grouped-siri20-2", null, OutboundIdMappingPolicy.DEFAULT, SiriValidator.Version.VERSION_2_0));
+        // Cannot be inserted into the shared payload - pushed separately
+        recipients.add(createSubscription("grouped-escaped-1&2", null, OutboundIdMappingPolicy.DEFAULT, SiriValidator.Version.VERSION_2_1));
+
+        // Recipients with equal configuration are grouped, also after being read from the distributed map
+        assertEquals(SharedOutboundPayload.createGroupKey(recipients.get(0)), SharedOutboundPayload.createGroupKey(recipients.get(2)));
+        assertEquals(SharedOutboundPayload.createGroupKey(recipients.get(3)), SharedOutboundPayload.createGroupKey(recipients.get(4)));
+        assertNotEquals(SharedOutboundPayload.createGroupKey(recipients.get(0)), SharedOutboundPayload.createGroupKey(recipients.get(3)));
+        assertNotEquals(SharedOutboundPayload.createGroupKey(recipients.get(0)), SharedOutboundPayload.createGroupKey(recipients.get(5)));
+        assertNotEquals(SharedOutboundPayload.createGroupKey(recipients.get(0)), SharedOutboundPayload.createGroupKey(recipients.get(7)));
+        assertNull(SharedOutboundPayload.createGroupKey(recipients.get(9)));
+
+        // Current output - each subscription is filtered, transformed and serialized separately
+        for (OutboundSubscriptionSetup recipient : recipients) {
+            camelRouteManager.pushSiriData(SiriObjectFactory.deepCopy(delivery), recipient, false);
+        }
+        Map<String, List<String>> expected = awaitPayloads(recipients);
+        receivedPayloads.clear();
+
+        ReflectionTestUtils.setField(camelRouteManager, "FEATURE_TOGGLE_GROUPED_FANOUT", true);
+        camelRouteManager.pushSiriData(SiriObjectFactory.deepCopy(delivery), recipients);
+        Map<String, List<String>> actual = awaitPayloads(recipients);
+
+        for (OutboundSubscriptionSetup recipient : recipients) {
+            List<String> expectedPayloads = expected.get(recipient.getSubscriptionId());
+            assertFalse(expectedPayloads.isEmpty());
+            assertEquals(expectedPayloads, actual.get(recipient.getSubscriptionId()), "Payload differs for " + recipient.getSubscriptionId());
+        }
+        assertTrue(actual.get("grouped-1").get(0).contains("<SubscriptionRef>grouped-1</SubscriptionRef>"));
+        assertNotEquals(actual.get("grouped-1"), actual.get("grouped-filter-1"));
+    }
+
+    @Test
+    public void testSharedPayloadIsSerializedOnce() throws Exception {
+        OutboundSubscriptionSetup recipient = createSubscription("shared-1", null, OutboundIdMappingPolicy.DEFAULT, SiriValidator.Version.VERSION_2_1);
+
+        SharedOutboundPayload sharedPayload = camelRouteManager.createSharedPayload(read(SAMPLE), recipient, 2);
+        assertEquals(1, sharedPayload.size());
+
+        String first = new String(sharedPayload.getDelivery(0, "shared-1"), StandardCharsets.UTF_8);
+        String second = new String(sharedPayload.getDelivery(0, "shared-2"), StandardCharsets.UTF_8);
+
+        assertFalse(first.contains(sharedPayload.getPlaceholder()));
+        assertTrue(first.contains("<SubscriptionRef>shared-1</SubscriptionRef>"));
+        assertEquals(first.replace("shared-1", "shared-2"), second);
+    }
+
+    @Test
+    public void testReplace() {
+        byte[] source = "<a>ref</a><b>ref</b>".getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals("<a>subscription-id</a><b>subscription-id</b>".getBytes(StandardCharsets.UTF_8),
+                SharedOutboundPayload.replace(source, "ref".getBytes(StandardCharsets.UTF_8), "subscription-id".getBytes(StandardCharsets.UTF_8)));
+        assertArrayEquals("<a>1</a><b>1</b>".getBytes(StandardCharsets.UTF_8),
+                SharedOutboundPayload.replace(source, "ref".getBytes(StandardCharsets.UTF_8), "1".getBytes(StandardCharsets.UTF_8)));
+        assertSame(source, SharedOutboundPayload.replace(source, "other".getBytes(StandardCharsets.UTF_8), "1".getBytes(StandardCharsets.UTF_8)));
+
+        assertTrue(SharedOutboundPayload.isReplaceable("36dfa2d0-51d7-42fb-b828-44fc07684239"));
+        assertFalse(SharedOutboundPayload.isReplaceable("a<b"));
+        assertFalse(SharedOutboundPayload.isReplaceable("æøå"));
+        assertFalse(SharedOutboundPayload.isReplaceable(""));
+        assertFalse(SharedOutboundPayload.isReplaceable(null));
+    }
+
+    /**
+     * Adds the subscription, and returns the copy read back from the distributed map
+     */
+    private OutboundSubscriptionSetup createSubscription(String subscriptionId, Map<Class, Set<String>> filterMap,
+                                                         OutboundIdMappingPolicy policy, SiriValidator.Version version) {
+        List<ValueAdapter> adapters = mappingAdapterPresets.getOutboundAdapters(SiriDataType.ESTIMATED_TIMETABLE, policy);
+        OutboundSubscriptionSetup subscription = new OutboundSubscriptionSetup(
+                ZonedDateTime.now(),
+                SiriDataType.ESTIMATED_TIMETABLE,
+                "http://localhost:" + server.getAddress().getPort() + "/" + subscriptionId,
+                60000,
+                0,
+                filterMap,
+                adapters,
+                subscriptionId,
+                "RequestorRef",
+                ZonedDateTime.now().plusHours(1),
+                null,
+                null,
+                version
+        );
+        subscriptionIds.add(subscriptionId);
+        serverSubscriptionManager.subscriptions.put(subscriptionId, subscription);
+        return serverSubscriptionManager.subscriptions.get(subscriptionId);
+    }
+
+    private Map<String, List<String>> awaitPayloads(List<OutboundSubscriptionSetup> recipients) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 20000;
+        while (System.currentTimeMillis() < timeout &&
+                !recipients.stream().allMatch(r -> receivedPayloads.containsKey(r.getSubscriptionId()))) {
+            Thread.sleep(50);
+        }
+        // Allow split deliveries to arrive
+        Thread.sleep(500);
+        for (OutboundSubscriptionSetup recipient : recipients) {
+            assertNotNull(receivedPayloads.get(recipient.getSubscriptionId()), "No payload for " + recipient.getSubscriptionId());
+        }
+        return Map.copyOf(receivedPayloads);
+    }
+
+    private static Siri read(String file) throws Exception {
+        try (FileInputStream xml = new FileInputStream(file)) {
+            return SiriXml.parseXml(xml);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import no.rutebanken.anshar.subscription.SiriDataType;
+import org.eclipse.jetty.io.Content;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.Callback;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboundPushClientTest {
+
+    private static final byte[] BODY = "<Siri><ServiceDelivery/></Siri>".getBytes(StandardCharsets.UTF_8);
+
+    private Server server;
+
+    private String baseUrl;
+
+    private final Map<String, byte[]> receivedBodies = new ConcurrentHashMap<>();
+
+    private final Map<String, String> receivedEncodings = new ConcurrentHashMap<>();
+
+    private final AtomicInteger received = new AtomicInteger();
+
+    private final AtomicInteger concurrent = new AtomicInteger();
+
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    /**
+     * Stub receiver - "/ok" responds immediately, "/slow" after 500 ms and "/failing" with 503
+     */
+    @BeforeEach
+    public void startReceiver() throws Exception {
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(new Handler.Abstract() {
+            @Override
+            public boolean handle(Request request, Response response, Callback callback) throws Exception {
+                maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                try {
+                    String subscriptionId = request.getHeaders().get("subscriptionId");
+                    String encoding = request.getHeaders().get("Content-Encoding");
+
+                    byte[] body;
+                    try (InputStream in = Content.Source.asInputStream(request)) {
+                        body = "gzip".equals(encoding) ? new GZIPInputStream(in).readAllBytes() : in.readAllBytes();
+                    }
+                    receivedBodies.put(subscriptionId, body);
+                    if (encoding != null) {
+                        receivedEncodings.put(subscriptionId, encoding);
+                    }
+                    received.incrementAndGet();
+
+                    String path = Request.getPathInContext(request);
+                    if (path.startsWith("/slow")) {
+                        Thread.sleep(500);
+                    }
+                    response.setStatus(path.startsWith("/failing") ? 503 : 200);
+                    callback.succeeded();
+                } finally {
+                    concurrent.decrementAndGet();
+                }
+                return true;
+            }
+        });
+        server.start();
+        baseUrl = "http://localhost:" + connector.getLocalPort();
+    }
+
+    @AfterEach
+    public void stopReceiver() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testPush() throws Exception {
+        OutboundPushClient client = new OutboundPushClient(2, 10, Duration.ofSeconds(2), Duration.ofSeconds(5));
+
+        HttpResponse<Void> response = client.push(createSubscription("push-ok", baseUrl + "/ok"), BODY, false).get(5, TimeUnit.SECONDS);
+
+        assertEquals(200, response.statusCode());
+        assertEquals(HttpClient.Version.HTTP_1_1, response.version());
+        assertArrayEquals(BODY, receivedBodies.get("push-ok"));
+        assertNull(receivedEncodings.get("push-ok"));
+        assertEquals(0, client.getInFlight());
+    }
+
+    @Test
+    public void testPushCompressed() throws Exception {
+        OutboundPushClient client = new OutboundPushClient(2, 10, Duration.ofSeconds(2), Duration.ofSeconds(5));
+
+        HttpResponse<Void> response = client.push(createSubscription("push-gzip", baseUrl + "/ok"), BODY, true).get(5, TimeUnit.SECONDS);
+
+        assertEquals(200, response.statusCode());
+        assertEquals("gzip", receivedEncodings.get("push-gzip"));
+        assertArrayEquals(BODY, receivedBodies.get("push-gzip"));
+    }
+
+    @Test
+    public void testFailingEndpoint() throws Exception {
+        OutboundPushClient client = new OutboundPushClient(2, 10, Duration.ofSeconds(2), Duration.ofSeconds(5));
+
+        HttpResponse<Void> response = client.push(createSubscription("push-failing", baseUrl + "/failing"), BODY, false).get(5, TimeUnit.SECONDS);
+
+        // Error-responses are handled by the caller, and are not retried
+        assertEquals(503, response.statusCode());
+        assertEquals(1, received.get());
+        assertEquals(0, client.getInFlight("push-failing"));
+    }
+
+    @Test
+    public void testUnreachableEndpoint() throws Exception {
+        int unusedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            unusedPort = socket.getLocalPort();
+        }
+        OutboundPushClient client = new OutboundPushClient(2, 10, Duration.ofSeconds(2), Duration.ofSeconds(5));
+
+        CompletableFuture<HttpResponse<Void>> future = client.push(createSubscription("push-unreachable", "http://localhost:" + unusedPort), BODY, false);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof java.net.ConnectException, "Unexpected cause " + e.getCause());
+        assertEquals(0, client.getInFlight());
+    }
+
+    @Test
+    public void testInFlightWindowWithSlowEndpoint() throws Exception {
+        final int window = 2;
+        final int requests = 6;
+        OutboundPushClient client = new OutboundPushClient(window, requests, Duration.ofSeconds(2), Duration.ofSeconds(5));
+        OutboundSubscriptionSetup subscription = createSubscription("push-slow", baseUrl + "/slow");
+
+        List<CompletableFuture<HttpResponse<Void>>> futures = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            futures.add(client.push(subscription, BODY, false));
+        }
+        // Calling thread is not held while the requests are in flight - remaining pushes are queued
+        assertTrue(futures.stream().noneMatch(CompletableFuture::isDone));
+        assertEquals(window, client.getInFlight("push-slow"));
+        assertEquals(requests - window, client.getQueued("push-slow"));
+
+        for (CompletableFuture<HttpResponse<Void>> future : futures) {
+            assertEquals(200, future.get(10, TimeUnit.SECONDS).statusCode());
+        }
+
+        assertEquals(requests, received.get());
+        assertTrue(maxConcurrent.get() <= window, "Max concurrent requests " + maxConcurrent.get());
+        assertEquals(0, client.getInFlight());
+    }
+
+    @Test
+    public void testRejectedWhenWindowIsFull() throws Exception {
+        OutboundPushClient client = new OutboundPushClient(1, 1, Duration.ofSeconds(2), Duration.ofMillis(200));
+        OutboundSubscriptionSetup subscription = createSubscription("push-full", baseUrl + "/slow");
+
+        CompletableFuture<HttpResponse<Void>> first = client.push(subscription, BODY, false);
+        CompletableFuture<HttpResponse<Void>> queued = client.push(subscription, BODY, false);
+        CompletableFuture<HttpResponse<Void>> rejected = client.push(subscription, BODY, false);
+
+        // Rejected at once, without waiting for a free slot
+        assertTrue(rejected.isCompletedExceptionally());
+        ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+        assertEquals(1, client.getRejectedCount());
+        assertEquals(1, client.getInFlight("push-full"));
+        assertEquals(1, client.getQueued("push-full"));
+
+        // Both time out twice against the slow endpoint - the queued push is sent when the first is completed
+        assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class, () -> queued.get(5, TimeUnit.SECONDS));
+        assertEquals(0, client.getInFlight());
+        assertEquals(0, client.getQueued("push-full"));
+    }
+
+    @Test
+    public void testQueuedPushesAreRejectedWhenRemoved() throws Exception {
+        OutboundPushClient client = new OutboundPushClient(1, 1, Duration.ofSeconds(2), Duration.ofSeconds(5));
+        OutboundSubscriptionSetup subscription = createSubscription("push-removed", baseUrl + "/slow");
+
+        CompletableFuture<HttpResponse<Void>> first = client.push(subscription, BODY, false);
+        CompletableFuture<HttpResponse<Void>> queued = client.push(subscription, BODY, false);
+
+        client.remove("push-removed");
+
+        ExecutionException e = assertThrows(ExecutionException.class, queued::get);
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+        assertEquals(200, first.get(5, TimeUnit.SECONDS).statusCode());
+        assertEquals(1, received.get());
+    }
+
+    private static OutboundSubscriptionSetup createSubscription(String subscriptionId, String address) {
+        return new OutboundSubscriptionSetup(SiriDataType.ESTIMATED_TIMETABLE, address, 0, List.of(), subscriptionId);
+    }
+}
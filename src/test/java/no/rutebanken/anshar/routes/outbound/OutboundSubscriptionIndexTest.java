@@ -0,0 +1,314 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import com.hazelcast.map.IMap;
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import org.entur.siri.validator.SiriValidator;
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.VehicleActivityStructure;
+import uk.org.siri.siri21.VehicleRef;
+
+import java.io.FileInputStream;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboundSubscriptionIndexTest extends SpringBootBaseTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboundSubscriptionIndexTest.class);
+
+    private static final String SAMPLE = "src/test/resources/siri-et-from-bnr.xml";
+
+    @Autowired
+    private IMap<String, OutboundSubscriptionSetup> subscriptions;
+
+    @Autowired
+    private ServerSubscriptionManager serverSubscriptionManager;
+
+    private final List<String> subscriptionIds = new ArrayList<>();
+
+    @AfterEach
+    public void removeSubscriptions() {
+        subscriptionIds.forEach(subscriptions::delete);
+    }
+
+    @Test
+    public void testRecipientsByTypeAndDataset() throws Exception {
+        OutboundSubscriptionIndex index = new OutboundSubscriptionIndex();
+        index.add(createSubscription("et-all", SiriDataType.ESTIMATED_TIMETABLE, null, null, null));
+        index.add(createSubscription("et-tst", SiriDataType.ESTIMATED_TIMETABLE, "TST", null, null));
+        index.add(createSubscription("et-other", SiriDataType.ESTIMATED_TIMETABLE, "OTHER", null, null));
+        index.add(createSubscription("vm-all", SiriDataType.VEHICLE_MONITORING, null, null, null));
+        index.add(createSubscription("sx-tst", SiriDataType.SITUATION_EXCHANGE, "TST", Set.of(), null));
+
+        List<EstimatedVehicleJourney> journeys = getJourneys(read(SAMPLE));
+
+        assertEquals(Set.of("et-all", "et-tst"), findRecipientIds(index, SiriDataType.ESTIMATED_TIMETABLE, "TST", journeys));
+        assertEquals(Set.of("et-all"), findRecipientIds(index, SiriDataType.ESTIMATED_TIMETABLE, null, journeys));
+        assertEquals(Set.of("vm-all"), findRecipientIds(index, SiriDataType.VEHICLE_MONITORING, "TST", List.of()));
+        assertEquals(Set.of("sx-tst"), findRecipientIds(index, SiriDataType.SITUATION_EXCHANGE, "TST", List.of()));
+        assertEquals(Set.of(), findRecipientIds(index, SiriDataType.FACILITY_MONITORING, "TST", List.of()));
+    }
+
+    @Test
+    public void testRecipientsByLineAndVehicleRef() {
+        OutboundSubscriptionIndex index = new OutboundSubscriptionIndex();
+        index.add(createSubscription("line-1", SiriDataType.VEHICLE_MONITORING, null, Set.of("TST:Line:1"), null));
+        index.add(createSubscription("line-2", SiriDataType.VEHICLE_MONITORING, null, Set.of("TST:Line:2"), null));
+        index.add(createSubscription("line-1-2", SiriDataType.VEHICLE_MONITORING, null, Set.of("TST:Line:1", "TST:Line:2"), null));
+        index.add(createSubscription("vehicle-1", SiriDataType.VEHICLE_MONITORING, null, null, Set.of("1001")));
+        index.add(createSubscription("line-1-vehicle-2", SiriDataType.VEHICLE_MONITORING, null, Set.of("TST:Line:1"), Set.of("1002")));
+
+        List<VehicleActivityStructure> activities = List.of(createActivity("TST:Line:1", "1001"));
+
+        assertEquals(Set.of("line-1", "line-1-2", "vehicle-1"), findRecipientIds(index, SiriDataType.VEHICLE_MONITORING, null, activities));
+
+        activities = List.of(createActivity("TST:Line:1", "1001"), createActivity("TST:Line:1", "1002"), createActivity(null, "1003"));
+        assertEquals(Set.of("line-1", "line-1-2", "vehicle-1", "line-1-vehicle-2"), findRecipientIds(index, SiriDataType.VEHICLE_MONITORING, null, activities));
+
+        activities = List.of(createActivity("TST:Line:3", "1003"));
+        assertEquals(Set.of(), findRecipientIds(index, SiriDataType.VEHICLE_MONITORING, null, activities));
+
+        index.remove("line-1-2");
+        activities = List.of(createActivity("TST:Line:2", "1003"));
+        assertEquals(Set.of("line-2"), findRecipientIds(index, SiriDataType.VEHICLE_MONITORING, null, activities));
+    }
+
+    /**
+     * Subscriptions are returned by the index only when the filter leaves at least one element for them
+     */
+    @Test
+    public void testSameRecipientsAsFilter() throws Exception {
+        Siri delivery = read(SAMPLE);
+        List<EstimatedVehicleJourney> journeys = getJourneys(delivery);
+
+        List<OutboundSubscriptionSetup> all = new ArrayList<>();
+        Set<String> lineRefs = journeys.stream().filter(j -> j.getLineRef() != null).map(j -> j.getLineRef().getValue()).collect(Collectors.toSet());
+        for (String lineRef : lineRefs) {
+            all.add(createSubscription("line-" + lineRef, SiriDataType.ESTIMATED_TIMETABLE, null, Set.of(lineRef), null));
+        }
+        Set<String> vehicleRefs = journeys.stream().filter(j -> j.getVehicleRef() != null).map(j -> j.getVehicleRef().getValue()).limit(10).collect(Collectors.toSet());
+        for (String vehicleRef : vehicleRefs) {
+            all.add(createSubscription("vehicle-" + vehicleRef, SiriDataType.ESTIMATED_TIMETABLE, null, null, Set.of(vehicleRef)));
+        }
+        all.add(createSubscription("line-unknown", SiriDataType.ESTIMATED_TIMETABLE, null, Set.of("TST:Line:Unknown"), null));
+        all.add(createSubscription("unfiltered", SiriDataType.ESTIMATED_TIMETABLE, null, null, null));
+
+        OutboundSubscriptionIndex index = new OutboundSubscriptionIndex();
+        all.forEach(index::add);
+
+        Set<String> expected = findRecipientIdsByFilter(all, delivery, null);
+        assertTrue(expected.contains("unfiltered"));
+        assertFalse(expected.contains("line-unknown"));
+        assertEquals(lineRefs.size() + vehicleRefs.size() + 1, expected.size());
+
+        assertEquals(expected, findRecipientIds(index, SiriDataType.ESTIMATED_TIMETABLE, null, journeys));
+    }
+
+    @Test
+    public void testAddTerminateAndExpire() throws Exception {
+        OutboundSubscriptionIndex index = new OutboundSubscriptionIndex();
+        index.bindTo(subscriptions);
+
+        List<VehicleActivityStructure> activities = List.of(createActivity("TST:Line:1", "1001"));
+
+        // Added
+        put(createSubscription("index-added", SiriDataType.VEHICLE_MONITORING, null, Set.of("TST:Line:1"), null));
+        awaitUntil(() -> index.contains("index-added"));
+        assertEquals(Set.of("index-added"), findRecipientIds(index, SiriDataType.VEHICLE_MONITORING, null, activities));
+
+        // Updated with other filter
+        put(createSubscription("index-added", SiriDataType.VEHICLE_MONITORING, null, Set.of("TST:Line:2"), null));
+        awaitUntil(() -> findRecipientIds(index, SiriDataType.VEHICLE_MONITORING, null, activities).isEmpty());
+
+        // Terminated
+        serverSubscriptionManager.terminateSubscription("index-added", false);
+        awaitUntil(() -> !index.contains("index-added"));
+
+        // Expired
+        subscriptionIds.add("index-expired");
+        subscriptions.put("index-expired", createSubscription("index-expired", SiriDataType.VEHICLE_MONITORING, null, null, null), 1, TimeUnit.SECONDS);
+        awaitUntil(() -> index.contains("index-expired"));
+        awaitUntil(() -> {
+            // Triggers expiry of the entry
+            subscriptions.get("index-expired");
+            return !index.contains("index-expired");
+        });
+        assertEquals(Set.of(), findRecipientIds(index, SiriDataType.VEHICLE_MONITORING, null, activities));
+
+        // Existing subscriptions are added when binding
+        put(createSubscription("index-existing", SiriDataType.VEHICLE_MONITORING, null, null, null));
+        OutboundSubscriptionIndex otherIndex = new OutboundSubscriptionIndex();
+        otherIndex.bindTo(subscriptions);
+        assertTrue(otherIndex.contains("index-existing"));
+    }
+
+    /**
+     * Compares finding recipients for a delivery among 2000 subscriptions by reading all subscriptions from the map and
+     * filtering the delivery, and by using the index
+     */
+    @Test
+    @Tag("benchmark")
+    public void testRoutingBenchmark() throws Exception {
+        final int subscriptionCount = 2000;
+        final int iterations = 20;
+
+        Siri delivery = read(SAMPLE);
+        List<EstimatedVehicleJourney> journeys = getJourneys(delivery);
+        List<String> lineRefs = journeys.stream().filter(j -> j.getLineRef() != null).map(j -> j.getLineRef().getValue()).distinct().collect(Collectors.toList());
+
+        OutboundSubscriptionIndex index = new OutboundSubscriptionIndex();
+        index.bindTo(subscriptions);
+
+        for (int i = 0; i < subscriptionCount; i++) {
+            // Every fifth subscription is for a line in the delivery
+            String lineRef = i % 5 == 0 ? lineRefs.get(i % lineRefs.size()) : "TST:Line:" + i;
+            put(createSubscription("benchmark-" + i, SiriDataType.ESTIMATED_TIMETABLE, i % 2 == 0 ? "BNR" : null, Set.of(lineRef), null));
+        }
+        awaitUntil(() -> index.contains("benchmark-" + (subscriptionCount - 1)));
+
+        Set<String> expected = null;
+        long t1 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            List<OutboundSubscriptionSetup> candidates = subscriptions.values().stream()
+                    .filter(s -> s.getSubscriptionType() == SiriDataType.ESTIMATED_TIMETABLE &&
+                            (s.getDatasetId() == null || s.getDatasetId().equals("BNR")))
+                    .collect(Collectors.toList());
+            expected = findRecipientIdsByFilter(candidates, delivery, "BNR");
+        }
+        long scanNanos = System.nanoTime() - t1;
+
+        Set<String> actual = null;
+        t1 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            actual = findRecipientIds(index, SiriDataType.ESTIMATED_TIMETABLE, "BNR", journeys);
+        }
+        long indexNanos = System.nanoTime() - t1;
+
+        assertEquals(subscriptionCount / 5, actual.stream().filter(id -> id.startsWith("benchmark-")).count());
+        assertEquals(expected, actual);
+
+        logger.info("Finding {} recipients among {} subscriptions for {} journeys: scan and filter {} µs, index {} µs",
+                actual.size(), subscriptionCount, journeys.size(), scanNanos / iterations / 1000, indexNanos / iterations / 1000);
+    }
+
+    private Set<String> findRecipientIdsByFilter(List<OutboundSubscriptionSetup> subscriptions, Siri delivery, String datasetId) {
+        Set<String> recipients = new TreeSet<>();
+        for (OutboundSubscriptionSetup subscription : subscriptions) {
+            if (subscription.getDatasetId() != null && !subscription.getDatasetId().equals(datasetId)) {
+                continue;
+            }
+            Siri filtered = SiriHelper.filterSiriPayload(delivery, subscription.getFilterMap(), false);
+            if (!getJourneys(filtered).isEmpty()) {
+                recipients.add(subscription.getSubscriptionId());
+            }
+        }
+        return recipients;
+    }
+
+    private static Set<String> findRecipientIds(OutboundSubscriptionIndex index, SiriDataType dataType, String datasetId, List<?> elements) {
+        return index.findRecipients(dataType, datasetId, elements).stream()
+                .map(OutboundSubscriptionSetup::getSubscriptionId)
+                .collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    private void put(OutboundSubscriptionSetup subscription) {
+        subscriptionIds.add(subscription.getSubscriptionId());
+        subscriptions.put(subscription.getSubscriptionId(), subscription);
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 30000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < timeout, "Timed out waiting for index to be updated");
+            Thread.sleep(50);
+        }
+    }
+
+    private static OutboundSubscriptionSetup createSubscription(String subscriptionId, SiriDataType dataType, String datasetId,
+                                                                Set<String> lineRefs, Set<String> vehicleRefs) {
+        Map<Class, Set<String>> filterMap = new HashMap<>();
+        if (lineRefs != null) {
+            filterMap.put(LineRef.class, lineRefs);
+        }
+        if (vehicleRefs != null) {
+            filterMap.put(VehicleRef.class, vehicleRefs);
+        }
+        return new OutboundSubscriptionSetup(
+                ZonedDateTime.now(),
+                dataType,
+                "http://localhost:12345/" + subscriptionId,
+                60000,
+                0,
+                filterMap,
+                List.of(),
+                subscriptionId,
+                "RequestorRef",
+                ZonedDateTime.now().plusHours(1),
+                datasetId,
+                null,
+                SiriValidator.Version.VERSION_2_1
+        );
+    }
+
+    private static VehicleActivityStructure createActivity(String lineRefValue, String vehicleRefValue) {
+        VehicleActivityStructure activity = new VehicleActivityStructure();
+        VehicleActivityStructure.MonitoredVehicleJourney journey = new VehicleActivityStructure.MonitoredVehicleJourney();
+        if (lineRefValue != null) {
+            LineRef lineRef = new LineRef();
+            lineRef.setValue(lineRefValue);
+            journey.setLineRef(lineRef);
+        }
+        VehicleRef vehicleRef = new VehicleRef();
+        vehicleRef.setValue(vehicleRefValue);
+        journey.setVehicleRef(vehicleRef);
+        activity.setMonitoredVehicleJourney(journey);
+        return activity;
+    }
+
+    private static List<EstimatedVehicleJourney> getJourneys(Siri siri) {
+        return siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+    }
+
+    private static Siri read(String file) throws Exception {
+        try (FileInputStream xml = new FileInputStream(file)) {
+            return SiriXml.parseXml(xml);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.protobuf;
+
+import no.rutebanken.anshar.data.collections.KryoSerializer;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class QueuePayloadCodecTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueuePayloadCodecTest.class);
+
+    private static final List<String> SAMPLES = List.of("src/test/resources/siri-et-from-bnr.xml", "src/test/resources/siri-et-gir-npe.xml");
+
+    private final KryoSerializer kryoSerializer = new KryoSerializer();
+
+    private static final String XML = "<Siri xmlns=\"http://www.siri.org.uk/siri\"><ServiceDelivery><ProducerRef>Bærum-Ålesund</ProducerRef></ServiceDelivery></Siri>";
+
+    @Test
+    public void testRoundTrip() {
+        byte[] xml = XML.getBytes(StandardCharsets.UTF_8);
+
+        for (QueuePayloadCodec.Compression compression : List.of(QueuePayloadCodec.Compression.NONE, QueuePayloadCodec.Compression.DEFLATE)) {
+            QueuePayloadCodec codec = new QueuePayloadCodec(kryoSerializer, compression);
+            byte[] encoded = codec.encode(xml);
+            assertTrue(QueuePayloadCodec.hasHeader(encoded));
+            assertArrayEquals(xml, (byte[]) codec.decode(encoded));
+        }
+
+        QueuePayloadCodec codec = new QueuePayloadCodec(kryoSerializer, QueuePayloadCodec.Compression.KRYO);
+        assertEquals(XML, codec.decode(codec.encode(xml)));
+    }
+
+    @Test
+    public void testDecodePayloadFromEarlierVersions() {
+        QueuePayloadCodec codec = new QueuePayloadCodec(kryoSerializer, QueuePayloadCodec.Compression.DEFLATE);
+
+        // As written by direct:compress.jaxb before the codec was introduced
+        byte[] legacy = kryoSerializer.write(XML);
+        assertEquals(XML, codec.decode(legacy));
+    }
+
+    @Test
+    public void testDecodeAcrossCompressions() {
+        byte[] xml = XML.getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = new QueuePayloadCodec(kryoSerializer, QueuePayloadCodec.Compression.DEFLATE).encode(xml);
+
+        // Consumer may be configured differently than the producer
+        assertArrayEquals(xml, (byte[]) new QueuePayloadCodec(kryoSerializer, QueuePayloadCodec.Compression.NONE).decode(encoded));
+    }
+
+    @Test
+    public void testUnknownVersionIsRejected() {
+        QueuePayloadCodec codec = new QueuePayloadCodec(kryoSerializer, QueuePayloadCodec.Compression.NONE);
+        byte[] encoded = codec.encode(XML.getBytes(StandardCharsets.UTF_8));
+        encoded[1] = 42;
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(encoded));
+    }
+
+    @Test
+    public void testFixEncodingErrors() {
+        String original = "<Text>Blåbærsyltetøy, ØSTRE ÅSEN, Ærlig</Text>";
+        String misencoded = "<Text>BlÃ¥bÃ¦rsyltetÃ¸y, Ã\u0098STRE Ã\u0085SEN, Ã†rlig</Text>";
+
+        byte[] fixed = QueuePayloadCodec.fixEncodingErrors(misencoded.getBytes(StandardCharsets.UTF_8));
+        assertEquals(original, new String(fixed, StandardCharsets.UTF_8));
+        assertEquals(fixEncodingErrorsWithReplaceAll(misencoded), new String(fixed, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testFixEncodingErrorsAtEndOfInput() {
+        assertEquals("æ", new String(QueuePayloadCodec.fixEncodingErrors("Ã¦".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+        assertEquals("Æ", new String(QueuePayloadCodec.fixEncodingErrors("Ã†".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+        assertEquals("Ã", new String(QueuePayloadCodec.fixEncodingErrors("Ã".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testUnchangedXmlIsNotCopied() {
+        byte[] xml = XML.getBytes(StandardCharsets.UTF_8);
+        assertSame(xml, QueuePayloadCodec.fixEncodingErrors(xml));
+    }
+
+    /**
+     * Reports compression ratio and throughput for the SIRI-samples
+     */
+    @Test
+    @Tag("benchmark")
+    public void testCompressionBenchmark() throws Exception {
+        for (String sample : SAMPLES) {
+            byte[] xml = Files.readAllBytes(Path.of(sample));
+
+            for (QueuePayloadCodec.Compression compression : QueuePayloadCodec.Compression.values()) {
+                QueuePayloadCodec codec = new QueuePayloadCodec(kryoSerializer, compression);
+
+                // Warm up
+                byte[] encoded = null;
+                for (int i = 0; i < 5; i++) {
+                    encoded = codec.encode(xml);
+                    codec.decode(encoded);
+                }
+
+                final int iterations = 20;
+                long t1 = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    encoded = codec.encode(xml);
+                }
+                long encodeNanos = System.nanoTime() - t1;
+
+                Object decoded = null;
+                t1 = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    decoded = codec.decode(encoded);
+                }
+                long decodeNanos = System.nanoTime() - t1;
+
+                if (decoded instanceof byte[] bytes) {
+                    assertTrue(Arrays.equals(xml, bytes));
+                } else {
+                    assertEquals(new String(xml, StandardCharsets.UTF_8), decoded);
+                }
+
+                double megabytes = (double) xml.length * iterations / (1024 * 1024);
+                logger.info("{} - {}: ratio {}, encode {} MB/s, decode {} MB/s", Path.of(sample).getFileName(), compression,
+                        String.format("%.2f", (double) xml.length / encoded.length),
+                        String.format("%.1f", megabytes / (encodeNanos / 1e9)),
+                        String.format("%.1f", megabytes / (decodeNanos / 1e9)));
+            }
+        }
+    }
+
+    /*
+     * Replacements previously done in ProtobufConverterRoute
+     */
+    private static String fixEncodingErrorsWithReplaceAll(String body) {
+        return body.replaceAll("Ã¦", "æ")
+                .replaceAll("Ã†", "Æ")
+                .replaceAll("Ã¸", "ø")
+                .replaceAll("Ã\u0098", "Ø")
+                .replaceAll("Ã¥", "å")
+                .replaceAll("Ã\u0085", "Å");
+    }
+}
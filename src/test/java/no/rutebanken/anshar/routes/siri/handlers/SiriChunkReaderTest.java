@@ -0,0 +1,213 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.handlers;
+
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.VehicleMonitoringDeliveryStructure;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SiriChunkReaderTest {
+
+    private static final String SIRI_START = "<Siri xmlns=\"http://www.siri.org.uk/siri\" version=\"2.0\">";
+
+    @Test
+    public void testIsServiceDelivery() throws Exception {
+        String delivery = SIRI_START + "<ServiceDelivery><ResponseTimestamp>2024-01-01T12:00:00+01:00</ResponseTimestamp></ServiceDelivery></Siri>";
+        String heartbeat = SIRI_START + "<HeartbeatNotification><RequestTimestamp>2024-01-01T12:00:00+01:00</RequestTimestamp></HeartbeatNotification></Siri>";
+
+        BufferedInputStream xml = new BufferedInputStream(new ByteArrayInputStream(delivery.getBytes(StandardCharsets.UTF_8)));
+        assertTrue(SiriChunkReader.isServiceDelivery(xml));
+        // Stream is reset
+        assertEquals(delivery, new String(xml.readAllBytes(), StandardCharsets.UTF_8));
+
+        xml = new BufferedInputStream(new ByteArrayInputStream(heartbeat.getBytes(StandardCharsets.UTF_8)));
+        assertFalse(SiriChunkReader.isServiceDelivery(xml));
+        assertEquals(heartbeat, new String(xml.readAllBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testChunksKeepHeaders() throws Exception {
+        List<Siri> chunks = new ArrayList<>();
+        int count = SiriChunkReader.read(generateDelivery(25), 10, chunks::add);
+
+        assertEquals(25, count);
+        assertEquals(3, chunks.size());
+
+        int journey = 0;
+        for (Siri chunk : chunks) {
+            assertNotNull(chunk.getServiceDelivery().getResponseTimestamp());
+            assertEquals("TST", chunk.getServiceDelivery().getProducerRef().getValue());
+            assertEquals("TST:Request:1", chunk.getServiceDelivery().getRequestMessageRef().getValue());
+            assertTrue(chunk.getServiceDelivery().isMoreData());
+            assertNotNull(chunk.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getResponseTimestamp());
+            assertEquals("TST:Subscription:1", chunk.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getSubscriptionRef().getValue());
+            assertNotNull(chunk.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0).getRecordedAtTime());
+
+            for (EstimatedVehicleJourney estimatedVehicleJourney : getJourneys(chunk)) {
+                assertEquals("TST:ServiceJourney:" + journey++, estimatedVehicleJourney.getFramedVehicleJourneyRef().getDatedVehicleJourneyRef());
+            }
+        }
+        assertEquals(10, getJourneys(chunks.get(0)).size());
+        assertEquals(5, getJourneys(chunks.get(2)).size());
+    }
+
+    @Test
+    public void testChunksKeepDeliveryStatus() throws Exception {
+        String delivery = SIRI_START + "<ServiceDelivery>" +
+                "<ResponseTimestamp>2024-01-01T12:00:00+01:00</ResponseTimestamp>" +
+                "<EstimatedTimetableDelivery version=\"2.0\">" +
+                "<ResponseTimestamp>2024-01-01T12:00:01+01:00</ResponseTimestamp>" +
+                "<Status>false</Status>" +
+                "<ErrorCondition><OtherError><ErrorText>Partial data</ErrorText></OtherError></ErrorCondition>" +
+                "<EstimatedJourneyVersionFrame>" +
+                estimatedVehicleJourney(1) + estimatedVehicleJourney(2) + estimatedVehicleJourney(3) +
+                "</EstimatedJourneyVersionFrame></EstimatedTimetableDelivery></ServiceDelivery></Siri>";
+
+        List<Siri> chunks = new ArrayList<>();
+        SiriChunkReader.read(new ByteArrayInputStream(delivery.getBytes(StandardCharsets.UTF_8)), 10, chunks::add);
+
+        assertEquals(1, chunks.size());
+        EstimatedTimetableDeliveryStructure etDelivery = chunks.get(0).getServiceDelivery().getEstimatedTimetableDeliveries().get(0);
+        assertEquals(Boolean.FALSE, etDelivery.isStatus());
+        assertNotNull(etDelivery.getErrorCondition());
+        assertEquals(3, getJourneys(chunks.get(0)).size());
+    }
+
+    @Test
+    public void testDeliveryWithOnlyStatus() throws Exception {
+        String delivery = SIRI_START + "<ServiceDelivery>" +
+                "<ResponseTimestamp>2024-01-01T12:00:00+01:00</ResponseTimestamp>" +
+                "<VehicleMonitoringDelivery version=\"2.0\">" +
+                "<ResponseTimestamp>2024-01-01T12:00:01+01:00</ResponseTimestamp>" +
+                "<Status>false</Status>" +
+                "<ErrorCondition><OtherError><ErrorText>No data</ErrorText></OtherError></ErrorCondition>" +
+                "</VehicleMonitoringDelivery></ServiceDelivery></Siri>";
+
+        List<Siri> chunks = new ArrayList<>();
+        SiriChunkReader.read(new ByteArrayInputStream(delivery.getBytes(StandardCharsets.UTF_8)), 10, chunks::add);
+
+        assertEquals(1, chunks.size());
+        VehicleMonitoringDeliveryStructure vmDelivery = chunks.get(0).getServiceDelivery().getVehicleMonitoringDeliveries().get(0);
+        assertEquals(Boolean.FALSE, vmDelivery.isStatus());
+        assertNotNull(vmDelivery.getErrorCondition());
+        assertTrue(vmDelivery.getVehicleActivities().isEmpty());
+    }
+
+    /**
+     * Verifies that the consumer never receives more elements than the chunk size, i.e. that memory used is bounded by
+     * the chunk size and not by the size of the delivery
+     */
+    @Test
+    public void testChunkSizeIsBounded() throws Exception {
+        final int chunkSize = 500;
+        final int journeyCount = 100_000;
+
+        int[] chunkCount = new int[1];
+        int[] maxChunkSize = new int[1];
+
+        int count = SiriChunkReader.read(generateDelivery(journeyCount), chunkSize, chunk -> {
+            maxChunkSize[0] = Math.max(maxChunkSize[0], getJourneys(chunk).size());
+            chunkCount[0]++;
+        });
+
+        assertEquals(journeyCount, count);
+        assertEquals(chunkSize, maxChunkSize[0]);
+        assertEquals(journeyCount / chunkSize, chunkCount[0]);
+    }
+
+    private static List<EstimatedVehicleJourney> getJourneys(Siri chunk) {
+        return chunk.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+    }
+
+    /**
+     * Generates ET-delivery while it is read
+     */
+    private static InputStream generateDelivery(int journeyCount) {
+        byte[] header = (SIRI_START + "<ServiceDelivery>" +
+                "<ResponseTimestamp>2024-01-01T12:00:00+01:00</ResponseTimestamp>" +
+                "<ProducerRef>TST</ProducerRef>" +
+                "<RequestMessageRef>TST:Request:1</RequestMessageRef>" +
+                "<MoreData>true</MoreData>" +
+                "<EstimatedTimetableDelivery version=\"2.0\">" +
+                "<ResponseTimestamp>2024-01-01T12:00:01+01:00</ResponseTimestamp>" +
+                "<SubscriptionRef>TST:Subscription:1</SubscriptionRef>" +
+                "<EstimatedJourneyVersionFrame>" +
+                "<RecordedAtTime>2024-01-01T12:00:02+01:00</RecordedAtTime>").getBytes(StandardCharsets.UTF_8);
+        byte[] footer = "</EstimatedJourneyVersionFrame></EstimatedTimetableDelivery></ServiceDelivery></Siri>".getBytes(StandardCharsets.UTF_8);
+
+        return new SequenceInputStream(new Enumeration<>() {
+            int position = -1;
+
+            @Override
+            public boolean hasMoreElements() {
+                return position <= journeyCount;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                if (!hasMoreElements()) {
+                    throw new NoSuchElementException();
+                }
+                byte[] content;
+                if (position < 0) {
+                    content = header;
+                } else if (position == journeyCount) {
+                    content = footer;
+                } else {
+                    content = estimatedVehicleJourney(position).getBytes(StandardCharsets.UTF_8);
+                }
+                position++;
+                return new ByteArrayInputStream(content);
+            }
+        });
+    }
+
+    private static String estimatedVehicleJourney(int id) {
+        StringBuilder xml = new StringBuilder("<EstimatedVehicleJourney>")
+                .append("<LineRef>TST:Line:1</LineRef>")
+                .append("<FramedVehicleJourneyRef><DataFrameRef>2024-01-01</DataFrameRef>")
+                .append("<DatedVehicleJourneyRef>TST:ServiceJourney:").append(id).append("</DatedVehicleJourneyRef></FramedVehicleJourneyRef>")
+                .append("<DataSource>TST</DataSource>")
+                .append("<Monitored>true</Monitored>")
+                .append("<EstimatedCalls>");
+        for (int i = 1; i <= 10; i++) {
+            xml.append("<EstimatedCall><StopPointRef>NSR:Quay:").append(i).append("</StopPointRef>")
+                    .append("<Order>").append(i).append("</Order>")
+                    .append("<AimedDepartureTime>2024-01-01T12:").append(10 + i).append(":00+01:00</AimedDepartureTime>")
+                    .append("<ExpectedDepartureTime>2024-01-01T12:").append(11 + i).append(":00+01:00</ExpectedDepartureTime>")
+                    .append("</EstimatedCall>");
+        }
+        return xml.append("</EstimatedCalls></EstimatedVehicleJourney>").toString();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.helpers;
+
+import no.rutebanken.anshar.data.EstimatedTimetables;
+import no.rutebanken.anshar.data.SiriObjectStorageKey;
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import no.rutebanken.anshar.routes.RestRouteBuilder;
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
+import no.rutebanken.anshar.routes.siri.transformer.SiriValueTransformer;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import no.rutebanken.anshar.subscription.helpers.MappingAdapterPresets;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.util.ReflectionTestUtils;
+import uk.org.siri.siri21.DataFrameRefStructure;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.FramedVehicleJourneyRefStructure;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.StopPointRefStructure;
+import uk.org.siri.siri21.VehicleModesEnumeration;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EstimatedTimetableFragmentCacheTest extends SpringBootBaseTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(EstimatedTimetableFragmentCacheTest.class);
+
+    private static final String FEATURE_TOGGLE = "FEATURE_TOGGLE_FRAGMENT_CACHE";
+
+    @Autowired
+    private EstimatedTimetableFragmentCache fragmentCache;
+
+    @Autowired
+    private EstimatedTimetables estimatedTimetables;
+
+    @Autowired
+    private SiriObjectFactory siriObjectFactory;
+
+    @Autowired
+    private MappingAdapterPresets mappingAdapterPresets;
+
+    @BeforeEach
+    public void init() {
+        estimatedTimetables.clearAll();
+        ReflectionTestUtils.setField(fragmentCache, FEATURE_TOGGLE, true);
+        fragmentCache.init();
+    }
+
+    @AfterEach
+    public void disable() {
+        ReflectionTestUtils.setField(fragmentCache, FEATURE_TOGGLE, false);
+    }
+
+    @Test
+    public void testOutputIsIdentical() throws Exception {
+        List<EstimatedVehicleJourney> journeys = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            journeys.add(createJourney("FRAG:Line:" + (i % 3), "FRAG:ServiceJourney:" + i, 5));
+        }
+        EstimatedVehicleJourney taxi = createJourney("FRAG:Line:taxi", "FRAG:ServiceJourney:taxi", 2);
+        taxi.getVehicleModes().add(VehicleModesEnumeration.TAXI);
+        journeys.add(taxi);
+
+        estimatedTimetables.addAll("FRAG", journeys);
+
+        List<SiriObjectStorageKey> keys = new ArrayList<>(estimatedTimetables.getAllMonitoredKeys());
+        assertEquals(journeys.size(), keys.size());
+
+        for (boolean siri21 : new boolean[]{true, false}) {
+            for (boolean json : new boolean[]{true, false}) {
+                Siri envelope = siriObjectFactory.createETServiceDelivery(new ArrayList<>());
+
+                byte[] expected = serializeUncached(envelope, keys, siri21, json);
+
+                // First request renders all fragments - second request is served from cache
+                assertArrayEquals(expected, serializeCached(envelope, keys, siri21, json), "siri21=" + siri21 + ", json=" + json);
+                assertArrayEquals(expected, serializeCached(envelope, keys, siri21, json), "siri21=" + siri21 + ", json=" + json);
+            }
+        }
+    }
+
+    @Test
+    public void testUpdatedJourneyIsInvalidated() throws Exception {
+        estimatedTimetables.add("FRAG", createJourney("FRAG:Line:1", "FRAG:ServiceJourney:updated", 5));
+
+        List<SiriObjectStorageKey> keys = new ArrayList<>(estimatedTimetables.getAllMonitoredKeys());
+        Siri envelope = siriObjectFactory.createETServiceDelivery(new ArrayList<>());
+
+        byte[] original = serializeCached(envelope, keys, true, false);
+        assertArrayEquals(serializeUncached(envelope, keys, true, false), original);
+
+        estimatedTimetables.add("FRAG", createJourney("FRAG:Line:1", "FRAG:ServiceJourney:updated", 8));
+        byte[] expected = serializeUncached(envelope, keys, true, false);
+
+        // Invalidation is notified asynchronously
+        long timeout = System.currentTimeMillis() + 10000;
+        byte[] actual = serializeCached(envelope, keys, true, false);
+        while (!Arrays.equals(expected, actual) && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+            actual = serializeCached(envelope, keys, true, false);
+        }
+        assertArrayEquals(expected, actual);
+    }
+
+    /**
+     * Compares the time spent writing a 20k-journey et-monitored response with and without the fragment-cache
+     */
+    @Test
+    @Tag("benchmark")
+    public void testEtMonitoredBenchmark() throws Exception {
+        final int journeyCount = 20_000;
+        List<EstimatedVehicleJourney> journeys = new ArrayList<>();
+        for (int i = 0; i < journeyCount; i++) {
+            journeys.add(createJourney("FRAG:Line:" + (i % 100), "FRAG:ServiceJourney:benchmark-" + i, 10));
+        }
+        estimatedTimetables.addAll("FRAG", journeys);
+
+        List<SiriObjectStorageKey> keys = new ArrayList<>(estimatedTimetables.getAllMonitoredKeys());
+        assertEquals(journeyCount, keys.size());
+
+        Siri envelope = siriObjectFactory.createETServiceDelivery(new ArrayList<>());
+
+        long t1 = System.currentTimeMillis();
+        byte[] expected = serializeUncached(envelope, keys, true, false);
+        long uncached = System.currentTimeMillis() - t1;
+
+        t1 = System.currentTimeMillis();
+        byte[] cold = serializeCached(envelope, keys, true, false);
+        long coldCache = System.currentTimeMillis() - t1;
+
+        long warmCache = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            t1 = System.currentTimeMillis();
+            assertArrayEquals(expected, serializeCached(envelope, keys, true, false));
+            warmCache = Math.min(warmCache, System.currentTimeMillis() - t1);
+        }
+
+        logger.info("Writing {} journeys ({} bytes): uncached {} ms, cold cache {} ms, warm cache {} ms",
+                journeyCount, expected.length, uncached, coldCache, warmCache);
+
+        assertArrayEquals(expected, cold);
+        assertTrue(fragmentCache.getSize() >= journeyCount);
+    }
+
+    /**
+     * Serializes the response the same way as the et-monitored endpoint does without the fragment-cache
+     */
+    private byte[] serializeUncached(Siri envelope, List<SiriObjectStorageKey> keys, boolean siri21, boolean json) throws Exception {
+        Siri response = SiriObjectFactory.deepCopy(envelope);
+        Map<SiriObjectStorageKey, EstimatedVehicleJourney> journeys = estimatedTimetables.getAllByKeys(new HashSet<>(keys));
+        for (SiriObjectStorageKey key : keys) {
+            response.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                    .getEstimatedJourneyVersionFrames().get(0)
+                    .getEstimatedVehicleJourneies().add(journeys.get(key));
+        }
+
+        response = SiriValueTransformer.transform(response,
+                mappingAdapterPresets.getOutboundAdapters(SiriDataType.ESTIMATED_TIMETABLE, OutboundIdMappingPolicy.DEFAULT),
+                false, false);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RestRouteBuilder.writeSiri(response, siri21, json, out);
+        return out.toByteArray();
+    }
+
+    private byte[] serializeCached(Siri envelope, List<SiriObjectStorageKey> keys, boolean siri21, boolean json) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        fragmentCache.write(SiriObjectFactory.deepCopy(envelope), keys, OutboundIdMappingPolicy.DEFAULT, siri21, json, out);
+        return out.toByteArray();
+    }
+
+    private static EstimatedVehicleJourney createJourney(String lineRefValue, String serviceJourneyId, int delayMinutes) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue(lineRefValue);
+        journey.setLineRef(lineRef);
+
+        FramedVehicleJourneyRefStructure framedVehicleJourneyRef = new FramedVehicleJourneyRefStructure();
+        DataFrameRefStructure dataFrameRef = new DataFrameRefStructure();
+        dataFrameRef.setValue(ZonedDateTime.now().toLocalDate().toString());
+        framedVehicleJourneyRef.setDataFrameRef(dataFrameRef);
+        framedVehicleJourneyRef.setDatedVehicleJourneyRef(serviceJourneyId);
+        journey.setFramedVehicleJourneyRef(framedVehicleJourneyRef);
+
+        journey.setDataSource("FRAG");
+        journey.setMonitored(true);
+        journey.setIsCompleteStopSequence(true);
+
+        ZonedDateTime time = ZonedDateTime.now().plusMinutes(30);
+        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+        for (int i = 0; i < 4; i++) {
+            StopPointRefStructure stopPointRef = new StopPointRefStructure();
+            stopPointRef.setValue("NSR:Quay:" + i);
+
+            EstimatedCall call = new EstimatedCall();
+            call.setStopPointRef(stopPointRef);
+            call.setOrder(BigInteger.valueOf(i + 1));
+            call.setAimedArrivalTime(time.plusMinutes(i * 5));
+            call.setExpectedArrivalTime(time.plusMinutes(i * 5 + delayMinutes));
+            call.setAimedDepartureTime(time.plusMinutes(i * 5));
+            call.setExpectedDepartureTime(time.plusMinutes(i * 5 + delayMinutes));
+            estimatedCalls.getEstimatedCalls().add(call);
+        }
+        journey.setEstimatedCalls(estimatedCalls);
+        journey.setRecordedAtTime(ZonedDateTime.now());
+
+        return journey;
+    }
+}
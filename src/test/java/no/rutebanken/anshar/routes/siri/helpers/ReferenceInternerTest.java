@@ -0,0 +1,213 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.helpers;
+
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.Unmarshaller;
+import no.rutebanken.anshar.data.collections.KryoSerializer;
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.RecordedCall;
+import uk.org.siri.siri21.Siri;
+
+import javax.xml.stream.XMLInputFactory;
+import java.io.FileInputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReferenceInternerTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReferenceInternerTest.class);
+
+    private static final String SAMPLE_1 = "src/test/resources/siri-et-from-bnr.xml";
+    private static final String SAMPLE_2 = "src/test/resources/siri-et-gir-npe.xml";
+
+    private static final JAXBContext jaxbContext = createContext();
+
+    @Test
+    public void testInternedValues() {
+        ReferenceInterner interner = new ReferenceInterner();
+
+        String first = interner.intern(new String("NSR:Quay:1234"));
+        String second = interner.intern(new String("NSR:Quay:1234"));
+
+        assertSame(first, second);
+        assertEquals(2, interner.getLookupCount());
+        assertEquals(1, interner.getDeduplicatedCount());
+        assertEquals(0.5, interner.getDeduplicationRatio());
+    }
+
+    @Test
+    public void testUnmarshalledWithSameResult() throws Exception {
+        for (String sample : List.of(SAMPLE_1, SAMPLE_2)) {
+            Siri interned = parse(sample, true);
+            Siri parsed = parse(sample, false);
+
+            assertEquals(SiriXml.toXml(parsed), SiriXml.toXml(interned));
+
+            EstimatedVehicleJourney journey = getJourneys(interned).get(0);
+            EstimatedVehicleJourney otherJourney = getJourneys(parse(sample, true)).get(0);
+            assertSame(journey.getDataSource(), otherJourney.getDataSource());
+            assertSame(journey.getLineRef().getValue(), otherJourney.getLineRef().getValue());
+
+            EstimatedVehicleJourney parsedJourney = getJourneys(parsed).get(0);
+            EstimatedVehicleJourney otherParsedJourney = getJourneys(parse(sample, false)).get(0);
+            assertNotSame(parsedJourney.getLineRef().getValue(), otherParsedJourney.getLineRef().getValue());
+        }
+    }
+
+    @Test
+    public void testKryoSameFormatAndResult() throws Exception {
+        KryoSerializer defaultSerializer = new KryoSerializer();
+        KryoSerializer interningSerializer = new KryoSerializer(true);
+
+        SiriObjectFactory siriObjectFactory = new SiriObjectFactory(Instant.now());
+
+        for (EstimatedVehicleJourney journey : getJourneys(parse(SAMPLE_1, false))) {
+            byte[] bytes = defaultSerializer.write(journey);
+            assertTrue(Arrays.equals(bytes, interningSerializer.write(journey)));
+
+            EstimatedVehicleJourney first = (EstimatedVehicleJourney) interningSerializer.read(bytes);
+            EstimatedVehicleJourney second = (EstimatedVehicleJourney) interningSerializer.read(bytes);
+
+            Siri siri = siriObjectFactory.createETServiceDelivery(new ArrayList<>(List.of(journey)));
+            String expected = SiriXml.toXml(siri);
+            getJourneys(siri).set(0, first);
+            assertEquals(expected, SiriXml.toXml(siri));
+
+            assertSame(first.getDataSource(), second.getDataSource());
+            if (journey.getLineRef() != null) {
+                assertSame(first.getLineRef().getValue(), second.getLineRef().getValue());
+            }
+        }
+    }
+
+    /**
+     * Compares the number of reference-strings kept when the same deliveries are stored repeatedly
+     */
+    @Test
+    public void testHeapFootprint() throws Exception {
+        final int copies = 3;
+
+        List<Siri> parsed = new ArrayList<>();
+        List<Siri> interned = new ArrayList<>();
+        for (int i = 0; i < copies; i++) {
+            for (String sample : List.of(SAMPLE_1, SAMPLE_2)) {
+                parsed.add(parse(sample, false));
+                interned.add(parse(sample, true));
+            }
+        }
+
+        Set<String> parsedReferences = collectReferences(parsed);
+        Set<String> internedReferences = collectReferences(interned);
+
+        long parsedBytes = estimateBytes(parsedReferences);
+        long internedBytes = estimateBytes(internedReferences);
+
+        assertTrue(internedReferences.size() * copies <= parsedReferences.size());
+
+        logger.info("Reference-strings for {} deliveries: {} instances ({} kB) without interning, {} instances ({} kB) interned - dedup ratio {}",
+                parsed.size(), parsedReferences.size(), parsedBytes / 1024, internedReferences.size(), internedBytes / 1024,
+                ReferenceInterner.getInstance().getDeduplicationRatio());
+    }
+
+    private static Set<String> collectReferences(List<Siri> deliveries) {
+        Set<String> references = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Siri siri : deliveries) {
+            for (EstimatedVehicleJourney journey : getJourneys(siri)) {
+                add(references, journey.getDataSource());
+                if (journey.getLineRef() != null) {
+                    add(references, journey.getLineRef().getValue());
+                }
+                if (journey.getOperatorRef() != null) {
+                    add(references, journey.getOperatorRef().getValue());
+                }
+                if (journey.getRecordedCalls() != null) {
+                    for (RecordedCall call : journey.getRecordedCalls().getRecordedCalls()) {
+                        if (call.getStopPointRef() != null) {
+                            add(references, call.getStopPointRef().getValue());
+                        }
+                    }
+                }
+                if (journey.getEstimatedCalls() != null) {
+                    for (EstimatedCall call : journey.getEstimatedCalls().getEstimatedCalls()) {
+                        if (call.getStopPointRef() != null) {
+                            add(references, call.getStopPointRef().getValue());
+                        }
+                        if (call.getDestinationRef() != null) {
+                            add(references, call.getDestinationRef().getValue());
+                        }
+                    }
+                }
+            }
+        }
+        return references;
+    }
+
+    private static void add(Set<String> references, String value) {
+        if (value != null) {
+            references.add(value);
+        }
+    }
+
+    /**
+     * String-header and backing array, with compact strings
+     */
+    private static long estimateBytes(Set<String> references) {
+        long bytes = 0;
+        for (String reference : references) {
+            bytes += 24 + 16 + reference.length();
+        }
+        return bytes;
+    }
+
+    private static List<EstimatedVehicleJourney> getJourneys(Siri siri) {
+        return siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+    }
+
+    private static Siri parse(String file, boolean intern) throws Exception {
+        Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+        if (intern) {
+            unmarshaller.setListener(ReferenceInterner.getInstance().createUnmarshallerListener());
+        }
+        try (FileInputStream xml = new FileInputStream(file)) {
+            return unmarshaller.unmarshal(XMLInputFactory.newInstance().createXMLStreamReader(xml), Siri.class).getValue();
+        }
+    }
+
+    private static JAXBContext createContext() {
+        try {
+            return JAXBContext.newInstance(Siri.class);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.siri.processor;
+
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.VehicleActivityStructure;
+import uk.org.siri.siri21.VehicleOccupancyStructure;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Verifies that the streaming-hooks of each processor match what the processor alters on the object - the writer-path
+ * and the object-path must not drift apart.
+ */
+public class StreamingPostProcessorTest {
+
+    private static final String MARKER = "ORIG$TST 🚌";
+
+    private final SiriObjectFactory siriObjectFactory = new SiriObjectFactory(Instant.now());
+
+    @Test
+    public void testRewrittenFieldsMatchObjectPath() throws Exception {
+        for (OutboundIdMappingPolicy policy : OutboundIdMappingPolicy.values()) {
+            for (StreamingPostProcessor processor : createProcessors(policy)) {
+                PostProcessorVisitor visitor = ((VisitingPostProcessor) processor).createVisitor();
+
+                assertRewrittenFields(processor, EstimatedVehicleJourney.class, visitor::visitJourney);
+                assertRewrittenFields(processor, PtSituationElement.class, visitor::visitSituation);
+                assertRewrittenFields(processor, VehicleActivityStructure.MonitoredVehicleJourney.class, journey -> {
+                    VehicleActivityStructure activity = new VehicleActivityStructure();
+                    activity.setMonitoredVehicleJourney(journey);
+                    visitor.visitVehicleActivity(activity);
+                });
+            }
+        }
+    }
+
+    @Test
+    public void testStreamableOnlyWhenOccupancyIsNotAltered() throws Exception {
+        RemoveDetailedAPCDataPostProcessor processor = new RemoveDetailedAPCDataPostProcessor();
+
+        for (Field field : getFields(VehicleOccupancyStructure.class)) {
+            if (field.getName().equals("occupancyLevel")) {
+                continue;
+            }
+            VehicleOccupancyStructure occupancy = createOccupancy();
+            if (!setValue(occupancy, field)) {
+                continue;
+            }
+            Object original = field.get(occupancy);
+
+            EstimatedCall call = new EstimatedCall();
+            call.getExpectedDepartureOccupancies().add(occupancy);
+            EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+            journey.setEstimatedCalls(new EstimatedVehicleJourney.EstimatedCalls());
+            journey.getEstimatedCalls().getEstimatedCalls().add(call);
+            Siri siri = siriObjectFactory.createETServiceDelivery(List.of(journey));
+
+            boolean streamable = processor.isStreamable(siri);
+
+            processor.createVisitor().visitEstimatedCall(journey, call);
+            Object processed = field.get(call.getExpectedDepartureOccupancies().get(0));
+            boolean altered = !Objects.equals(original, processed);
+
+            assertEquals(altered, !streamable, "Streaming-hook does not match object-path for occupancy-field " + field.getName());
+        }
+    }
+
+    private static List<StreamingPostProcessor> createProcessors(OutboundIdMappingPolicy policy) {
+        return List.of(
+                new CodespaceOutboundProcessor(policy),
+                new RemoveEmojiPostProcessor(policy),
+                new RemoveDetailedAPCDataPostProcessor()
+        );
+    }
+
+    /**
+     * Sets all text-values of the owner, applies the object-path, and verifies that exactly the fields accepted by
+     * the streaming-hook were rewritten - with the same value
+     */
+    private static <T> void assertRewrittenFields(StreamingPostProcessor processor, Class<T> ownerClass, Consumer<T> objectPath) throws Exception {
+        T owner = ownerClass.getDeclaredConstructor().newInstance();
+        List<Field> textFields = new ArrayList<>();
+        for (Field field : getFields(ownerClass)) {
+            if (isTextField(field) && setValue(owner, field)) {
+                textFields.add(field);
+            }
+        }
+
+        objectPath.accept(owner);
+
+        for (Field field : textFields) {
+            String value = getText(field.get(owner));
+            boolean rewritten = !MARKER.equals(value);
+            String description = processor.getClass().getSimpleName() + " " + ownerClass.getSimpleName() + "." + field.getName();
+
+            assertEquals(rewritten, processor.isRewritten(ownerClass, field.getName()), "Streaming-hook does not match object-path for " + description);
+            if (rewritten) {
+                assertEquals(processor.rewrite(MARKER), value, "Different value from streaming-hook for " + description);
+            }
+        }
+    }
+
+    private static VehicleOccupancyStructure createOccupancy() throws Exception {
+        VehicleOccupancyStructure occupancy = new VehicleOccupancyStructure();
+        Field occupancyLevel = VehicleOccupancyStructure.class.getDeclaredField("occupancyLevel");
+        occupancyLevel.setAccessible(true);
+        occupancyLevel.set(occupancy, createValue(occupancyLevel.getType()));
+        return occupancy;
+    }
+
+    private static List<Field> getFields(Class<?> clazz) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+        }
+        return fields;
+    }
+
+    private static boolean isTextField(Field field) {
+        Class<?> type = field.getType();
+        if (List.class.isAssignableFrom(type)) {
+            type = getElementType(field);
+        }
+        return type != null && (type == String.class || getValueSetter(type) != null);
+    }
+
+    /**
+     * Populates the field with a value - lists with one element
+     *
+     * @return false if no value could be created for the type of the field
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean setValue(Object owner, Field field) throws Exception {
+        if (List.class.isAssignableFrom(field.getType())) {
+            Class<?> elementType = getElementType(field);
+            Object element = elementType != null ? createValue(elementType) : null;
+            if (element == null) {
+                return false;
+            }
+            List<Object> list = (List<Object>) field.get(owner);
+            if (list == null) {
+                list = new ArrayList<>();
+                field.set(owner, list);
+            }
+            list.add(element);
+            return true;
+        }
+        Object value = createValue(field.getType());
+        if (value == null) {
+            return false;
+        }
+        field.set(owner, value);
+        return true;
+    }
+
+    private static Object createValue(Class<?> type) throws Exception {
+        if (type == String.class) {
+            return MARKER;
+        }
+        if (type.isEnum()) {
+            return type.getEnumConstants()[0];
+        }
+        if (type == Boolean.class) {
+            return Boolean.TRUE;
+        }
+        if (type == BigInteger.class) {
+            return BigInteger.ONE;
+        }
+        if (type == BigDecimal.class) {
+            return BigDecimal.ONE;
+        }
+        if (type == Integer.class) {
+            return 1;
+        }
+        if (type == ZonedDateTime.class) {
+            return ZonedDateTime.now();
+        }
+        if (!type.getName().startsWith("uk.org.siri") || Modifier.isAbstract(type.getModifiers())) {
+            return null;
+        }
+        Object value = type.getDeclaredConstructor().newInstance();
+        Method setter = getValueSetter(type);
+        if (setter != null) {
+            setter.invoke(value, MARKER);
+        }
+        return value;
+    }
+
+    private static Method getValueSetter(Class<?> type) {
+        try {
+            return type.getMethod("setValue", String.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static String getText(Object value) throws Exception {
+        if (value instanceof List<?> list) {
+            value = list.isEmpty() ? null : list.get(0);
+        }
+        if (value == null || value instanceof String) {
+            return (String) value;
+        }
+        return (String) value.getClass().getMethod("getValue").invoke(value);
+    }
+
+    private static Class<?> getElementType(Field field) {
+        if (field.getGenericType() instanceof ParameterizedType parameterizedType &&
+                parameterizedType.getActualTypeArguments()[0] instanceof Class<?> elementType) {
+            return elementType;
+        }
+        return null;
+    }
+}
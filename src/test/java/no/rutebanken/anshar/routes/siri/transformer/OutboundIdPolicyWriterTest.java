@@ -0,0 +1,249 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.transformer;
+
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import no.rutebanken.anshar.routes.siri.transformer.impl.LeftPaddingAdapter;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import no.rutebanken.anshar.subscription.helpers.MappingAdapterPresets;
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.siri.siri21.DefaultedTextStructure;
+import uk.org.siri.siri21.DestinationRef;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.SituationNumber;
+import uk.org.siri.siri21.StopPointRefStructure;
+import uk.org.siri.siri21.VehicleActivityStructure;
+import uk.org.siri.siri21.VehicleOccupancyStructure;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboundIdPolicyWriterTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboundIdPolicyWriterTest.class);
+
+    private static final String SAMPLE_1 = "src/test/resources/siri-et-from-bnr.xml";
+    private static final String SAMPLE_2 = "src/test/resources/siri-et-gir-npe.xml";
+
+    private final MappingAdapterPresets mappingAdapterPresets = new MappingAdapterPresets(null);
+
+    private final SiriObjectFactory siriObjectFactory = new SiriObjectFactory(Instant.now());
+
+    @Test
+    public void testEtSameOutputAsTransformForAllPolicies() throws Exception {
+        for (String sample : List.of(SAMPLE_1, SAMPLE_2)) {
+            Siri siri = createMappedEt(sample);
+            for (OutboundIdMappingPolicy policy : OutboundIdMappingPolicy.values()) {
+                assertSameOutputAsTransform(siri, mappingAdapterPresets.getOutboundAdapters(SiriDataType.ESTIMATED_TIMETABLE, policy));
+            }
+        }
+    }
+
+    @Test
+    public void testVmSameOutputAsTransformForAllPolicies() throws Exception {
+        VehicleActivityStructure activity = new VehicleActivityStructure();
+        activity.setRecordedAtTime(ZonedDateTime.now());
+
+        VehicleActivityStructure.MonitoredVehicleJourney journey = new VehicleActivityStructure.MonitoredVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue("1234$TST:Line:1234");
+        journey.setLineRef(lineRef);
+        DestinationRef destinationRef = new DestinationRef();
+        destinationRef.setValue("5678$NSR:StopPlace:5678");
+        journey.setDestinationRef(destinationRef);
+        journey.setDataSource("ORIG$TST");
+        activity.setMonitoredVehicleJourney(journey);
+
+        Siri siri = siriObjectFactory.createVMServiceDelivery(List.of(activity));
+        for (OutboundIdMappingPolicy policy : OutboundIdMappingPolicy.values()) {
+            assertSameOutputAsTransform(siri, mappingAdapterPresets.getOutboundAdapters(SiriDataType.VEHICLE_MONITORING, policy));
+            assertSameOutputAsTransform(siri, mappingAdapterPresets.getOutboundAdapters(policy));
+        }
+    }
+
+    @Test
+    public void testSxSameOutputAsTransformForAllPolicies() throws Exception {
+        PtSituationElement situation = new PtSituationElement();
+        situation.setCreationTime(ZonedDateTime.now());
+        situation.setParticipantRef(SiriObjectFactory.createRequestorRef("ORIG$TST"));
+        SituationNumber situationNumber = new SituationNumber();
+        situationNumber.setValue("TST:SituationNumber:1234");
+        situation.setSituationNumber(situationNumber);
+
+        DefaultedTextStructure summary = new DefaultedTextStructure();
+        summary.setValue("Delayed 🚌 departures");
+        situation.getSummaries().add(summary);
+        DefaultedTextStructure description = new DefaultedTextStructure();
+        description.setValue("Replacement buses – see map");
+        situation.getDescriptions().add(description);
+
+        Siri siri = siriObjectFactory.createSXServiceDelivery(List.of(situation));
+        for (OutboundIdMappingPolicy policy : OutboundIdMappingPolicy.values()) {
+            assertSameOutputAsTransform(siri, mappingAdapterPresets.getOutboundAdapters(SiriDataType.SITUATION_EXCHANGE, policy));
+        }
+    }
+
+    @Test
+    public void testWithoutAdapters() throws Exception {
+        Siri siri = createMappedEt(SAMPLE_1);
+
+        String expected = roundtrip(siri);
+        assertEquals(expected, SiriXml.toXml(parse(write(siri, null))));
+        assertEquals(expected, SiriXml.toXml(parse(write(siri, new ArrayList<>()))));
+    }
+
+    @Test
+    public void testUnsupportedAdapters() throws Exception {
+        Siri siri = createMappedEt(SAMPLE_1);
+        List<ValueAdapter> etAdapters = mappingAdapterPresets.getOutboundAdapters(SiriDataType.ESTIMATED_TIMETABLE, OutboundIdMappingPolicy.DEFAULT);
+        assertTrue(OutboundIdPolicyWriter.isSupported(siri, etAdapters));
+
+        // Adapters that are not outbound id-adapters
+        assertFalse(OutboundIdPolicyWriter.isSupported(siri, List.of(new LeftPaddingAdapter(LineRef.class, 4, '0'))));
+
+        // Detailed APC-data is removed by altering the structure
+        EstimatedVehicleJourney journey = siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies().get(0);
+        EstimatedCall call = journey.getEstimatedCalls().getEstimatedCalls().get(0);
+        call.getExpectedDepartureOccupancies().add(new VehicleOccupancyStructure());
+        assertFalse(OutboundIdPolicyWriter.isSupported(siri, etAdapters));
+
+        // Missing ParticipantRef is added
+        PtSituationElement situation = new PtSituationElement();
+        situation.setCreationTime(ZonedDateTime.now());
+        Siri sx = siriObjectFactory.createSXServiceDelivery(List.of(situation));
+        assertFalse(OutboundIdPolicyWriter.isSupported(sx, mappingAdapterPresets.getOutboundAdapters(SiriDataType.SITUATION_EXCHANGE, OutboundIdMappingPolicy.DEFAULT)));
+    }
+
+    /**
+     * Compares bytes allocated when copying and transforming before serialization, and when applying the id-policy
+     * while writing
+     */
+    @Test
+    @Tag("benchmark")
+    public void testAllocationBenchmark() throws Exception {
+        final int iterations = 20;
+        Siri siri = createMappedEt(SAMPLE_1);
+        List<ValueAdapter> adapters = mappingAdapterPresets.getOutboundAdapters(SiriDataType.ESTIMATED_TIMETABLE, OutboundIdMappingPolicy.DEFAULT);
+
+        // Warm up both paths
+        for (int i = 0; i < 5; i++) {
+            SiriXml.toXml(SiriValueTransformer.transform(siri, adapters, true, false), null, new ByteArrayOutputStream());
+            write(siri, adapters);
+        }
+
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        long bytes = threadMXBean.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            SiriXml.toXml(SiriValueTransformer.transform(siri, adapters, true, false), null, new ByteArrayOutputStream());
+        }
+        long transformBytes = threadMXBean.getCurrentThreadAllocatedBytes() - bytes;
+
+        bytes = threadMXBean.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            write(siri, adapters);
+        }
+        long writerBytes = threadMXBean.getCurrentThreadAllocatedBytes() - bytes;
+
+        logger.info("Allocated per response: copy and transform {} kB, id-policy writer {} kB",
+                transformBytes / iterations / 1024, writerBytes / iterations / 1024);
+    }
+
+    private void assertSameOutputAsTransform(Siri siri, List<ValueAdapter> adapters) throws Exception {
+        String original = SiriXml.toXml(siri);
+        assertTrue(OutboundIdPolicyWriter.isSupported(siri, adapters));
+
+        String expected = roundtrip(SiriValueTransformer.transform(siri, adapters, true, false));
+        String actual = SiriXml.toXml(parse(write(siri, adapters)));
+
+        assertEquals(expected, actual, "Different output with adapters " + adapters);
+
+        // Written object is not altered
+        assertEquals(original, SiriXml.toXml(siri));
+    }
+
+    /**
+     * ET-sample with mapped ids in different elements
+     */
+    private static Siri createMappedEt(String file) throws Exception {
+        Siri siri;
+        try (FileInputStream xml = new FileInputStream(file)) {
+            siri = SiriXml.parseXml(xml);
+        }
+
+        List<ValueAdapter> inboundAdapters = List.of(
+                new LeftPaddingAdapter(DestinationRef.class, 8, '0'),
+                new ValueAdapter(StopPointRefStructure.class) {
+                    @Override
+                    protected String apply(String value) {
+                        return "TST:" + value;
+                    }
+                }
+        );
+        siri = SiriValueTransformer.transform(siri, inboundAdapters);
+
+        for (EstimatedVehicleJourney journey : siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies()) {
+            journey.setDataSource(journey.getDataSource() + "$TST");
+        }
+
+        String xml = SiriXml.toXml(siri);
+        assertTrue(xml.contains("$TST:NSR:Quay"));
+        assertNotEquals(xml, SiriXml.toXml(SiriValueTransformer.transform(siri,
+                new MappingAdapterPresets(null).getOutboundAdapters(SiriDataType.ESTIMATED_TIMETABLE, OutboundIdMappingPolicy.DEFAULT))));
+        return siri;
+    }
+
+    private static byte[] write(Siri siri, List<ValueAdapter> adapters) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutboundIdPolicyWriter.writeXml(siri, adapters, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Output is compared after parsing, as formatting may differ
+     */
+    private static String roundtrip(Siri siri) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SiriXml.toXml(siri, null, out);
+        return SiriXml.toXml(parse(out.toByteArray()));
+    }
+
+    private static Siri parse(byte[] xml) throws Exception {
+        return SiriXml.parseXml(new ByteArrayInputStream(xml));
+    }
+}
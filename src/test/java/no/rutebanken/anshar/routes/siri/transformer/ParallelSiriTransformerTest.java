@@ -0,0 +1,301 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.transformer;
+
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import no.rutebanken.anshar.routes.siri.processor.AddOrderToAllCallsPostProcessor;
+import no.rutebanken.anshar.routes.siri.processor.CodespaceOutboundProcessor;
+import no.rutebanken.anshar.routes.siri.processor.EnsureIncreasingTimesProcessor;
+import no.rutebanken.anshar.routes.siri.processor.OperatorFilterPostProcessor;
+import no.rutebanken.anshar.routes.siri.processor.PostProcessorVisitor;
+import no.rutebanken.anshar.routes.siri.processor.RemoveDetailedAPCDataPostProcessor;
+import no.rutebanken.anshar.routes.siri.processor.VisitingPostProcessor;
+import no.rutebanken.anshar.routes.siri.transformer.impl.LeftPaddingAdapter;
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.siri.siri21.DestinationRef;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.StopPointRefStructure;
+
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+public class ParallelSiriTransformerTest extends SpringBootBaseTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelSiriTransformerTest.class);
+
+    private static final String SAMPLE_1 = "src/test/resources/siri-et-from-bnr.xml";
+    private static final String SAMPLE_2 = "src/test/resources/siri-et-gir-npe.xml";
+
+    @Test
+    public void testSameResultAsSequential() throws Exception {
+        ParallelSiriTransformer transformer = new ParallelSiriTransformer(4, 7, 0);
+        try {
+            for (String sample : List.of(SAMPLE_1, SAMPLE_2)) {
+                Siri siri = read(sample);
+                String expected = SiriXml.toXml(SiriValueTransformer.transform(siri, createAdapters()));
+
+                assertNotEquals(SiriXml.toXml(siri), expected);
+                assertEquals(expected, SiriXml.toXml(transformer.transform(siri, createAdapters(), true, false)));
+            }
+        } finally {
+            transformer.shutdown();
+        }
+    }
+
+    @Test
+    public void testSameResultWithProcessorDependingOnOtherJourneys() throws Exception {
+        ParallelSiriTransformer transformer = new ParallelSiriTransformer(4, 5, 0);
+        try {
+            Siri siri = createLargeDelivery(3);
+
+            List<ValueAdapter> adapters = new ArrayList<>(createAdapters());
+            // Added first, and not element-local - all processors are applied sequentially
+            adapters.add(0, new RemoveDuplicatesProcessor());
+
+            String expected = SiriXml.toXml(SiriValueTransformer.transform(siri, adapters));
+            Siri transformed = transformer.transform(siri, adapters, true, false);
+
+            assertEquals(expected, SiriXml.toXml(transformed));
+
+            // Only the duplicate is removed
+            Siri withoutDuplicateRemoval = SiriValueTransformer.transform(siri, createAdapters());
+            assertEquals(ParallelSiriTransformer.countJourneys(withoutDuplicateRemoval) - 1, ParallelSiriTransformer.countJourneys(transformed));
+        } finally {
+            transformer.shutdown();
+        }
+    }
+
+    @Test
+    public void testProcessorIsCompletedOnceForWholeDelivery() throws Exception {
+        ParallelSiriTransformer transformer = new ParallelSiriTransformer(4, 5, 0);
+        try {
+            Siri siri = createLargeDelivery(3);
+            CountingProcessor counting = new CountingProcessor();
+
+            List<ValueAdapter> adapters = new ArrayList<>(createAdapters());
+            adapters.add(0, counting);
+
+            transformer.transform(siri, adapters, true, false);
+
+            // Visitors of all chunks are merged before the processor is completed
+            assertEquals(1, counting.completedCount.get());
+            assertEquals(ParallelSiriTransformer.countJourneys(siri), counting.visitedCount.get());
+        } finally {
+            transformer.shutdown();
+        }
+    }
+
+    @Test
+    public void testSmallDeliveryIsTransformedSequentially() throws Exception {
+        ParallelSiriTransformer transformer = new ParallelSiriTransformer(4, 5, 10000);
+        try {
+            Siri siri = read(SAMPLE_1);
+            String expected = SiriXml.toXml(SiriValueTransformer.transform(siri, createAdapters()));
+            assertEquals(expected, SiriXml.toXml(transformer.transform(siri, createAdapters(), true, false)));
+        } finally {
+            transformer.shutdown();
+        }
+    }
+
+    @Test
+    public void testTransformAfterShutdown() throws Exception {
+        ParallelSiriTransformer transformer = new ParallelSiriTransformer(2, 5, 0);
+        Siri siri = read(SAMPLE_2);
+        String expected = SiriXml.toXml(SiriValueTransformer.transform(siri, createAdapters()));
+
+        transformer.transform(siri, createAdapters(), true, false);
+        transformer.shutdown();
+
+        // Chunks are transformed by the calling thread
+        assertEquals(expected, SiriXml.toXml(transformer.transform(siri, createAdapters(), true, false)));
+    }
+
+    /**
+     * Compares throughput when transforming a large delivery sequentially, and in parallel
+     */
+    @Test
+    @Tag("benchmark")
+    public void testParallelBenchmark() throws Exception {
+        final int iterations = 5;
+        ParallelSiriTransformer transformer = new ParallelSiriTransformer(4, 500, 0);
+        try {
+            Siri siri = createLargeDelivery(20);
+            int journeyCount = ParallelSiriTransformer.countJourneys(siri);
+
+            List<Siri> sequential = new ArrayList<>();
+            List<Siri> parallel = new ArrayList<>();
+            for (int i = 0; i < iterations + 2; i++) {
+                sequential.add(SiriObjectFactory.deepCopy(siri));
+                parallel.add(SiriObjectFactory.deepCopy(siri));
+            }
+
+            // Warm up both paths
+            for (int i = 0; i < 2; i++) {
+                SiriValueTransformer.transform(sequential.remove(0), createAdapters(), false, false);
+                transformer.transform(parallel.remove(0), createAdapters(), false, false);
+            }
+
+            long t1 = System.nanoTime();
+            for (Siri s : sequential) {
+                SiriValueTransformer.transform(s, createAdapters(), false, false);
+            }
+            long sequentialNanos = System.nanoTime() - t1;
+
+            t1 = System.nanoTime();
+            for (Siri s : parallel) {
+                transformer.transform(s, createAdapters(), false, false);
+            }
+            long parallelNanos = System.nanoTime() - t1;
+
+            assertEquals(SiriXml.toXml(sequential.get(0)), SiriXml.toXml(parallel.get(0)));
+
+            logger.info("Journeys per second with {} journeys: sequential {}, parallel {}", journeyCount,
+                    journeyCount * iterations * 1_000_000_000L / sequentialNanos,
+                    journeyCount * iterations * 1_000_000_000L / parallelNanos);
+        } finally {
+            transformer.shutdown();
+        }
+    }
+
+    private static List<ValueAdapter> createAdapters() {
+        List<ValueAdapter> adapters = new ArrayList<>();
+        adapters.add(new LeftPaddingAdapter(LineRef.class, 4, '0'));
+        adapters.add(new LeftPaddingAdapter(StopPointRefStructure.class, 8, '0'));
+        adapters.add(new LeftPaddingAdapter(DestinationRef.class, 8, '0'));
+        adapters.add(new OperatorFilterPostProcessor("TST", List.of("GC"), Map.of("NSB", "BNR")));
+        adapters.add(new EnsureIncreasingTimesProcessor("TST"));
+        adapters.add(new RemoveDetailedAPCDataPostProcessor());
+        // Not a visiting processor - applied sequentially, with the following processors
+        adapters.add(new AddOrderToAllCallsPostProcessor("TST"));
+        adapters.add(new CodespaceOutboundProcessor(OutboundIdMappingPolicy.DEFAULT));
+        return adapters;
+    }
+
+    /**
+     * All journeys from the first sample, repeated - the first journey is also added to the end
+     */
+    private static Siri createLargeDelivery(int copies) throws Exception {
+        Siri siri = read(SAMPLE_1);
+        List<EstimatedVehicleJourney> journeys = siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+        List<EstimatedVehicleJourney> original = new ArrayList<>(journeys);
+        for (int i = 1; i < copies; i++) {
+            for (EstimatedVehicleJourney journey : original) {
+                EstimatedVehicleJourney copy = SiriObjectFactory.deepCopy(journey);
+                if (journey.getDatedVehicleJourneyRef() != null) {
+                    copy.getDatedVehicleJourneyRef().setValue(journey.getDatedVehicleJourneyRef().getValue() + "-" + i);
+                }
+                journeys.add(copy);
+            }
+        }
+        journeys.add(SiriObjectFactory.deepCopy(original.get(0)));
+        return siri;
+    }
+
+    private static Siri read(String file) throws Exception {
+        try (FileInputStream xml = new FileInputStream(file)) {
+            return SiriXml.parseXml(xml);
+        }
+    }
+
+    /**
+     * Keeps the first journey with each DatedVehicleJourneyRef - depends on the journeys before it in the delivery
+     */
+    private static class RemoveDuplicatesProcessor extends ValueAdapter implements VisitingPostProcessor {
+
+        @Override
+        protected String apply(String value) {
+            return null;
+        }
+
+        @Override
+        public PostProcessorVisitor createVisitor() {
+            return new PostProcessorVisitor() {
+                private final Set<String> journeyRefs = new HashSet<>();
+
+                @Override
+                public boolean visitJourney(EstimatedVehicleJourney journey) {
+                    return journey.getDatedVehicleJourneyRef() == null ||
+                            journeyRefs.add(journey.getDatedVehicleJourneyRef().getValue());
+                }
+            };
+        }
+    }
+
+    /**
+     * Counts the journeys in the delivery, and the number of times it is completed
+     */
+    private static class CountingProcessor extends ValueAdapter implements VisitingPostProcessor {
+
+        private final AtomicInteger completedCount = new AtomicInteger();
+
+        private final AtomicInteger visitedCount = new AtomicInteger();
+
+        @Override
+        protected String apply(String value) {
+            return null;
+        }
+
+        @Override
+        public boolean isElementLocal() {
+            return true;
+        }
+
+        @Override
+        public PostProcessorVisitor createVisitor() {
+            return new CountingVisitor();
+        }
+
+        private class CountingVisitor implements PostProcessorVisitor {
+            private int journeyCount;
+
+            @Override
+            public boolean visitJourney(EstimatedVehicleJourney journey) {
+                journeyCount++;
+                return true;
+            }
+
+            @Override
+            public void merge(PostProcessorVisitor other) {
+                if (other instanceof CountingVisitor visitor) {
+                    journeyCount += visitor.journeyCount;
+                }
+            }
+
+            @Override
+            public void completed() {
+                completedCount.incrementAndGet();
+                visitedCount.addAndGet(journeyCount);
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.transformer;
+
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import no.rutebanken.anshar.routes.siri.transformer.impl.LeftPaddingAdapter;
+import no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter;
+import no.rutebanken.anshar.routes.siri.transformer.impl.UnalteredAdapter;
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.siri.siri21.DatedVehicleJourneyRef;
+import uk.org.siri.siri21.DestinationRef;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.OperatorRefStructure;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.StopPointRefStructure;
+import uk.org.siri.siri21.VehicleRef;
+
+import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ValueAdapterEngineTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ValueAdapterEngineTest.class);
+
+    private static final String SAMPLE_1 = "src/test/resources/siri-et-from-bnr.xml";
+    private static final String SAMPLE_2 = "src/test/resources/siri-et-gir-npe.xml";
+
+    @Test
+    public void testSameResultAsReflectiveTraversal() throws Exception {
+        for (String sample : List.of(SAMPLE_1, SAMPLE_2)) {
+            for (List<ValueAdapter> adapters : List.of(createInboundAdapters(), createOutboundAdapters(OutboundIdMappingPolicy.ORIGINAL_ID))) {
+                Siri expected = read(sample);
+                Siri actual = read(sample);
+
+                applyReflectively(expected, adapters);
+                assertTrue(ValueAdapterEngine.applyAdapters(actual, adapters).isEmpty());
+
+                assertEquals(SiriXml.toXml(expected), SiriXml.toXml(actual), "Different result for " + sample);
+            }
+        }
+    }
+
+    @Test
+    public void testMappedThenOutboundIsSameAsReflectiveTraversal() throws Exception {
+        Siri expected = read(SAMPLE_1);
+        Siri actual = read(SAMPLE_1);
+        String original = SiriXml.toXml(actual);
+
+        for (List<ValueAdapter> adapters : List.of(createInboundAdapters(), createOutboundAdapters(OutboundIdMappingPolicy.DEFAULT))) {
+            applyReflectively(expected, adapters);
+            ValueAdapterEngine.applyAdapters(actual, adapters);
+        }
+
+        assertNotEquals(original, SiriXml.toXml(actual));
+        assertEquals(SiriXml.toXml(expected), SiriXml.toXml(actual));
+    }
+
+    @Test
+    public void testTransformWithAdapters() throws Exception {
+        Siri siri = read(SAMPLE_1);
+        Siri expected = SiriObjectFactory.deepCopy(siri);
+        applyReflectively(expected, createInboundAdapters());
+
+        Siri transformed = SiriValueTransformer.transform(siri, createInboundAdapters());
+
+        assertEquals(SiriXml.toXml(expected), SiriXml.toXml(transformed));
+
+        // Plans are reused for the same classes
+        int planCount = ValueAdapterEngine.getPlanCount();
+        SiriValueTransformer.transform(siri, createInboundAdapters());
+        assertEquals(planCount, ValueAdapterEngine.getPlanCount());
+    }
+
+    @Test
+    public void testConcurrentTransform() throws Exception {
+        Siri siri = read(SAMPLE_2);
+        String expected = SiriXml.toXml(SiriValueTransformer.transform(siri, createInboundAdapters()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                results.add(executor.submit(() -> SiriXml.toXml(SiriValueTransformer.transform(siri, createInboundAdapters()))));
+            }
+            for (Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Compares CPU-time for applying the adapters one by one with reflection, and in one compiled traversal
+     */
+    @Test
+    @Tag("benchmark")
+    public void testTransformBenchmark() throws Exception {
+        final int iterations = 50;
+        List<ValueAdapter> adapters = createInboundAdapters();
+        Siri siri = read(SAMPLE_1);
+
+        List<Siri> reflective = new ArrayList<>();
+        List<Siri> compiled = new ArrayList<>();
+        for (int i = 0; i < iterations + 5; i++) {
+            reflective.add(SiriObjectFactory.deepCopy(siri));
+            compiled.add(SiriObjectFactory.deepCopy(siri));
+        }
+
+        // Warm up both paths
+        for (int i = 0; i < 5; i++) {
+            applyReflectively(reflective.remove(0), adapters);
+            ValueAdapterEngine.applyAdapters(compiled.remove(0), adapters);
+        }
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        long t1 = threadMXBean.getCurrentThreadCpuTime();
+        for (Siri s : reflective) {
+            applyReflectively(s, adapters);
+        }
+        long reflectiveCpu = threadMXBean.getCurrentThreadCpuTime() - t1;
+
+        t1 = threadMXBean.getCurrentThreadCpuTime();
+        for (Siri s : compiled) {
+            ValueAdapterEngine.applyAdapters(s, adapters);
+        }
+        long compiledCpu = threadMXBean.getCurrentThreadCpuTime() - t1;
+
+        assertEquals(SiriXml.toXml(reflective.get(0)), SiriXml.toXml(compiled.get(0)));
+
+        logger.info("CPU per transform with {} adapters: reflective {} µs, compiled {} µs",
+                adapters.size(), reflectiveCpu / iterations / 1000, compiledCpu / iterations / 1000);
+    }
+
+    private static List<ValueAdapter> createInboundAdapters() {
+        List<ValueAdapter> adapters = new ArrayList<>();
+        adapters.add(new LeftPaddingAdapter(LineRef.class, 4, '0'));
+        adapters.add(new LeftPaddingAdapter(StopPointRefStructure.class, 8, '0'));
+        adapters.add(new LeftPaddingAdapter(VehicleRef.class, 6, '0'));
+        adapters.add(new LeftPaddingAdapter(DatedVehicleJourneyRef.class, 10, '0'));
+        adapters.add(new LeftPaddingAdapter(OperatorRefStructure.class, 3, '0'));
+        adapters.add(new UnalteredAdapter(DestinationRef.class));
+        // Same class as a previous adapter - applied after it
+        adapters.add(new LeftPaddingAdapter(LineRef.class, 6, 'X'));
+        return adapters;
+    }
+
+    private static List<ValueAdapter> createOutboundAdapters(OutboundIdMappingPolicy policy) {
+        List<ValueAdapter> adapters = new ArrayList<>();
+        adapters.add(new OutboundIdAdapter(LineRef.class, policy));
+        adapters.add(new OutboundIdAdapter(StopPointRefStructure.class, policy));
+        adapters.add(new OutboundIdAdapter(VehicleRef.class, policy));
+        return adapters;
+    }
+
+    private static Siri read(String file) throws Exception {
+        try (FileInputStream xml = new FileInputStream(file)) {
+            return SiriXml.parseXml(xml);
+        }
+    }
+
+    /**
+     * Previous implementation - each adapter is applied to the whole object graph, using reflection
+     */
+    private static void applyReflectively(Object siri, List<ValueAdapter> adapters) {
+        for (ValueAdapter adapter : adapters) {
+            try {
+                applyAdapter(siri, adapter);
+            } catch (Throwable t) {
+                logger.warn("Caught exception while transforming SIRI-object.", t);
+            }
+        }
+    }
+
+    private static void applyAdapter(Object obj, ValueAdapter adapter) throws Throwable {
+        if (obj != null && obj.getClass().getName().startsWith("uk.org.siri")) {
+            for (Method method : obj.getClass().getMethods()) {
+                if (method.getParameterCount() != 0 || method.getReturnType().equals(void.class) ||
+                        method.getName().equals("getMonitoringError")) {
+                    continue;
+                }
+                if (method.getReturnType().equals(adapter.getClassToApply())) {
+                    Object previousValue = method.invoke(obj);
+                    if (previousValue != null) {
+                        String value = (String) previousValue.getClass().getMethod("getValue").invoke(previousValue);
+                        String alteredValue = SiriValueTransformer.adaptValue(adapter, value);
+                        previousValue.getClass().getMethod("setValue", String.class).invoke(previousValue, alteredValue);
+                    }
+                } else {
+                    Object currentValue = method.invoke(obj);
+                    if (currentValue instanceof List<?> list) {
+                        for (Object o : list) {
+                            applyAdapter(o, adapter);
+                        }
+                    } else if (currentValue != null) {
+                        applyAdapter(currentValue, adapter);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package no.rutebanken.anshar.siri.handler;
 
 import jakarta.xml.bind.JAXBException;
+import no.rutebanken.anshar.data.EstimatedTimetables;
 import no.rutebanken.anshar.integration.SpringBootBaseTest;
 import no.rutebanken.anshar.routes.siri.handlers.SiriHandler;
 import no.rutebanken.anshar.subscription.SiriDataType;
@@ -23,14 +24,18 @@ import no.rutebanken.anshar.subscription.SubscriptionManager;
 import no.rutebanken.anshar.subscription.SubscriptionSetup;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.util.ReflectionTestUtils;
 import uk.org.siri.siri21.Siri;
 
 import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.UUID;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.fail;
 
 public class SiriHandlerTest extends SpringBootBaseTest {
@@ -41,6 +46,9 @@ public class SiriHandlerTest extends SpringBootBaseTest {
     @Autowired
     private SiriHandler handler;
 
+    @Autowired
+    private EstimatedTimetables estimatedTimetables;
+
     @Test
     public void testErrorInSXServiceDelivery() throws JAXBException {
         String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
@@ -130,6 +138,88 @@ public class SiriHandlerTest extends SpringBootBaseTest {
     }
 
 
+    @Test
+    public void testETServiceDeliveryInChunks() throws Exception {
+        SubscriptionSetup etSubscription = getEtSubscription();
+        etSubscription.setUseProvidedCodespaceId(true);
+        subscriptionManager.addSubscription(etSubscription.getSubscriptionId(), etSubscription);
+
+        StringBuilder xml = new StringBuilder("<Siri xmlns=\"http://www.siri.org.uk/siri\" version=\"2.0\"><ServiceDelivery>" +
+                "<ResponseTimestamp>" + OffsetDateTime.now() + "</ResponseTimestamp>" +
+                "<EstimatedTimetableDelivery version=\"2.0\"><EstimatedJourneyVersionFrame>");
+        for (int i = 0; i < 11; i++) {
+            xml.append(createEstimatedVehicleJourney(i < 7 ? "CHUNKA" : "CHUNKB", i));
+        }
+        xml.append("</EstimatedJourneyVersionFrame></EstimatedTimetableDelivery></ServiceDelivery></Siri>");
+
+        handleWithStreamingIngest(etSubscription, xml.toString());
+
+        assertEquals(7, estimatedTimetables.getAll("CHUNKA").size());
+        assertEquals(4, estimatedTimetables.getAll("CHUNKB").size());
+    }
+
+    @Test
+    public void testETServiceDeliveryInChunksWithErrorStatus() throws Exception {
+        SubscriptionSetup etSubscription = getEtSubscription();
+        etSubscription.setUseProvidedCodespaceId(true);
+        subscriptionManager.addSubscription(etSubscription.getSubscriptionId(), etSubscription);
+
+        StringBuilder xml = new StringBuilder("<Siri xmlns=\"http://www.siri.org.uk/siri\" version=\"2.0\"><ServiceDelivery>" +
+                "<ResponseTimestamp>" + OffsetDateTime.now() + "</ResponseTimestamp>" +
+                "<EstimatedTimetableDelivery version=\"2.0\">" +
+                "<Status>false</Status>" +
+                "<ErrorCondition><OtherError><ErrorText>Data not available</ErrorText></OtherError></ErrorCondition>" +
+                "<EstimatedJourneyVersionFrame>");
+        for (int i = 0; i < 5; i++) {
+            xml.append(createEstimatedVehicleJourney("CHUNKERR", i));
+        }
+        xml.append("</EstimatedJourneyVersionFrame></EstimatedTimetableDelivery></ServiceDelivery></Siri>");
+
+        handleWithStreamingIngest(etSubscription, xml.toString());
+
+        // Delivery-level status is kept for each chunk - data is ignored as for non-streaming ingest
+        assertEquals(0, estimatedTimetables.getAll("CHUNKERR").size());
+    }
+
+    /**
+     * Handles the delivery as regular incoming data, with streaming ingest enabled for all sizes
+     */
+    private void handleWithStreamingIngest(SubscriptionSetup subscription, String xml) throws Exception {
+        int chunkSize = (int) ReflectionTestUtils.getField(handler, "streamingIngestChunkSize");
+        int threshold = (int) ReflectionTestUtils.getField(handler, "streamingIngestThresholdBytes");
+        ReflectionTestUtils.setField(handler, "FEATURE_TOGGLE_STREAMING_INGEST", true);
+        ReflectionTestUtils.setField(handler, "streamingIngestThresholdBytes", 0);
+        ReflectionTestUtils.setField(handler, "streamingIngestChunkSize", 3);
+        try {
+            handler.handleIncomingSiri(subscription.getSubscriptionId(), new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            ReflectionTestUtils.setField(handler, "FEATURE_TOGGLE_STREAMING_INGEST", false);
+            ReflectionTestUtils.setField(handler, "streamingIngestThresholdBytes", threshold);
+            ReflectionTestUtils.setField(handler, "streamingIngestChunkSize", chunkSize);
+        }
+    }
+
+    private static String createEstimatedVehicleJourney(String codespace, int id) {
+        OffsetDateTime departure = OffsetDateTime.now().plusHours(1);
+        return "<EstimatedVehicleJourney>" +
+                "<RecordedAtTime>" + OffsetDateTime.now() + "</RecordedAtTime>" +
+                "<LineRef>" + codespace + ":Line:1</LineRef>" +
+                "<DirectionRef>0</DirectionRef>" +
+                "<FramedVehicleJourneyRef><DataFrameRef>" + departure.toLocalDate() + "</DataFrameRef>" +
+                "<DatedVehicleJourneyRef>" + codespace + ":ServiceJourney:" + id + "</DatedVehicleJourneyRef></FramedVehicleJourneyRef>" +
+                "<DataSource>" + codespace + "</DataSource>" +
+                "<IsCompleteStopSequence>true</IsCompleteStopSequence>" +
+                "<EstimatedCalls>" +
+                "<EstimatedCall><StopPointRef>NSR:Quay:1</StopPointRef><Order>1</Order>" +
+                "<AimedDepartureTime>" + departure + "</AimedDepartureTime>" +
+                "<ExpectedDepartureTime>" + departure + "</ExpectedDepartureTime></EstimatedCall>" +
+                "<EstimatedCall><StopPointRef>NSR:Quay:2</StopPointRef><Order>2</Order>" +
+                "<AimedArrivalTime>" + departure.plusMinutes(10) + "</AimedArrivalTime>" +
+                "<ExpectedArrivalTime>" + departure.plusMinutes(10) + "</ExpectedArrivalTime></EstimatedCall>" +
+                "</EstimatedCalls>" +
+                "</EstimatedVehicleJourney>";
+    }
+
 
     private SubscriptionSetup getSxSubscription() {
         return getSubscriptionSetup(SiriDataType.SITUATION_EXCHANGE);
@@ -0,0 +1,253 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.siri.processor;
+
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import no.rutebanken.anshar.routes.siri.processor.AddOrderToAllCallsPostProcessor;
+import no.rutebanken.anshar.routes.siri.processor.CodespaceOutboundProcessor;
+import no.rutebanken.anshar.routes.siri.processor.EnsureIncreasingTimesProcessor;
+import no.rutebanken.anshar.routes.siri.processor.OperatorFilterPostProcessor;
+import no.rutebanken.anshar.routes.siri.processor.PostProcessor;
+import no.rutebanken.anshar.routes.siri.processor.PostProcessorChain;
+import no.rutebanken.anshar.routes.siri.processor.PostProcessorVisitor;
+import no.rutebanken.anshar.routes.siri.processor.RemoveDetailedAPCDataPostProcessor;
+import no.rutebanken.anshar.routes.siri.processor.RemoveEmojiPostProcessor;
+import no.rutebanken.anshar.routes.siri.processor.RemovePersonalInformationProcessor;
+import no.rutebanken.anshar.routes.siri.processor.VisitingPostProcessor;
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.siri.siri21.DefaultedTextStructure;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.EstimatedVersionFrameStructure;
+import uk.org.siri.siri21.NaturalLanguageStringStructure;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.SituationSourceStructure;
+import uk.org.siri.siri21.VehicleActivityStructure;
+
+import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+public class PostProcessorChainTest extends SpringBootBaseTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(PostProcessorChainTest.class);
+
+    private static final String SAMPLE_1 = "src/test/resources/siri-et-from-bnr.xml";
+    private static final String SAMPLE_2 = "src/test/resources/siri-et-gir-npe.xml";
+
+    private final SiriObjectFactory siriObjectFactory = new SiriObjectFactory(Instant.now());
+
+    @Test
+    public void testEtSameResultAsProcessingOneByOne() throws Exception {
+        for (String sample : List.of(SAMPLE_1, SAMPLE_2)) {
+            Siri siri = read(sample);
+            assertSameResultAsProcessingOneByOne(siri, createEtProcessors());
+        }
+    }
+
+    @Test
+    public void testSxAndVmSameResultAsProcessingOneByOne() throws Exception {
+        List<PostProcessor> processors = List.of(
+                new RemovePersonalInformationProcessor(),
+                new RemoveEmojiPostProcessor(OutboundIdMappingPolicy.DEFAULT),
+                new CodespaceOutboundProcessor(OutboundIdMappingPolicy.DEFAULT)
+        );
+
+        List<PtSituationElement> situations = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            PtSituationElement situation = new PtSituationElement();
+            situation.setCreationTime(ZonedDateTime.now());
+            if (i % 2 == 0) {
+                situation.setParticipantRef(SiriObjectFactory.createRequestorRef("ORIG$TST"));
+            }
+            SituationSourceStructure source = new SituationSourceStructure();
+            source.setPhone("11223344");
+            NaturalLanguageStringStructure name = new NaturalLanguageStringStructure();
+            name.setValue("Test Testesen");
+            source.setName(name);
+            situation.setSource(source);
+            DefaultedTextStructure summary = new DefaultedTextStructure();
+            summary.setValue("Delayed 🚌 departures");
+            situation.getSummaries().add(summary);
+            situations.add(situation);
+        }
+        assertSameResultAsProcessingOneByOne(siriObjectFactory.createSXServiceDelivery(situations), processors);
+
+        List<VehicleActivityStructure> activities = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            VehicleActivityStructure activity = new VehicleActivityStructure();
+            activity.setRecordedAtTime(ZonedDateTime.now());
+            VehicleActivityStructure.MonitoredVehicleJourney journey = new VehicleActivityStructure.MonitoredVehicleJourney();
+            journey.setDataSource("ORIG$TST");
+            activity.setMonitoredVehicleJourney(journey);
+            activities.add(activity);
+        }
+        assertSameResultAsProcessingOneByOne(siriObjectFactory.createVMServiceDelivery(activities), processors);
+    }
+
+    @Test
+    public void testRemovedElementIsNotVisitedByNextProcessor() throws Exception {
+        Siri siri = read(SAMPLE_1);
+        EstimatedVersionFrameStructure frame = siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0);
+        int journeyCount = frame.getEstimatedVehicleJourneies().size();
+
+        List<EstimatedVehicleJourney> visited = new ArrayList<>();
+        VisitingPostProcessor removeAll = () -> new PostProcessorVisitor() {
+            @Override
+            public boolean visitJourney(EstimatedVehicleJourney journey) {
+                return false;
+            }
+        };
+        VisitingPostProcessor collecting = () -> new PostProcessorVisitor() {
+            @Override
+            public boolean visitJourney(EstimatedVehicleJourney journey) {
+                visited.add(journey);
+                return true;
+            }
+        };
+
+        PostProcessorChain.process(siri, List.of(collecting, removeAll, collecting));
+
+        assertEquals(journeyCount, visited.size());
+        assertEquals(0, frame.getEstimatedVehicleJourneies().size());
+    }
+
+    @Test
+    public void testFailingProcessorDoesNotStopOthers() throws Exception {
+        Siri expected = read(SAMPLE_1);
+        Siri actual = SiriObjectFactory.deepCopy(expected);
+
+        VisitingPostProcessor failing = () -> new PostProcessorVisitor() {
+            @Override
+            public boolean visitJourney(EstimatedVehicleJourney journey) {
+                throw new IllegalStateException("Expected failure");
+            }
+        };
+
+        CodespaceOutboundProcessor processor = new CodespaceOutboundProcessor(OutboundIdMappingPolicy.DEFAULT);
+        processor.process(expected);
+        PostProcessorChain.process(actual, List.of(failing, processor));
+
+        assertEquals(SiriXml.toXml(expected), SiriXml.toXml(actual));
+    }
+
+    /**
+     * Compares CPU-time for applying the processors one by one, and in one traversal
+     */
+    @Test
+    @Tag("benchmark")
+    public void testChainBenchmark() throws Exception {
+        final int iterations = 20;
+        List<PostProcessor> processors = createEtProcessors();
+
+        // Large delivery - all journeys from both samples, repeated
+        Siri siri = read(SAMPLE_1);
+        List<EstimatedVehicleJourney> journeys = siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+        List<EstimatedVehicleJourney> original = new ArrayList<>(journeys);
+        original.addAll(read(SAMPLE_2).getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies());
+        journeys.clear();
+        for (int i = 0; i < 10; i++) {
+            for (EstimatedVehicleJourney journey : original) {
+                journeys.add(SiriObjectFactory.deepCopy(journey));
+            }
+        }
+
+        List<Siri> oneByOne = new ArrayList<>();
+        List<Siri> chained = new ArrayList<>();
+        for (int i = 0; i < iterations + 5; i++) {
+            oneByOne.add(SiriObjectFactory.deepCopy(siri));
+            chained.add(SiriObjectFactory.deepCopy(siri));
+        }
+
+        // Warm up both paths
+        for (int i = 0; i < 5; i++) {
+            processOneByOne(oneByOne.remove(0), processors);
+            PostProcessorChain.process(chained.remove(0), processors);
+        }
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        long t1 = threadMXBean.getCurrentThreadCpuTime();
+        for (Siri s : oneByOne) {
+            processOneByOne(s, processors);
+        }
+        long oneByOneCpu = threadMXBean.getCurrentThreadCpuTime() - t1;
+
+        t1 = threadMXBean.getCurrentThreadCpuTime();
+        for (Siri s : chained) {
+            PostProcessorChain.process(s, processors);
+        }
+        long chainedCpu = threadMXBean.getCurrentThreadCpuTime() - t1;
+
+        assertEquals(SiriXml.toXml(oneByOne.get(0)), SiriXml.toXml(chained.get(0)));
+
+        logger.info("CPU per delivery with {} journeys and {} processors: one by one {} µs, one traversal {} µs",
+                journeys.size(), processors.size(), oneByOneCpu / iterations / 1000, chainedCpu / iterations / 1000);
+    }
+
+    private static List<PostProcessor> createEtProcessors() {
+        return List.of(
+                new OperatorFilterPostProcessor("TST", List.of("GC"), Map.of("NSB", "BNR")),
+                new EnsureIncreasingTimesProcessor("TST"),
+                // Not a visiting processor - splits the chain in two traversals
+                new AddOrderToAllCallsPostProcessor("TST"),
+                new RemoveDetailedAPCDataPostProcessor(),
+                new CodespaceOutboundProcessor(OutboundIdMappingPolicy.DEFAULT)
+        );
+    }
+
+    private static void assertSameResultAsProcessingOneByOne(Siri siri, List<PostProcessor> processors) throws Exception {
+        Siri expected = SiriObjectFactory.deepCopy(siri);
+        Siri actual = SiriObjectFactory.deepCopy(siri);
+
+        processOneByOne(expected, processors);
+        PostProcessorChain.process(actual, processors);
+
+        assertNotEquals(SiriXml.toXml(siri), SiriXml.toXml(actual));
+        assertEquals(SiriXml.toXml(expected), SiriXml.toXml(actual));
+    }
+
+    /**
+     * Previous implementation - each processor traverses the whole delivery
+     */
+    private static void processOneByOne(Siri siri, List<PostProcessor> processors) {
+        for (PostProcessor processor : processors) {
+            processor.process(siri);
+        }
+    }
+
+    private static Siri read(String file) throws Exception {
+        try (FileInputStream xml = new FileInputStream(file)) {
+            return SiriXml.parseXml(xml);
+        }
+    }
+}